@@ -18,22 +18,40 @@ package com.cloudera.labs.envelope.derive;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.analysis.Star;
+import org.apache.spark.sql.catalyst.analysis.UnresolvedAttribute;
+import org.apache.spark.sql.catalyst.analysis.UnresolvedRelation;
+import org.apache.spark.sql.catalyst.expressions.Expression;
+import org.apache.spark.sql.catalyst.parser.CatalystSqlParser;
+import org.apache.spark.sql.catalyst.plans.JoinType;
+import org.apache.spark.sql.catalyst.plans.NaturalJoin;
+import org.apache.spark.sql.catalyst.plans.UsingJoin;
+import org.apache.spark.sql.catalyst.plans.logical.Join;
+import org.apache.spark.sql.catalyst.plans.logical.LogicalPlan;
+import org.apache.spark.sql.catalyst.plans.logical.With;
+import org.apache.spark.sql.catalyst.plans.logical.WithWindowDefinition;
+import org.apache.spark.sql.types.StructType;
 
 import com.cloudera.labs.envelope.spark.Contexts;
 import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.Sets;
 import com.google.common.io.CharStreams;
 import com.typesafe.config.Config;
 
+import scala.collection.JavaConversions;
+
 /**
  * Execute Spark SQL on Datasets.
  */
-public class SQLDeriver implements Deriver {
+public class SQLDeriver implements Deriver, UsesDependencyFields {
 
   public static final String QUERY_LITERAL_CONFIG_NAME = "query.literal";
   public static final String QUERY_FILE_CONFIG_NAME = "query.file";
@@ -47,6 +65,136 @@ public class SQLDeriver implements Deriver {
 
   @Override
   public Dataset<Row> derive(Map<String, Dataset<Row>> dependencies) throws Exception {
+    String query = getQuery();
+
+    Dataset<Row> derived = Contexts.getSparkSession().sql(query);
+
+    return derived;
+  }
+
+  // The query is only parsed, and not analyzed, because the other dependencies of the query may
+  // not have been submitted yet. Without analysis we can not tell which relation an attribute
+  // belongs to, so any attribute name that matches a field of the dependency is kept.
+  @Override
+  public Optional<Set<String>> getUsedFieldNames(String dependencyName, StructType dependencySchema) {
+    LogicalPlan plan;
+    try {
+      plan = CatalystSqlParser.parsePlan(getQuery());
+    }
+    catch (Exception e) {
+      // For example, the query may contain loop parameters that have not yet been replaced
+      return Optional.absent();
+    }
+
+    Set<String> relationNames = Sets.newHashSet();
+    Set<String> attributeNames = Sets.newHashSet();
+    boolean allReferencesNamed = collectReferences(plan, relationNames, attributeNames);
+
+    if (!relationNames.contains(dependencyName.toLowerCase())) {
+      return Optional.<Set<String>>of(Sets.<String>newHashSet());
+    }
+    if (!allReferencesNamed) {
+      return Optional.absent();
+    }
+
+    Set<String> usedFieldNames = Sets.newHashSet();
+    for (String fieldName : dependencySchema.fieldNames()) {
+      if (attributeNames.contains(fieldName.toLowerCase())) {
+        usedFieldNames.add(fieldName);
+      }
+    }
+
+    return Optional.of(usedFieldNames);
+  }
+
+  /**
+   * Get the names of the relations that the query reads, which may be the dependencies of the
+   * step or any other table or view.
+   * @return The lower case names of the relations, or absent if they can not be determined.
+   */
+  public Optional<Set<String>> getRelationNames() {
+    LogicalPlan plan;
+    try {
+      plan = CatalystSqlParser.parsePlan(getQuery());
+    }
+    catch (Exception e) {
+      return Optional.absent();
+    }
+
+    Set<String> relationNames = Sets.newHashSet();
+    if (!collectRelationNames(plan, relationNames)) {
+      return Optional.absent();
+    }
+
+    return Optional.of(relationNames);
+  }
+
+  // Returns false if the plan may read relations that it does not name directly, such as through
+  // the named subqueries of a common table expression
+  private boolean collectRelationNames(LogicalPlan plan, Set<String> relationNames) {
+    if (plan instanceof With) {
+      return false;
+    }
+    if (plan instanceof UnresolvedRelation) {
+      relationNames.add(((UnresolvedRelation)plan).tableIdentifier().table().toLowerCase());
+    }
+
+    for (LogicalPlan child : JavaConversions.seqAsJavaList(plan.children())) {
+      if (!collectRelationNames(child, relationNames)) return false;
+    }
+    for (LogicalPlan subquery : JavaConversions.seqAsJavaList(plan.subqueries())) {
+      if (!collectRelationNames(subquery, relationNames)) return false;
+    }
+
+    return true;
+  }
+
+  // Returns false if the plan may read fields that it does not name, such as with a star
+  private boolean collectReferences(LogicalPlan plan, Set<String> relationNames, Set<String> attributeNames) {
+    if (plan instanceof With || plan instanceof WithWindowDefinition) {
+      return false;
+    }
+    if (plan instanceof Join) {
+      JoinType joinType = ((Join)plan).joinType();
+      if (joinType instanceof UsingJoin || joinType instanceof NaturalJoin) {
+        return false;
+      }
+    }
+    if (plan instanceof UnresolvedRelation) {
+      relationNames.add(((UnresolvedRelation)plan).tableIdentifier().table().toLowerCase());
+    }
+
+    for (Expression expression : JavaConversions.seqAsJavaList(plan.expressions())) {
+      if (!collectReferences(expression, attributeNames)) return false;
+    }
+    for (LogicalPlan child : JavaConversions.seqAsJavaList(plan.children())) {
+      if (!collectReferences(child, relationNames, attributeNames)) return false;
+    }
+    for (LogicalPlan subquery : JavaConversions.seqAsJavaList(plan.subqueries())) {
+      if (!collectReferences(subquery, relationNames, attributeNames)) return false;
+    }
+
+    return true;
+  }
+
+  private boolean collectReferences(Expression expression, Set<String> attributeNames) {
+    if (expression instanceof Star) {
+      return false;
+    }
+    if (expression instanceof UnresolvedAttribute) {
+      for (String namePart : JavaConversions.seqAsJavaList(((UnresolvedAttribute)expression).nameParts())) {
+        attributeNames.add(namePart.toLowerCase());
+      }
+    }
+
+    for (Expression child : JavaConversions.seqAsJavaList(expression.children())) {
+      if (!collectReferences(child, attributeNames)) return false;
+    }
+
+    return true;
+  }
+
+  private String getQuery() throws Exception {
     String query;
 
     if (config.hasPath(QUERY_LITERAL_CONFIG_NAME)) {
@@ -59,9 +207,7 @@ public class SQLDeriver implements Deriver {
       throw new RuntimeException("SQL deriver query not provided. Use '" + QUERY_LITERAL_CONFIG_NAME + "' or '" + QUERY_FILE_CONFIG_NAME + "'.");
     }
 
-    Dataset<Row> derived = Contexts.getSparkSession().sql(query);
-
-    return derived;
+    return query;
   }
 
   private String hdfsFileAsString(String hdfsFile) throws Exception {
@@ -0,0 +1,41 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.derive;
+
+import java.util.Set;
+
+import org.apache.spark.sql.types.StructType;
+
+import com.google.common.base.Optional;
+
+/**
+ * Derivers that can determine which fields of their dependencies they read.
+ * Envelope uses this to only cache the fields of a step that its dependent steps will read.
+ */
+public interface UsesDependencyFields {
+
+  /**
+   * Get the fields of a dependency that the deriver may read.
+   * This is called before the deriver has derived, and so before all of its dependencies have
+   * been submitted.
+   * @param dependencyName The name of the dependency step.
+   * @param dependencySchema The schema of the dependency step's DataFrame.
+   * @return The names of the fields of the dependency that the deriver may read, or absent if the
+   * deriver may read any of the fields.
+   */
+  Optional<Set<String>> getUsedFieldNames(String dependencyName, StructType dependencySchema);
+
+}
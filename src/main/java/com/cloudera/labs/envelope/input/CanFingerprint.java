@@ -0,0 +1,30 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.input;
+
+/**
+ * Inputs that can fingerprint the data that they would read. Steps that materialize their data
+ * use the fingerprint to reuse the data they materialized in an earlier run while it is unchanged.
+ */
+public interface CanFingerprint {
+
+  /**
+   * Get the fingerprint of the data that the input would read.
+   * @return A fingerprint that changes whenever the data that the input would read changes.
+   */
+  String getFingerprint() throws Exception;
+  
+}
@@ -17,6 +17,7 @@ package com.cloudera.labs.envelope.input;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.avro.Schema;
@@ -37,12 +38,13 @@ import com.cloudera.labs.envelope.input.translate.TranslateFunction;
 import com.cloudera.labs.envelope.spark.Contexts;
 import com.cloudera.labs.envelope.utils.AvroUtils;
 import com.cloudera.labs.envelope.utils.ConfigUtils;
+import com.cloudera.labs.envelope.utils.FingerprintUtils;
 import com.cloudera.labs.envelope.utils.RowUtils;
 import com.typesafe.config.Config;
 
 import scala.Tuple2;
 
-public class FileSystemInput implements BatchInput {
+public class FileSystemInput implements BatchInput, CanFingerprint {
   private static final Logger LOG = LoggerFactory.getLogger(FileSystemInput.class);
 
   public static final String FORMAT_CONFIG = "format";
@@ -223,6 +225,11 @@ public class FileSystemInput implements BatchInput {
     return fs;
   }
   
+  @Override
+  public String getFingerprint() throws Exception {
+    return FingerprintUtils.fingerprintFiles(Collections.singletonList(config.getString(PATH_CONFIG)));
+  }
+  
   private Dataset<Row> readParquet(String path) {
     LOG.debug("Reading Parquet: {}", path);
 
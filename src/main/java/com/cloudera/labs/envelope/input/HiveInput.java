@@ -15,13 +15,17 @@
  */
 package com.cloudera.labs.envelope.input;
 
+import java.util.Arrays;
+
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 
 import com.cloudera.labs.envelope.spark.Contexts;
+import com.cloudera.labs.envelope.utils.FingerprintUtils;
+import com.google.common.collect.Lists;
 import com.typesafe.config.Config;
 
-public class HiveInput implements BatchInput {
+public class HiveInput implements BatchInput, CanFingerprint {
 
   public static final String TABLE_CONFIG_NAME = "table";
 
@@ -42,5 +46,14 @@ public class HiveInput implements BatchInput {
 
     return Contexts.getSparkSession().read().table(tableName);
   }
+  
+  @Override
+  public String getFingerprint() throws Exception {
+    Dataset<Row> table = read();
+    
+    // The files of the table change when its data changes, and the schema when it is altered
+    return FingerprintUtils.fingerprint(Lists.newArrayList(
+        table.schema().json(), FingerprintUtils.fingerprintFiles(Arrays.asList(table.inputFiles()))));
+  }
 
 }
@@ -0,0 +1,78 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.metrics;
+
+import java.util.Map;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.cloudera.labs.envelope.spark.LatencyHistogram;
+import com.google.common.base.Charsets;
+import com.typesafe.config.Config;
+
+/**
+ * Reports the latency histograms of each batch to a CSV file under the configured path. The
+ * latencies are in milliseconds.
+ */
+public class CSVMetricsReporter implements MetricsReporter {
+
+  public static final String PATH_CONFIG_NAME = "path";
+
+  private static final double NANOS_PER_MILLI = 1000000.0;
+
+  private String path;
+  private long reportNumber = 0;
+
+  @Override
+  public void configure(Config config) {
+    if (!config.hasPath(PATH_CONFIG_NAME)) {
+      throw new RuntimeException("CSV metrics reporter requires '" + PATH_CONFIG_NAME + "' property");
+    }
+
+    path = config.getString(PATH_CONFIG_NAME);
+  }
+
+  @Override
+  public void report(Map<String, LatencyHistogram> histograms) throws Exception {
+    long reportTime = System.currentTimeMillis();
+    reportNumber++;
+
+    StringBuilder csv = new StringBuilder("time,metric,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms\n");
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+
+      csv.append(reportTime).append(",")
+         .append("\"").append(entry.getKey().replace("\"", "\"\"")).append("\",")
+         .append(histogram.getCount()).append(",")
+         .append(histogram.getMeanNanos() / NANOS_PER_MILLI).append(",")
+         .append(histogram.getPercentileNanos(50) / NANOS_PER_MILLI).append(",")
+         .append(histogram.getPercentileNanos(90) / NANOS_PER_MILLI).append(",")
+         .append(histogram.getPercentileNanos(99) / NANOS_PER_MILLI).append(",")
+         .append(histogram.getMaxNanos() / NANOS_PER_MILLI).append("\n");
+    }
+
+    Path reportPath = new Path(path, "latency-" + reportTime + "-" + reportNumber + ".csv");
+    FileSystem fs = reportPath.getFileSystem(Contexts.getSparkSession().sparkContext().hadoopConfiguration());
+
+    try (FSDataOutputStream out = fs.create(reportPath, true)) {
+      out.write(csv.toString().getBytes(Charsets.UTF_8));
+    }
+  }
+
+}
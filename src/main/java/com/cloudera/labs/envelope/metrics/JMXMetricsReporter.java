@@ -0,0 +1,98 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.cloudera.labs.envelope.spark.LatencyHistogram;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+
+/**
+ * Reports the latency histograms of the most recent batch as MXBeans of the driver, with object
+ * names in the domain <code>com.cloudera.labs.envelope</code>.
+ */
+public class JMXMetricsReporter implements MetricsReporter {
+
+  public static final String DOMAIN = "com.cloudera.labs.envelope";
+
+  private Map<String, Latency> latencies = Maps.newHashMap();
+
+  @Override
+  public void configure(Config config) {
+  }
+
+  @Override
+  public void report(Map<String, LatencyHistogram> histograms) throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+      Latency latency = latencies.get(histogram.getKey());
+
+      if (latency == null) {
+        latency = new Latency();
+        ObjectName name = new ObjectName(DOMAIN + ":type=Latency,name=" + ObjectName.quote(histogram.getKey()));
+        if (!server.isRegistered(name)) {
+          server.registerMBean(latency, name);
+        }
+        latencies.put(histogram.getKey(), latency);
+      }
+
+      latency.histogram = histogram.getValue();
+    }
+  }
+
+  private static class Latency implements LatencyMXBean {
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private volatile LatencyHistogram histogram = new LatencyHistogram();
+
+    @Override
+    public long getCount() {
+      return histogram.getCount();
+    }
+
+    @Override
+    public double getMeanMillis() {
+      return histogram.getMeanNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get50thPercentileMillis() {
+      return histogram.getPercentileNanos(50) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get90thPercentileMillis() {
+      return histogram.getPercentileNanos(90) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get99thPercentileMillis() {
+      return histogram.getPercentileNanos(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMaxMillis() {
+      return histogram.getMaxNanos() / NANOS_PER_MILLI;
+    }
+  }
+
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.metrics;
+
+/**
+ * The latencies of the most recent batch, in milliseconds, as exposed over JMX.
+ */
+public interface LatencyMXBean {
+
+  long getCount();
+
+  double getMeanMillis();
+
+  double get50thPercentileMillis();
+
+  double get90thPercentileMillis();
+
+  double get99thPercentileMillis();
+
+  double getMaxMillis();
+
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.metrics;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.labs.envelope.spark.LatencyHistogram;
+import com.typesafe.config.Config;
+
+/**
+ * Reports the latency histograms to the driver logs.
+ */
+public class LogMetricsReporter implements MetricsReporter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LogMetricsReporter.class);
+
+  @Override
+  public void configure(Config config) {
+  }
+
+  @Override
+  public void report(Map<String, LatencyHistogram> histograms) {
+    for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+      if (!histogram.getValue().isEmpty()) {
+        LOG.info("{}: {}", histogram.getKey(), histogram.getValue());
+      }
+    }
+  }
+
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.metrics;
+
+import java.util.Map;
+
+import com.cloudera.labs.envelope.spark.LatencyHistogram;
+import com.typesafe.config.Config;
+
+/**
+ * A metrics reporter publishes the latency histograms of the pipeline at the end of each batch,
+ * or streaming micro-batch. Each report contains only the latencies recorded since the
+ * previous report.
+ */
+public interface MetricsReporter {
+
+  /**
+   * Configure the reporter.
+   * @param config The configuration of the reporter.
+   */
+  void configure(Config config);
+
+  /**
+   * Report the latency histograms of the batch.
+   * @param histograms The latency histograms of the batch, by name.
+   */
+  void report(Map<String, LatencyHistogram> histograms) throws Exception;
+
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.metrics;
+
+import java.lang.reflect.Constructor;
+
+import com.typesafe.config.Config;
+
+public class MetricsReporterFactory {
+
+  public static final String TYPE_CONFIG_NAME = "type";
+
+  public static MetricsReporter create(Config config) {
+    if (!config.hasPath(TYPE_CONFIG_NAME)) {
+      throw new RuntimeException("Metrics reporter type not specified");
+    }
+
+    String reporterType = config.getString(TYPE_CONFIG_NAME);
+
+    MetricsReporter reporter;
+
+    switch (reporterType) {
+      case "log":
+        reporter = new LogMetricsReporter();
+        break;
+      case "jmx":
+        reporter = new JMXMetricsReporter();
+        break;
+      case "csv":
+        reporter = new CSVMetricsReporter();
+        break;
+      default:
+        try {
+          Class<?> clazz = Class.forName(reporterType);
+          Constructor<?> constructor = clazz.getConstructor();
+          reporter = (MetricsReporter)constructor.newInstance();
+        }
+        catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+    }
+
+    reporter.configure(config);
+
+    return reporter;
+  }
+
+}
@@ -0,0 +1,467 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.spark.TaskContext;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.util.TaskCompletionListener;
+
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.spark.AccumulatorRequest;
+import com.cloudera.labs.envelope.spark.Accumulators;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.cloudera.labs.envelope.spark.UsesAccumulators;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigRenderOptions;
+
+/**
+ * A random output that caches the existing records of another random output by key, so that
+ * repeated lookups of the same keys do not need to go back to the external sink. The cache is
+ * shared by all of the tasks of an executor that use the same output configuration, and is kept
+ * up to date with the mutations that are applied through this output. Keys whose cached records
+ * can not be unambiguously updated by a mutation are removed from the cache instead.
+ * <p>
+ * Each executor has its own cache, and Spark does not keep the keys of a partition on the same
+ * executor from one run to the next, so a key that is cached on one executor can be written
+ * through the cache of another. The cached records can therefore be stale for up to the expiry of
+ * the cache, even when this output is the only writer of the keys.
+ * <p>
+ * The existing records of an output that can stream them are streamed through the cache.
+ */
+public class CachedRandomOutput implements RandomOutput, CanStreamExisting, CanProjectExisting,
+    UsesAccumulators {
+
+  public static final String MAX_ROWS_CONFIG_NAME = "max.rows";
+  public static final String EXPIRY_SECONDS_CONFIG_NAME = "expiry.seconds";
+
+  public static final String ACCUMULATOR_CACHE_HITS = "Existing records cache hits";
+  public static final String ACCUMULATOR_CACHE_MISSES = "Existing records cache misses";
+
+  private static final long DEFAULT_MAX_ROWS = 100000;
+
+  private static Map<String, Cache<List<Object>, List<Row>>> caches = Maps.newHashMap();
+  // The schema of the existing records that the output returned for each cache, which is shared
+  // so that the instances that only apply mutations can shape inserted records like them
+  private static ConcurrentMap<String, StructType> existingSchemas = Maps.newConcurrentMap();
+
+  private RandomOutput output;
+  private String cacheName;
+  private List<String> keyFieldNames;
+  private Cache<List<Object>, List<Row>> cache;
+  private Accumulators accumulators;
+  private boolean addsCountsOnTaskCompletion = false;
+  private AtomicLong pendingHits = new AtomicLong();
+  private AtomicLong pendingMisses = new AtomicLong();
+
+  /**
+   * @param output The random output to cache the existing records of.
+   * @param outputConfig The configuration of the random output, which identifies the cache.
+   * @param keyFieldNames The names of the fields of the filters that the existing records are
+   * looked up by.
+   */
+  public CachedRandomOutput(RandomOutput output, Config outputConfig, List<String> keyFieldNames) {
+    this.output = output;
+    this.cacheName = outputConfig.root().render(ConfigRenderOptions.concise()) + keyFieldNames;
+    this.keyFieldNames = keyFieldNames;
+  }
+
+  @Override
+  public void configure(Config config) {
+    long maxRows = config.hasPath(MAX_ROWS_CONFIG_NAME) ?
+        config.getLong(MAX_ROWS_CONFIG_NAME) : DEFAULT_MAX_ROWS;
+    long expirySeconds = config.hasPath(EXPIRY_SECONDS_CONFIG_NAME) ?
+        config.getLong(EXPIRY_SECONDS_CONFIG_NAME) : 0;
+
+    cache = getCache(cacheName, maxRows, expirySeconds);
+  }
+
+  // Projected existing records are cached separately from the full existing records of the output
+  @Override
+  public void projectExisting(Set<String> fieldNames) {
+    if (output instanceof CanProjectExisting) {
+      ((CanProjectExisting)output).projectExisting(fieldNames);
+      cacheName += Sets.newTreeSet(fieldNames);
+    }
+  }
+
+  private static synchronized Cache<List<Object>, List<Row>> getCache(String name, long maxRows, long expirySeconds) {
+    if (!caches.containsKey(name)) {
+      CacheBuilder<List<Object>, List<Row>> builder = CacheBuilder.newBuilder()
+          .maximumWeight(maxRows)
+          .weigher(new Weigher<List<Object>, List<Row>>() {
+            @Override
+            public int weigh(List<Object> key, List<Row> existingForKey) {
+              return existingForKey.size() + 1;
+            }
+          });
+
+      if (expirySeconds > 0) {
+        builder = builder.expireAfterWrite(expirySeconds, TimeUnit.SECONDS);
+      }
+
+      caches.put(name, builder.<List<Object>, List<Row>>build());
+    }
+
+    return caches.get(name);
+  }
+
+  // The instances that are configured after this have caches of their own, as if they were on
+  // another executor from the instances that are already configured
+  static synchronized void forgetCaches() {
+    caches.clear();
+    existingSchemas.clear();
+  }
+
+  /**
+   * Remove the existing records of all of the caches of this JVM.
+   */
+  public static synchronized void invalidateAll() {
+    for (Cache<List<Object>, List<Row>> cache : caches.values()) {
+      cache.invalidateAll();
+    }
+    existingSchemas.clear();
+  }
+
+  @Override
+  public Set<MutationType> getSupportedRandomMutationTypes() {
+    return output.getSupportedRandomMutationTypes();
+  }
+
+  @Override
+  public Iterable<Row> getExistingForFilters(Iterable<Row> filters) throws Exception {
+    return Lists.newArrayList(getExistingIteratorForFilters(filters));
+  }
+
+  @Override
+  public Iterator<Row> getExistingIteratorForFilters(Iterable<Row> filters) throws Exception {
+    List<Row> existing = Lists.newArrayList();
+    Map<List<Object>, Row> missedFilters = Maps.newLinkedHashMap();
+    int hits = 0;
+
+    for (Row filter : filters) {
+      List<Object> key = keyFor(filter);
+
+      if (key == null) {
+        // The filters are not by key, so they can not be looked up in the cache
+        return existingIteratorFor(filters);
+      }
+
+      List<Row> cachedForKey = cache.getIfPresent(key);
+      if (cachedForKey != null) {
+        existing.addAll(cachedForKey);
+        hits++;
+      }
+      else {
+        missedFilters.put(key, filter);
+      }
+    }
+
+    recordLookups(hits, missedFilters.size());
+
+    if (missedFilters.isEmpty()) {
+      return existing.iterator();
+    }
+
+    // Read through to the output for the missed keys, including those that have no existing records
+    Map<List<Object>, List<Row>> existingForMissedKeys = Maps.newHashMap();
+    for (List<Object> missedKey : missedFilters.keySet()) {
+      existingForMissedKeys.put(missedKey, Lists.<Row>newArrayList());
+    }
+
+    Iterator<Row> readThrough = new ReadThroughIterator(
+        existingIteratorFor(missedFilters.values()), existingForMissedKeys);
+
+    return Iterators.concat(existing.iterator(), readThrough);
+  }
+
+  private Iterator<Row> existingIteratorFor(Iterable<Row> filters) throws Exception {
+    if (output instanceof CanStreamExisting) {
+      return ((CanStreamExisting)output).getExistingIteratorForFilters(filters);
+    }
+
+    return output.getExistingForFilters(filters).iterator();
+  }
+
+  // Passes on the existing records of the missed keys from the output, and caches them once all
+  // of them have been read
+  private class ReadThroughIterator extends AbstractIterator<Row> {
+    private Iterator<Row> existingIterator;
+    private Map<List<Object>, List<Row>> existingForMissedKeys;
+
+    ReadThroughIterator(Iterator<Row> existingIterator, Map<List<Object>, List<Row>> existingForMissedKeys) {
+      this.existingIterator = existingIterator;
+      this.existingForMissedKeys = existingForMissedKeys;
+    }
+
+    @Override
+    protected Row computeNext() {
+      if (!existingIterator.hasNext()) {
+        if (existingForMissedKeys != null) {
+          for (Map.Entry<List<Object>, List<Row>> existingForKey : existingForMissedKeys.entrySet()) {
+            cache.put(existingForKey.getKey(), Collections.unmodifiableList(existingForKey.getValue()));
+          }
+        }
+
+        return endOfData();
+      }
+
+      Row existingForFilter = existingIterator.next();
+
+      if (existingForMissedKeys != null) {
+        List<Row> existingForKey = existingForMissedKeys.get(keyFor(existingForFilter));
+        if (existingForKey != null) {
+          existingForKey.add(existingForFilter);
+        }
+        else {
+          // The existing record does not exactly match a filter, so the lookup is not cached
+          existingForMissedKeys = null;
+        }
+      }
+
+      if (existingForFilter.schema() != null && !existingSchemas.containsKey(cacheName)) {
+        existingSchemas.putIfAbsent(cacheName, existingForFilter.schema());
+      }
+
+      return existingForFilter;
+    }
+  }
+
+  @Override
+  public void applyRandomMutations(List<PlannedRow> planned) throws Exception {
+    try {
+      output.applyRandomMutations(planned);
+    }
+    catch (Exception e) {
+      // We do not know which of the mutations were applied
+      for (PlannedRow plan : planned) {
+        invalidate(keyFor(plan.getRow()));
+      }
+
+      throw e;
+    }
+
+    // Write through the applied mutations so that they become the cached existing records
+    for (PlannedRow plan : planned) {
+      writeThrough(plan);
+    }
+  }
+
+  private void writeThrough(PlannedRow plan) {
+    Row row = plan.getRow();
+    List<Object> key = keyFor(row);
+
+    if (key == null) {
+      // We can not tell which key the mutation is for
+      cache.invalidateAll();
+      return;
+    }
+
+    List<Row> cachedForKey = cache.getIfPresent(key);
+    if (cachedForKey == null) {
+      return;
+    }
+
+    StructType existingSchema = existingSchemaFor(cachedForKey);
+    List<Row> updatedForKey;
+    switch (plan.getMutationType()) {
+      case INSERT:
+        if (existingSchema != null) {
+          updatedForKey = Lists.newArrayList(cachedForKey);
+          updatedForKey.add(shapeAsExisting(row, existingSchema));
+        }
+        else {
+          updatedForKey = null;
+        }
+        break;
+      case UPDATE:
+      case UPSERT:
+        if (cachedForKey.size() == 1) {
+          updatedForKey = Lists.newArrayList(merge(cachedForKey.get(0), row));
+        }
+        else if (cachedForKey.isEmpty() && plan.getMutationType() == MutationType.UPSERT &&
+            existingSchema != null) {
+          updatedForKey = Lists.newArrayList(shapeAsExisting(row, existingSchema));
+        }
+        else {
+          updatedForKey = null;
+        }
+        break;
+      case DELETE:
+        updatedForKey = cachedForKey.size() <= 1 ? Lists.<Row>newArrayList() : null;
+        break;
+      default:
+        updatedForKey = null;
+    }
+
+    if (updatedForKey != null) {
+      cache.put(key, Collections.unmodifiableList(updatedForKey));
+    }
+    else {
+      invalidate(key);
+    }
+  }
+
+  private void invalidate(List<Object> key) {
+    if (key != null) {
+      cache.invalidate(key);
+    }
+    else {
+      cache.invalidateAll();
+    }
+  }
+
+  // The key values of the row in the order of the key field names, or null if the row does not
+  // have all of the key fields
+  private List<Object> keyFor(Row row) {
+    if (row.schema() == null) {
+      return null;
+    }
+
+    List<String> fieldNames = Arrays.asList(row.schema().fieldNames());
+    List<Object> key = Lists.newArrayListWithCapacity(keyFieldNames.size());
+
+    for (String keyFieldName : keyFieldNames) {
+      if (!fieldNames.contains(keyFieldName)) {
+        return null;
+      }
+
+      key.add(row.get(row.fieldIndex(keyFieldName)));
+    }
+
+    return key;
+  }
+
+  // Overlay the fields of the mutation onto the cached existing record
+  private Row merge(Row cached, Row mutation) {
+    List<String> mutationFieldNames = Arrays.asList(mutation.schema().fieldNames());
+    Object[] values = new Object[cached.length()];
+
+    for (int i = 0; i < values.length; i++) {
+      String fieldName = cached.schema().fieldNames()[i];
+
+      if (mutationFieldNames.contains(fieldName)) {
+        values[i] = mutation.get(mutation.fieldIndex(fieldName));
+      }
+      else {
+        values[i] = cached.get(i);
+      }
+    }
+
+    return new RowWithSchema(cached.schema(), values);
+  }
+
+  // The schema of the existing records that the output returns, or null if it is not yet known, in
+  // which case the inserted records can not be cached
+  private StructType existingSchemaFor(List<Row> cachedForKey) {
+    if (!cachedForKey.isEmpty() && cachedForKey.get(0).schema() != null) {
+      return cachedForKey.get(0).schema();
+    }
+
+    return existingSchemas.get(cacheName);
+  }
+
+  // Give an inserted record the schema of the existing records that the output returns
+  private Row shapeAsExisting(Row inserted, StructType existingSchema) {
+    List<String> insertedFieldNames = Arrays.asList(inserted.schema().fieldNames());
+    Object[] values = new Object[existingSchema.length()];
+
+    for (int i = 0; i < values.length; i++) {
+      String fieldName = existingSchema.fieldNames()[i];
+
+      if (insertedFieldNames.contains(fieldName)) {
+        values[i] = inserted.get(inserted.fieldIndex(fieldName));
+      }
+    }
+
+    return new RowWithSchema(existingSchema, values);
+  }
+
+  @Override
+  public Set<AccumulatorRequest> getAccumulatorRequests() {
+    Set<AccumulatorRequest> requests = Sets.newHashSet(
+        new AccumulatorRequest(ACCUMULATOR_CACHE_HITS, Long.class),
+        new AccumulatorRequest(ACCUMULATOR_CACHE_MISSES, Long.class));
+
+    if (output instanceof UsesAccumulators) {
+      requests.addAll(((UsesAccumulators)output).getAccumulatorRequests());
+    }
+
+    return requests;
+  }
+
+  @Override
+  public void receiveAccumulators(Accumulators accumulators) {
+    this.accumulators = accumulators;
+
+    // Lookups can run on threads other than the task's, which can not safely add to accumulators,
+    // so the counts of the task are added when the task completes on its own thread
+    TaskContext taskContext = TaskContext.get();
+    if (taskContext != null) {
+      addsCountsOnTaskCompletion = true;
+      taskContext.addTaskCompletionListener(new TaskCompletionListener() {
+        @Override
+        public void onTaskCompletion(TaskContext context) {
+          addPendingCounts();
+        }
+      });
+    }
+
+    if (output instanceof UsesAccumulators) {
+      ((UsesAccumulators)output).receiveAccumulators(accumulators);
+    }
+  }
+
+  private boolean hasAccumulators() {
+    return accumulators != null;
+  }
+
+  private void recordLookups(int hits, int misses) {
+    pendingHits.addAndGet(hits);
+    pendingMisses.addAndGet(misses);
+
+    if (!addsCountsOnTaskCompletion) {
+      addPendingCounts();
+    }
+  }
+
+  private synchronized void addPendingCounts() {
+    if (hasAccumulators()) {
+      accumulators.getLongAccumulators().get(ACCUMULATOR_CACHE_HITS).add(pendingHits.getAndSet(0));
+      accumulators.getLongAccumulators().get(ACCUMULATOR_CACHE_MISSES).add(pendingMisses.getAndSet(0));
+    }
+  }
+
+}
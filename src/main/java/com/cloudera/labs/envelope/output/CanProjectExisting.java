@@ -0,0 +1,35 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.util.Set;
+
+/**
+ * Random outputs that can limit the existing records that they look up to some of their fields, so
+ * that the fields that would not be read are not retrieved from the external sink.
+ */
+public interface CanProjectExisting {
+
+  /**
+   * Limit the fields of the existing records that the output looks up. This is called before the
+   * output looks up any existing records. The existing records may still contain the other fields
+   * of the output, either with their values or as nulls, or may contain only the projected fields.
+   * @param fieldNames The names of the fields of the existing records that will be read, which
+   * include the fields of the filters.
+   */
+  void projectExisting(Set<String> fieldNames);
+
+}
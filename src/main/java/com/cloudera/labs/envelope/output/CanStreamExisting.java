@@ -0,0 +1,38 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.util.Iterator;
+
+import org.apache.spark.sql.Row;
+
+/**
+ * Random outputs that can stream the existing records that match a set of filters, rather than
+ * collecting all of them before returning. Envelope uses this to bound the memory of the existing
+ * lookups of a task, and to map the existing records to their keys as they arrive.
+ */
+public interface CanStreamExisting {
+
+  /**
+   * Get an iterator over the existing records from the output that match the given filters.
+   * @param filters An iterable collection of filters, with the same meaning as for
+   * {@link RandomOutput#getExistingForFilters(Iterable)}.
+   * @return An iterator over the existing records that match the filters. The records may be
+   * retrieved from the output as the iterator is consumed.
+   */
+  Iterator<Row> getExistingIteratorForFilters(Iterable<Row> filters) throws Exception;
+
+}
@@ -18,6 +18,7 @@ package com.cloudera.labs.envelope.output;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.hadoop.hbase.TableName;
@@ -29,6 +30,7 @@ import org.apache.hadoop.hbase.client.Query;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.spark.api.java.function.ForeachPartitionFunction;
 import org.apache.spark.api.java.function.Function;
 import org.apache.spark.sql.Dataset;
@@ -39,6 +41,7 @@ import org.slf4j.LoggerFactory;
 import com.cloudera.labs.envelope.plan.MutationType;
 import com.cloudera.labs.envelope.plan.PlannedRow;
 import com.cloudera.labs.envelope.utils.hbase.HBaseSerde;
+import com.cloudera.labs.envelope.utils.hbase.HBaseSerde.ColumnDef;
 import com.cloudera.labs.envelope.utils.hbase.HBaseUtils;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -98,7 +101,7 @@ import scala.Tuple2;
  *     }
  * </pre>
  */
-public class HBaseOutput implements RandomOutput, BulkOutput {
+public class HBaseOutput implements RandomOutput, CanProjectExisting, BulkOutput {
 
   private static final Logger LOG = LoggerFactory.getLogger(HBaseOutput.class);
 
@@ -109,6 +112,7 @@ public class HBaseOutput implements RandomOutput, BulkOutput {
   private static HBaseSerde serde;
   private TableName tableName;
   private int batchSize;
+  private List<ColumnDef> projectedColumns;
 
   // API methods
 
@@ -138,7 +142,7 @@ public class HBaseOutput implements RandomOutput, BulkOutput {
         LOG.debug("Adding filter: {}", query);
         
         if (query instanceof Get) {
-          gets.add((Get)query);
+          gets.add(projectGet((Get)query));
         }
         else if (query instanceof Scan) {
           scans.add((Scan)query);
@@ -153,7 +157,7 @@ public class HBaseOutput implements RandomOutput, BulkOutput {
         results.addAll(Lists.newArrayList(table.get(gets)));
       }
       if (scans.size() > 0) {
-        Scan mergedScan = HBaseUtils.mergeRangeScans(scans);
+        Scan mergedScan = projectScan(HBaseUtils.mergeRangeScans(scans));
         results.addAll(Lists.newArrayList(table.getScanner(mergedScan)));
       }
       
@@ -163,6 +167,49 @@ public class HBaseOutput implements RandomOutput, BulkOutput {
     return filterResults;
   }
 
+  @Override
+  public void projectExisting(Set<String> fieldNames) {
+    projectedColumns = Lists.newArrayList();
+
+    for (Map.Entry<String, ColumnDef> column : HBaseUtils.columnsFor(config).entrySet()) {
+      if (!column.getValue().cf.equals("rowkey") && fieldNames.contains(column.getKey())) {
+        projectedColumns.add(column.getValue());
+      }
+    }
+
+    // The row key is always retrieved, so with no other columns the whole row is looked up so
+    // that the existence of the row is still found
+    if (projectedColumns.isEmpty()) {
+      projectedColumns = null;
+    }
+  }
+
+  // Look up only the projected columns rather than all of the columns of their families. The
+  // copy keeps the other settings of the get, such as its time range, versions and attributes.
+  private Get projectGet(Get get) throws IOException {
+    if (projectedColumns == null) {
+      return get;
+    }
+
+    Get projected = new Get(get);
+    projected.getFamilyMap().clear();
+    for (ColumnDef column : projectedColumns) {
+      projected.addColumn(Bytes.toBytes(column.cf), Bytes.toBytes(column.name));
+    }
+
+    return projected;
+  }
+
+  private Scan projectScan(Scan scan) {
+    if (projectedColumns != null) {
+      for (ColumnDef column : projectedColumns) {
+        scan.addColumn(Bytes.toBytes(column.cf), Bytes.toBytes(column.name));
+      }
+    }
+
+    return scan;
+  }
+
   @Override
   public void applyRandomMutations(List<PlannedRow> plannedRows) throws Exception {
     LOG.debug("Applying planned rows to table: {}", tableName.toString());
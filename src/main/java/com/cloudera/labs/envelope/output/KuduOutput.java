@@ -15,9 +15,19 @@
  */
 package com.cloudera.labs.envelope.output;
 
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.kudu.ColumnSchema;
 import org.apache.kudu.client.KuduClient;
@@ -28,15 +38,16 @@ import org.apache.kudu.client.KuduScanner.KuduScannerBuilder;
 import org.apache.kudu.client.KuduSession;
 import org.apache.kudu.client.KuduTable;
 import org.apache.kudu.client.Operation;
+import org.apache.kudu.client.OperationResponse;
 import org.apache.kudu.client.PartialRow;
 import org.apache.kudu.client.RowError;
-import org.apache.kudu.client.RowResult;
+import org.apache.kudu.client.RowResultIterator;
 import org.apache.kudu.client.SessionConfiguration.FlushMode;
 import org.apache.kudu.spark.kudu.KuduContext;
+import org.apache.spark.TaskContext;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
-import org.apache.spark.sql.types.StructField;
-import org.apache.spark.sql.types.StructType;
+import org.apache.spark.util.TaskCompletionListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,33 +55,56 @@ import com.cloudera.labs.envelope.plan.MutationType;
 import com.cloudera.labs.envelope.plan.PlannedRow;
 import com.cloudera.labs.envelope.spark.AccumulatorRequest;
 import com.cloudera.labs.envelope.spark.Accumulators;
-import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.cloudera.labs.envelope.spark.LatencyHistogram;
 import com.cloudera.labs.envelope.spark.UsesAccumulators;
 import com.cloudera.labs.envelope.utils.RowUtils;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.typesafe.config.Config;
 
 import scala.Tuple2;
 
-public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
+public class KuduOutput implements RandomOutput, CanStreamExisting, CanProjectExisting, BulkOutput,
+    UsesAccumulators {
 
   public static final String CONNECTION_CONFIG_NAME = "connection";
   public static final String TABLE_CONFIG_NAME = "table.name";
   public static final String INSERT_IGNORE_CONFIG_NAME = "insert.ignore";
+  public static final String SESSION_FLUSH_MODE_CONFIG_NAME = "session.flush.mode";
+  public static final String SESSION_BUFFER_OPERATIONS_CONFIG_NAME = "session.buffer.operations";
+  public static final String SESSION_FLUSH_INTERVAL_CONFIG_NAME = "session.flush.interval.milliseconds";
+  public static final String SCAN_CHUNK_SIZE_CONFIG_NAME = "scan.chunk.size";
+  public static final String SCAN_THREADS_CONFIG_NAME = "scan.threads";
+  public static final String SCAN_EXACT_MATCH_CONFIG_NAME = "scan.exact.match";
+  
+  private static final String DEFAULT_SESSION_FLUSH_MODE = "auto_flush_background";
+  private static final int DEFAULT_SESSION_BUFFER_OPERATIONS = 10000;
+  private static final int DEFAULT_SCAN_CHUNK_SIZE = 500;
+  private static final int DEFAULT_SCAN_THREADS = 4;
   
   private static final String ACCUMULATOR_NUMBER_OF_SCANNERS = "Number of Kudu scanners";
   private static final String ACCUMULATOR_NUMBER_OF_FILTERS_SCANNED = "Number of filters scanned in Kudu";
-  private static final String ACCUMULATOR_SECONDS_SCANNING = "Seconds spent scanning Kudu";
+  private static final String ACCUMULATOR_LATENCY_SCANNING = "Latency of scanning Kudu per scanner";
 
   private Config config;
   private Accumulators accumulators;
+  private boolean addsCountsOnTaskCompletion = false;
+  private AtomicLong pendingScanners = new AtomicLong();
+  private AtomicLong pendingFiltersScanned = new AtomicLong();
+  private Set<String> projectedFieldNames;
+  private List<String> existingColumnNames;
+  private KuduRowCodec.Decoder existingDecoder;
 
   private static KuduClient client;
-  private static KuduSession session;
+  // Each task thread has its own session, so that the pending operations and errors of concurrent
+  // tasks in the executor are not mixed together
+  private static final ThreadLocal<KuduSession> sessions = new ThreadLocal<>();
+  private static ExecutorService scanPool;
   private static Map<String, KuduTable> tables;
-  private static Map<String, StructType> tableSchemas;
 
   private static Logger LOG = LoggerFactory.getLogger(KuduOutput.class);
 
@@ -83,26 +117,194 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
   public void applyRandomMutations(List<PlannedRow> planned) throws Exception {
     KuduTable table = connectToTable();
 
-    List<Operation> operations = extractOperations(planned, table);
+    // Apply the mutations in primary key order so that each tablet receives its operations in the
+    // order that it stores them. The sort is stable, so mutations of the same row stay in order.
+    List<PlannedRow> sorted = Lists.newArrayList(planned);
+    Collections.sort(sorted, new PrimaryKeyComparator(table));
 
-    for (Operation operation : operations) {
-      session.apply(operation);
+    List<Operation> operations = extractOperations(sorted, table);
+    
+    KuduSession session = getSession();
+    FlushMode flushMode = session.getFlushMode();
+    int bufferOperations = getSessionBufferOperations();
+    List<OperationResponse> responses = Lists.newArrayList();
+    
+    try {
+      int buffered = 0;
+      for (Operation operation : operations) {
+        OperationResponse response = session.apply(operation);
+        
+        // Only synchronously flushed operations have their response returned when they are applied
+        if (response != null) {
+          responses.add(response);
+        }
+        
+        // A manually flushed session rejects operations once its buffer is full
+        if (flushMode == FlushMode.MANUAL_FLUSH && ++buffered == bufferOperations) {
+          responses.addAll(session.flush());
+          buffered = 0;
+        }
+      }
+      
+      // Wait for the client to complete the remaining operations of this task before checking
+      // for errors
+      responses.addAll(session.flush());
+    }
+    catch (Exception e) {
+      // The session can be left with pending operations, so it is not reused by the next task on
+      // the thread. Closing the session flushes those operations, which happens within this task
+      // so that they are not written after Spark has retried it.
+      sessions.remove();
+      closeSession(session);
+      throw e;
     }
 
-    // Wait until all operations have completed before checking for errors.
-    while (session.hasPendingOperations()) {
-      Thread.sleep(1);
+    // Background flushes collect their errors in the session, while the other flush modes return
+    // them in the responses. Either way they are only the errors of this task's operations.
+    List<RowError> errors = Lists.newArrayList(session.getPendingErrors().getRowErrors());
+    if (flushMode != FlushMode.AUTO_FLUSH_BACKGROUND) {
+      for (OperationResponse response : responses) {
+        if (response.hasRowError()) {
+          errors.add(response.getRowError());
+        }
+      }
     }
 
     // Fail fast on any error applying mutations
-    if (session.countPendingErrors() > 0) {
-      RowError firstError = session.getPendingErrors().getRowErrors()[0];
-      String errorMessage = String.format("Kudu output error '%s' during operation '%s' at tablet server '%s'",
-          firstError.getErrorStatus(), firstError.getOperation(), firstError.getTsUUID());
+    if (!errors.isEmpty()) {
+      RowError firstError = errors.get(0);
+      String errorMessage = String.format("Kudu output error '%s' during operation '%s' at tablet server '%s'" +
+          " (%d errors in total)", firstError.getErrorStatus(), firstError.getOperation(), firstError.getTsUUID(),
+          errors.size());
 
       throw new RuntimeException(errorMessage);
     }
   }
+  
+  // Orders planned rows by the values of the primary key columns of the table
+  private static class PrimaryKeyComparator implements Comparator<PlannedRow> {
+    private KeyComparator keyComparator;
+    
+    public PrimaryKeyComparator(KuduTable table) {
+      List<String> keyColumnNames = Lists.newArrayList();
+      for (ColumnSchema keyColumn : table.getSchema().getPrimaryKeyColumns()) {
+        keyColumnNames.add(keyColumn.getName());
+      }
+      
+      this.keyComparator = new KeyComparator(keyColumnNames);
+    }
+    
+    @Override
+    public int compare(PlannedRow planned1, PlannedRow planned2) {
+      return keyComparator.compare(planned1.getRow(), planned2.getRow());
+    }
+  }
+  
+  // Orders rows by the values of key columns, in the order of the columns. Binary values are
+  // ordered by their unsigned bytes, as Kudu orders them.
+  static class KeyComparator implements Comparator<Row> {
+    private static final Comparator<byte[]> BINARY_COMPARATOR = UnsignedBytes.lexicographicalComparator();
+    
+    private List<String> keyColumnNames;
+    
+    public KeyComparator(List<String> keyColumnNames) {
+      this.keyColumnNames = keyColumnNames;
+    }
+    
+    // The values of Kudu primary key columns are never null
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Override
+    public int compare(Row row1, Row row2) {
+      for (String keyColumnName : keyColumnNames) {
+        Object value1 = RowUtils.get(row1, keyColumnName);
+        Object value2 = RowUtils.get(row2, keyColumnName);
+        
+        int comparison;
+        if (value1 instanceof byte[]) {
+          comparison = BINARY_COMPARATOR.compare((byte[])value1, (byte[])value2);
+        }
+        else {
+          comparison = ((Comparable)value1).compareTo(value2);
+        }
+        
+        if (comparison != 0) {
+          return comparison;
+        }
+      }
+      
+      return 0;
+    }
+  }
+  
+  // The session of the task thread, configured for this output
+  private KuduSession getSession() {
+    KuduSession session = sessions.get();
+    
+    if (session == null) {
+      session = client.newSession();
+      sessions.set(session);
+      closeSessionOnTaskCompletion(session);
+    }
+    
+    // Otherwise the session is reconfigured for the output that is using it
+    session.setFlushMode(getSessionFlushMode());
+    session.setMutationBufferSpace(getSessionBufferOperations());
+    if (config.hasPath(SESSION_FLUSH_INTERVAL_CONFIG_NAME)) {
+      session.setFlushInterval(config.getInt(SESSION_FLUSH_INTERVAL_CONFIG_NAME));
+    }
+    session.setIgnoreAllDuplicateRows(isInsertIgnore());
+    
+    return session;
+  }
+  
+  // The session is closed when the task completes, so that the sessions of executor threads that
+  // exit are not left open with the client. Outside of a task the session is kept for the thread.
+  private static void closeSessionOnTaskCompletion(final KuduSession session) {
+    TaskContext taskContext = TaskContext.get();
+    
+    if (taskContext != null) {
+      taskContext.addTaskCompletionListener(new TaskCompletionListener() {
+        @Override
+        public void onTaskCompletion(TaskContext context) {
+          // Task completion listeners run on the task thread
+          if (sessions.get() == session) {
+            sessions.remove();
+          }
+          closeSession(session);
+        }
+      });
+    }
+  }
+  
+  private static void closeSession(KuduSession session) {
+    try {
+      session.close();
+    }
+    catch (Exception e) {
+      LOG.warn("Could not close Kudu session", e);
+    }
+  }
+  
+  private FlushMode getSessionFlushMode() {
+    String flushMode = config.hasPath(SESSION_FLUSH_MODE_CONFIG_NAME) ?
+        config.getString(SESSION_FLUSH_MODE_CONFIG_NAME) : DEFAULT_SESSION_FLUSH_MODE;
+    
+    switch (flushMode) {
+      case "auto_flush_background":
+        return FlushMode.AUTO_FLUSH_BACKGROUND;
+      case "auto_flush_sync":
+        return FlushMode.AUTO_FLUSH_SYNC;
+      case "manual_flush":
+        return FlushMode.MANUAL_FLUSH;
+      default:
+        throw new RuntimeException("Unsupported Kudu session flush mode: " + flushMode);
+    }
+  }
+  
+  private int getSessionBufferOperations() {
+    return config.hasPath(SESSION_BUFFER_OPERATIONS_CONFIG_NAME) ?
+        config.getInt(SESSION_BUFFER_OPERATIONS_CONFIG_NAME) : DEFAULT_SESSION_BUFFER_OPERATIONS;
+  }
 
   @Override
   public Set<MutationType> getSupportedRandomMutationTypes() {
@@ -116,133 +318,230 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
 
   @Override
   public Iterable<Row> getExistingForFilters(Iterable<Row> filters) throws Exception {
-    List<Row> existingForFilters = Lists.newArrayList();
+    return Lists.newArrayList(getExistingIteratorForFilters(filters));
+  }
 
+  @Override
+  public Iterator<Row> getExistingIteratorForFilters(Iterable<Row> filters) throws Exception {
     if (!filters.iterator().hasNext()) {
-      return existingForFilters;
+      return Collections.emptyIterator();
     }
 
     KuduTable table = connectToTable();
-    KuduScanner scanner = scannerForFilters(filters, table);
+    prepareExistingDecoder(table);
+    List<KuduScanner> scanners = scannersForFilters(filters, table);
+
+    // A single scanner is streamed by the consuming thread, while multiple scanners are scanned
+    // concurrently a bounded number at a time
+    if (scanners.size() == 1) {
+      return new ExistingIterator(scanners.get(0));
+    }
 
-    long startTime = System.nanoTime();
-    while (scanner.hasMoreRows()) {
-      for (RowResult rowResult : scanner.nextRows()) {
-        Row existing = resultAsRow(rowResult, table);
+    return new ConcurrentExistingIterator(scanners.iterator(), getScanThreads());
+  }
+
+  // Scans multiple scanners concurrently, up to a number at a time, and returns their existing
+  // records in the order of the scanners. Each scanner covers a bounded number of filters, so only
+  // the results of the scanners in flight are held in memory.
+  private class ConcurrentExistingIterator extends AbstractIterator<Row> {
+    private Iterator<KuduScanner> pendingScanners;
+    private int scannersInFlight;
+    private Deque<Future<ScanResult>> scans = new ArrayDeque<>();
+    private Iterator<Row> scanned = Collections.emptyIterator();
+
+    public ConcurrentExistingIterator(Iterator<KuduScanner> pendingScanners, int scannersInFlight) {
+      this.pendingScanners = pendingScanners;
+      this.scannersInFlight = scannersInFlight;
+    }
 
-        existingForFilters.add(existing);
+    @Override
+    protected Row computeNext() {
+      while (!scanned.hasNext()) {
+        while (scans.size() < scannersInFlight && pendingScanners.hasNext()) {
+          scans.add(getScanPool().submit(new ScanCallable(pendingScanners.next())));
+        }
+
+        if (scans.isEmpty()) {
+          return endOfData();
+        }
+
+        ScanResult result;
+        try {
+          result = scans.poll().get();
+        }
+        catch (Exception e) {
+          abandonScans();
+          throw new RuntimeException("Could not scan Kudu for existing records", e);
+        }
+
+        // The histogram accumulator is synchronized, so it can be added to from the lookup thread
+        if (hasAccumulators()) {
+          accumulators.getHistogramAccumulators().get(ACCUMULATOR_LATENCY_SCANNING).add(result.getScanningNanos());
+        }
+
+        scanned = result.getRows().iterator();
       }
+
+      return scanned.next();
     }
-    long endTime = System.nanoTime();
-    if (hasAccumulators()) {
-      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_SCANNING).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
+
+    // The scans in flight close their own scanners when they complete, while the scanners that
+    // were not yet submitted are closed here
+    private void abandonScans() {
+      scans.clear();
+
+      while (pendingScanners.hasNext()) {
+        closeScanner(pendingScanners.next());
+      }
     }
+  }
+
+  private class ScanCallable implements Callable<ScanResult> {
+    private KuduScanner scanner;
+
+    public ScanCallable(KuduScanner scanner) {
+      this.scanner = scanner;
+    }
+
+    @Override
+    public ScanResult call() throws Exception {
+      long startTime = System.nanoTime();
+      List<Row> rows = Lists.newArrayList();
+
+      try {
+        while (scanner.hasMoreRows()) {
+          RowResultIterator results = scanner.nextRows();
+          while (results.hasNext()) {
+            rows.add(existingDecoder.decode(results.next()));
+          }
+        }
+      }
+      finally {
+        scanner.close();
+      }
 
-    return existingForFilters;
+      return new ScanResult(rows, System.nanoTime() - startTime);
+    }
   }
 
-  private synchronized KuduTable connectToTable() throws KuduException {
-    if (client == null) {
-      LOG.info("Connecting to Kudu");
+  private static class ScanResult {
+    private List<Row> rows;
+    private long scanningNanos;
 
-      String masterAddresses = config.getString(CONNECTION_CONFIG_NAME);
+    public ScanResult(List<Row> rows, long scanningNanos) {
+      this.rows = rows;
+      this.scanningNanos = scanningNanos;
+    }
 
-      client = new KuduClient.KuduClientBuilder(masterAddresses).build();
-      session = client.newSession();
-      session.setFlushMode(FlushMode.AUTO_FLUSH_BACKGROUND);
-      session.setMutationBufferSpace(10000);
-      session.setIgnoreAllDuplicateRows(isInsertIgnore());
+    public List<Row> getRows() {
+      return rows;
+    }
 
-      LOG.info("Connection to Kudu established");
+    public long getScanningNanos() {
+      return scanningNanos;
     }
+  }
 
-    String tableName = config.getString(TABLE_CONFIG_NAME);
-    KuduTable table = getTable(tableName);
+  // The threads of the executor that concurrent scans run on. The number of scans of each lookup
+  // that run at once is bounded by the lookup, so the pool itself does not need to be.
+  private static synchronized ExecutorService getScanPool() {
+    if (scanPool == null) {
+      scanPool = Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("kudu-scan-%d").setDaemon(true).build());
+    }
 
-    return table;
+    return scanPool;
   }
 
-  private Row resultAsRow(RowResult result, KuduTable table) throws KuduException {
-    List<Object> values = Lists.newArrayList();
+  private static void closeScanner(KuduScanner scanner) {
+    try {
+      scanner.close();
+    }
+    catch (Exception e) {
+      LOG.warn("Could not close Kudu scanner", e);
+    }
+  }
 
-    for (ColumnSchema columnSchema : table.getSchema().getColumns()) {
-      String columnName = columnSchema.getName();
+  // Converts the results of a scanner a batch at a time, as the existing records are consumed
+  private class ExistingIterator extends AbstractIterator<Row> {
+    private KuduScanner scanner;
+    private RowResultIterator results;
+    private long scanningNanos = 0;
 
-      if (result.isNull(columnName)) {
-        values.add(null);
-        continue;
-      }
+    public ExistingIterator(KuduScanner scanner) {
+      this.scanner = scanner;
+    }
 
-      switch (columnSchema.getType()) {
-        case DOUBLE:
-          values.add(result.getDouble(columnName));
-          break;
-        case FLOAT:
-          values.add(result.getFloat(columnName));
-          break;
-        case INT32:
-          values.add(result.getInt(columnName));
-          break;
-        case INT64:
-          values.add(result.getLong(columnName));
-          break;
-        case STRING:
-          values.add(result.getString(columnName));
-          break;
-        case BOOL:
-          values.add(result.getBoolean(columnName));
-          break;
-        default:
-          throw new RuntimeException("Unsupported Kudu column type: " + columnSchema.getType());
+    @Override
+    protected Row computeNext() {
+      long startTime = System.nanoTime();
+
+      try {
+        while ((results == null || !results.hasNext()) && scanner.hasMoreRows()) {
+          results = scanner.nextRows();
+        }
+
+        if (results == null || !results.hasNext()) {
+          closeScanner(scanner);
+
+          // The iterator can be drained on the lookup thread, which the synchronized histogram
+          // accumulator allows
+          if (hasAccumulators()) {
+            accumulators.getHistogramAccumulators().get(ACCUMULATOR_LATENCY_SCANNING).add(
+                scanningNanos + System.nanoTime() - startTime);
+          }
+
+          return endOfData();
+        }
+
+        Row existing = existingDecoder.decode(results.next());
+
+        scanningNanos += System.nanoTime() - startTime;
+
+        return existing;
+      }
+      catch (KuduException e) {
+        closeScanner(scanner);
+        throw new RuntimeException(e);
       }
     }
+  }
 
-    Row row = new RowWithSchema(getTableSchema(table), values.toArray());
+  private synchronized KuduTable connectToTable() throws KuduException {
+    if (client == null) {
+      LOG.info("Connecting to Kudu");
 
-    return row;
-  }
+      String masterAddresses = config.getString(CONNECTION_CONFIG_NAME);
 
-  private StructType schemaFor(KuduTable table) {
-    List<String> fieldNames = Lists.newArrayList();
-    List<String> fieldTypes = Lists.newArrayList();
+      client = new KuduClient.KuduClientBuilder(masterAddresses).build();
 
-    for (ColumnSchema columnSchema : table.getSchema().getColumns()) {
-      String fieldName = columnSchema.getName();
-      String fieldType;
+      LOG.info("Connection to Kudu established");
+    }
 
-      switch (columnSchema.getType()) {
-        case DOUBLE:
-          fieldType = "double";
-          break;
-        case FLOAT:
-          fieldType = "float";
-          break;
-        case INT32:
-          fieldType = "int";
-          break;
-        case INT64:
-          fieldType = "long";
-          break;
-        case STRING:
-          fieldType = "string";
-          break;
-        case BOOL:
-          fieldType = "boolean";
-          break;
-        default:
-          throw new RuntimeException("Unsupported Kudu column type: " + columnSchema.getType());
-      }
+    String tableName = config.getString(TABLE_CONFIG_NAME);
+    KuduTable table = getTable(tableName);
+
+    return table;
+  }
 
-      fieldNames.add(fieldName);
-      fieldTypes.add(fieldType);
+  // The scanners for the filters, each of which covers a bounded number of filters
+  // The filters that each scanner covers
+  static List<List<Row>> chunkFilters(List<Row> filters, List<String> filterFieldNames, boolean exactMatch, int chunkSize) {
+    if (exactMatch && filterFieldNames.size() > 1) {
+      // Each filter of a composite key is scanned on its own, so that the scanner is bounded to
+      // the primary key range of the filter instead of the cross product of the column values
+      return Lists.partition(filters, 1);
     }
 
-    StructType tableSchema = RowUtils.structTypeFor(fieldNames, fieldTypes);
+    // Sorting the filters by key before chunking them keeps the keys of each chunk close together,
+    // so that each scanner of a range partitioned table can be pruned to fewer tablets
+    List<Row> sortedFilters = Lists.newArrayList(filters);
+    Collections.sort(sortedFilters, new KeyComparator(filterFieldNames));
 
-    return tableSchema;
+    return Lists.partition(sortedFilters, chunkSize);
   }
 
-  private KuduScanner scannerForFilters(Iterable<Row> filters, KuduTable table) {
+  private List<KuduScanner> scannersForFilters(Iterable<Row> filters, KuduTable table) {
     List<Row> filtersList = Lists.newArrayList(filters);
 
     if (filtersList.size() == 0) {
@@ -253,14 +552,33 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
       throw new RuntimeException("Kudu existing filter did not contain a schema.");
     }
     
-    if (hasAccumulators()) {
-      accumulators.getLongAccumulators().get(ACCUMULATOR_NUMBER_OF_SCANNERS).add(1);
-      accumulators.getLongAccumulators().get(ACCUMULATOR_NUMBER_OF_FILTERS_SCANNED).add(filtersList.size());
+    List<String> filterFieldNames = Lists.newArrayList(filtersList.get(0).schema().fieldNames());
+    List<List<Row>> filterChunks = chunkFilters(filtersList, filterFieldNames, isScanExactMatch(), getScanChunkSize());
+    
+    recordScans(filterChunks.size(), filtersList.size());
+    
+    List<KuduScanner> scanners = Lists.newArrayList();
+    try {
+      for (List<Row> filterChunk : filterChunks) {
+        scanners.add(scannerForFilters(filterChunk, filterFieldNames, table));
+      }
+    }
+    catch (RuntimeException e) {
+      for (KuduScanner scanner : scanners) {
+        closeScanner(scanner);
+      }
+      throw e;
     }
     
+    return scanners;
+  }
+
+  private KuduScanner scannerForFilters(List<Row> filtersList, List<String> filterFieldNames, KuduTable table) {
     KuduScannerBuilder builder = client.newScannerBuilder(table);
 
-    for (String fieldName : filtersList.get(0).schema().fieldNames()) {
+    // When there is a single filter each predicate is an equality, which Kudu can use to bound the
+    // primary key range of the scan and to prune its tablets
+    for (String fieldName : filterFieldNames) {
       ColumnSchema columnSchema = table.getSchema().getColumn(fieldName);
 
       List<Object> columnValues = Lists.newArrayList();
@@ -274,6 +592,10 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
       builder = builder.addPredicate(predicate);
     }
 
+    if (projectedFieldNames != null) {
+      builder = builder.setProjectedColumnNames(existingColumnNames);
+    }
+
     KuduScanner scanner = builder.build();
 
     return scanner;
@@ -281,6 +603,7 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
 
   private List<Operation> extractOperations(List<PlannedRow> planned, KuduTable table) throws Exception {
     List<Operation> operations = Lists.newArrayList();
+    KuduRowCodec.Encoder encoder = null;
 
     for (PlannedRow plan : planned) {
       MutationType mutationType = plan.getMutationType();
@@ -311,36 +634,12 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
         throw new RuntimeException("Plan sent to Kudu output does not contain a schema");
       }
 
-      for (StructField field : planRow.schema().fields()) {
-        String fieldName = field.name();
-        ColumnSchema columnSchema = table.getSchema().getColumn(fieldName);
-
-        if (!planRow.isNullAt(planRow.fieldIndex(fieldName))) {
-          int fieldIndex = planRow.fieldIndex(fieldName);
-          switch (columnSchema.getType()) {
-            case DOUBLE:
-              kuduRow.addDouble(fieldName, planRow.getDouble(fieldIndex));
-              break;
-            case FLOAT:
-              kuduRow.addFloat(fieldName, planRow.getFloat(fieldIndex));
-              break;
-            case INT32:
-              kuduRow.addInt(fieldName, planRow.getInt(fieldIndex));
-              break;
-            case INT64:
-              kuduRow.addLong(fieldName, planRow.getLong(fieldIndex));
-              break;
-            case STRING:
-              kuduRow.addString(fieldName, planRow.getString(fieldIndex));
-              break;
-            case BOOL:
-              kuduRow.addBoolean(fieldName, planRow.getBoolean(fieldIndex));
-              break;
-            default:
-              throw new RuntimeException("Unsupported Kudu column type: " + columnSchema.getType());
-          }
-        }
+      // Planned rows almost always share a schema, so the encoder is only compiled again when the
+      // schema changes
+      if (encoder == null || !encoder.encodes(planRow.schema())) {
+        encoder = KuduRowCodec.encoderFor(table.getSchema(), planRow.schema());
       }
+      encoder.encode(planRow, kuduRow);
 
       operations.add(operation);
     }
@@ -363,19 +662,29 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
     }
   }
 
-  private synchronized StructType getTableSchema(KuduTable table) throws KuduException {
-    if (tableSchemas == null) {
-      tableSchemas = Maps.newHashMap();
-    }
+  @Override
+  public void projectExisting(Set<String> fieldNames) {
+    this.projectedFieldNames = fieldNames;
+  }
 
-    if (tableSchemas.containsKey(table.getName())) {
-      return tableSchemas.get(table.getName());
+  // The decoder of the columns that are scanned for existing records, in the order of the table,
+  // which are all of the columns of the table unless the existing records have been projected
+  private synchronized void prepareExistingDecoder(KuduTable table) {
+    if (existingDecoder != null) {
+      return;
     }
-    else {
-      StructType tableSchema = schemaFor(table);
-      tableSchemas.put(table.getName(), tableSchema);
-      return tableSchema;
+
+    List<ColumnSchema> columns = Lists.newArrayList();
+    List<String> columnNames = Lists.newArrayList();
+    for (ColumnSchema columnSchema : table.getSchema().getColumns()) {
+      if (projectedFieldNames == null || projectedFieldNames.contains(columnSchema.getName())) {
+        columns.add(columnSchema);
+        columnNames.add(columnSchema.getName());
+      }
     }
+
+    existingColumnNames = columnNames;
+    existingDecoder = KuduRowCodec.decoderFor(columns);
   }
 
   @Override
@@ -417,6 +726,20 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
     return config.hasPath(INSERT_IGNORE_CONFIG_NAME) && config.getBoolean(INSERT_IGNORE_CONFIG_NAME);
   }
   
+  private int getScanChunkSize() {
+    return config.hasPath(SCAN_CHUNK_SIZE_CONFIG_NAME) ?
+        config.getInt(SCAN_CHUNK_SIZE_CONFIG_NAME) : DEFAULT_SCAN_CHUNK_SIZE;
+  }
+  
+  private int getScanThreads() {
+    return config.hasPath(SCAN_THREADS_CONFIG_NAME) ?
+        config.getInt(SCAN_THREADS_CONFIG_NAME) : DEFAULT_SCAN_THREADS;
+  }
+  
+  private boolean isScanExactMatch() {
+    return config.hasPath(SCAN_EXACT_MATCH_CONFIG_NAME) && config.getBoolean(SCAN_EXACT_MATCH_CONFIG_NAME);
+  }
+  
   private boolean hasAccumulators() {
     return accumulators != null;
   }
@@ -427,14 +750,44 @@ public class KuduOutput implements RandomOutput, BulkOutput, UsesAccumulators {
     
     return Sets.newHashSet(new AccumulatorRequest(ACCUMULATOR_NUMBER_OF_SCANNERS, Long.class),
                            new AccumulatorRequest(ACCUMULATOR_NUMBER_OF_FILTERS_SCANNED, Long.class),
-                           new AccumulatorRequest(ACCUMULATOR_SECONDS_SCANNING, Double.class));
+                           new AccumulatorRequest(ACCUMULATOR_LATENCY_SCANNING, LatencyHistogram.class));
   }
 
   @Override
   public void receiveAccumulators(Accumulators accumulators) {
     this.accumulators = accumulators;
     
+    // Existing records can be looked up on threads other than the task's, which can not safely add
+    // to long accumulators, so the counts of the task are added when the task completes on its own
+    // thread
+    TaskContext taskContext = TaskContext.get();
+    if (taskContext != null) {
+      addsCountsOnTaskCompletion = true;
+      taskContext.addTaskCompletionListener(new TaskCompletionListener() {
+        @Override
+        public void onTaskCompletion(TaskContext context) {
+          addPendingCounts();
+        }
+      });
+    }
+    
     LOG.info("Kudu output received accumulators");
   }
+  
+  private void recordScans(int scanners, int filtersScanned) {
+    pendingScanners.addAndGet(scanners);
+    pendingFiltersScanned.addAndGet(filtersScanned);
+    
+    if (!addsCountsOnTaskCompletion) {
+      addPendingCounts();
+    }
+  }
+  
+  private synchronized void addPendingCounts() {
+    if (hasAccumulators()) {
+      accumulators.getLongAccumulators().get(ACCUMULATOR_NUMBER_OF_SCANNERS).add(pendingScanners.getAndSet(0));
+      accumulators.getLongAccumulators().get(ACCUMULATOR_NUMBER_OF_FILTERS_SCANNED).add(pendingFiltersScanned.getAndSet(0));
+    }
+  }
 
 }
@@ -0,0 +1,260 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.apache.kudu.ColumnSchema;
+import org.apache.kudu.Schema;
+import org.apache.kudu.Type;
+import org.apache.kudu.client.PartialRow;
+import org.apache.kudu.client.RowResult;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+/**
+ * Converts between Kudu rows and Spark SQL rows by column position. Decoders and encoders are
+ * compiled once for a list of Kudu columns or a Spark SQL schema, so that each row is then
+ * converted without looking up its columns by name.
+ * <p>
+ * UNIXTIME_MICROS columns are read as long values of microseconds since the epoch, and can be
+ * written from either long values or timestamps.
+ */
+public class KuduRowCodec {
+
+  private KuduRowCodec() {}
+
+  /**
+   * Compile a decoder for the results of a scan.
+   * @param columns The columns projected by the scan, in the order of the projection.
+   */
+  public static Decoder decoderFor(List<ColumnSchema> columns) {
+    return new Decoder(columns);
+  }
+
+  /**
+   * Compile an encoder for rows of a schema into the rows of a Kudu table.
+   * @param tableSchema The schema of the Kudu table.
+   * @param rowSchema The schema of the rows to encode, the fields of which must all be columns of
+   * the table.
+   */
+  public static Encoder encoderFor(Schema tableSchema, StructType rowSchema) {
+    return new Encoder(tableSchema, rowSchema);
+  }
+
+  public static StructType schemaFor(List<ColumnSchema> columns) {
+    List<StructField> fields = Lists.newArrayList();
+
+    for (ColumnSchema columnSchema : columns) {
+      fields.add(DataTypes.createStructField(
+          columnSchema.getName(), dataTypeFor(columnSchema.getType()), true));
+    }
+
+    return DataTypes.createStructType(fields);
+  }
+
+  private static DataType dataTypeFor(Type type) {
+    switch (type) {
+      case DOUBLE:
+        return DataTypes.DoubleType;
+      case FLOAT:
+        return DataTypes.FloatType;
+      case INT8:
+        return DataTypes.ByteType;
+      case INT16:
+        return DataTypes.ShortType;
+      case INT32:
+        return DataTypes.IntegerType;
+      case INT64:
+      case UNIXTIME_MICROS:
+        return DataTypes.LongType;
+      case STRING:
+        return DataTypes.StringType;
+      case BOOL:
+        return DataTypes.BooleanType;
+      case BINARY:
+        return DataTypes.BinaryType;
+      default:
+        throw new RuntimeException("Unsupported Kudu column type: " + type);
+    }
+  }
+
+  public static class Decoder {
+
+    private final Type[] types;
+    private final StructType schema;
+
+    private Decoder(List<ColumnSchema> columns) {
+      types = new Type[columns.size()];
+      for (int i = 0; i < types.length; i++) {
+        types[i] = columns.get(i).getType();
+        // Fail when the decoder is compiled rather than for the first result
+        dataTypeFor(types[i]);
+      }
+
+      schema = schemaFor(columns);
+    }
+
+    public StructType getSchema() {
+      return schema;
+    }
+
+    public Row decode(RowResult result) {
+      Object[] values = new Object[types.length];
+
+      for (int i = 0; i < types.length; i++) {
+        if (result.isNull(i)) {
+          continue;
+        }
+
+        switch (types[i]) {
+          case DOUBLE:
+            values[i] = result.getDouble(i);
+            break;
+          case FLOAT:
+            values[i] = result.getFloat(i);
+            break;
+          case INT8:
+            values[i] = result.getByte(i);
+            break;
+          case INT16:
+            values[i] = result.getShort(i);
+            break;
+          case INT32:
+            values[i] = result.getInt(i);
+            break;
+          case INT64:
+          case UNIXTIME_MICROS:
+            values[i] = result.getLong(i);
+            break;
+          case STRING:
+            values[i] = result.getString(i);
+            break;
+          case BOOL:
+            values[i] = result.getBoolean(i);
+            break;
+          case BINARY:
+            values[i] = result.getBinaryCopy(i);
+            break;
+          default:
+            throw new RuntimeException("Unsupported Kudu column type: " + types[i]);
+        }
+      }
+
+      return new RowWithSchema(schema, values);
+    }
+
+  }
+
+  public static class Encoder {
+
+    private final StructType rowSchema;
+    private final int[] columnIndexes;
+    private final Type[] types;
+    private final boolean[] timestamps;
+
+    private Encoder(Schema tableSchema, StructType rowSchema) {
+      this.rowSchema = rowSchema;
+
+      StructField[] fields = rowSchema.fields();
+      columnIndexes = new int[fields.length];
+      types = new Type[fields.length];
+      timestamps = new boolean[fields.length];
+
+      for (int i = 0; i < fields.length; i++) {
+        columnIndexes[i] = tableSchema.getColumnIndex(fields[i].name());
+        types[i] = tableSchema.getColumnByIndex(columnIndexes[i]).getType();
+        dataTypeFor(types[i]);
+        timestamps[i] = fields[i].dataType().equals(DataTypes.TimestampType);
+      }
+    }
+
+    /**
+     * @return True if this encoder was compiled for rows of the schema.
+     */
+    public boolean encodes(StructType schema) {
+      return schema == rowSchema || schema.equals(rowSchema);
+    }
+
+    /**
+     * Add the non-null values of the row to the Kudu row.
+     */
+    public void encode(Row row, PartialRow kuduRow) {
+      for (int i = 0; i < columnIndexes.length; i++) {
+        if (row.isNullAt(i)) {
+          continue;
+        }
+
+        int columnIndex = columnIndexes[i];
+        switch (types[i]) {
+          case DOUBLE:
+            kuduRow.addDouble(columnIndex, row.getDouble(i));
+            break;
+          case FLOAT:
+            kuduRow.addFloat(columnIndex, row.getFloat(i));
+            break;
+          case INT8:
+            kuduRow.addByte(columnIndex, row.getByte(i));
+            break;
+          case INT16:
+            kuduRow.addShort(columnIndex, row.getShort(i));
+            break;
+          case INT32:
+            kuduRow.addInt(columnIndex, row.getInt(i));
+            break;
+          case INT64:
+            kuduRow.addLong(columnIndex, row.getLong(i));
+            break;
+          case UNIXTIME_MICROS:
+            if (timestamps[i]) {
+              kuduRow.addLong(columnIndex, microsFor(row.<Timestamp>getAs(i)));
+            }
+            else {
+              kuduRow.addLong(columnIndex, row.getLong(i));
+            }
+            break;
+          case STRING:
+            kuduRow.addString(columnIndex, row.getString(i));
+            break;
+          case BOOL:
+            kuduRow.addBoolean(columnIndex, row.getBoolean(i));
+            break;
+          case BINARY:
+            kuduRow.addBinary(columnIndex, row.<byte[]>getAs(i));
+            break;
+          default:
+            throw new RuntimeException("Unsupported Kudu column type: " + types[i]);
+        }
+      }
+    }
+
+    private static long microsFor(Timestamp timestamp) {
+      // The milliseconds of the timestamp are also included in its nanoseconds, which are never
+      // negative, so they are taken away to leave the whole seconds
+      long secondsMillis = timestamp.getTime() - timestamp.getNanos() / 1000000;
+      return secondsMillis * 1000 + timestamp.getNanos() / 1000;
+    }
+
+  }
+
+}
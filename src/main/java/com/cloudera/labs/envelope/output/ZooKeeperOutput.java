@@ -42,7 +42,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
 
-public class ZooKeeperOutput implements RandomOutput, Watcher {
+public class ZooKeeperOutput implements RandomOutput, CanProjectExisting, Watcher {
 
   public static final String CONNECTION_CONFIG = "connection";
   public static final String FIELD_NAMES_CONFIG = "field.names";
@@ -60,6 +60,7 @@ public class ZooKeeperOutput implements RandomOutput, Watcher {
   private List<String> keyFieldNames;
   private String znodePrefix;
   private int sessionTimeoutMs;
+  private StructType projectedSchema;
 
   private static ZooKeeper _zk;
   private static CountDownLatch latch;
@@ -150,6 +151,9 @@ public class ZooKeeperOutput implements RandomOutput, Watcher {
             Row existingRow = toFullRow(znode, serialized);
             
             if (matchesValueFilter(existingRow, filter)) {
+              if (projectedSchema != null) {
+                existingRow = RowUtils.subsetRow(existingRow, projectedSchema);
+              }
               existing.add(existingRow);
             }
           }
@@ -160,6 +164,19 @@ public class ZooKeeperOutput implements RandomOutput, Watcher {
     return existing;
   }
 
+  @Override
+  public void projectExisting(Set<String> fieldNames) {
+    List<String> projectedFieldNames = Lists.newArrayList();
+    for (String fieldName : this.fieldNames) {
+      if (fieldNames.contains(fieldName)) {
+        projectedFieldNames.add(fieldName);
+      }
+    }
+
+    StructType schema = RowUtils.structTypeFor(this.fieldNames, fieldTypes);
+    projectedSchema = RowUtils.subsetSchema(schema, projectedFieldNames);
+  }
+
   @Override
   public void process(WatchedEvent event) {
     if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
@@ -0,0 +1,239 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.partition;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.kudu.Schema;
+import org.apache.kudu.client.KuduClient;
+import org.apache.kudu.client.KuduException;
+import org.apache.kudu.client.KuduTable;
+import org.apache.kudu.client.LocatedTablet;
+import org.apache.kudu.client.PartialRow;
+import org.apache.kudu.client.PartitionSchema;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.labs.envelope.output.KuduRowCodec;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.UnsignedBytes;
+import com.typesafe.config.Config;
+
+/**
+ * Partitions the keys of a Kudu table by the tablet that they belong to, so that each task only
+ * looks up and writes to the tablets of its own partition. There is one partition per tablet.
+ * <p>
+ * The tablet of a key is found from the Kudu partition key of the key, which is encoded by the Kudu
+ * client itself so that it follows the hash and range partitioning of the table exactly. If the
+ * client can not encode the partition key, or the keys do not include all of the partition columns
+ * of the table, then the keys are hash partitioned across the tablets.
+ */
+@SuppressWarnings("serial")
+public class KuduPartitioner extends ConfigurablePartitioner {
+
+  public static final String CONNECTION_CONFIG_NAME = "connection";
+  public static final String TABLE_CONFIG_NAME = "table.name";
+
+  private static final long TABLET_LOCATIONS_TIMEOUT_MS = 60000;
+
+  private static Map<String, KuduClient> clients = Maps.newHashMap();
+  private static Method encodePartitionKeyMethod;
+  private static boolean encodePartitionKeyUnavailable = false;
+
+  private static Logger LOG = LoggerFactory.getLogger(KuduPartitioner.class);
+
+  private String masterAddresses;
+  private String tableName;
+  private byte[][] tabletStartKeys;
+  private Set<String> partitionColumnNames;
+  private transient KuduTable table;
+  private transient KuduRowCodec.Encoder keyEncoder;
+  private transient boolean keyCoversPartitionColumns;
+
+  @Override
+  public void configure(Config config, JavaPairRDD<Row, Row> rdd) {
+    masterAddresses = config.getString(CONNECTION_CONFIG_NAME);
+    tableName = config.getString(TABLE_CONFIG_NAME);
+
+    try {
+      List<LocatedTablet> tablets = getTable().getTabletsLocations(TABLET_LOCATIONS_TIMEOUT_MS);
+
+      List<byte[]> startKeys = Lists.newArrayList();
+      for (LocatedTablet tablet : tablets) {
+        startKeys.add(tablet.getPartition().getPartitionKeyStart());
+      }
+      Collections.sort(startKeys, UnsignedBytes.lexicographicalComparator());
+
+      tabletStartKeys = startKeys.toArray(new byte[startKeys.size()][]);
+      partitionColumnNames = partitionColumnNamesFor(getTable());
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Could not get the tablets of Kudu table " + tableName, e);
+    }
+
+    LOG.info("Kudu partitioner found {} tablets for table {}", tabletStartKeys.length, tableName);
+  }
+
+  @Override
+  public int getPartition(Object key) {
+    Row keyRow = (Row)key;
+    byte[] partitionKey;
+
+    try {
+      prepareKeyEncoder(keyRow.schema());
+      partitionKey = keyCoversPartitionColumns ? encodePartitionKey(keyRow) : null;
+    }
+    catch (KuduException e) {
+      throw new RuntimeException(e);
+    }
+
+    if (partitionKey == null) {
+      return (keyRow.hashCode() & Integer.MAX_VALUE) % numPartitions();
+    }
+
+    return tabletFor(partitionKey, tabletStartKeys);
+  }
+
+  @Override
+  public int numPartitions() {
+    return tabletStartKeys.length;
+  }
+
+  // The index of the tablet whose range of partition keys contains the partition key, given the
+  // sorted start partition keys of the tablets
+  static int tabletFor(byte[] partitionKey, byte[][] tabletStartKeys) {
+    Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+    int low = 0;
+    int high = tabletStartKeys.length - 1;
+
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+
+      if (comparator.compare(tabletStartKeys[middle], partitionKey) <= 0) {
+        low = middle;
+      }
+      else {
+        high = middle - 1;
+      }
+    }
+
+    return low;
+  }
+
+  // The keys almost always share a schema, so the encoder is only compiled again when it changes
+  private void prepareKeyEncoder(StructType keySchema) throws KuduException {
+    if (keyEncoder == null || !keyEncoder.encodes(keySchema)) {
+      keyEncoder = KuduRowCodec.encoderFor(getTable().getSchema(), keySchema);
+      keyCoversPartitionColumns = coversPartitionColumns(keySchema, partitionColumnNames);
+
+      if (!keyCoversPartitionColumns) {
+        LOG.warn("Keys {} do not include all of the partition columns {} of Kudu table {}, keys will be hash partitioned",
+            new Object[] {keySchema.fieldNames(), partitionColumnNames, tableName});
+      }
+    }
+  }
+
+  // A partition key can only be encoded from a key that has all of the partition columns, because
+  // the missing columns would otherwise be encoded as if they were their minimum values
+  static boolean coversPartitionColumns(StructType keySchema, Set<String> partitionColumnNames) {
+    return Sets.newHashSet(keySchema.fieldNames()).containsAll(partitionColumnNames);
+  }
+
+  private static Set<String> partitionColumnNamesFor(KuduTable table) {
+    Schema schema = table.getSchema();
+    List<Integer> columnIds = Lists.newArrayList(table.getPartitionSchema().getRangeSchema().getColumns());
+    for (PartitionSchema.HashBucketSchema hashBucketSchema : table.getPartitionSchema().getHashBucketSchemas()) {
+      columnIds.addAll(hashBucketSchema.getColumnIds());
+    }
+
+    Set<String> columnNames = Sets.newHashSet();
+    for (int columnId : columnIds) {
+      columnNames.add(schema.getColumnByIndex(schema.getColumnIndex(columnId)).getName());
+    }
+
+    return columnNames;
+  }
+
+  // The Kudu partition key of the key, or null if the Kudu client can not encode it
+  private byte[] encodePartitionKey(Row key) throws KuduException {
+    Method encode = getEncodePartitionKeyMethod();
+
+    if (encode == null) {
+      return null;
+    }
+
+    KuduTable table = getTable();
+    PartialRow kuduKey = table.getSchema().newPartialRow();
+    keyEncoder.encode(key, kuduKey);
+
+    try {
+      return (byte[])encode.invoke(null, kuduKey, table.getPartitionSchema());
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Could not encode Kudu partition key for " + key, e);
+    }
+  }
+
+  // The Kudu client only exposes the encoding of partition keys internally, and so it is called
+  // reflectively. This is only used to choose partitions, so if it is not available the keys are
+  // hash partitioned instead.
+  private static synchronized Method getEncodePartitionKeyMethod() {
+    if (encodePartitionKeyMethod == null && !encodePartitionKeyUnavailable) {
+      try {
+        Class<?> keyEncoder = Class.forName("org.apache.kudu.client.KeyEncoder");
+        Method method = keyEncoder.getDeclaredMethod("encodePartitionKey", PartialRow.class, PartitionSchema.class);
+        method.setAccessible(true);
+        encodePartitionKeyMethod = method;
+      }
+      catch (Exception e) {
+        LOG.warn("Kudu client does not support encoding partition keys, keys will be hash partitioned", e);
+        encodePartitionKeyUnavailable = true;
+      }
+    }
+
+    return encodePartitionKeyMethod;
+  }
+
+  private KuduTable getTable() throws KuduException {
+    if (table == null) {
+      table = getClient(masterAddresses).openTable(tableName);
+    }
+
+    return table;
+  }
+
+  private static synchronized KuduClient getClient(String masterAddresses) {
+    KuduClient client = clients.get(masterAddresses);
+
+    if (client == null) {
+      client = new KuduClient.KuduClientBuilder(masterAddresses).build();
+      clients.put(masterAddresses, client);
+    }
+
+    return client;
+  }
+
+}
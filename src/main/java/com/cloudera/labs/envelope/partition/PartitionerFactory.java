@@ -57,6 +57,9 @@ public class PartitionerFactory {
       case "uuid":
         partitioner = new UUIDPartitioner();
         break;
+      case "kudu":
+        partitioner = new KuduPartitioner();
+        break;
       default:
         try {
           Class<?> clazz = Class.forName(partitionerType);
@@ -16,25 +16,23 @@
 package com.cloudera.labs.envelope.plan;
 
 import static com.cloudera.labs.envelope.utils.ConfigUtils.assertConfig;
-import static com.cloudera.labs.envelope.utils.RowUtils.after;
-import static com.cloudera.labs.envelope.utils.RowUtils.append;
-import static com.cloudera.labs.envelope.utils.RowUtils.before;
-import static com.cloudera.labs.envelope.utils.RowUtils.compareTimestamp;
-import static com.cloudera.labs.envelope.utils.RowUtils.different;
-import static com.cloudera.labs.envelope.utils.RowUtils.get;
 import static com.cloudera.labs.envelope.utils.RowUtils.precedingTimestamp;
-import static com.cloudera.labs.envelope.utils.RowUtils.set;
-import static com.cloudera.labs.envelope.utils.RowUtils.simultaneous;
 
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.types.DataTypes;
-import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
 
+import com.cloudera.labs.envelope.spark.FieldAccessor;
+import com.cloudera.labs.envelope.spark.RowBuilder;
+import com.cloudera.labs.envelope.utils.RowUtils;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
@@ -56,6 +54,15 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
   public static final Long FAR_FUTURE_MILLIS = 253402214400000L; // 9999-12-31
 
   private Config config;
+  private FieldAccessor timestampField;
+  private List<FieldAccessor> valueFields;
+  private FieldAccessor eventTimeEffectiveFromField;
+  private FieldAccessor eventTimeEffectiveToField;
+  private FieldAccessor systemTimeEffectiveFromField;
+  private FieldAccessor systemTimeEffectiveToField;
+  private FieldAccessor currentFlagField;
+  private StructType arrivingSchema;
+  private StructType plannedSchema;
 
   @Override
   public void configure(Config config) {
@@ -67,6 +74,16 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
     assertConfig(config, EVENT_TIME_EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME);
     assertConfig(config, SYSTEM_TIME_EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME);
     assertConfig(config, SYSTEM_TIME_EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME);
+
+    timestampField = new FieldAccessor(getTimestampFieldName());
+    valueFields = FieldAccessor.forFieldNames(getValueFieldNames());
+    eventTimeEffectiveFromField = new FieldAccessor(getEventTimeEffectiveFromFieldName());
+    eventTimeEffectiveToField = new FieldAccessor(getEventTimeEffectiveToFieldName());
+    systemTimeEffectiveFromField = new FieldAccessor(getSystemTimeEffectiveFromFieldName());
+    systemTimeEffectiveToField = new FieldAccessor(getSystemTimeEffectiveToFieldName());
+    if (hasCurrentFlagField()) {
+      currentFlagField = new FieldAccessor(getCurrentFlagFieldName());
+    }
   }
 
   @Override
@@ -76,232 +93,201 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
 
   @Override
   public List<PlannedRow> planMutationsForKey(Row key, List<Row> arrivingForKey, List<Row> existingForKey) {
-    List<String> valueFieldNames = getValueFieldNames();
-    String timestampFieldName = getTimestampFieldName();
-    String eventTimeEffectiveFromFieldName = getEventTimeEffectiveFromFieldName();
-    String eventTimeEffectiveToFieldName = getEventTimeEffectiveToFieldName();
-    String systemTimeEffectiveFromFieldName = getSystemTimeEffectiveFromFieldName();
-    String systemTimeEffectiveToFieldName = getSystemTimeEffectiveToFieldName();
     boolean hasCurrentFlagField = hasCurrentFlagField();
-    String currentFlagFieldName = null;
-    if (hasCurrentFlagField) {
-      currentFlagFieldName = getCurrentFlagFieldName();
-    }
 
     long currentSystemTime = System.currentTimeMillis();
-    Comparator<PlannedRow> tc = new PlanTimestampComparator(timestampFieldName);
 
-    List<PlannedRow> plannedForKey = Lists.newArrayList();
+    // The planned records of the key by event time. Records with the same event time are kept in
+    // the order they were planned, so that the history is navigated in the same order as a list
+    // that is stably sorted by event time after each change.
+    NavigableMap<Long, List<PlannedRow>> plannedForKey = new TreeMap<>();
 
     // Filter out existing entries for this key that have already been closed
     if (existingForKey != null) {
       for (Row existing : existingForKey) {
-        if (currentSystemTime < (long)get(existing, systemTimeEffectiveToFieldName)) {
-          plannedForKey.add(new PlannedRow(existing, MutationType.NONE));
+        if (currentSystemTime < systemTimeEffectiveToField.getLong(existing)) {
+          addPlanned(plannedForKey, new PlannedRow(existing, MutationType.NONE));
         }
       }
     }
 
-    Collections.sort(plannedForKey, tc);
-    Collections.sort(arrivingForKey, new ArrivingTimestampComparator(timestampFieldName));
+    Collections.sort(arrivingForKey, new ArrivingTimestampComparator());
 
     for (Row arriving : arrivingForKey) {
-      arriving = append(arriving, eventTimeEffectiveFromFieldName, DataTypes.LongType, null);
-      arriving = append(arriving, eventTimeEffectiveToFieldName, DataTypes.LongType, null);
-      arriving = append(arriving, systemTimeEffectiveFromFieldName, DataTypes.LongType, null);
-      arriving = append(arriving, systemTimeEffectiveToFieldName, DataTypes.LongType, null);
-      if (hasCurrentFlagField) {
-        arriving = append(arriving, currentFlagFieldName, DataTypes.StringType, null);
-      }
+      // The arriving record with the planner's fields appended, which are set by the case that applies
+      RowBuilder arrivingPlanned = new RowBuilder(plannedSchemaFor(arriving.schema()), arriving);
 
-      Long arrivingTimestamp = (Long)get(arriving, timestampFieldName);
+      Long arrivingTimestamp = timestampField.getLong(arriving);
 
       // There was no existing record for the key, so we just insert the input record.
       if (plannedForKey.isEmpty()) {
-        arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-        arriving = set(arriving, eventTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-        arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-        arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
+        arrivingPlanned.set(eventTimeEffectiveFromField, arrivingTimestamp);
+        arrivingPlanned.set(eventTimeEffectiveToField, FAR_FUTURE_MILLIS);
+        arrivingPlanned.set(systemTimeEffectiveFromField, currentSystemTime);
+        arrivingPlanned.set(systemTimeEffectiveToField, FAR_FUTURE_MILLIS);
         if (hasCurrentFlagField) {
-          arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_YES);
+          arrivingPlanned.set(currentFlagField, CURRENT_FLAG_YES);
         }
-        plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+        addPlanned(plannedForKey, new PlannedRow(arrivingPlanned.build(), MutationType.INSERT));
 
         continue;
       }
 
-      // Iterate through each existing record of the key in time order, stopping when we
-      // have either corrected the history or gone all the way through it.
-      for (int position = 0; position < plannedForKey.size(); position++) {
-        PlannedRow plan = plannedForKey.get(position);
-        Long planTimestamp = (Long)get(plan.getRow(), timestampFieldName);
-        PlannedRow previousPlanned = null;
-        PlannedRow nextPlanned = null;
-        Long nextPlannedTimestamp = null;
+      List<PlannedRow> simultaneousPlanned = plannedForKey.get(arrivingTimestamp);
+
+      // There is an existing record for the same key and timestamp. It is possible that
+      // the existing record is in the storage layer or is about to be added during this
+      // micro-batch. Either way, we only update the first such record that has changed.
+      if (simultaneousPlanned != null) {
+        for (PlannedRow plan : simultaneousPlanned) {
+          if (FieldAccessor.different(arriving, plan.getRow(), valueFields)) {
+            arrivingPlanned.set(eventTimeEffectiveFromField, eventTimeEffectiveFromField.get(plan.getRow()));
+            arrivingPlanned.set(eventTimeEffectiveToField, eventTimeEffectiveToField.get(plan.getRow()));
+            arrivingPlanned.set(systemTimeEffectiveFromField, currentSystemTime);
+            arrivingPlanned.set(systemTimeEffectiveToField, FAR_FUTURE_MILLIS);
+            if (hasCurrentFlagField) {
+              arrivingPlanned.set(currentFlagField, currentFlagField.get(plan.getRow()));
+            }
 
-        if (position > 0) {
-          previousPlanned = plannedForKey.get(position - 1);
+            plan.setRow(closedInSystemTime(plan.getRow(), currentSystemTime));
+            if (!plan.getMutationType().equals(MutationType.INSERT)) {
+              plan.setMutationType(MutationType.UPDATE);
+            }
+
+            addPlanned(plannedForKey, new PlannedRow(arrivingPlanned.build(), MutationType.INSERT));
+
+            break;
+          }
         }
-        if (position + 1 < plannedForKey.size()) {
-          nextPlanned = plannedForKey.get(position + 1);
-          nextPlannedTimestamp = (Long)get(nextPlanned.getRow(), timestampFieldName);
+
+        continue;
+      }
+
+      Map.Entry<Long, List<PlannedRow>> previousEntry = plannedForKey.lowerEntry(arrivingTimestamp);
+      Long nextPlannedTimestamp = plannedForKey.higherKey(arrivingTimestamp);
+
+      // Before them all
+      // -> Insert with ED just before first
+      // The input record is timestamped before any existing record of the same key. In
+      // this case there is no need to modify existing records, and we only have to insert
+      // the input record as effective up until just prior to the first existing record.
+      if (previousEntry == null) {
+        arrivingPlanned.set(eventTimeEffectiveFromField, arrivingTimestamp);
+        arrivingPlanned.set(eventTimeEffectiveToField, precedingTimestamp(nextPlannedTimestamp));
+        arrivingPlanned.set(systemTimeEffectiveFromField, currentSystemTime);
+        arrivingPlanned.set(systemTimeEffectiveToField, FAR_FUTURE_MILLIS);
+        if (hasCurrentFlagField) {
+          arrivingPlanned.set(currentFlagField, CURRENT_FLAG_NO);
         }
+        addPlanned(plannedForKey, new PlannedRow(arrivingPlanned.build(), MutationType.INSERT));
 
-        // There is an existing record for the same key and timestamp. It is possible that
-        // the existing record is in the storage layer or is about to be added during this
-        // micro-batch. Either way, we only update that record if it has changed.
-        if (simultaneous(arriving, plan.getRow(), timestampFieldName) &&
-          different(arriving, plan.getRow(), valueFieldNames))
-        {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, get(plan.getRow(), eventTimeEffectiveFromFieldName));
-          arriving = set(arriving, eventTimeEffectiveToFieldName, get(plan.getRow(), eventTimeEffectiveToFieldName));
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, get(plan.getRow(), currentFlagFieldName));
-          }
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+        continue;
+      }
 
-          plan.setRow(set(plan.getRow(), systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime)));
-          if (hasCurrentFlagField) {
-            plan.setRow(set(plan.getRow(), currentFlagFieldName, CURRENT_FLAG_NO));
-          }
-          if (!plan.getMutationType().equals(MutationType.INSERT)) {
-            plan.setMutationType(MutationType.UPDATE);
-          }
+      // The latest planned record before the input record
+      List<PlannedRow> previousPlanned = previousEntry.getValue();
+      PlannedRow plan = previousPlanned.get(previousPlanned.size() - 1);
+
+      // The input record is timestamped with an existing record of the same key before it
+      // and an existing record of the same key after it. We insert the input record
+      // effective until just prior to the next existing record and we update the
+      // previous existing record to be effective until just prior to the input record.
+      if (nextPlannedTimestamp != null) {
+        arrivingPlanned.set(eventTimeEffectiveFromField, arrivingTimestamp);
+        arrivingPlanned.set(eventTimeEffectiveToField, precedingTimestamp(nextPlannedTimestamp));
+        arrivingPlanned.set(systemTimeEffectiveFromField, currentSystemTime);
+        arrivingPlanned.set(systemTimeEffectiveToField, FAR_FUTURE_MILLIS);
+        if (hasCurrentFlagField) {
+          arrivingPlanned.set(currentFlagField, CURRENT_FLAG_NO);
+        }
+        addPlanned(plannedForKey, new PlannedRow(arrivingPlanned.build(), MutationType.INSERT));
 
-          break;
+        plan.setRow(closedInSystemTime(plan.getRow(), currentSystemTime));
+        if (!plan.getMutationType().equals(MutationType.INSERT)) {
+          plan.setMutationType(MutationType.UPDATE);
         }
-        // Before them all
-        // -> Insert with ED just before first
-        // The input record is timestamped before any existing record of the same key. In
-        // this case there is no need to modify existing records, and we only have to insert
-        // the input record as effective up until just prior to the first existing record.
-        else if (previousPlanned == null && before(arriving, plan.getRow(), timestampFieldName)) {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-          arriving = set(arriving, eventTimeEffectiveToFieldName, precedingTimestamp(planTimestamp));
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_NO);
-          }
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
 
-          break;
+        RowBuilder superseded = new RowBuilder(plan.getRow());
+        superseded.set(eventTimeEffectiveToField, precedingTimestamp(arrivingTimestamp));
+        superseded.set(systemTimeEffectiveFromField, currentSystemTime);
+        superseded.set(systemTimeEffectiveToField, FAR_FUTURE_MILLIS);
+        addPlanned(plannedForKey, new PlannedRow(superseded.build(), MutationType.INSERT));
+      }
+      // The input record is arriving after all existing records of the same key. This
+      // is the 'normal' case where data arrives in order. We insert the input record
+      // effective until the far future, and we update the previous existing record
+      // to be effective until just prior to the input record.
+      else {
+        arrivingPlanned.set(eventTimeEffectiveFromField, arrivingTimestamp);
+        arrivingPlanned.set(eventTimeEffectiveToField, FAR_FUTURE_MILLIS);
+        arrivingPlanned.set(systemTimeEffectiveFromField, currentSystemTime);
+        arrivingPlanned.set(systemTimeEffectiveToField, FAR_FUTURE_MILLIS);
+        if (hasCurrentFlagField) {
+          arrivingPlanned.set(currentFlagField, CURRENT_FLAG_YES);
         }
-        // The input record is timestamped with an existing record of the same key before it
-        // and an existing record of the same key after it. We insert the input record
-        // effective until just prior to the next existing record and we update the
-        // previous existing record to be effective until just prior to the input record.
-        else if (plan != null && nextPlanned != null &&
-             after(arriving, plan.getRow(), timestampFieldName) &&
-             before(arriving, nextPlanned.getRow(), timestampFieldName))
-        {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-          arriving = set(arriving, eventTimeEffectiveToFieldName, precedingTimestamp(nextPlannedTimestamp));
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_NO);
-          }
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+        addPlanned(plannedForKey, new PlannedRow(arrivingPlanned.build(), MutationType.INSERT));
 
-          plan.setRow(set(plan.getRow(), systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime)));
-          if (hasCurrentFlagField) {
-            plan.setRow(set(plan.getRow(), currentFlagFieldName, CURRENT_FLAG_NO));
-          }
+        if (systemTimeEffectiveFromField.getLong(plan.getRow()) < currentSystemTime) {
+          plan.setRow(closedInSystemTime(plan.getRow(), currentSystemTime));
           if (!plan.getMutationType().equals(MutationType.INSERT)) {
             plan.setMutationType(MutationType.UPDATE);
           }
 
-          Row superseded = plan.getRow();
-          superseded = set(superseded, eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp));
-          superseded = set(superseded, systemTimeEffectiveFromFieldName, currentSystemTime);
-          superseded = set(superseded, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          plannedForKey.add(new PlannedRow(superseded, MutationType.INSERT));
-
-          break;
-        }
-        // The input record is arriving after all existing records of the same key. This
-        // is the 'normal' case where data arrives in order. We insert the input record
-        // effective until the far future, and we update the previous existing record
-        // to be effective until just prior to the input record.
-        else if (after(arriving, plan.getRow(), timestampFieldName) && nextPlanned == null) {
-          arriving = set(arriving, eventTimeEffectiveFromFieldName, arrivingTimestamp);
-          arriving = set(arriving, eventTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-          arriving = set(arriving, systemTimeEffectiveFromFieldName, currentSystemTime);
-          arriving = set(arriving, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
+          RowBuilder superseded = new RowBuilder(plan.getRow());
+          superseded.set(eventTimeEffectiveToField, precedingTimestamp(arrivingTimestamp));
+          superseded.set(systemTimeEffectiveFromField, currentSystemTime);
+          superseded.set(systemTimeEffectiveToField, FAR_FUTURE_MILLIS);
           if (hasCurrentFlagField) {
-            arriving = set(arriving, currentFlagFieldName, CURRENT_FLAG_YES);
+            superseded.set(currentFlagField, CURRENT_FLAG_NO);
           }
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
-
+          addPlanned(plannedForKey, new PlannedRow(superseded.build(), MutationType.INSERT));
+        }
+        else {
+          RowBuilder updated = new RowBuilder(plan.getRow());
           if (hasCurrentFlagField) {
-            plan.setRow(set(plan.getRow(), currentFlagFieldName, CURRENT_FLAG_NO));
-          }
-
-          if ((long)get(plan.getRow(), systemTimeEffectiveFromFieldName) < currentSystemTime) {
-            plan.setRow(set(plan.getRow(), systemTimeEffectiveToFieldName, precedingTimestamp(currentSystemTime)));
-            if (!plan.getMutationType().equals(MutationType.INSERT)) {
-              plan.setMutationType(MutationType.UPDATE);
-            }
-
-            Row superseded = plan.getRow();
-            superseded = set(superseded, eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp));
-            superseded = set(superseded, systemTimeEffectiveFromFieldName, currentSystemTime);
-            superseded = set(superseded, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
-            if (hasCurrentFlagField) {
-              superseded = set(superseded, currentFlagFieldName, CURRENT_FLAG_NO);
-            }
-            plannedForKey.add(new PlannedRow(superseded, MutationType.INSERT));
-          }
-          else {
-            plan.setRow(set(plan.getRow(), eventTimeEffectiveToFieldName, precedingTimestamp(arrivingTimestamp)));
+            updated.set(currentFlagField, CURRENT_FLAG_NO);
           }
-
-          break;
+          updated.set(eventTimeEffectiveToField, precedingTimestamp(arrivingTimestamp));
+          plan.setRow(updated.build());
         }
       }
-
-      Collections.sort(plannedForKey, tc);
     }
 
     // Final pass-through here to carry forward anything we need to
+    List<PlannedRow> plannedInOrder = Lists.newArrayList();
+    for (List<PlannedRow> plannedForTimestamp : plannedForKey.values()) {
+      plannedInOrder.addAll(plannedForTimestamp);
+    }
+
     List<PlannedRow> planned = Lists.newArrayList();
     if (doesCarryForward()) {
-      for (int position = 0; position < plannedForKey.size(); position++) {
-        PlannedRow plan = plannedForKey.get(position);
+      for (int position = 0; position < plannedInOrder.size(); position++) {
+        PlannedRow plan = plannedInOrder.get(position);
         // We carry forward for all mutations in case the next non-NONE row needs the values from this row
         if (position > 0) {
           Row carried = carryForwardWhenNull(plan.getRow(),
-              plannedForKey.get(position - 1).getRow());
-          if (different(plan.getRow(), carried, getValueFieldNames())) {
+              plannedInOrder.get(position - 1).getRow());
+          if (FieldAccessor.different(plan.getRow(), carried, valueFields)) {
             // Close existing record and add a new one if not an insert - otherwise just replace
-            Row superseded = plan.getRow();
-            superseded = set(superseded, systemTimeEffectiveToFieldName,
-                precedingTimestamp(currentSystemTime));
-            if (hasCurrentFlagField) {
-              superseded = set(superseded, currentFlagFieldName, CURRENT_FLAG_NO);
-            }
             if (plan.getMutationType().equals(MutationType.INSERT)) {
               plan.setRow(carried);
               // This might supersede a previous insert that we've just added as part of a history re-write
               // Condition: the values are the same, it has the same timestamp and has the same currentSystemTime
               if (planned.size() > 1 &&
-                  simultaneous(plan.getRow(), planned.get(planned.size() - 1).getRow(),
-                      timestampFieldName) &&
-                  simultaneous(plan.getRow(), planned.get(planned.size() - 1).getRow(),
-                      systemTimeEffectiveFromFieldName)) {
+                  timestampField.compareLong(plan.getRow(), planned.get(planned.size() - 1).getRow()) == 0 &&
+                  systemTimeEffectiveFromField.compareLong(plan.getRow(), planned.get(planned.size() - 1).getRow()) == 0) {
                 planned.remove(planned.size() - 1);
               }
               planned.add(plan);
             } else {
-              planned.add(new PlannedRow(superseded, MutationType.UPDATE));
-              carried = set(carried, systemTimeEffectiveFromFieldName, currentSystemTime);
-              carried = set(carried, systemTimeEffectiveToFieldName, FAR_FUTURE_MILLIS);
+              planned.add(new PlannedRow(closedInSystemTime(plan.getRow(), currentSystemTime), MutationType.UPDATE));
+              RowBuilder current = new RowBuilder(carried);
+              current.set(systemTimeEffectiveFromField, currentSystemTime);
+              current.set(systemTimeEffectiveToField, FAR_FUTURE_MILLIS);
               if (hasCurrentFlagField) {
-                carried = set(carried, currentFlagFieldName, CURRENT_FLAG_YES);
+                current.set(currentFlagField, CURRENT_FLAG_YES);
               }
+              carried = current.build();
               planned.add(new PlannedRow(carried, MutationType.INSERT));
             }
           } else if (!plan.getMutationType().equals(MutationType.NONE)) {
@@ -313,7 +299,7 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
         }
       }
     } else {
-      for (PlannedRow plan : plannedForKey) {
+      for (PlannedRow plan : plannedInOrder) {
         if (!plan.getMutationType().equals(MutationType.NONE)) {
           planned.add(plan);
         }
@@ -323,6 +309,50 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
     return planned;
   }
 
+  private void addPlanned(NavigableMap<Long, List<PlannedRow>> plannedForKey, PlannedRow plan) {
+    Long timestamp = timestampField.getLong(plan.getRow());
+    List<PlannedRow> plannedForTimestamp = plannedForKey.get(timestamp);
+
+    if (plannedForTimestamp == null) {
+      plannedForTimestamp = Lists.newArrayListWithCapacity(1);
+      plannedForKey.put(timestamp, plannedForTimestamp);
+    }
+
+    plannedForTimestamp.add(plan);
+  }
+
+  // The schema of the planned records for an arriving schema, which is the arriving schema with
+  // the planner's fields appended. This is only rebuilt when the arriving schema changes.
+  private StructType plannedSchemaFor(StructType arrivingSchema) {
+    if (arrivingSchema != this.arrivingSchema) {
+      StructType plannedSchema = arrivingSchema
+          .add(getEventTimeEffectiveFromFieldName(), DataTypes.LongType)
+          .add(getEventTimeEffectiveToFieldName(), DataTypes.LongType)
+          .add(getSystemTimeEffectiveFromFieldName(), DataTypes.LongType)
+          .add(getSystemTimeEffectiveToFieldName(), DataTypes.LongType);
+      if (hasCurrentFlagField()) {
+        plannedSchema = plannedSchema.add(getCurrentFlagFieldName(), DataTypes.StringType);
+      }
+
+      this.arrivingSchema = arrivingSchema;
+      this.plannedSchema = plannedSchema;
+    }
+
+    return plannedSchema;
+  }
+
+  // Close a planned record in system time as of just prior to the current system time
+  private Row closedInSystemTime(Row row, long currentSystemTime) {
+    RowBuilder closed = new RowBuilder(row);
+
+    closed.set(systemTimeEffectiveToField, precedingTimestamp(currentSystemTime));
+    if (hasCurrentFlagField()) {
+      closed.set(currentFlagField, CURRENT_FLAG_NO);
+    }
+
+    return closed.build();
+  }
+
   @Override
   public List<String> getKeyFieldNames() {
     return config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
@@ -371,39 +401,13 @@ public class BitemporalHistoryPlanner implements RandomPlanner {
       return into;
     }
 
-    for (StructField field : into.schema().fields()) {
-      String fieldName = field.name();
-      if (get(into, fieldName) == null && get(from, fieldName) != null) {
-        into = set(into, fieldName, get(from, fieldName));
-      }
-    }
-    
-    return into;
-  }
-
-  private class PlanTimestampComparator implements Comparator<PlannedRow> {
-    private String timestampFieldName;
-
-    public PlanTimestampComparator(String timestampFieldName) {
-      this.timestampFieldName = timestampFieldName;
-    }
-
-    @Override
-    public int compare(PlannedRow p1, PlannedRow p2) {
-      return compareTimestamp(p1.getRow(), p2.getRow(), timestampFieldName);
-    }
+    return RowUtils.carryForwardWhenNull(into, from);
   }
 
   private class ArrivingTimestampComparator implements Comparator<Row> {
-    private String timestampFieldName;
-
-    public ArrivingTimestampComparator(String timestampFieldName) {
-      this.timestampFieldName = timestampFieldName;
-    }
-
     @Override
     public int compare(Row r1, Row r2) {
-      return compareTimestamp(r1, r2, timestampFieldName);
+      return timestampField.compareLong(r1, r2);
     }
   }
 
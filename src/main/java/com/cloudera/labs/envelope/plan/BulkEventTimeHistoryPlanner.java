@@ -0,0 +1,342 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import static com.cloudera.labs.envelope.utils.ConfigUtils.assertConfig;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.expressions.Window;
+import org.apache.spark.sql.expressions.WindowSpec;
+import org.apache.spark.sql.functions;
+
+import com.cloudera.labs.envelope.input.BatchInput;
+import com.cloudera.labs.envelope.input.Input;
+import com.cloudera.labs.envelope.input.InputFactory;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+
+import scala.Tuple2;
+
+/**
+ * A bulk planner implementation for storing all versions of the values of a key (its history)
+ * using Type II SCD modeling. This plans the same mutations as the event time history planner,
+ * but does so for the whole step at once by joining the arriving records to the existing
+ * history of their keys, which is read from a batch input, and then navigating the history of
+ * each key with window functions.
+ */
+public class BulkEventTimeHistoryPlanner implements BulkPlanner {
+
+  public static final String KEY_FIELD_NAMES_CONFIG_NAME = "fields.key";
+  public static final String VALUE_FIELD_NAMES_CONFIG_NAME = "fields.values";
+  public static final String TIMESTAMP_FIELD_NAME_CONFIG_NAME = "field.timestamp";
+  public static final String EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME = "field.effective.from";
+  public static final String EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME = "field.effective.to";
+  public static final String CURRENT_FLAG_FIELD_NAME_CONFIG_NAME = "field.current.flag";
+  public static final String LAST_UPDATED_FIELD_NAME_CONFIG_NAME = "field.last.updated";
+  public static final String CARRY_FORWARD_CONFIG_NAME = "carry.forward.when.null";
+  public static final String EXISTING_INPUT_CONFIG_NAME = "input";
+
+  public static final String CURRENT_FLAG_YES = EventTimeHistoryPlanner.CURRENT_FLAG_YES;
+  public static final String CURRENT_FLAG_NO = EventTimeHistoryPlanner.CURRENT_FLAG_NO;
+  public static final Long FAR_FUTURE_MILLIS = EventTimeHistoryPlanner.FAR_FUTURE_MILLIS;
+
+  // The working columns of the plan, which are not included in the planned mutations
+  private static final String ARRIVING_FIELD_PREFIX = "_arriving_";
+  private static final String ARRIVED_FIELD_NAME = "_arrived";
+  private static final String EXISTED_FIELD_NAME = "_existed";
+  private static final String ARRIVAL_ORDER_FIELD_NAME = "_arrival_order";
+  private static final String ARRIVAL_RANK_FIELD_NAME = "_arrival_rank";
+  private static final String INSERTED_FIELD_NAME = "_inserted";
+  private static final String REPLACED_FIELD_NAME = "_replaced";
+  private static final String CLOSED_FIELD_NAME = "_closed";
+  private static final String NEXT_TIMESTAMP_FIELD_NAME = "_next_timestamp";
+  private static final String MUTATION_TYPE_FIELD_NAME = "_mutation_type";
+
+  private Config config;
+  private BatchInput existingInput;
+
+  @Override
+  public void configure(Config config) {
+    this.config = config;
+    assertConfig(config, KEY_FIELD_NAMES_CONFIG_NAME);
+    assertConfig(config, VALUE_FIELD_NAMES_CONFIG_NAME);
+    assertConfig(config, TIMESTAMP_FIELD_NAME_CONFIG_NAME);
+    assertConfig(config, EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME);
+    assertConfig(config, EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME);
+    assertConfig(config, EXISTING_INPUT_CONFIG_NAME);
+
+    Input input = InputFactory.create(config.getConfig(EXISTING_INPUT_CONFIG_NAME));
+    if (!(input instanceof BatchInput)) {
+      throw new RuntimeException("Bulk history planner input for existing records must be a batch input");
+    }
+    existingInput = (BatchInput)input;
+  }
+
+  @Override
+  public List<Tuple2<MutationType, Dataset<Row>>> planMutationsForSet(Dataset<Row> arriving) {
+    Dataset<Row> existing;
+    try {
+      existing = existingInput.read();
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Could not read existing records for bulk history planner", e);
+    }
+
+    return planMutationsForSet(arriving, existing);
+  }
+
+  /**
+   * Plan the bulk mutations for the arriving DataFrame against the given existing history.
+   * @param arriving The DataFrame from the step.
+   * @param existing The DataFrame of the existing history, which must contain the fields of the
+   * arriving DataFrame and the fields maintained by the planner. Only the records of the keys of
+   * the arriving DataFrame are used.
+   * @return The UPDATE mutations of the existing history, followed by the INSERT mutations.
+   */
+  public List<Tuple2<MutationType, Dataset<Row>>> planMutationsForSet(Dataset<Row> arriving, Dataset<Row> existing) {
+    List<String> keyFieldNames = getKeyFieldNames();
+    String timestampFieldName = getTimestampFieldName();
+
+    // The fields that identify a version in the history of a key
+    List<String> versionFieldNames = Lists.newArrayList(keyFieldNames);
+    versionFieldNames.add(timestampFieldName);
+
+    // The other fields of the arriving records, which are taken from the arriving record when it
+    // becomes a version in the history and otherwise from the existing record
+    List<String> recordFieldNames = Lists.newArrayList();
+    for (String fieldName : arriving.columns()) {
+      if (!versionFieldNames.contains(fieldName)) {
+        recordFieldNames.add(fieldName);
+      }
+    }
+
+    List<String> plannedFieldNames = Lists.newArrayList(arriving.columns());
+    plannedFieldNames.add(getEffectiveFromFieldName());
+    plannedFieldNames.add(getEffectiveToFieldName());
+    if (hasCurrentFlagField()) {
+      plannedFieldNames.add(getCurrentFlagFieldName());
+    }
+    if (hasLastUpdatedField()) {
+      plannedFieldNames.add(getLastUpdatedFieldName());
+    }
+
+    // Only one arriving record is used for each version. As for the random history planner, this
+    // is the last one of the step.
+    Dataset<Row> arrivingVersions = arriving
+        .withColumn(ARRIVAL_ORDER_FIELD_NAME, functions.monotonically_increasing_id())
+        .withColumn(ARRIVAL_RANK_FIELD_NAME, functions.row_number().over(
+            Window.partitionBy(columns(versionFieldNames)).orderBy(functions.col(ARRIVAL_ORDER_FIELD_NAME).desc())))
+        .where(functions.col(ARRIVAL_RANK_FIELD_NAME).equalTo(1));
+
+    List<Column> arrivingColumns = Lists.newArrayList();
+    for (String fieldName : arriving.columns()) {
+      arrivingColumns.add(functions.col(fieldName).as(ARRIVING_FIELD_PREFIX + fieldName));
+    }
+    arrivingColumns.add(functions.lit(true).as(ARRIVED_FIELD_NAME));
+    arrivingVersions = arrivingVersions.select(arrivingColumns.toArray(new Column[arrivingColumns.size()]));
+
+    // Only the existing history of the arriving keys is used
+    List<Column> arrivingKeyColumns = columns(keyFieldNames, ARRIVING_FIELD_PREFIX);
+    Dataset<Row> arrivingKeys = arrivingVersions
+        .select(arrivingKeyColumns.toArray(new Column[arrivingKeyColumns.size()]))
+        .distinct();
+    List<Column> existingColumns = columns(plannedFieldNames, "");
+    existingColumns.add(functions.lit(true).as(EXISTED_FIELD_NAME));
+    Dataset<Row> existingVersions = existing
+        .select(existingColumns.toArray(new Column[existingColumns.size()]))
+        .join(arrivingKeys, matching(keyFieldNames), "leftsemi");
+
+    Dataset<Row> joined = existingVersions.join(arrivingVersions, matching(versionFieldNames), "outer");
+
+    Column arrived = functions.coalesce(functions.col(ARRIVED_FIELD_NAME), functions.lit(false));
+    Column existed = functions.coalesce(functions.col(EXISTED_FIELD_NAME), functions.lit(false));
+    Column different = functions.lit(false);
+    for (String valueFieldName : getValueFieldNames()) {
+      different = different.or(functions.not(functions.col(valueFieldName).eqNullSafe(
+          functions.col(ARRIVING_FIELD_PREFIX + valueFieldName))));
+    }
+    // An arriving record with the timestamp of an existing record replaces it if it has changed
+    Column replaced = arrived.and(existed).and(different);
+    Column inserted = arrived.and(functions.not(existed));
+    Column fromArriving = inserted.or(replaced);
+
+    List<Column> versionColumns = Lists.newArrayList();
+    for (String fieldName : versionFieldNames) {
+      versionColumns.add(functions.coalesce(
+          functions.col(fieldName), functions.col(ARRIVING_FIELD_PREFIX + fieldName)).as(fieldName));
+    }
+    for (String fieldName : recordFieldNames) {
+      versionColumns.add(functions.when(fromArriving, functions.col(ARRIVING_FIELD_PREFIX + fieldName))
+          .otherwise(functions.col(fieldName)).as(fieldName));
+    }
+    for (String fieldName : plannedFieldNames.subList(arriving.columns().length, plannedFieldNames.size())) {
+      versionColumns.add(functions.col(fieldName));
+    }
+    versionColumns.add(inserted.as(INSERTED_FIELD_NAME));
+    versionColumns.add(replaced.as(REPLACED_FIELD_NAME));
+
+    WindowSpec history = Window.partitionBy(columns(keyFieldNames)).orderBy(functions.col(timestampFieldName));
+
+    // Each version is effective until just prior to the next version of the key. An existing
+    // version is only closed when the next version is newly inserted, which is when the random
+    // history planner would have closed it.
+    Dataset<Row> versions = joined
+        .select(versionColumns.toArray(new Column[versionColumns.size()]))
+        .withColumn(NEXT_TIMESTAMP_FIELD_NAME, functions.lead(functions.col(timestampFieldName), 1).over(history))
+        .withColumn(CLOSED_FIELD_NAME, functions.coalesce(
+            functions.lead(functions.col(INSERTED_FIELD_NAME), 1).over(history), functions.lit(false)));
+
+    Column insertedVersion = functions.col(INSERTED_FIELD_NAME);
+    Column closedVersion = functions.col(CLOSED_FIELD_NAME);
+    Column nextTimestamp = functions.col(NEXT_TIMESTAMP_FIELD_NAME);
+    Column isLatest = nextTimestamp.isNull();
+    Column precedingNextTimestamp = nextTimestamp.minus(1);
+
+    versions = versions
+        .withColumn(MUTATION_TYPE_FIELD_NAME,
+            functions.when(insertedVersion, MutationType.INSERT.toString())
+            .when(functions.col(REPLACED_FIELD_NAME).or(closedVersion), MutationType.UPDATE.toString())
+            .otherwise(MutationType.NONE.toString()))
+        .withColumn(getEffectiveFromFieldName(),
+            functions.when(insertedVersion, functions.col(timestampFieldName))
+            .otherwise(functions.col(getEffectiveFromFieldName())))
+        .withColumn(getEffectiveToFieldName(),
+            functions.when(insertedVersion.and(isLatest), functions.lit(FAR_FUTURE_MILLIS))
+            .when(insertedVersion.or(closedVersion), precedingNextTimestamp)
+            .otherwise(functions.col(getEffectiveToFieldName())));
+    if (hasCurrentFlagField()) {
+      versions = versions.withColumn(getCurrentFlagFieldName(),
+          functions.when(insertedVersion.and(isLatest), functions.lit(CURRENT_FLAG_YES))
+          .when(insertedVersion.or(closedVersion), functions.lit(CURRENT_FLAG_NO))
+          .otherwise(functions.col(getCurrentFlagFieldName())));
+    }
+    if (hasLastUpdatedField()) {
+      versions = versions.withColumn(getLastUpdatedFieldName(),
+          functions.when(functions.col(MUTATION_TYPE_FIELD_NAME).notEqual(MutationType.NONE.toString()),
+              functions.lit(currentTimestampString()))
+          .otherwise(functions.col(getLastUpdatedFieldName())));
+    }
+
+    // When the arrived record value is null then we have the option to carry forward
+    // the value from the previous version. This is useful for handling sparse stream records.
+    if (doesCarryForward()) {
+      WindowSpec preceding = history.rowsBetween(Long.MIN_VALUE, 0);
+      for (String fieldName : recordFieldNames) {
+        versions = versions.withColumn(fieldName, functions.coalesce(
+            functions.col(fieldName), functions.last(functions.col(fieldName), true).over(preceding)));
+      }
+    }
+
+    Column[] plannedColumns = columns(plannedFieldNames);
+    Dataset<Row> updates = versions
+        .where(functions.col(MUTATION_TYPE_FIELD_NAME).equalTo(MutationType.UPDATE.toString()))
+        .select(plannedColumns);
+    Dataset<Row> inserts = versions
+        .where(functions.col(MUTATION_TYPE_FIELD_NAME).equalTo(MutationType.INSERT.toString()))
+        .select(plannedColumns);
+
+    List<Tuple2<MutationType, Dataset<Row>>> planned = Lists.newArrayList();
+    planned.add(new Tuple2<MutationType, Dataset<Row>>(MutationType.UPDATE, updates));
+    planned.add(new Tuple2<MutationType, Dataset<Row>>(MutationType.INSERT, inserts));
+
+    return planned;
+  }
+
+  @Override
+  public Set<MutationType> getEmittedMutationTypes() {
+    return Sets.newHashSet(MutationType.INSERT, MutationType.UPDATE);
+  }
+
+  // The join condition between an existing field and the same arriving field
+  private Column matching(List<String> fieldNames) {
+    Column condition = null;
+
+    for (String fieldName : fieldNames) {
+      Column fieldCondition = functions.col(fieldName).equalTo(functions.col(ARRIVING_FIELD_PREFIX + fieldName));
+      condition = condition == null ? fieldCondition : condition.and(fieldCondition);
+    }
+
+    return condition;
+  }
+
+  private static Column[] columns(List<String> fieldNames) {
+    List<Column> columns = columns(fieldNames, "");
+
+    return columns.toArray(new Column[columns.size()]);
+  }
+
+  private static List<Column> columns(List<String> fieldNames, String prefix) {
+    List<Column> columns = Lists.newArrayList();
+
+    for (String fieldName : fieldNames) {
+      columns.add(functions.col(prefix + fieldName));
+    }
+
+    return columns;
+  }
+
+  private List<String> getKeyFieldNames() {
+    return config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
+  }
+
+  private List<String> getValueFieldNames() {
+    return config.getStringList(VALUE_FIELD_NAMES_CONFIG_NAME);
+  }
+
+  private String getTimestampFieldName() {
+    return config.getString(TIMESTAMP_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String getEffectiveFromFieldName() {
+    return config.getString(EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String getEffectiveToFieldName() {
+    return config.getString(EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private boolean hasCurrentFlagField() {
+    return config.hasPath(CURRENT_FLAG_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String getCurrentFlagFieldName() {
+    return config.getString(CURRENT_FLAG_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private boolean hasLastUpdatedField() {
+    return config.hasPath(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String getLastUpdatedFieldName() {
+    return config.getString(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private boolean doesCarryForward() {
+    return config.hasPath(CARRY_FORWARD_CONFIG_NAME) && config.getBoolean(CARRY_FORWARD_CONFIG_NAME);
+  }
+
+  private String currentTimestampString() {
+    return new Date(System.currentTimeMillis()).toString();
+  }
+
+}
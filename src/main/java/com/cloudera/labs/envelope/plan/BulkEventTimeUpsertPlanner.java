@@ -0,0 +1,249 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import static com.cloudera.labs.envelope.utils.ConfigUtils.assertConfig;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.expressions.Window;
+import org.apache.spark.sql.functions;
+import org.apache.spark.storage.StorageLevel;
+
+import com.cloudera.labs.envelope.input.BatchInput;
+import com.cloudera.labs.envelope.input.Input;
+import com.cloudera.labs.envelope.input.InputFactory;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+
+import scala.Tuple2;
+
+/**
+ * A bulk planner implementation for updating existing and inserting new (upsert) in event time.
+ * This plans the same mutations as the event time upsert planner, but does so for the whole step
+ * at once by joining the latest arriving record of each key to the existing record of the key,
+ * which is read from a batch input.
+ */
+public class BulkEventTimeUpsertPlanner implements BulkPlanner {
+
+  public static final String KEY_FIELD_NAMES_CONFIG_NAME = "fields.key";
+  public static final String LAST_UPDATED_FIELD_NAME_CONFIG_NAME = "field.last.updated";
+  public static final String TIMESTAMP_FIELD_NAME_CONFIG_NAME = "field.timestamp";
+  public static final String VALUE_FIELD_NAMES_CONFIG_NAME = "field.values";
+  public static final String EXISTING_INPUT_CONFIG_NAME = "input";
+
+  // The working columns of the plan, which are not included in the planned mutations
+  private static final String EXISTING_FIELD_PREFIX = "_existing_";
+  private static final String EXISTED_FIELD_NAME = "_existed";
+  private static final String ARRIVAL_ORDER_FIELD_NAME = "_arrival_order";
+  private static final String ARRIVAL_RANK_FIELD_NAME = "_arrival_rank";
+  private static final String MUTATION_TYPE_FIELD_NAME = "_mutation_type";
+
+  private Config config;
+  private BatchInput existingInput;
+
+  @Override
+  public void configure(Config config) {
+    this.config = config;
+    assertConfig(config, KEY_FIELD_NAMES_CONFIG_NAME);
+    assertConfig(config, TIMESTAMP_FIELD_NAME_CONFIG_NAME);
+    assertConfig(config, VALUE_FIELD_NAMES_CONFIG_NAME);
+    assertConfig(config, EXISTING_INPUT_CONFIG_NAME);
+
+    Input input = InputFactory.create(config.getConfig(EXISTING_INPUT_CONFIG_NAME));
+    if (!(input instanceof BatchInput)) {
+      throw new RuntimeException("Bulk event time upsert planner input for existing records must be a batch input");
+    }
+    existingInput = (BatchInput)input;
+  }
+
+  @Override
+  public List<Tuple2<MutationType, Dataset<Row>>> planMutationsForSet(Dataset<Row> arriving) {
+    Dataset<Row> existing;
+    try {
+      existing = existingInput.read();
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Could not read existing records for bulk event time upsert planner", e);
+    }
+
+    return planMutationsForSet(arriving, existing);
+  }
+
+  /**
+   * Plan the bulk mutations for the arriving DataFrame against the given existing records.
+   * @param arriving The DataFrame from the step.
+   * @param existing The DataFrame of the existing records, which must contain the key, timestamp,
+   * and value fields of the planner. Only the records of the keys of the arriving DataFrame are
+   * used. The arriving DataFrame is cached if it is not already, and can be unpersisted once the
+   * mutations have been applied.
+   * @return The INSERT mutations of new keys, followed by the UPDATE mutations of existing keys.
+   */
+  public List<Tuple2<MutationType, Dataset<Row>>> planMutationsForSet(Dataset<Row> arriving, Dataset<Row> existing) {
+    // The range of the arriving keys is found by an action of its own before the mutations are
+    // applied, so the arriving records are cached rather than computed again for the mutations
+    if (arriving.storageLevel().equals(StorageLevel.NONE())) {
+      arriving = arriving.persist(StorageLevel.MEMORY_AND_DISK());
+    }
+
+    List<String> keyFieldNames = getKeyFieldNames();
+    String timestampFieldName = getTimestampFieldName();
+
+    List<String> comparedFieldNames = Lists.newArrayList(keyFieldNames);
+    comparedFieldNames.add(timestampFieldName);
+    for (String valueFieldName : getValueFieldNames()) {
+      if (!comparedFieldNames.contains(valueFieldName)) {
+        comparedFieldNames.add(valueFieldName);
+      }
+    }
+
+    // Only the latest arriving record of each key is planned. As for the random event time upsert
+    // planner, ties are broken by the order of the step.
+    Dataset<Row> arrivingLatest = arriving
+        .withColumn(ARRIVAL_ORDER_FIELD_NAME, functions.monotonically_increasing_id())
+        .withColumn(ARRIVAL_RANK_FIELD_NAME, functions.row_number().over(
+            Window.partitionBy(columns(keyFieldNames)).orderBy(
+                functions.col(timestampFieldName).desc(), functions.col(ARRIVAL_ORDER_FIELD_NAME))))
+        .where(functions.col(ARRIVAL_RANK_FIELD_NAME).equalTo(1));
+
+    // Restrict the existing records to the range of the arriving keys, which sources such as Kudu
+    // can apply as scan predicates, before joining to the arriving keys
+    existing = existing.where(arrivingKeyRange(arriving, keyFieldNames));
+
+    Column[] existingColumns = new Column[comparedFieldNames.size() + 1];
+    for (int i = 0; i < comparedFieldNames.size(); i++) {
+      existingColumns[i] = functions.col(comparedFieldNames.get(i)).as(EXISTING_FIELD_PREFIX + comparedFieldNames.get(i));
+    }
+    existingColumns[comparedFieldNames.size()] = functions.lit(true).as(EXISTED_FIELD_NAME);
+    Dataset<Row> existingForKeys = existing.select(existingColumns);
+
+    Column keysMatch = null;
+    for (String keyFieldName : keyFieldNames) {
+      Column keyMatches = functions.col(keyFieldName).equalTo(functions.col(EXISTING_FIELD_PREFIX + keyFieldName));
+      keysMatch = keysMatch == null ? keyMatches : keysMatch.and(keyMatches);
+    }
+
+    Dataset<Row> joined = arrivingLatest.join(existingForKeys, keysMatch, "leftouter");
+
+    Column existed = functions.coalesce(functions.col(EXISTED_FIELD_NAME), functions.lit(false));
+    Column older = functions.col(timestampFieldName).lt(functions.col(EXISTING_FIELD_PREFIX + timestampFieldName));
+    Column different = functions.lit(false);
+    for (String valueFieldName : getValueFieldNames()) {
+      different = different.or(functions.not(functions.col(valueFieldName).eqNullSafe(
+          functions.col(EXISTING_FIELD_PREFIX + valueFieldName))));
+    }
+
+    // We do nothing when the arriving record is older than the existing record, or has not changed
+    Dataset<Row> planned = joined.withColumn(MUTATION_TYPE_FIELD_NAME,
+        functions.when(functions.not(existed), MutationType.INSERT.toString())
+        .when(functions.not(older).and(different), MutationType.UPDATE.toString())
+        .otherwise(MutationType.NONE.toString()));
+
+    List<Column> plannedColumns = columns(Lists.newArrayList(arriving.columns()), "");
+    if (hasLastUpdatedField()) {
+      plannedColumns.add(functions.lit(currentTimestampString()).as(getLastUpdatedFieldName()));
+    }
+    Column[] plannedColumnsArray = plannedColumns.toArray(new Column[plannedColumns.size()]);
+
+    Dataset<Row> inserts = planned
+        .where(functions.col(MUTATION_TYPE_FIELD_NAME).equalTo(MutationType.INSERT.toString()))
+        .select(plannedColumnsArray);
+    Dataset<Row> updates = planned
+        .where(functions.col(MUTATION_TYPE_FIELD_NAME).equalTo(MutationType.UPDATE.toString()))
+        .select(plannedColumnsArray);
+
+    List<Tuple2<MutationType, Dataset<Row>>> mutations = Lists.newArrayList();
+    mutations.add(new Tuple2<MutationType, Dataset<Row>>(MutationType.INSERT, inserts));
+    mutations.add(new Tuple2<MutationType, Dataset<Row>>(MutationType.UPDATE, updates));
+
+    return mutations;
+  }
+
+  @Override
+  public Set<MutationType> getEmittedMutationTypes() {
+    return Sets.newHashSet(MutationType.INSERT, MutationType.UPDATE);
+  }
+
+  // A filter of the records whose key fields are each within the range of the arriving records
+  private Column arrivingKeyRange(Dataset<Row> arriving, List<String> keyFieldNames) {
+    Column[] bounds = new Column[keyFieldNames.size() * 2];
+    for (int i = 0; i < keyFieldNames.size(); i++) {
+      bounds[i * 2] = functions.min(keyFieldNames.get(i));
+      bounds[i * 2 + 1] = functions.max(keyFieldNames.get(i));
+    }
+    Row range = arriving.agg(bounds[0], Arrays.copyOfRange(bounds, 1, bounds.length)).first();
+
+    Column inRange = functions.lit(true);
+    for (int i = 0; i < keyFieldNames.size(); i++) {
+      if (range.isNullAt(i * 2)) {
+        // There are no arriving records, or none with a value for the key field
+        continue;
+      }
+
+      inRange = inRange.and(functions.col(keyFieldNames.get(i)).between(range.get(i * 2), range.get(i * 2 + 1)));
+    }
+
+    return inRange;
+  }
+
+  private static Column[] columns(List<String> fieldNames) {
+    List<Column> columns = columns(fieldNames, "");
+
+    return columns.toArray(new Column[columns.size()]);
+  }
+
+  private static List<Column> columns(List<String> fieldNames, String prefix) {
+    List<Column> columns = Lists.newArrayList();
+
+    for (String fieldName : fieldNames) {
+      columns.add(functions.col(prefix + fieldName));
+    }
+
+    return columns;
+  }
+
+  private List<String> getKeyFieldNames() {
+    return config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
+  }
+
+  private boolean hasLastUpdatedField() {
+    return config.hasPath(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String getLastUpdatedFieldName() {
+    return config.getString(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private List<String> getValueFieldNames() {
+    return config.getStringList(VALUE_FIELD_NAMES_CONFIG_NAME);
+  }
+
+  private String getTimestampFieldName() {
+    return config.getString(TIMESTAMP_FIELD_NAME_CONFIG_NAME);
+  }
+
+  private String currentTimestampString() {
+    return new Date(System.currentTimeMillis()).toString();
+  }
+
+}
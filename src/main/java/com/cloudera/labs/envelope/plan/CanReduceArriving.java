@@ -0,0 +1,37 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import org.apache.spark.sql.Row;
+
+/**
+ * Random planners that only plan from a reduction of the arriving records of a key, such as the
+ * latest arriving record, rather than from all of them. Envelope uses this to reduce the arriving
+ * records of each key before they are shuffled for planning, instead of shuffling all of them.
+ */
+public interface CanReduceArriving {
+
+  /**
+   * Reduce two arriving records of the same key to the record that the planner would plan from if
+   * both arrived. This may be applied in any order to any of the arriving records of the key, and so
+   * must be associative and commutative in what the planner would plan.
+   * @param arriving1 An arriving record of the key.
+   * @param arriving2 Another arriving record of the same key.
+   * @return The reduced arriving record.
+   */
+  Row reduceArriving(Row arriving1, Row arriving2);
+
+}
@@ -21,12 +21,17 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.types.DataTypes;
-import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
 
+import com.cloudera.labs.envelope.spark.FieldAccessor;
+import com.cloudera.labs.envelope.spark.RowBuilder;
 import com.cloudera.labs.envelope.utils.RowUtils;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -52,6 +57,17 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
   public static final Long FAR_FUTURE_MILLIS = 253402214400000L; // 9999-12-31
 
   private Config config;
+  private FieldAccessor timestampField;
+  private List<FieldAccessor> valueFields;
+  private FieldAccessor effectiveFromField;
+  private FieldAccessor effectiveToField;
+  private FieldAccessor currentFlagField;
+  private FieldAccessor lastUpdatedField;
+  private boolean hasCurrentFlagField;
+  private boolean hasLastUpdatedField;
+  private boolean carryForward;
+  private StructType arrivingSchema;
+  private StructType plannedSchema;
 
   @Override
   public void configure(Config config) {
@@ -61,199 +77,218 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
     assertConfig(config, TIMESTAMP_FIELD_NAME_CONFIG_NAME);
     assertConfig(config, EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME);
     assertConfig(config, EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME);
+
+    timestampField = new FieldAccessor(getTimestampFieldName());
+    valueFields = FieldAccessor.forFieldNames(getValueFieldNames());
+    effectiveFromField = new FieldAccessor(getEffectiveFromFieldName());
+    effectiveToField = new FieldAccessor(getEffectiveToFieldName());
+    hasCurrentFlagField = config.hasPath(CURRENT_FLAG_FIELD_NAME_CONFIG_NAME);
+    if (hasCurrentFlagField) {
+      currentFlagField = new FieldAccessor(getCurrentFlagFieldName());
+    }
+    hasLastUpdatedField = config.hasPath(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
+    if (hasLastUpdatedField) {
+      lastUpdatedField = new FieldAccessor(getLastUpdatedFieldName());
+    }
+    // When the arrived record value is null then we have the option to carry forward
+    // the value from the previous record. This is useful for handling sparse stream records.
+    carryForward = config.hasPath(CARRY_FORWARD_CONFIG_NAME) && config.getBoolean(CARRY_FORWARD_CONFIG_NAME);
   }
 
   @Override
   public List<PlannedRow> planMutationsForKey(Row key, List<Row> arrivingForKey, List<Row> existingForKey)
-  {   
-    Comparator<PlannedRow> tc = new PlanTimestampComparator(getTimestampFieldName());
+  {
+    String lastUpdated = hasLastUpdatedField ? currentTimestampString() : null;
 
-    List<PlannedRow> planned = Lists.newArrayList();
-    List<PlannedRow> plannedForKey = Lists.newArrayList();
+    // The planned records of the key by timestamp. Records with the same timestamp are kept in
+    // the order they were planned, so that the history is navigated in the same order as a list
+    // that is stably sorted by timestamp after each change.
+    NavigableMap<Long, List<PlannedRow>> plannedForKey = new TreeMap<>();
 
     if (existingForKey != null) {
       for (Row existing : existingForKey) {
-        plannedForKey.add(new PlannedRow(existing, MutationType.NONE));
+        addPlanned(plannedForKey, new PlannedRow(existing, MutationType.NONE));
       }
     }
 
-    Collections.sort(plannedForKey, tc);
+    // Placing the arriving records in timestamp order gives the same history as placing them in
+    // the order they arrived, but means that out-of-order batches mostly append to the history.
+    Collections.sort(arrivingForKey, new ArrivingTimestampComparator());
 
     for (Row arriving : arrivingForKey) {
-      arriving = RowUtils.append(arriving, getEffectiveFromFieldName(), DataTypes.LongType, null);
-      arriving = RowUtils.append(arriving, getEffectiveToFieldName(), DataTypes.LongType, null);
-      if (hasCurrentFlagField()) {
-        arriving = RowUtils.append(arriving, getCurrentFlagFieldName(), DataTypes.StringType, null);
-      }
-      if (hasLastUpdatedField()) {
-        arriving = RowUtils.append(arriving, getLastUpdatedFieldName(), DataTypes.StringType, null);
+      // The arriving record with the planner's fields appended, which are set by the case that applies
+      RowBuilder arrivingPlanned = new RowBuilder(plannedSchemaFor(arriving.schema()), arriving);
+      if (hasLastUpdatedField) {
+        arrivingPlanned.set(lastUpdatedField, lastUpdated);
       }
 
-      Long arrivedTimestamp = (Long)RowUtils.get(arriving, getTimestampFieldName());
+      Long arrivedTimestamp = timestampField.getLong(arriving);
 
       // There was no existing record for the key, so we just insert the input record.
-      if (plannedForKey.size() == 0) {
-        arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-        arriving = RowUtils.set(arriving, getEffectiveToFieldName(), FAR_FUTURE_MILLIS);
-        if (hasCurrentFlagField()) {
-          arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_YES);
+      if (plannedForKey.isEmpty()) {
+        arrivingPlanned.set(effectiveFromField, arrivedTimestamp);
+        arrivingPlanned.set(effectiveToField, FAR_FUTURE_MILLIS);
+        if (hasCurrentFlagField) {
+          arrivingPlanned.set(currentFlagField, CURRENT_FLAG_YES);
         }
-        if (hasLastUpdatedField()) {
-          arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
-        }
-        plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+        addPlanned(plannedForKey, new PlannedRow(arrivingPlanned.build(), MutationType.INSERT));
 
         continue;
       }
 
-      // Iterate through each existing record of the key in time order, stopping when we
-      // have either corrected the history or gone all the way through it.
-      for (int position = 0; position < plannedForKey.size(); position++) {
-        PlannedRow plan = plannedForKey.get(position);
-        Long planTimestamp = (Long)RowUtils.get(plan.getRow(), getTimestampFieldName());
-        PlannedRow previousPlanned = null;
-        PlannedRow nextPlanned = null;
-        Long nextPlannedTimestamp = null;
-
-        if (position > 0) {
-          previousPlanned = plannedForKey.get(position - 1);
-        }
-        if (position + 1 < plannedForKey.size()) {
-          nextPlanned = plannedForKey.get(position + 1);
-          nextPlannedTimestamp = (Long)RowUtils.get(nextPlanned.getRow(), getTimestampFieldName());
-        }
-
-        // There is an existing record for the same key and timestamp. It is possible that
-        // the existing record is in the storage layer or is about to be added during this
-        // micro-batch. Either way, we only update that record if it has changed.
-        if (RowUtils.simultaneous(arriving, plan.getRow(), getTimestampFieldName()) &&
-          RowUtils.different(arriving, plan.getRow(), getValueFieldNames()))
-        {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), RowUtils.get(plan.getRow(), getEffectiveFromFieldName()));
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), RowUtils.get(plan.getRow(), getEffectiveToFieldName()));
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), RowUtils.get(plan.getRow(), getCurrentFlagFieldName()));
+      List<PlannedRow> simultaneousPlanned = plannedForKey.get(arrivedTimestamp);
+
+      // There is an existing record for the same key and timestamp. It is possible that
+      // the existing record is in the storage layer or is about to be added during this
+      // micro-batch. Either way, we only update the first such record that has changed.
+      if (simultaneousPlanned != null) {
+        for (int position = 0; position < simultaneousPlanned.size(); position++) {
+          PlannedRow plan = simultaneousPlanned.get(position);
+
+          if (FieldAccessor.different(arriving, plan.getRow(), valueFields)) {
+            arrivingPlanned.set(effectiveFromField, effectiveFromField.get(plan.getRow()));
+            arrivingPlanned.set(effectiveToField, effectiveToField.get(plan.getRow()));
+            if (hasCurrentFlagField) {
+              arrivingPlanned.set(currentFlagField, currentFlagField.get(plan.getRow()));
+            }
+
+            if (plan.getMutationType().equals(MutationType.INSERT)) {
+              simultaneousPlanned.set(position, new PlannedRow(arrivingPlanned.build(), MutationType.INSERT));
+            }
+            else {
+              simultaneousPlanned.set(position, new PlannedRow(arrivingPlanned.build(), MutationType.UPDATE));
+            }
+
+            break;
           }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
-          }
-
-          if (plan.getMutationType().equals(MutationType.INSERT)) {
-            plannedForKey.set(position, new PlannedRow(arriving, MutationType.INSERT));
-          }
-          else {
-            plannedForKey.set(position, new PlannedRow(arriving, MutationType.UPDATE));
-          }
-
-          break;
         }
-        // Before them all
-        // -> Insert with ED just before first
-        // The input record is timestamped before any existing record of the same key. In
-        // this case there is no need to modify existing records, and we only have to insert
-        // the input record as effective up until just prior to the first existing record.
-        else if (previousPlanned == null && RowUtils.before(arriving, plan.getRow(), getTimestampFieldName())) {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), RowUtils.precedingTimestamp(planTimestamp));
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_NO);
-          }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
-          }
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
 
-          break;
+        continue;
+      }
+
+      Map.Entry<Long, List<PlannedRow>> previousEntry = plannedForKey.lowerEntry(arrivedTimestamp);
+      Long nextPlannedTimestamp = plannedForKey.higherKey(arrivedTimestamp);
+
+      // Before them all
+      // -> Insert with ED just before first
+      // The input record is timestamped before any existing record of the same key. In
+      // this case there is no need to modify existing records, and we only have to insert
+      // the input record as effective up until just prior to the first existing record.
+      if (previousEntry == null) {
+        arrivingPlanned.set(effectiveFromField, arrivedTimestamp);
+        arrivingPlanned.set(effectiveToField, RowUtils.precedingTimestamp(nextPlannedTimestamp));
+        if (hasCurrentFlagField) {
+          arrivingPlanned.set(currentFlagField, CURRENT_FLAG_NO);
         }
-        // The input record is timestamped with an existing record of the same key before it
-        // and an existing record of the same key after it. We insert the input record
-        // effective until just prior to the next existing record and we update the
-        // previous existing record to be effective until just prior to the input record.
-        else if (plan != null && nextPlanned != null &&
-             RowUtils.after(arriving, plan.getRow(), getTimestampFieldName()) &&
-             RowUtils.before(arriving, nextPlanned.getRow(), getTimestampFieldName()))
-        {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), RowUtils.precedingTimestamp(nextPlannedTimestamp));
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_NO);
-          }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
-          }
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+        addPlanned(plannedForKey, new PlannedRow(arrivingPlanned.build(), MutationType.INSERT));
 
-          plan.setRow(RowUtils.set(plan.getRow(), getEffectiveToFieldName(), RowUtils.precedingTimestamp(arrivedTimestamp)));
-          if (hasCurrentFlagField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getCurrentFlagFieldName(), CURRENT_FLAG_NO));
-          }
-          if (hasLastUpdatedField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getLastUpdatedFieldName(), currentTimestampString()));
-          }
-          if (!plan.getMutationType().equals(MutationType.INSERT)) {
-            plan.setMutationType(MutationType.UPDATE);
-          }
+        continue;
+      }
 
-          break;
+      // The latest planned record before the input record
+      List<PlannedRow> previousPlanned = previousEntry.getValue();
+      PlannedRow plan = previousPlanned.get(previousPlanned.size() - 1);
+
+      // The input record is timestamped with an existing record of the same key before it
+      // and an existing record of the same key after it. We insert the input record
+      // effective until just prior to the next existing record and we update the
+      // previous existing record to be effective until just prior to the input record.
+      if (nextPlannedTimestamp != null) {
+        arrivingPlanned.set(effectiveFromField, arrivedTimestamp);
+        arrivingPlanned.set(effectiveToField, RowUtils.precedingTimestamp(nextPlannedTimestamp));
+        if (hasCurrentFlagField) {
+          arrivingPlanned.set(currentFlagField, CURRENT_FLAG_NO);
         }
-        // The input record is arriving after all existing records of the same key. This
-        // is the 'normal' case where data arrives in order. We insert the input record
-        // effective until the far future, and we update the previous existing record
-        // to be effective until just prior to the input record.
-        else if (RowUtils.after(arriving, plan.getRow(), getTimestampFieldName()) && nextPlanned == null) {
-          arriving = RowUtils.set(arriving, getEffectiveFromFieldName(), arrivedTimestamp);
-          arriving = RowUtils.set(arriving, getEffectiveToFieldName(), FAR_FUTURE_MILLIS);
-          if (hasCurrentFlagField()) {
-            arriving = RowUtils.set(arriving, getCurrentFlagFieldName(), CURRENT_FLAG_YES);
-          }
-          if (hasLastUpdatedField()) {
-            arriving = RowUtils.set(arriving, getLastUpdatedFieldName(), currentTimestampString());
-          }
-          plannedForKey.add(new PlannedRow(arriving, MutationType.INSERT));
+      }
+      // The input record is arriving after all existing records of the same key. This
+      // is the 'normal' case where data arrives in order. We insert the input record
+      // effective until the far future, and we update the previous existing record
+      // to be effective until just prior to the input record.
+      else {
+        arrivingPlanned.set(effectiveFromField, arrivedTimestamp);
+        arrivingPlanned.set(effectiveToField, FAR_FUTURE_MILLIS);
+        if (hasCurrentFlagField) {
+          arrivingPlanned.set(currentFlagField, CURRENT_FLAG_YES);
+        }
+      }
+      addPlanned(plannedForKey, new PlannedRow(arrivingPlanned.build(), MutationType.INSERT));
 
-          plan.setRow(RowUtils.set(plan.getRow(), getEffectiveToFieldName(), RowUtils.precedingTimestamp(arrivedTimestamp)));
-          if (hasCurrentFlagField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getCurrentFlagFieldName(), CURRENT_FLAG_NO));
-          }
-          if (hasLastUpdatedField()) {
-            plan.setRow(RowUtils.set(plan.getRow(), getLastUpdatedFieldName(), currentTimestampString()));
-          }
-          if (!plan.getMutationType().equals(MutationType.INSERT)) {
-            plan.setMutationType(MutationType.UPDATE);
-          }
+      plan.setRow(closedBefore(plan.getRow(), arrivedTimestamp, lastUpdated));
+      if (!plan.getMutationType().equals(MutationType.INSERT)) {
+        plan.setMutationType(MutationType.UPDATE);
+      }
+    }
 
-          break;
+    List<PlannedRow> planned = Lists.newArrayList();
+    Row previous = null;
+
+    for (List<PlannedRow> plannedForTimestamp : plannedForKey.values()) {
+      for (PlannedRow plan : plannedForTimestamp) {
+        // We carry forward for all mutations in case the next non-NONE row needs the values from this row
+        if (previous != null && carryForward) {
+          plan.setRow(RowUtils.carryForwardWhenNull(plan.getRow(), previous));
+        }
+        if (!plan.getMutationType().equals(MutationType.NONE)) {
+          planned.add(plan);
         }
+        previous = plan.getRow();
       }
+    }
+
+    return planned;
+  }
 
-      Collections.sort(plannedForKey, tc);
+  private void addPlanned(NavigableMap<Long, List<PlannedRow>> plannedForKey, PlannedRow plan) {
+    Long timestamp = timestampField.getLong(plan.getRow());
+    List<PlannedRow> plannedForTimestamp = plannedForKey.get(timestamp);
+
+    if (plannedForTimestamp == null) {
+      plannedForTimestamp = Lists.newArrayListWithCapacity(1);
+      plannedForKey.put(timestamp, plannedForTimestamp);
     }
 
-    for (int position = 0; position < plannedForKey.size(); position++) {
-      PlannedRow plan = plannedForKey.get(position);
-      // We carry forward for all mutations in case the next non-NONE row needs the values from this row
-      if (position > 0) {
-        plan.setRow(carryForwardWhenNull(plan.getRow(), plannedForKey.get(position - 1).getRow()));
+    plannedForTimestamp.add(plan);
+  }
+
+  // The schema of the planned records for an arriving schema, which is the arriving schema with
+  // the planner's fields appended. This is only rebuilt when the arriving schema changes.
+  private StructType plannedSchemaFor(StructType arrivingSchema) {
+    if (arrivingSchema != this.arrivingSchema) {
+      StructType plannedSchema = arrivingSchema
+          .add(getEffectiveFromFieldName(), DataTypes.LongType)
+          .add(getEffectiveToFieldName(), DataTypes.LongType);
+      if (hasCurrentFlagField) {
+        plannedSchema = plannedSchema.add(getCurrentFlagFieldName(), DataTypes.StringType);
       }
-      if (!plan.getMutationType().equals(MutationType.NONE)) {
-        planned.add(plan);
+      if (hasLastUpdatedField) {
+        plannedSchema = plannedSchema.add(getLastUpdatedFieldName(), DataTypes.StringType);
       }
+
+      this.arrivingSchema = arrivingSchema;
+      this.plannedSchema = plannedSchema;
     }
 
-    return planned;
+    return plannedSchema;
   }
 
-  @Override
-  public List<String> getKeyFieldNames() {
-    return config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
-  }
+  // Close a planned record as effective until just prior to the given timestamp
+  private Row closedBefore(Row row, Long timestamp, String lastUpdated) {
+    RowBuilder closed = new RowBuilder(row);
 
-  private boolean hasLastUpdatedField() {
-    return config.hasPath(LAST_UPDATED_FIELD_NAME_CONFIG_NAME);
+    closed.set(effectiveToField, RowUtils.precedingTimestamp(timestamp));
+    if (hasCurrentFlagField) {
+      closed.set(currentFlagField, CURRENT_FLAG_NO);
+    }
+    if (hasLastUpdatedField) {
+      closed.set(lastUpdatedField, lastUpdated);
+    }
+
+    return closed.build();
   }
 
-  private boolean hasCurrentFlagField() {
-    return config.hasPath(CURRENT_FLAG_FIELD_NAME_CONFIG_NAME);
+  @Override
+  public List<String> getKeyFieldNames() {
+    return config.getStringList(KEY_FIELD_NAMES_CONFIG_NAME);
   }
 
   private String getLastUpdatedFieldName() {
@@ -280,23 +315,6 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
     return config.getString(TIMESTAMP_FIELD_NAME_CONFIG_NAME);
   }
 
-  // When the arrived record value is null then we have the option to carry forward
-  // the value from the previous record. This is useful for handling sparse stream records.
-  private Row carryForwardWhenNull(Row into, Row from) {
-    if (!config.hasPath(CARRY_FORWARD_CONFIG_NAME) || !config.getBoolean(CARRY_FORWARD_CONFIG_NAME)) {
-      return into;
-    }
-
-    for (StructField field : into.schema().fields()) {
-      String fieldName = field.name();
-      if (RowUtils.get(into, fieldName) == null && RowUtils.get(from, fieldName) != null) {
-        into = RowUtils.set(into, fieldName, RowUtils.get(from, fieldName));
-      }
-    }
-
-    return into;
-  }
-
   @Override
   public Set<MutationType> getEmittedMutationTypes() {
     return Sets.newHashSet(MutationType.INSERT, MutationType.UPDATE);
@@ -306,16 +324,10 @@ public class EventTimeHistoryPlanner implements RandomPlanner {
     return new Date(System.currentTimeMillis()).toString();
   }
 
-  private class PlanTimestampComparator implements Comparator<PlannedRow> {
-    private String timestampFieldName;
-
-    public PlanTimestampComparator(String timestampFieldName) {
-      this.timestampFieldName = timestampFieldName;
-    }
-
+  private class ArrivingTimestampComparator implements Comparator<Row> {
     @Override
-    public int compare(PlannedRow p1, PlannedRow p2) {
-      return RowUtils.compareTimestamp(p1.getRow(), p2.getRow(), timestampFieldName);
+    public int compare(Row r1, Row r2) {
+      return timestampField.compareLong(r1, r2);
     }
   }
 
@@ -23,8 +23,10 @@ import java.util.Set;
 
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
 
-import com.cloudera.labs.envelope.utils.RowUtils;
+import com.cloudera.labs.envelope.spark.FieldAccessor;
+import com.cloudera.labs.envelope.spark.RowBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
@@ -33,7 +35,7 @@ import com.typesafe.config.Config;
  * A planner implementation for updating existing and inserting new (upsert). This maintains the
  * most recent version of the values of a key, which is equivalent to Type I SCD modeling.
  */
-public class EventTimeUpsertPlanner implements RandomPlanner {
+public class EventTimeUpsertPlanner implements RandomPlanner, CanReduceArriving, UsesExistingFields {
 
   public static final String KEY_FIELD_NAMES_CONFIG_NAME = "fields.key";
   public static final String LAST_UPDATED_FIELD_NAME_CONFIG_NAME = "field.last.updated";
@@ -41,10 +43,21 @@ public class EventTimeUpsertPlanner implements RandomPlanner {
   public static final String VALUE_FIELD_NAMES_CONFIG_NAME = "field.values";
 
   private Config config;
+  private FieldAccessor timestampField;
+  private List<FieldAccessor> valueFields;
+  private FieldAccessor lastUpdatedField;
+  private StructType arrivingSchema;
+  private StructType plannedSchema;
 
   @Override
   public void configure(Config config) {
     this.config = config;
+
+    timestampField = new FieldAccessor(getTimestampFieldName());
+    valueFields = FieldAccessor.forFieldNames(getValueFieldNames());
+    if (hasLastUpdatedField()) {
+      lastUpdatedField = new FieldAccessor(getLastUpdatedFieldName());
+    }
   }
 
   @Override
@@ -54,10 +67,7 @@ public class EventTimeUpsertPlanner implements RandomPlanner {
       throw new RuntimeException("Key sent to event time upsert planner does not contain a schema");
     }
 
-    String timestampFieldName = getTimestampFieldName();
-    List<String> valueFieldNames = getValueFieldNames();
-
-    Comparator<Row> tc = new TimestampComparator(timestampFieldName);
+    Comparator<Row> tc = new TimestampComparator();
 
     List<PlannedRow> planned = Lists.newArrayList();
 
@@ -74,34 +84,56 @@ public class EventTimeUpsertPlanner implements RandomPlanner {
     if (existingForKey.size() > 0) {
       existing = existingForKey.get(0);
 
-      if (arrived.schema() == null) {
+      if (existing.schema() == null) {
         throw new RuntimeException("Existing row sent to event time upsert planner does not contain a schema");
       }
     }
 
     if (existing == null) {
-      if (hasLastUpdatedField()) {
-        arrived = RowUtils.append(arrived, getLastUpdatedFieldName(), DataTypes.StringType, currentTimestampString());
-      }
-
-      planned.add(new PlannedRow(arrived, MutationType.INSERT));
+      planned.add(new PlannedRow(withLastUpdated(arrived), MutationType.INSERT));
     }
-    else if (RowUtils.before(arrived, existing, timestampFieldName)) {
+    else if (tc.compare(arrived, existing) < 0) {
       // We do nothing because the arriving record is older than the existing record
     }
-    else if ((RowUtils.simultaneous(arrived, existing, timestampFieldName) ||
-          RowUtils.after(arrived, existing, timestampFieldName)) &&
-          RowUtils.different(arrived, existing, valueFieldNames))
-    {
-      if (hasLastUpdatedField()) {
-        arrived = RowUtils.append(arrived, getLastUpdatedFieldName(), DataTypes.StringType, currentTimestampString());
-      }
-      planned.add(new PlannedRow(arrived, MutationType.UPDATE));
+    else if (FieldAccessor.different(arrived, existing, valueFields)) {
+      planned.add(new PlannedRow(withLastUpdated(arrived), MutationType.UPDATE));
     }
 
     return planned;
   }
 
+  // Only the latest arriving record of the key is planned, so the earlier of two is not needed.
+  // For records with the same timestamp the first is kept, as the sort above would.
+  @Override
+  public Row reduceArriving(Row arriving1, Row arriving2) {
+    return timestampField.compareLong(arriving1, arriving2) >= 0 ? arriving1 : arriving2;
+  }
+
+  // Append the last updated field to the arriving record, if the planner has one
+  private Row withLastUpdated(Row arrived) {
+    if (!hasLastUpdatedField()) {
+      return arrived;
+    }
+
+    if (arrived.schema() != arrivingSchema) {
+      arrivingSchema = arrived.schema();
+      plannedSchema = arrivingSchema.add(getLastUpdatedFieldName(), DataTypes.StringType);
+    }
+
+    return new RowBuilder(plannedSchema, arrived).set(lastUpdatedField, currentTimestampString()).build();
+  }
+
+  // Only the timestamp and values of the existing record are compared, and the existing record is
+  // never emitted
+  @Override
+  public Set<String> getUsedExistingFieldNames() {
+    Set<String> fieldNames = Sets.newHashSet(getKeyFieldNames());
+    fieldNames.add(getTimestampFieldName());
+    fieldNames.addAll(getValueFieldNames());
+
+    return fieldNames;
+  }
+
   @Override
   public Set<MutationType> getEmittedMutationTypes() {
     return Sets.newHashSet(MutationType.INSERT, MutationType.UPDATE);
@@ -133,15 +165,9 @@ public class EventTimeUpsertPlanner implements RandomPlanner {
   }
 
   private class TimestampComparator implements Comparator<Row> {
-    private String timestampFieldName;
-
-    public TimestampComparator(String timestampFieldName) {
-      this.timestampFieldName = timestampFieldName;
-    }
-
     @Override
     public int compare(Row r1, Row r2) {
-      return RowUtils.compareTimestamp(r1, r2, timestampFieldName);
+      return timestampField.compareLong(r1, r2);
     }
   }
 
@@ -0,0 +1,150 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.cloudera.labs.envelope.spark.FieldAccessor;
+import com.cloudera.labs.envelope.spark.RowBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Merges the planned mutations that touch the same row of the output, so that fewer operations
+ * are applied to the output. The rows of the output are identified by the values of the
+ * compaction key fields, which are typically the primary key of the output.
+ * <p>
+ * Consecutive mutations of the same row are merged as:
+ * <ul>
+ * <li>INSERT then UPDATE to the INSERT with the values of the UPDATE</li>
+ * <li>UPDATE then UPDATE to the UPDATE with the values of both, the later taking precedence</li>
+ * <li>UPSERT then UPDATE or UPSERT to the UPSERT with the values of both</li>
+ * <li>INSERT then DELETE to no mutation</li>
+ * <li>UPDATE then DELETE to the DELETE</li>
+ * </ul>
+ * Any other sequence of mutations of a row is left as planned. The mutations of different rows
+ * are returned in the order that each row was first planned.
+ */
+public class MutationCompactor {
+
+  private List<FieldAccessor> keyFields;
+
+  public MutationCompactor(List<String> keyFieldNames) {
+    this.keyFields = FieldAccessor.forFieldNames(keyFieldNames);
+  }
+
+  public List<PlannedRow> compact(Iterable<PlannedRow> planned) {
+    Map<List<Object>, List<PlannedRow>> plannedByKey = Maps.newLinkedHashMap();
+
+    for (PlannedRow plannedRow : planned) {
+      List<Object> key = keyFor(plannedRow.getRow());
+      List<PlannedRow> plannedForKey = plannedByKey.get(key);
+
+      if (plannedForKey == null) {
+        plannedForKey = Lists.newArrayList();
+        plannedByKey.put(key, plannedForKey);
+      }
+
+      if (plannedForKey.isEmpty()) {
+        plannedForKey.add(plannedRow);
+      }
+      else {
+        int lastIndex = plannedForKey.size() - 1;
+        PlannedRow last = plannedForKey.get(lastIndex);
+        MutationType lastType = last.getMutationType();
+        MutationType nextType = plannedRow.getMutationType();
+
+        if ((lastType == MutationType.INSERT && nextType == MutationType.UPDATE) ||
+            (lastType == MutationType.UPDATE && nextType == MutationType.UPDATE) ||
+            (lastType == MutationType.UPSERT && (nextType == MutationType.UPDATE || nextType == MutationType.UPSERT)))
+        {
+          plannedForKey.set(lastIndex, new PlannedRow(overlay(last.getRow(), plannedRow.getRow()), lastType));
+        }
+        else if (lastType == MutationType.INSERT && nextType == MutationType.DELETE) {
+          plannedForKey.remove(lastIndex);
+        }
+        else if (lastType == MutationType.UPDATE && nextType == MutationType.DELETE) {
+          plannedForKey.set(lastIndex, plannedRow);
+        }
+        else {
+          plannedForKey.add(plannedRow);
+        }
+      }
+    }
+
+    List<PlannedRow> compacted = Lists.newArrayList();
+    for (List<PlannedRow> plannedForKey : plannedByKey.values()) {
+      compacted.addAll(plannedForKey);
+    }
+
+    return compacted;
+  }
+
+  private List<Object> keyFor(Row row) {
+    Object[] values = new Object[keyFields.size()];
+
+    for (int i = 0; i < values.length; i++) {
+      values[i] = keyFields.get(i).get(row);
+    }
+
+    return Arrays.asList(values);
+  }
+
+  // The values of the base row replaced by the values of the same fields in the over row, with
+  // the fields that are only in the over row appended
+  private Row overlay(Row base, Row over) {
+    StructType baseSchema = base.schema();
+    StructType overSchema = over.schema();
+
+    if (baseSchema.equals(overSchema)) {
+      return over;
+    }
+
+    List<String> baseFieldNames = Arrays.asList(baseSchema.fieldNames());
+    StructField[] overFields = overSchema.fields();
+    int[] overlaidOrdinals = new int[overFields.length];
+    List<StructField> overlaidFields = Lists.newArrayList(baseSchema.fields());
+
+    for (int i = 0; i < overFields.length; i++) {
+      int baseOrdinal = baseFieldNames.indexOf(overFields[i].name());
+
+      if (baseOrdinal != -1) {
+        overlaidOrdinals[i] = baseOrdinal;
+      }
+      else {
+        overlaidOrdinals[i] = overlaidFields.size();
+        overlaidFields.add(overFields[i]);
+      }
+    }
+
+    StructType overlaidSchema = overlaidFields.size() == baseSchema.length() ?
+        baseSchema : DataTypes.createStructType(overlaidFields);
+    RowBuilder overlaid = new RowBuilder(overlaidSchema, base);
+    for (int i = 0; i < overFields.length; i++) {
+      overlaid.set(overlaidOrdinals[i], over.get(i));
+    }
+
+    return overlaid.build();
+  }
+
+}
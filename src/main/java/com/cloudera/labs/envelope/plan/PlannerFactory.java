@@ -45,9 +45,15 @@ public class PlannerFactory {
       case "eventtimeupsert":
         planner = new EventTimeUpsertPlanner();
         break;
+      case "bulkeventtimeupsert":
+        planner = new BulkEventTimeUpsertPlanner();
+        break;
       case "history":
         planner = new EventTimeHistoryPlanner();
         break;
+      case "bulkhistory":
+        planner = new BulkEventTimeHistoryPlanner();
+        break;
       case "bitemporal":
         planner = new BitemporalHistoryPlanner();
         break;
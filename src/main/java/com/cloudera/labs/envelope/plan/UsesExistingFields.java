@@ -0,0 +1,35 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import java.util.Set;
+
+/**
+ * Random planners that only read some of the fields of the existing records of a key. Envelope
+ * uses this to only look up those fields from outputs that can project their existing records.
+ */
+public interface UsesExistingFields {
+
+  /**
+   * Get the fields of the existing records that the planner reads. The planner must also only emit
+   * mutations that are correct when the existing records have only these fields, and so it should
+   * not copy existing records into its mutations.
+   * @return The names of the fields of the existing records that the planner may read. Envelope
+   * adds the key fields of the planner to these.
+   */
+  Set<String> getUsedExistingFieldNames();
+
+}
@@ -0,0 +1,344 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.profile;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.plans.logical.LogicalPlan;
+import org.apache.spark.sql.execution.columnar.InMemoryRelation;
+import org.apache.spark.storage.StorageLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudera.labs.envelope.run.DataStep;
+import com.cloudera.labs.envelope.run.Step;
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import scala.collection.JavaConversions;
+
+/**
+ * Profiles the steps of each batch, or micro-batch, of the pipeline. The Spark jobs that a step
+ * triggers are tagged with the name of the step so that their metrics can be attributed to it.
+ * When the batch finishes a report of every step that was submitted in it is written, either
+ * to files under the configured path, or otherwise to the driver logs. The profiler does
+ * nothing unless it is enabled.
+ */
+public class PipelineProfiler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PipelineProfiler.class);
+
+  public static final String ENABLED_PROPERTY = "application.profiler.enabled";
+  public static final String PATH_PROPERTY = "application.profiler.path";
+  public static final String FORMAT_PROPERTY = "application.profiler.format";
+  public static final String WAIT_MILLISECONDS_PROPERTY = "application.profiler.wait.milliseconds";
+
+  public static final String STEP_NAME_LOCAL_PROPERTY = "envelope.step.name";
+
+  public static final String JSON_FORMAT = "json";
+  public static final String CSV_FORMAT = "csv";
+
+  private static PipelineProfiler profiler;
+
+  private boolean enabled;
+  private Config config;
+  private StepProfilingListener listener;
+
+  private long batchNumber = 0;
+  private long batchStartMillis;
+  private Map<Step, StepTimes> stepTimes = Maps.newLinkedHashMap();
+
+  private PipelineProfiler(Config config) {
+    this.config = config;
+    this.enabled = config.hasPath(ENABLED_PROPERTY) && config.getBoolean(ENABLED_PROPERTY);
+
+    if (enabled) {
+      String format = getFormat();
+      if (!format.equals(JSON_FORMAT) && !format.equals(CSV_FORMAT)) {
+        throw new RuntimeException("Unsupported profiler format: " + format);
+      }
+
+      listener = new StepProfilingListener();
+      Contexts.getSparkSession().sparkContext().addSparkListener(listener);
+    }
+  }
+
+  /**
+   * Create the profiler for the pipeline.
+   * @param config The full configuration of the Envelope pipeline
+   */
+  public static synchronized void initialize(Config config) {
+    profiler = new PipelineProfiler(config);
+  }
+
+  /**
+   * Get the profiler for the pipeline, which will be disabled if it has not been initialized.
+   */
+  public static synchronized PipelineProfiler get() {
+    if (profiler == null) {
+      profiler = new PipelineProfiler(ConfigFactory.empty());
+    }
+
+    return profiler;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Start the clock of the batch.
+   */
+  public synchronized void startBatch() {
+    if (!enabled) return;
+
+    batchStartMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Record that all of the dependencies of the step have finished.
+   */
+  public synchronized void stepReady(Step step) {
+    if (!enabled) return;
+
+    getStepTimes(step).readyMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Record that the step has started. This must be called from the thread that runs the step, so
+   * that the Spark jobs that the step triggers are tagged with the name of the step.
+   */
+  public synchronized void stepStarted(Step step) {
+    if (!enabled) return;
+
+    StepTimes times = getStepTimes(step);
+    times.startMillis = System.currentTimeMillis();
+    if (times.readyMillis == 0) {
+      times.readyMillis = times.startMillis;
+    }
+
+    Contexts.getSparkSession().sparkContext().setLocalProperty(STEP_NAME_LOCAL_PROPERTY, step.getName());
+  }
+
+  /**
+   * Record that the step has finished. This must be called from the thread that ran the step.
+   */
+  public synchronized void stepFinished(Step step) {
+    if (!enabled) return;
+
+    getStepTimes(step).finishMillis = System.currentTimeMillis();
+
+    Contexts.getSparkSession().sparkContext().setLocalProperty(STEP_NAME_LOCAL_PROPERTY, null);
+  }
+
+  /**
+   * Record the time that the step spent writing to its output.
+   */
+  public synchronized void recordOutputTime(Step step, long outputMillis) {
+    if (!enabled) return;
+
+    getStepTimes(step).outputMillis += outputMillis;
+  }
+
+  /**
+   * Record that the data of the step has been cached, so that the size of the cache can be
+   * attributed to the step.
+   */
+  public synchronized void dataCached(DataStep step) {
+    if (!enabled) return;
+
+    Dataset<Row> data = step.getData();
+    if (data == null || data.storageLevel().equals(StorageLevel.NONE())) return;
+
+    Deque<LogicalPlan> unvisited = new ArrayDeque<>();
+    unvisited.add(data.queryExecution().withCachedData());
+
+    while (!unvisited.isEmpty()) {
+      LogicalPlan plan = unvisited.poll();
+
+      if (plan instanceof InMemoryRelation) {
+        listener.cachedRDDCreated(((InMemoryRelation)plan).cachedColumnBuffers().id(), step.getName());
+        return;
+      }
+
+      unvisited.addAll(JavaConversions.seqAsJavaList(plan.children()));
+    }
+  }
+
+  /**
+   * Finish the batch and report the profiles of the steps that were submitted in it. If no steps
+   * were submitted then there is nothing to report.
+   */
+  public synchronized void finishBatch() throws Exception {
+    if (!enabled || stepTimes.isEmpty()) return;
+
+    batchNumber++;
+
+    listener.awaitQuiet(getWaitMilliseconds());
+
+    List<StepProfile> profiles = Lists.newArrayList();
+    for (Map.Entry<Step, StepTimes> entry : stepTimes.entrySet()) {
+      StepTimes times = entry.getValue();
+      StepProfile profile = listener.takeProfile(entry.getKey().getName());
+
+      profile.setTimes(
+          Math.max(0, times.readyMillis - batchStartMillis),
+          Math.max(0, times.startMillis - times.readyMillis),
+          times.finishMillis > 0 ? times.finishMillis - times.startMillis : 0,
+          times.outputMillis);
+
+      profiles.add(profile);
+    }
+
+    stepTimes.clear();
+
+    writeReport(profiles);
+  }
+
+  private void writeReport(List<StepProfile> profiles) throws Exception {
+    String report = getFormat().equals(CSV_FORMAT) ? toCSV(profiles) : toJSON(profiles);
+
+    if (config.hasPath(PATH_PROPERTY)) {
+      Path reportPath = new Path(config.getString(PATH_PROPERTY),
+          "profile-" + batchStartMillis + "-" + batchNumber + "." + getFormat());
+      FileSystem fs = reportPath.getFileSystem(Contexts.getSparkSession().sparkContext().hadoopConfiguration());
+
+      try (FSDataOutputStream out = fs.create(reportPath, true)) {
+        out.write(report.getBytes(Charsets.UTF_8));
+      }
+
+      LOG.info("Wrote profile of batch {} to {}", batchNumber, reportPath);
+    }
+    else {
+      LOG.info("Profile of batch {}:\n{}", batchNumber, report);
+    }
+  }
+
+  private String toJSON(List<StepProfile> profiles) {
+    StringBuilder json = new StringBuilder();
+
+    json.append("{\"batch\":").append(batchNumber)
+        .append(",\"start_time\":").append(batchStartMillis)
+        .append(",\"steps\":[");
+
+    for (int i = 0; i < profiles.size(); i++) {
+      StepProfile profile = profiles.get(i);
+
+      if (i > 0) json.append(",");
+
+      json.append("{\"step\":\"").append(escapeJSON(profile.getStepName())).append("\"");
+      for (Map.Entry<String, Long> value : getValues(profile).entrySet()) {
+        json.append(",\"").append(value.getKey()).append("\":").append(value.getValue());
+      }
+      json.append("}");
+    }
+
+    json.append("]}\n");
+
+    return json.toString();
+  }
+
+  private String toCSV(List<StepProfile> profiles) {
+    StringBuilder csv = new StringBuilder("batch,start_time,step");
+
+    for (String name : getValues(new StepProfile("")).keySet()) {
+      csv.append(",").append(name);
+    }
+    csv.append("\n");
+
+    for (StepProfile profile : profiles) {
+      csv.append(batchNumber).append(",").append(batchStartMillis).append(",")
+         .append(escapeCSV(profile.getStepName()));
+      for (Long value : getValues(profile).values()) {
+        csv.append(",").append(value);
+      }
+      csv.append("\n");
+    }
+
+    return csv.toString();
+  }
+
+  private static Map<String, Long> getValues(StepProfile profile) {
+    Map<String, Long> values = Maps.newLinkedHashMap();
+
+    values.put("queued_ms", profile.getQueuedMillis());
+    values.put("waiting_ms", profile.getWaitingMillis());
+    values.put("wall_ms", profile.getWallMillis());
+    values.put("output_ms", profile.getOutputMillis());
+    values.put("jobs", profile.getJobs());
+    values.put("stages", profile.getStages());
+    values.put("records_in", profile.getRecordsIn());
+    values.put("records_out", profile.getRecordsOut());
+    values.put("shuffle_read_bytes", profile.getShuffleReadBytes());
+    values.put("shuffle_write_bytes", profile.getShuffleWriteBytes());
+    values.put("memory_spilled_bytes", profile.getMemorySpilledBytes());
+    values.put("disk_spilled_bytes", profile.getDiskSpilledBytes());
+    values.put("cache_bytes", profile.getCacheBytes());
+
+    return values;
+  }
+
+  private static String escapeJSON(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  private static String escapeCSV(String value) {
+    if (value.contains(",") || value.contains("\"")) {
+      return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    return value;
+  }
+
+  private String getFormat() {
+    return config.hasPath(FORMAT_PROPERTY) ? config.getString(FORMAT_PROPERTY) : JSON_FORMAT;
+  }
+
+  private long getWaitMilliseconds() {
+    return config.hasPath(WAIT_MILLISECONDS_PROPERTY) ? config.getLong(WAIT_MILLISECONDS_PROPERTY) : 5000;
+  }
+
+  private StepTimes getStepTimes(Step step) {
+    StepTimes times = stepTimes.get(step);
+
+    if (times == null) {
+      times = new StepTimes();
+      stepTimes.put(step, times);
+    }
+
+    return times;
+  }
+
+  private static class StepTimes {
+    private long readyMillis;
+    private long startMillis;
+    private long finishMillis;
+    private long outputMillis;
+  }
+
+}
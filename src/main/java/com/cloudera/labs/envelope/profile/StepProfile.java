@@ -0,0 +1,135 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.profile;
+
+/**
+ * The profile of one submission of a step within a batch. The times are in milliseconds, and the
+ * Spark metrics are summed over all of the tasks of the jobs that the step triggered.
+ */
+public class StepProfile {
+
+  private String stepName;
+  private long queuedMillis;
+  private long waitingMillis;
+  private long wallMillis;
+  private long outputMillis;
+  private long jobs;
+  private long stages;
+  private long recordsIn;
+  private long recordsOut;
+  private long shuffleReadBytes;
+  private long shuffleWriteBytes;
+  private long memorySpilledBytes;
+  private long diskSpilledBytes;
+  private long cacheBytes;
+
+  public StepProfile(String stepName) {
+    this.stepName = stepName;
+  }
+
+  public String getStepName() {
+    return stepName;
+  }
+
+  /**
+   * @return The time from the start of the batch until the step's dependencies had all finished.
+   */
+  public long getQueuedMillis() {
+    return queuedMillis;
+  }
+
+  /**
+   * @return The time from the step's dependencies finishing until a pipeline thread started it.
+   */
+  public long getWaitingMillis() {
+    return waitingMillis;
+  }
+
+  public long getWallMillis() {
+    return wallMillis;
+  }
+
+  public long getOutputMillis() {
+    return outputMillis;
+  }
+
+  public long getJobs() {
+    return jobs;
+  }
+
+  public long getStages() {
+    return stages;
+  }
+
+  public long getRecordsIn() {
+    return recordsIn;
+  }
+
+  public long getRecordsOut() {
+    return recordsOut;
+  }
+
+  public long getShuffleReadBytes() {
+    return shuffleReadBytes;
+  }
+
+  public long getShuffleWriteBytes() {
+    return shuffleWriteBytes;
+  }
+
+  public long getMemorySpilledBytes() {
+    return memorySpilledBytes;
+  }
+
+  public long getDiskSpilledBytes() {
+    return diskSpilledBytes;
+  }
+
+  public long getCacheBytes() {
+    return cacheBytes;
+  }
+
+  void setTimes(long queuedMillis, long waitingMillis, long wallMillis, long outputMillis) {
+    this.queuedMillis = queuedMillis;
+    this.waitingMillis = waitingMillis;
+    this.wallMillis = wallMillis;
+    this.outputMillis = outputMillis;
+  }
+
+  void addJob() {
+    jobs++;
+  }
+
+  void addStage() {
+    stages++;
+  }
+
+  void addTaskMetrics(long recordsIn, long recordsOut, long shuffleReadBytes, long shuffleWriteBytes,
+      long memorySpilledBytes, long diskSpilledBytes)
+  {
+    this.recordsIn += recordsIn;
+    this.recordsOut += recordsOut;
+    this.shuffleReadBytes += shuffleReadBytes;
+    this.shuffleWriteBytes += shuffleWriteBytes;
+    this.memorySpilledBytes += memorySpilledBytes;
+    this.diskSpilledBytes += diskSpilledBytes;
+  }
+
+  void addCacheBytes(long cacheBytes) {
+    this.cacheBytes += cacheBytes;
+  }
+
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.profile;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerBlockUpdated;
+import org.apache.spark.scheduler.SparkListenerJobEnd;
+import org.apache.spark.scheduler.SparkListenerJobStart;
+import org.apache.spark.scheduler.SparkListenerStageCompleted;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
+import org.apache.spark.scheduler.StageInfo;
+import org.apache.spark.storage.BlockId;
+import org.apache.spark.storage.BlockUpdatedInfo;
+import org.apache.spark.storage.RDDBlockId;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import scala.collection.JavaConversions;
+
+/**
+ * A Spark listener that attributes the metrics of jobs, stages, and tasks to the step that
+ * triggered them, using the step name that the profiler sets as a local property of the thread
+ * that runs the step. Spark delivers listener events asynchronously, so the metrics of a step
+ * may arrive shortly after the step has finished.
+ */
+public class StepProfilingListener extends SparkListener {
+
+  // How long the listener must go without events before it is assumed to have caught up
+  private static final long QUIET_MILLIS = 100;
+
+  private Map<Integer, String> stepNamesByStage = Maps.newHashMap();
+  private Map<Integer, List<Integer>> stageIdsByJob = Maps.newHashMap();
+  private Set<Integer> runningJobIds = Sets.newHashSet();
+  private Map<String, StepProfile> profiles = Maps.newHashMap();
+  private Map<Integer, String> stepNamesByCachedRDD = Maps.newHashMap();
+  private Map<String, Long> cachedBlockSizes = Maps.newHashMap();
+  private Map<Integer, Long> cachedRDDSizes = Maps.newHashMap();
+  private Map<Integer, Long> peakCachedRDDSizes = Maps.newHashMap();
+  private long lastEventMillis = 0;
+
+  @Override
+  public synchronized void onJobStart(SparkListenerJobStart jobStart) {
+    eventReceived();
+
+    Properties properties = jobStart.properties();
+    if (properties == null) return;
+
+    String stepName = properties.getProperty(PipelineProfiler.STEP_NAME_LOCAL_PROPERTY);
+    if (stepName == null) return;
+
+    List<Integer> stageIds = Lists.newArrayList();
+    for (StageInfo stageInfo : JavaConversions.seqAsJavaList(jobStart.stageInfos())) {
+      stepNamesByStage.put(stageInfo.stageId(), stepName);
+      stageIds.add(stageInfo.stageId());
+    }
+
+    stageIdsByJob.put(jobStart.jobId(), stageIds);
+    runningJobIds.add(jobStart.jobId());
+    getProfile(stepName).addJob();
+  }
+
+  @Override
+  public synchronized void onJobEnd(SparkListenerJobEnd jobEnd) {
+    eventReceived();
+
+    runningJobIds.remove(jobEnd.jobId());
+
+    List<Integer> stageIds = stageIdsByJob.remove(jobEnd.jobId());
+    if (stageIds != null) {
+      for (Integer stageId : stageIds) {
+        stepNamesByStage.remove(stageId);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void onStageCompleted(SparkListenerStageCompleted stageCompleted) {
+    eventReceived();
+
+    String stepName = stepNamesByStage.get(stageCompleted.stageInfo().stageId());
+    if (stepName == null) return;
+
+    getProfile(stepName).addStage();
+  }
+
+  @Override
+  public synchronized void onTaskEnd(SparkListenerTaskEnd taskEnd) {
+    eventReceived();
+
+    String stepName = stepNamesByStage.get(taskEnd.stageId());
+    TaskMetrics metrics = taskEnd.taskMetrics();
+    if (stepName == null || metrics == null) return;
+
+    getProfile(stepName).addTaskMetrics(
+        metrics.inputMetrics().recordsRead() + metrics.shuffleReadMetrics().recordsRead(),
+        metrics.outputMetrics().recordsWritten(),
+        metrics.shuffleReadMetrics().totalBytesRead(),
+        metrics.shuffleWriteMetrics().bytesWritten(),
+        metrics.memoryBytesSpilled(),
+        metrics.diskBytesSpilled());
+  }
+
+  @Override
+  public synchronized void onBlockUpdated(SparkListenerBlockUpdated blockUpdated) {
+    eventReceived();
+
+    BlockUpdatedInfo info = blockUpdated.blockUpdatedInfo();
+    BlockId blockId = info.blockId();
+    if (!(blockId instanceof RDDBlockId)) return;
+
+    int rddId = ((RDDBlockId)blockId).rddId();
+    if (!stepNamesByCachedRDD.containsKey(rddId)) return;
+
+    // The same block can be stored by more than one executor
+    String blockKey = info.blockManagerId().executorId() + "/" + blockId.name();
+    long blockSize = info.memSize() + info.diskSize();
+    Long previousBlockSize = cachedBlockSizes.remove(blockKey);
+    if (blockSize > 0) {
+      cachedBlockSizes.put(blockKey, blockSize);
+    }
+
+    long rddSize = get(cachedRDDSizes, rddId) + blockSize - (previousBlockSize != null ? previousBlockSize : 0);
+    cachedRDDSizes.put(rddId, rddSize);
+    peakCachedRDDSizes.put(rddId, Math.max(rddSize, get(peakCachedRDDSizes, rddId)));
+  }
+
+  /**
+   * Attribute the size of a cached RDD to a step.
+   */
+  public synchronized void cachedRDDCreated(int rddId, String stepName) {
+    stepNamesByCachedRDD.put(rddId, stepName);
+  }
+
+  /**
+   * Wait, up to a timeout, until the profiled jobs that the listener knows of have ended and
+   * the events that may still be queued for the listener have been received.
+   */
+  public synchronized void awaitQuiet(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+
+    while (System.currentTimeMillis() < deadline &&
+           (!runningJobIds.isEmpty() || System.currentTimeMillis() - lastEventMillis < QUIET_MILLIS))
+    {
+      wait(Math.max(1, Math.min(QUIET_MILLIS, deadline - System.currentTimeMillis())));
+    }
+  }
+
+  /**
+   * Retrieve the Spark metrics of a step that have been received since they were last retrieved.
+   */
+  public synchronized StepProfile takeProfile(String stepName) {
+    StepProfile profile = getProfile(stepName);
+    profiles.remove(stepName);
+
+    for (Map.Entry<Integer, String> cachedRDD : Lists.newArrayList(stepNamesByCachedRDD.entrySet())) {
+      if (cachedRDD.getValue().equals(stepName)) {
+        int rddId = cachedRDD.getKey();
+        profile.addCacheBytes(get(peakCachedRDDSizes, rddId));
+        peakCachedRDDSizes.put(rddId, get(cachedRDDSizes, rddId));
+
+        // Once an RDD has been uncached it will not be cached again
+        if (get(cachedRDDSizes, rddId) == 0) {
+          stepNamesByCachedRDD.remove(rddId);
+          cachedRDDSizes.remove(rddId);
+          peakCachedRDDSizes.remove(rddId);
+        }
+      }
+    }
+
+    return profile;
+  }
+
+  private StepProfile getProfile(String stepName) {
+    StepProfile profile = profiles.get(stepName);
+
+    if (profile == null) {
+      profile = new StepProfile(stepName);
+      profiles.put(stepName, profile);
+    }
+
+    return profile;
+  }
+
+  private void eventReceived() {
+    lastEventMillis = System.currentTimeMillis();
+    notifyAll();
+  }
+
+  private static long get(Map<Integer, Long> sizes, int rddId) {
+    Long size = sizes.get(rddId);
+
+    return size != null ? size : 0;
+  }
+
+}
@@ -16,33 +16,54 @@
 package com.cloudera.labs.envelope.run;
 
 import com.cloudera.labs.envelope.derive.PassthroughDeriver;
+import com.cloudera.labs.envelope.derive.SQLDeriver;
 import com.cloudera.labs.envelope.input.BatchInput;
+import com.cloudera.labs.envelope.input.CanFingerprint;
 import com.cloudera.labs.envelope.repetition.RepetitionFactory;
 import com.cloudera.labs.envelope.spark.Contexts;
+import com.cloudera.labs.envelope.utils.FingerprintUtils;
 import com.cloudera.labs.envelope.utils.RowUtils;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigRenderOptions;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SaveMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A batch step is a data step that contains a single DataFrame.
  */
 public class BatchStep extends DataStep {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BatchStep.class);
   
   public static final String REPARTITION_NUM_PARTITIONS_PROPERTY = "repartition.partitions";
   public static final String REPARTITION_COLUMNS_PROPERTY = "repartition.columns";
   public static final String COALESCE_NUM_PARTITIONS_PROPERTY = "coalesce.partitions";
+  public static final String MATERIALIZATION_PATH_PROPERTY = "materialization.path";
 
   private static final String INPUT_PREFIX = "input.";
   private static final String DERIVER_PREFIX = "deriver.";
   private static final String REPETITION_PREFIX = "repetitions";
   
+  private Set<Step> dependencySteps;
+  private Optional<String> fingerprint;
+  
   public BatchStep(String name, Config config) {
     super(name, config);
     
@@ -66,22 +87,39 @@ public class BatchStep extends DataStep {
 
   public void submit(Set<Step> dependencySteps) throws Exception {
     Contexts.getSparkSession().sparkContext().setJobDescription("Step: " + getName());
+    
+    synchronized (this) {
+      this.dependencySteps = dependencySteps;
+      this.fingerprint = null;
+    }
+
+    boolean doesMaterialize = doesMaterialize();
 
     Dataset<Row> data;
-    if (hasInput()) {
-      data = ((BatchInput)getInput()).read();
-    }
-    else if (hasDeriver()) {
-      Map<String, Dataset<Row>> dependencies = getStepDataFrames(dependencySteps);
-      data = getDeriver().derive(dependencies);
+    if (doesMaterialize && hasMaterialized()) {
+      LOG.info("Reading materialized data for step {} from {}", getName(), getMaterializationPath());
+      data = Contexts.getSparkSession().read().parquet(getMaterializationPath().toString());
     }
     else {
-      Map<String, Dataset<Row>> dependencies = getStepDataFrames(dependencySteps);
-      data = new PassthroughDeriver().derive(dependencies);
-    }
-    
-    if (doesRepartition()) {
-      data = repartition(data);
+      if (hasInput()) {
+        data = ((BatchInput)getInput()).read();
+      }
+      else if (hasDeriver()) {
+        Map<String, Dataset<Row>> dependencies = getStepDataFrames(dependencySteps);
+        data = getDeriver().derive(dependencies);
+      }
+      else {
+        Map<String, Dataset<Row>> dependencies = getStepDataFrames(dependencySteps);
+        data = new PassthroughDeriver().derive(dependencies);
+      }
+      
+      if (doesRepartition()) {
+        data = repartition(data);
+      }
+      
+      if (doesMaterialize) {
+        data = materialize(data);
+      }
     }
 
     setData(data);
@@ -89,6 +127,138 @@ public class BatchStep extends DataStep {
     setSubmitted(true);
   }
   
+  /**
+   * Get the fingerprint of the step's most recent submission, which is derived from the
+   * configuration of the step, the fingerprint of its input, and the fingerprints of its
+   * dependencies. The data of two submissions with the same fingerprint is expected to be the same.
+   * @return The fingerprint, or absent if the step has not been submitted, or if its input or one
+   * of its dependencies can not be fingerprinted.
+   */
+  public synchronized Optional<String> getFingerprint() throws Exception {
+    if (fingerprint == null) {
+      fingerprint = calculateFingerprint();
+    }
+    
+    return fingerprint;
+  }
+  
+  private Optional<String> calculateFingerprint() throws Exception {
+    if (dependencySteps == null) {
+      return Optional.absent();
+    }
+    
+    List<String> values = Lists.newArrayList();
+    values.add(config.root().render(ConfigRenderOptions.concise()));
+    
+    if (hasInput()) {
+      if (!(getInput() instanceof CanFingerprint)) {
+        return Optional.absent();
+      }
+      
+      values.add(((CanFingerprint)getInput()).getFingerprint());
+    }
+    
+    if (hasDeriver() && !derivesOnlyFromDependencies()) {
+      return Optional.absent();
+    }
+    
+    // Every dependency must contribute to the fingerprint, because the data of the step may
+    // change with any of them
+    List<String> dependencyFingerprints = Lists.newArrayList();
+    for (Step dependencyStep : dependencySteps) {
+      if (!(dependencyStep instanceof BatchStep)) {
+        return Optional.absent();
+      }
+      
+      Optional<String> dependencyFingerprint = ((BatchStep)dependencyStep).getFingerprint();
+      if (!dependencyFingerprint.isPresent()) {
+        return Optional.absent();
+      }
+      
+      dependencyFingerprints.add(dependencyStep.getName() + "=" + dependencyFingerprint.get());
+    }
+    Collections.sort(dependencyFingerprints);
+    values.addAll(dependencyFingerprints);
+    
+    return Optional.of(FingerprintUtils.fingerprint(values));
+  }
+  
+  // Derivers are only given the data of the step's dependencies, except that SQL queries can also
+  // read any other table or view, whose changes would not change the fingerprint
+  private boolean derivesOnlyFromDependencies() {
+    if (!(getDeriver() instanceof SQLDeriver)) {
+      return true;
+    }
+    
+    Optional<Set<String>> relationNames = ((SQLDeriver)getDeriver()).getRelationNames();
+    if (!relationNames.isPresent()) {
+      return false;
+    }
+    
+    Set<String> dependencyNames = Sets.newHashSet();
+    for (Step dependencyStep : dependencySteps) {
+      dependencyNames.add(dependencyStep.getName().toLowerCase());
+    }
+    
+    return dependencyNames.containsAll(relationNames.get());
+  }
+  
+  private boolean doesMaterialize() throws Exception {
+    if (!config.hasPath(MATERIALIZATION_PATH_PROPERTY)) return false;
+    
+    if (!getFingerprint().isPresent()) {
+      LOG.warn("Step {} will not be materialized because it can not be fingerprinted", getName());
+      return false;
+    }
+    
+    return true;
+  }
+  
+  // Each fingerprint of the step is materialized to its own directory under the step's directory
+  private Path getMaterializationPath() throws Exception {
+    Path stepPath = new Path(config.getString(MATERIALIZATION_PATH_PROPERTY), getName());
+    
+    return new Path(stepPath, getFingerprint().get());
+  }
+  
+  private FileSystem getMaterializationFileSystem() throws Exception {
+    return getMaterializationPath().getFileSystem(Contexts.getSparkSession().sparkContext().hadoopConfiguration());
+  }
+  
+  // Spark only marks the data as successfully written once all of it has been written
+  private boolean hasMaterialized() throws Exception {
+    return getMaterializationFileSystem().exists(new Path(getMaterializationPath(), "_SUCCESS"));
+  }
+  
+  private Dataset<Row> materialize(Dataset<Row> data) throws Exception {
+    Path materializationPath = getMaterializationPath();
+    
+    LOG.info("Materializing data for step {} to {}", getName(), materializationPath);
+    data.write().mode(SaveMode.Overwrite).parquet(materializationPath.toString());
+    
+    removeStaleMaterializations();
+    
+    // Read the data back so that the step does not compute it again
+    return Contexts.getSparkSession().read().parquet(materializationPath.toString());
+  }
+  
+  // The data materialized for earlier fingerprints of the step will not be read again
+  private void removeStaleMaterializations() throws Exception {
+    FileSystem fs = getMaterializationFileSystem();
+    Path materializationPath = getMaterializationPath();
+    
+    for (FileStatus status : fs.listStatus(materializationPath.getParent())) {
+      if (!status.getPath().getName().equals(materializationPath.getName())) {
+        try {
+          fs.delete(status.getPath(), true);
+        }
+        catch (IOException e) {
+          LOG.warn("Could not remove stale materialized data for step " + getName() + " at " + status.getPath(), e);
+        }
+      }
+    }
+  }
+  
   private boolean doesRepartition() {
     return config.hasPath(INPUT_PREFIX + REPARTITION_NUM_PARTITIONS_PROPERTY) ||
            config.hasPath(DERIVER_PREFIX + REPARTITION_NUM_PARTITIONS_PROPERTY) ||
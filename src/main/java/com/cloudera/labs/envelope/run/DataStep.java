@@ -15,9 +15,13 @@
  */
 package com.cloudera.labs.envelope.run;
 
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.apache.spark.HashPartitioner;
@@ -26,39 +30,59 @@ import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.function.FlatMapFunction;
 import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.Function2;
 import org.apache.spark.api.java.function.PairFlatMapFunction;
+import org.apache.spark.api.java.function.PairFunction;
 import org.apache.spark.api.java.function.VoidFunction;
+import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.plans.logical.LogicalPlan;
 import org.apache.spark.sql.functions;
 import org.apache.spark.sql.types.StructType;
 import org.apache.spark.storage.StorageLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.cloudera.labs.envelope.derive.Deriver;
 import com.cloudera.labs.envelope.derive.DeriverFactory;
+import com.cloudera.labs.envelope.derive.UsesDependencyFields;
 import com.cloudera.labs.envelope.input.Input;
 import com.cloudera.labs.envelope.input.InputFactory;
 import com.cloudera.labs.envelope.output.BulkOutput;
+import com.cloudera.labs.envelope.output.CachedRandomOutput;
+import com.cloudera.labs.envelope.output.CanProjectExisting;
 import com.cloudera.labs.envelope.output.Output;
 import com.cloudera.labs.envelope.output.OutputFactory;
 import com.cloudera.labs.envelope.output.RandomOutput;
 import com.cloudera.labs.envelope.partition.PartitionerFactory;
 import com.cloudera.labs.envelope.plan.BulkPlanner;
+import com.cloudera.labs.envelope.plan.CanReduceArriving;
+import com.cloudera.labs.envelope.plan.MutationCompactor;
 import com.cloudera.labs.envelope.plan.MutationType;
 import com.cloudera.labs.envelope.plan.PlannedRow;
 import com.cloudera.labs.envelope.plan.Planner;
 import com.cloudera.labs.envelope.plan.PlannerFactory;
 import com.cloudera.labs.envelope.plan.RandomPlanner;
+import com.cloudera.labs.envelope.plan.UsesExistingFields;
+import com.cloudera.labs.envelope.profile.PipelineProfiler;
 import com.cloudera.labs.envelope.spark.AccumulatorRequest;
 import com.cloudera.labs.envelope.spark.Accumulators;
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.cloudera.labs.envelope.spark.EncodedKey;
+import com.cloudera.labs.envelope.spark.LatencyHistogram;
 import com.cloudera.labs.envelope.spark.UsesAccumulators;
 import com.cloudera.labs.envelope.utils.RowUtils;
+import com.google.common.base.Optional;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
 
 import scala.Tuple2;
+import scala.collection.JavaConversions;
 
 /**
  * A data step is a step that will contain a DataFrame that other steps can use.
@@ -67,16 +91,37 @@ import scala.Tuple2;
  */
 public abstract class DataStep extends Step implements UsesAccumulators {
 
+  private static final Logger LOG = LoggerFactory.getLogger(DataStep.class);
+
   public static final String CACHE_PROPERTY = "cache";
+  public static final String STORAGE_LEVEL_PROPERTY = "storage.level";
+  public static final String CHECKPOINT_ENABLED_PROPERTY = "checkpoint.enabled";
+  public static final String CHECKPOINT_LOCAL_PROPERTY = "checkpoint.local";
+  public static final String CHECKPOINT_EAGER_PROPERTY = "checkpoint.eager";
+  public static final String CHECKPOINT_INTERVAL_PROPERTY = "checkpoint.interval";
+  public static final String CHECKPOINT_MAX_PLAN_DEPTH_PROPERTY = "checkpoint.max.plan.depth";
   public static final String SMALL_HINT_PROPERTY = "hint.small";
   public static final String PRINT_SCHEMA_ENABLED_PROPERTY = "print.schema.enabled";
   public static final String PRINT_DATA_ENABLED_PROPERTY = "print.data.enabled";
   public static final String PRINT_DATA_LIMIT_PROPERTY = "print.data.limit";
+  public static final String RANDOM_GROUPING_PROPERTY = "random.grouping";
+  public static final String RANDOM_CHUNK_SIZE_PROPERTY = "random.chunk.size";
+  public static final String RANDOM_LOOKUPS_IN_FLIGHT_PROPERTY = "random.lookups.in.flight";
+  public static final String RANDOM_CACHE_PROPERTY = "random.cache";
+  public static final String RANDOM_CACHE_ENABLED_PROPERTY = "random.cache.enabled";
+  public static final String RANDOM_COMPACTION_ENABLED_PROPERTY = "random.compaction.enabled";
+  public static final String RANDOM_COMPACTION_FIELDS_PROPERTY = "random.compaction.fields";
+  
+  public static final String GROUP_RANDOM_GROUPING = "group";
+  public static final String SORT_RANDOM_GROUPING = "sort";
+  
+  private static final int DEFAULT_RANDOM_CHUNK_SIZE = 1000;
+  private static final int DEFAULT_RANDOM_LOOKUPS_IN_FLIGHT = 1;
   
-  private static final String ACCUMULATOR_SECONDS_EXTRACTING_KEYS = "Seconds spent extracting keys";
-  private static final String ACCUMULATOR_SECONDS_EXISTING = "Seconds spent getting existing";
-  private static final String ACCUMULATOR_SECONDS_PLANNING = "Seconds spent random planning";
-  private static final String ACCUMULATOR_SECONDS_APPLYING = "Seconds spent applying random mutations";
+  private static final String ACCUMULATOR_LATENCY_EXTRACTING_KEYS = "Latency of extracting keys per record";
+  private static final String ACCUMULATOR_LATENCY_EXISTING = "Latency of getting existing per lookup";
+  private static final String ACCUMULATOR_LATENCY_PLANNING = "Latency of random planning per key";
+  private static final String ACCUMULATOR_LATENCY_APPLYING = "Latency of applying random mutations per batch";
 
   private Dataset<Row> data;
   private Input input;
@@ -84,6 +129,10 @@ public abstract class DataStep extends Step implements UsesAccumulators {
   private Planner planner;
   private Output output;
   private Accumulators accumulators;
+  private StorageLevel storageLevel;
+  private Set<Step> dependentSteps;
+  private Set<Step> allDependentSteps;
+  private int setsSinceCheckpoint = 0;
 
   public DataStep(String name, Config config) {
     super(name, config);
@@ -91,6 +140,51 @@ public abstract class DataStep extends Step implements UsesAccumulators {
     if (hasInput() && hasDeriver()) {
       throw new RuntimeException("Steps can not have both an input and a deriver");
     }
+    
+    if (config.hasPath(STORAGE_LEVEL_PROPERTY)) {
+      try {
+        storageLevel = StorageLevel.fromString(config.getString(STORAGE_LEVEL_PROPERTY).toUpperCase());
+      }
+      catch (IllegalArgumentException e) {
+        throw new RuntimeException("Unsupported storage level for step " + getName() + ": " +
+            config.getString(STORAGE_LEVEL_PROPERTY));
+      }
+    }
+    else {
+      storageLevel = StorageLevel.MEMORY_ONLY();
+    }
+    
+    if (config.hasPath(CHECKPOINT_INTERVAL_PROPERTY) && config.getInt(CHECKPOINT_INTERVAL_PROPERTY) < 1) {
+      throw new RuntimeException("Checkpoint interval for step " + getName() + " must be at least 1");
+    }
+    if (config.hasPath(CHECKPOINT_MAX_PLAN_DEPTH_PROPERTY) && config.getInt(CHECKPOINT_MAX_PLAN_DEPTH_PROPERTY) < 1) {
+      throw new RuntimeException("Checkpoint maximum plan depth for step " + getName() + " must be at least 1");
+    }
+    
+    if (config.hasPath(RANDOM_GROUPING_PROPERTY) &&
+        !config.getString(RANDOM_GROUPING_PROPERTY).equals(GROUP_RANDOM_GROUPING) &&
+        !config.getString(RANDOM_GROUPING_PROPERTY).equals(SORT_RANDOM_GROUPING))
+    {
+      throw new RuntimeException("Unsupported random grouping for step " + getName() + ": " +
+          config.getString(RANDOM_GROUPING_PROPERTY));
+    }
+    if (config.hasPath(RANDOM_CHUNK_SIZE_PROPERTY) && config.getInt(RANDOM_CHUNK_SIZE_PROPERTY) < 1) {
+      throw new RuntimeException("Random chunk size for step " + getName() + " must be at least 1");
+    }
+    if (config.hasPath(RANDOM_LOOKUPS_IN_FLIGHT_PROPERTY) && config.getInt(RANDOM_LOOKUPS_IN_FLIGHT_PROPERTY) < 1) {
+      throw new RuntimeException("Random lookups in flight for step " + getName() + " must be at least 1");
+    }
+    if (config.hasPath(RANDOM_CACHE_PROPERTY + "." + CachedRandomOutput.MAX_ROWS_CONFIG_NAME) &&
+        config.getLong(RANDOM_CACHE_PROPERTY + "." + CachedRandomOutput.MAX_ROWS_CONFIG_NAME) < 1) {
+      throw new RuntimeException("Random cache maximum rows for step " + getName() + " must be at least 1");
+    }
+    // The caches of the executors are not kept consistent with each other, so their records must
+    // expire to bound how stale they can be
+    if (usesRandomCache() &&
+        (!config.hasPath(RANDOM_CACHE_PROPERTY + "." + CachedRandomOutput.EXPIRY_SECONDS_CONFIG_NAME) ||
+         config.getLong(RANDOM_CACHE_PROPERTY + "." + CachedRandomOutput.EXPIRY_SECONDS_CONFIG_NAME) < 1)) {
+      throw new RuntimeException("Random cache expiry seconds for step " + getName() + " must be set to at least 1");
+    }
   }
 
   public Dataset<Row> getData() {
@@ -99,9 +193,22 @@ public abstract class DataStep extends Step implements UsesAccumulators {
 
   public void setData(Dataset<Row> batchDF) {
     this.data = batchDF;
+    
+    boolean doesCache = doesCache();
 
-    if (doesCache()) {
+    if (doesCache && doesPruneUnusedFields()) {
+      pruneUnusedFields();
+    }
+    
+    setsSinceCheckpoint++;
+    if (doesCheckpoint()) {
+      checkpoint();
+      setsSinceCheckpoint = 0;
+    }
+    
+    if (doesCache) {
       cache();
+      PipelineProfiler.get().dataCached(this);
     }
 
     if (usesSmallHint()) {
@@ -119,7 +226,9 @@ public abstract class DataStep extends Step implements UsesAccumulators {
     registerStep();
     
     if (hasOutput()) {
+      long startTime = System.currentTimeMillis();
       writeOutput();
+      PipelineProfiler.get().recordOutputTime(this, System.currentTimeMillis() - startTime);
     }
   }
   
@@ -171,18 +280,185 @@ public abstract class DataStep extends Step implements UsesAccumulators {
     data.createOrReplaceTempView(getName());
   }
 
+  /**
+   * Tell the step which steps in the pipeline depend on it, so that it can decide whether its
+   * data will be read often enough to be worth caching, and which of its fields to cache.
+   */
+  public void setDependentSteps(Set<Step> dependentSteps) {
+    setDependentSteps(dependentSteps, dependentSteps);
+  }
+
+  /**
+   * Tell the step which steps in the pipeline depend on it, both immediately and transitively.
+   * The transitive dependents can also query the step's data by name, so the fields that they
+   * read are cached too.
+   */
+  public void setDependentSteps(Set<Step> dependentSteps, Set<Step> allDependentSteps) {
+    this.dependentSteps = dependentSteps;
+    this.allDependentSteps = allDependentSteps;
+  }
+  
+  /**
+   * Get the fields of a dependency's data that this step may read.
+   * @return The names of the fields of the dependency that this step may read, or absent if it
+   * may read any of the fields.
+   */
+  public synchronized Optional<Set<String>> getUsedFieldNames(String dependencyName, StructType dependencySchema) {
+    // Inputs do not read their dependencies, which only determine when the step is submitted
+    if (hasInput()) {
+      return Optional.<Set<String>>of(Sets.<String>newHashSet());
+    }
+    
+    if (hasDeriver() && getDeriver() instanceof UsesDependencyFields) {
+      return ((UsesDependencyFields)getDeriver()).getUsedFieldNames(dependencyName, dependencySchema);
+    }
+    
+    return Optional.absent();
+  }
+
   private boolean doesCache() {
-    if (!config.hasPath(CACHE_PROPERTY)) return true;
+    if (config.hasPath(CACHE_PROPERTY)) {
+      return config.getBoolean(CACHE_PROPERTY);
+    }
+    
+    // If we do not know how the data will be read then cache it in case it is read more than once
+    if (dependentSteps == null) return true;
+
+    return getConsumerCount() > 1;
+  }
+  
+  // The number of times that the data of the step will be read, whether by dependent steps or
+  // by the step itself
+  private int getConsumerCount() {
+    int consumerCount = dependentSteps.size();
+    
+    if (hasOutput()) consumerCount++;
+    if (doesPrintData()) consumerCount++;
+    
+    return consumerCount;
+  }
 
-    return config.getBoolean(CACHE_PROPERTY);
+  // The output and the printing of the data read all of the fields of the step
+  private boolean doesPruneUnusedFields() {
+    return dependentSteps != null && !hasOutput() && !doesPrintData();
+  }
+  
+  // Spark can not push the projections of the dependent steps through the cached data, so we
+  // remove the fields that no dependent step will read before the data is cached. The data is
+  // registered by name, so every transitive dependent must also say which fields it reads.
+  private void pruneUnusedFields() {
+    Set<String> usedFieldNames = Sets.newHashSet();
+    
+    for (Step dependentStep : allDependentSteps) {
+      if (!(dependentStep instanceof DataStep)) return;
+      
+      Optional<Set<String>> dependentUsedFieldNames =
+          ((DataStep)dependentStep).getUsedFieldNames(getName(), data.schema());
+      
+      if (!dependentUsedFieldNames.isPresent()) return;
+      
+      usedFieldNames.addAll(dependentUsedFieldNames.get());
+    }
+    
+    if (usedFieldNames.size() < data.schema().fields().length) {
+      List<Column> usedColumns = Lists.newArrayList();
+      for (String fieldName : data.schema().fieldNames()) {
+        if (usedFieldNames.contains(fieldName)) {
+          usedColumns.add(new Column("`" + fieldName + "`"));
+        }
+      }
+      
+      data = data.select(usedColumns.toArray(new Column[usedColumns.size()]));
+    }
+  }
+
+  private boolean doesCheckpoint() {
+    if (!config.hasPath(CHECKPOINT_ENABLED_PROPERTY) || !config.getBoolean(CHECKPOINT_ENABLED_PROPERTY)) {
+      return false;
+    }
+    
+    boolean hasInterval = config.hasPath(CHECKPOINT_INTERVAL_PROPERTY);
+    boolean hasMaxPlanDepth = config.hasPath(CHECKPOINT_MAX_PLAN_DEPTH_PROPERTY);
+    
+    // Without a policy we checkpoint every time that the data of the step is set
+    if (!hasInterval && !hasMaxPlanDepth) return true;
+    
+    if (hasInterval && setsSinceCheckpoint >= config.getInt(CHECKPOINT_INTERVAL_PROPERTY)) {
+      return true;
+    }
+    
+    if (hasMaxPlanDepth && getPlanDepth(data.queryExecution().logical()) > config.getInt(CHECKPOINT_MAX_PLAN_DEPTH_PROPERTY)) {
+      return true;
+    }
+    
+    return false;
+  }
+  
+  // Checkpointing replaces the plan of the data with a scan of the checkpointed rows, which
+  // truncates the lineage that a repeating, looping or streaming step would otherwise keep growing
+  private void checkpoint() {
+    boolean eager = !config.hasPath(CHECKPOINT_EAGER_PROPERTY) || config.getBoolean(CHECKPOINT_EAGER_PROPERTY);
+    boolean local = config.hasPath(CHECKPOINT_LOCAL_PROPERTY) && config.getBoolean(CHECKPOINT_LOCAL_PROPERTY);
+    
+    LOG.debug("Checkpointing data of step {} (eager: {}, local: {})", new Object[] {getName(), eager, local});
+    
+    if (local) {
+      // Datasets can not be locally checkpointed until Spark 2.3, so we locally checkpoint the
+      // rows and recreate the DataFrame from them
+      JavaRDD<Row> rows = data.javaRDD();
+      rows.rdd().localCheckpoint();
+      if (eager) {
+        rows.count();
+      }
+      
+      data = Contexts.getSparkSession().createDataFrame(rows, data.schema());
+    }
+    else {
+      if (Contexts.getSparkSession().sparkContext().getCheckpointDir().isEmpty()) {
+        throw new RuntimeException("Step " + getName() + " can not be checkpointed without " +
+            Contexts.CHECKPOINT_PATH_PROPERTY + " being set, unless it is locally checkpointed");
+      }
+      
+      if (eager) {
+        // Spark writes the checkpoint in a separate job, so we persist the data in the meantime
+        // to avoid computing it twice
+        Dataset<Row> uncheckpointed = data.persist(storageLevel);
+        data = data.checkpoint(true);
+        uncheckpointed.unpersist(false);
+      }
+      else {
+        data = data.checkpoint(false);
+      }
+    }
+  }
+  
+  // The depth of the logical plan, which grows with the lineage of the data
+  private static int getPlanDepth(LogicalPlan plan) {
+    int depth = 0;
+    Set<LogicalPlan> level = Sets.newIdentityHashSet();
+    level.add(plan);
+    
+    while (!level.isEmpty()) {
+      depth++;
+      
+      Set<LogicalPlan> nextLevel = Sets.newIdentityHashSet();
+      for (LogicalPlan node : level) {
+        nextLevel.addAll(JavaConversions.seqAsJavaList(node.children()));
+      }
+      level = nextLevel;
+    }
+    
+    return depth;
   }
 
   private void cache() {
-    data = data.persist(StorageLevel.MEMORY_ONLY());
+    data = data.persist(storageLevel);
   }
 
   public void clearCache() {
-    data = data.unpersist(false);
+    if (data != null) {
+      data = data.unpersist(false);
+    }
   }
 
   private boolean usesSmallHint() {
@@ -252,10 +528,15 @@ public abstract class DataStep extends Step implements UsesAccumulators {
       requests.addAll(((UsesAccumulators)getOutput()).getAccumulatorRequests());
     }
     
-    requests.add(new AccumulatorRequest(ACCUMULATOR_SECONDS_PLANNING, Double.class));
-    requests.add(new AccumulatorRequest(ACCUMULATOR_SECONDS_APPLYING, Double.class));
-    requests.add(new AccumulatorRequest(ACCUMULATOR_SECONDS_EXISTING, Double.class));
-    requests.add(new AccumulatorRequest(ACCUMULATOR_SECONDS_EXTRACTING_KEYS, Double.class));
+    requests.add(new AccumulatorRequest(ACCUMULATOR_LATENCY_PLANNING, LatencyHistogram.class));
+    requests.add(new AccumulatorRequest(ACCUMULATOR_LATENCY_APPLYING, LatencyHistogram.class));
+    requests.add(new AccumulatorRequest(ACCUMULATOR_LATENCY_EXISTING, LatencyHistogram.class));
+    requests.add(new AccumulatorRequest(ACCUMULATOR_LATENCY_EXTRACTING_KEYS, LatencyHistogram.class));
+    
+    if (usesRandomCache()) {
+      requests.add(new AccumulatorRequest(CachedRandomOutput.ACCUMULATOR_CACHE_HITS, Long.class));
+      requests.add(new AccumulatorRequest(CachedRandomOutput.ACCUMULATOR_CACHE_MISSES, Long.class));
+    }
     
     return requests;
   }
@@ -307,16 +588,50 @@ public abstract class DataStep extends Step implements UsesAccumulators {
       RandomPlanner randomPlanner = (RandomPlanner)getPlanner();
       List<String> keyFieldNames = randomPlanner.getKeyFieldNames();
       Config outputConfig = config.getConfig("output");
-      JavaRDD<PlannedRow> planned = planMutationsByKey(data, keyFieldNames, plannerConfig, outputConfig);
+      
+      long cacheHitsBefore = 0, cacheMissesBefore = 0;
+      if (usesRandomCache()) {
+        cacheHitsBefore = accumulators.getLongAccumulators().get(CachedRandomOutput.ACCUMULATOR_CACHE_HITS).value();
+        cacheMissesBefore = accumulators.getLongAccumulators().get(CachedRandomOutput.ACCUMULATOR_CACHE_MISSES).value();
+      }
+      
+      if (usesSortGrouping()) {
+        JavaRDD<PlannedRow> planned = planMutationsBySortedKey(data, keyFieldNames, plannerConfig, outputConfig);
+        
+        applyMutationsInChunks(planned, outputConfig, keyFieldNames);
+      }
+      else {
+        JavaRDD<PlannedRow> planned = planMutationsByKey(data, keyFieldNames, plannerConfig, outputConfig);
+        
+        if (usesCompaction()) {
+          planned = planned.mapPartitions(new CompactMutationsFunction(getCompactionFieldNames()));
+        }
 
-      applyMutations(planned, outputConfig);
+        applyMutations(planned, outputConfig, keyFieldNames);
+      }
+      
+      if (usesRandomCache()) {
+        long cacheHits = accumulators.getLongAccumulators().get(CachedRandomOutput.ACCUMULATOR_CACHE_HITS).value() - cacheHitsBefore;
+        long cacheMisses = accumulators.getLongAccumulators().get(CachedRandomOutput.ACCUMULATOR_CACHE_MISSES).value() - cacheMissesBefore;
+        
+        if (cacheHits + cacheMisses > 0) {
+          LOG.info("Existing records cache of step {} had {} hits and {} misses ({}% hit rate)",
+              new Object[] {getName(), cacheHits, cacheMisses, (cacheHits * 100) / (cacheHits + cacheMisses)});
+        }
+      }
     }
     else if (getPlanner() instanceof BulkPlanner) {
       BulkPlanner bulkPlanner = (BulkPlanner)getPlanner();
+      boolean cachedBeforePlanning = !data.storageLevel().equals(StorageLevel.NONE());
       List<Tuple2<MutationType, Dataset<Row>>> planned = bulkPlanner.planMutationsForSet(data);
 
       BulkOutput bulkOutput = (BulkOutput)getOutput();      
       bulkOutput.applyBulkMutations(planned);
+
+      // A planner that cached the data to read it more than once only needed it for the mutations
+      if (!cachedBeforePlanning && !data.storageLevel().equals(StorageLevel.NONE())) {
+        data.unpersist(false);
+      }
     }
     else {
       throw new RuntimeException("Unexpected output class: " + getOutput().getClass().getName());
@@ -363,14 +678,25 @@ public abstract class DataStep extends Step implements UsesAccumulators {
   
   // Group the arriving records by key, attach the existing records for each key, and plan
   private JavaRDD<PlannedRow> planMutationsByKey(Dataset<Row> arriving, List<String> keyFieldNames, Config plannerConfig, Config outputConfig) {
-    JavaPairRDD<Row, Row> keyedArriving = 
-        arriving.javaRDD().keyBy(new ExtractKeyFunction(keyFieldNames, accumulators));
-
-    JavaPairRDD<Row, Iterable<Row>> arrivingByKey = 
-        keyedArriving.groupByKey(getPartitioner(keyedArriving));
+    StructType keySchema = RowUtils.subsetSchema(arriving.schema(), keyFieldNames);
+    JavaPairRDD<EncodedKey, Row> keyedArriving = 
+        arriving.javaRDD().keyBy(new EncodeKeyFunction(keySchema, accumulators));
+
+    JavaPairRDD<EncodedKey, Iterable<Row>> arrivingByKey;
+    if (getPlanner() instanceof CanReduceArriving) {
+      // Combine the arriving records of each key on the map side so that only one is shuffled
+      arrivingByKey = keyedArriving
+          .reduceByKey(getPartitioner(keyedArriving, keySchema), new ReduceArrivingFunction(plannerConfig))
+          .mapValues(new SingleArrivingFunction());
+    }
+    else {
+      arrivingByKey = keyedArriving.groupByKey(getPartitioner(keyedArriving, keySchema));
+    }
 
     JavaPairRDD<Row, Tuple2<Iterable<Row>, Iterable<Row>>> arrivingAndExistingByKey =
-        arrivingByKey.mapPartitionsToPair(new JoinExistingForKeysFunction(outputConfig, keyFieldNames, accumulators));
+        arrivingByKey.mapPartitionsToPair(new JoinExistingForKeysFunction(
+            outputConfig, keyFieldNames, keySchema, getRandomChunkSize(), getRandomLookupsInFlight(),
+            getRandomCacheConfig(), getExistingFieldNames(keyFieldNames), accumulators));
 
     JavaRDD<PlannedRow> planned = 
         arrivingAndExistingByKey.flatMap(new PlanForKeyFunction(plannerConfig, accumulators));
@@ -378,142 +704,454 @@ public abstract class DataStep extends Step implements UsesAccumulators {
     return planned;
   }
 
+  private boolean usesSortGrouping() {
+    return config.hasPath(RANDOM_GROUPING_PROPERTY) &&
+           config.getString(RANDOM_GROUPING_PROPERTY).equals(SORT_RANDOM_GROUPING);
+  }
+  
+  private int getRandomChunkSize() {
+    return config.hasPath(RANDOM_CHUNK_SIZE_PROPERTY) ?
+        config.getInt(RANDOM_CHUNK_SIZE_PROPERTY) : DEFAULT_RANDOM_CHUNK_SIZE;
+  }
+  
+  private int getRandomLookupsInFlight() {
+    return config.hasPath(RANDOM_LOOKUPS_IN_FLIGHT_PROPERTY) ?
+        config.getInt(RANDOM_LOOKUPS_IN_FLIGHT_PROPERTY) : DEFAULT_RANDOM_LOOKUPS_IN_FLIGHT;
+  }
+  
+  private boolean usesRandomCache() {
+    return config.hasPath(RANDOM_CACHE_ENABLED_PROPERTY) && config.getBoolean(RANDOM_CACHE_ENABLED_PROPERTY);
+  }
+  
+  // The configuration of the cache of existing records, or null if the step does not cache them
+  private Config getRandomCacheConfig() {
+    return usesRandomCache() ? config.getConfig(RANDOM_CACHE_PROPERTY) : null;
+  }
+  
+  // The fields of the existing records that the planner reads, including its key fields, or null
+  // if the planner may read any of the fields
+  private Set<String> getExistingFieldNames(List<String> keyFieldNames) {
+    if (!(getPlanner() instanceof UsesExistingFields)) {
+      return null;
+    }
+    
+    Set<String> existingFieldNames = Sets.newHashSet(keyFieldNames);
+    existingFieldNames.addAll(((UsesExistingFields)getPlanner()).getUsedExistingFieldNames());
+    
+    return existingFieldNames;
+  }
+  
+  private boolean usesCompaction() {
+    return config.hasPath(RANDOM_COMPACTION_ENABLED_PROPERTY) && config.getBoolean(RANDOM_COMPACTION_ENABLED_PROPERTY);
+  }
+  
+  // The fields that identify the rows of the output that the planned mutations are compacted by,
+  // or null if the step does not compact the planned mutations
+  private List<String> getCompactionFieldNames() {
+    if (!usesCompaction()) {
+      return null;
+    }
+    
+    if (!config.hasPath(RANDOM_COMPACTION_FIELDS_PROPERTY)) {
+      throw new RuntimeException("Step '" + getName() + "' enables mutation compaction but does not specify '" +
+          RANDOM_COMPACTION_FIELDS_PROPERTY + "'");
+    }
+    
+    return config.getStringList(RANDOM_COMPACTION_FIELDS_PROPERTY);
+  }
+  
+  // Sort the arriving records by key within each partition, and then plan each partition as a
+  // stream of runs of records with the same key. Unlike grouping by key, this does not need all of
+  // the records of a key, or all of the keys of a partition, to be held in memory at once.
+  private JavaRDD<PlannedRow> planMutationsBySortedKey(Dataset<Row> arriving, List<String> keyFieldNames, Config plannerConfig, Config outputConfig) {
+    StructType keySchema = RowUtils.subsetSchema(arriving.schema(), keyFieldNames);
+    JavaPairRDD<EncodedKey, Row> keyedArriving = 
+        arriving.javaRDD().keyBy(new EncodeKeyFunction(keySchema, accumulators));
+    
+    JavaPairRDD<EncodedKey, Row> sortedArriving;
+    if (getPlanner() instanceof CanReduceArriving) {
+      // Once reduced there is only one arriving record per key, so each record is a run of its own
+      // key and the partitions do not need to be sorted
+      sortedArriving = keyedArriving.reduceByKey(
+          getPartitioner(keyedArriving, keySchema), new ReduceArrivingFunction(plannerConfig));
+    }
+    else {
+      sortedArriving = keyedArriving.repartitionAndSortWithinPartitions(
+          getPartitioner(keyedArriving, keySchema), new EncodedKeyComparator());
+    }
+    
+    JavaRDD<PlannedRow> planned = sortedArriving.mapPartitions(
+        new PlanForSortedKeysFunction(plannerConfig, outputConfig, keyFieldNames, keySchema, getRandomChunkSize(),
+            getRandomLookupsInFlight(), getRandomCacheConfig(), getExistingFieldNames(keyFieldNames),
+            getCompactionFieldNames(), accumulators));
+    
+    return planned;
+  }
+  
+  // Orders encoded keys by their bytes so that equal keys are adjacent after sorting
   @SuppressWarnings("serial")
-  private static class ExtractKeyFunction implements Function<Row, Row> {
-    private StructType schema;
+  private static class EncodedKeyComparator implements Comparator<EncodedKey>, Serializable {
+    @Override
+    public int compare(EncodedKey key1, EncodedKey key2) {
+      return key1.compareTo(key2);
+    }
+  }
+  
+  @SuppressWarnings("serial")
+  private static class PlanForSortedKeysFunction implements FlatMapFunction<Iterator<Tuple2<EncodedKey, Row>>, PlannedRow> {
+    private Config plannerConfig;
+    private Config outputConfig;
     private List<String> keyFieldNames;
+    private StructType keySchema;
+    private int chunkSize;
+    private int lookupsInFlight;
+    private Config cacheConfig;
+    private Set<String> existingFieldNames;
+    private List<String> compactionFieldNames;
     private Accumulators accumulators;
-
-    public ExtractKeyFunction(List<String> keyFieldNames, Accumulators accumulators) {
+    
+    public PlanForSortedKeysFunction(Config plannerConfig, Config outputConfig, List<String> keyFieldNames,
+        StructType keySchema, int chunkSize, int lookupsInFlight, Config cacheConfig,
+        Set<String> existingFieldNames, List<String> compactionFieldNames, Accumulators accumulators)
+    {
+      this.plannerConfig = plannerConfig;
+      this.outputConfig = outputConfig;
       this.keyFieldNames = keyFieldNames;
+      this.keySchema = keySchema;
+      this.chunkSize = chunkSize;
+      this.lookupsInFlight = lookupsInFlight;
+      this.cacheConfig = cacheConfig;
+      this.existingFieldNames = existingFieldNames;
+      this.compactionFieldNames = compactionFieldNames;
+      this.accumulators = accumulators;
+    }
+    
+    @Override
+    public Iterator<PlannedRow> call(Iterator<Tuple2<EncodedKey, Row>> sortedArriving) throws Exception {
+      RandomPlanner planner = (RandomPlanner)PlannerFactory.create(plannerConfig);
+      if (planner instanceof UsesAccumulators) {
+        ((UsesAccumulators)planner).receiveAccumulators(accumulators);
+      }
+      
+      RandomOutput output = createRandomOutput(outputConfig, cacheConfig, keyFieldNames, existingFieldNames, accumulators);
+      
+      ExistingLookupIterator<List<Row>> lookedUpChunks = new ExistingLookupIterator<>(
+          new SortedKeysChunkIterator(Iterators.peekingIterator(sortedArriving)), output, keyFieldNames,
+          lookupsInFlight, accumulators.getHistogramAccumulators().get(ACCUMULATOR_LATENCY_EXISTING));
+      
+      MutationCompactor compactor = compactionFieldNames != null ? new MutationCompactor(compactionFieldNames) : null;
+      
+      return new SortedKeysPlanningIterator(lookedUpChunks, planner, compactor);
+    }
+    
+    // Collects the runs of arriving records with the same key, up to the chunk size of keys at a time
+    private class SortedKeysChunkIterator implements Iterator<List<Tuple2<Row, List<Row>>>> {
+      private PeekingIterator<Tuple2<EncodedKey, Row>> sortedArriving;
+      
+      public SortedKeysChunkIterator(PeekingIterator<Tuple2<EncodedKey, Row>> sortedArriving) {
+        this.sortedArriving = sortedArriving;
+      }
+      
+      @Override
+      public boolean hasNext() {
+        return sortedArriving.hasNext();
+      }
+      
+      @Override
+      public List<Tuple2<Row, List<Row>>> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        
+        List<Tuple2<Row, List<Row>>> arrivingForKeys = Lists.newArrayList();
+        while (arrivingForKeys.size() < chunkSize && sortedArriving.hasNext()) {
+          EncodedKey key = sortedArriving.peek()._1();
+          List<Row> arrivingForKey = Lists.newArrayList();
+          
+          while (sortedArriving.hasNext() && sortedArriving.peek()._1().equals(key)) {
+            arrivingForKey.add(sortedArriving.next()._2());
+          }
+          
+          arrivingForKeys.add(new Tuple2<Row, List<Row>>(key.decode(keySchema), arrivingForKey));
+        }
+        
+        return arrivingForKeys;
+      }
+      
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    }
+    
+    // Plans the chunks of keys a chunk at a time, as the planned rows are consumed
+    private class SortedKeysPlanningIterator implements Iterator<PlannedRow> {
+      private ExistingLookupIterator<List<Row>> lookedUpChunks;
+      private RandomPlanner planner;
+      private MutationCompactor compactor;
+      private Iterator<PlannedRow> plannedForChunk = Collections.emptyIterator();
+      
+      public SortedKeysPlanningIterator(ExistingLookupIterator<List<Row>> lookedUpChunks, RandomPlanner planner,
+          MutationCompactor compactor)
+      {
+        this.lookedUpChunks = lookedUpChunks;
+        this.planner = planner;
+        this.compactor = compactor;
+      }
+      
+      @Override
+      public boolean hasNext() {
+        while (!plannedForChunk.hasNext() && lookedUpChunks.hasNext()) {
+          plannedForChunk = planChunk(lookedUpChunks.next()).iterator();
+        }
+        
+        return plannedForChunk.hasNext();
+      }
+      
+      @Override
+      public PlannedRow next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        
+        return plannedForChunk.next();
+      }
+      
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+      
+      private List<PlannedRow> planChunk(ExistingLookupIterator.Chunk<List<Row>> lookedUpChunk) {
+        List<PlannedRow> plannedForChunk = Lists.newArrayList();
+        
+        for (Tuple2<Row, List<Row>> arrivingForKey : lookedUpChunk.getArrivingForKeys()) {
+          long startTime = System.nanoTime();
+          
+          Row key = arrivingForKey._1();
+          List<Row> existingForKey = lookedUpChunk.getExistingForKey(key);
+          
+          for (PlannedRow plannedRow : planner.planMutationsForKey(key, arrivingForKey._2(), existingForKey)) {
+            plannedForChunk.add(plannedRow);
+          }
+          
+          long endTime = System.nanoTime();
+          accumulators.getHistogramAccumulators().get(ACCUMULATOR_LATENCY_PLANNING).add(endTime - startTime);
+        }
+        
+        // All of the mutations of a key are planned within the same chunk, so compacting each
+        // chunk compacts all of the mutations of its keys
+        if (compactor != null) {
+          plannedForChunk = compactor.compact(plannedForChunk);
+        }
+        
+        return plannedForChunk;
+      }
+    }
+  }
+  
+  @SuppressWarnings("serial")
+  private static class ReduceArrivingFunction implements Function2<Row, Row, Row> {
+    private Config plannerConfig;
+    private CanReduceArriving planner;
+    
+    public ReduceArrivingFunction(Config plannerConfig) {
+      this.plannerConfig = plannerConfig;
+    }
+    
+    @Override
+    public Row call(Row arriving1, Row arriving2) throws Exception {
+      if (planner == null) {
+        planner = (CanReduceArriving)PlannerFactory.create(plannerConfig);
+      }
+      
+      return planner.reduceArriving(arriving1, arriving2);
+    }
+  }
+  
+  @SuppressWarnings("serial")
+  private static class SingleArrivingFunction implements Function<Row, Iterable<Row>> {
+    @Override
+    public Iterable<Row> call(Row arriving) throws Exception {
+      return Lists.newArrayList(arriving);
+    }
+  }
+  
+  @SuppressWarnings("serial")
+  private static class EncodeKeyFunction implements Function<Row, EncodedKey> {
+    private StructType keySchema;
+    private Accumulators accumulators;
+    private StructType schema;
+    private int[] ordinals;
+
+    public EncodeKeyFunction(StructType keySchema, Accumulators accumulators) {
+      this.keySchema = keySchema;
       this.accumulators = accumulators;
     }
 
     @Override
-    public Row call(Row arrived) throws Exception {
+    public EncodedKey call(Row arrived) throws Exception {
       long startTime = System.nanoTime();
 
-      if (schema == null) {
-        schema = RowUtils.subsetSchema(arrived.schema(), keyFieldNames);
+      if (arrived.schema() != schema) {
+        schema = arrived.schema();
+        ordinals = new int[keySchema.fields().length];
+        for (int i = 0; i < ordinals.length; i++) {
+          ordinals[i] = arrived.fieldIndex(keySchema.fields()[i].name());
+        }
       }
 
-      Row key = RowUtils.subsetRow(arrived, schema);
+      EncodedKey key = EncodedKey.encode(arrived, ordinals);
       
       long endTime = System.nanoTime();
-      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_EXTRACTING_KEYS).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
+      accumulators.getHistogramAccumulators().get(ACCUMULATOR_LATENCY_EXTRACTING_KEYS).add(endTime - startTime);
 
       return key;
     }
   }
   
-  private Partitioner getPartitioner(JavaPairRDD<Row, Row> keyedArriving) {    
-    if (hasPartitioner()) {
-      Config partitionerConfig = config.getConfig("partitioner");      
-      return PartitionerFactory.create(partitionerConfig, keyedArriving); 
+  @SuppressWarnings("serial")
+  private static class DecodeKeyFunction implements PairFunction<Tuple2<EncodedKey, Row>, Row, Row> {
+    private StructType keySchema;
+
+    public DecodeKeyFunction(StructType keySchema) {
+      this.keySchema = keySchema;
     }
-    else {
-      return new HashPartitioner(keyedArriving.getNumPartitions());
+
+    @Override
+    public Tuple2<Row, Row> call(Tuple2<EncodedKey, Row> keyedArriving) throws Exception {
+      return new Tuple2<>(keyedArriving._1().decode(keySchema), keyedArriving._2());
     }
   }
   
+  // Partitions encoded keys with a partitioner of key rows
+  @SuppressWarnings("serial")
+  private static class DecodedKeyPartitioner extends Partitioner {
+    private Partitioner partitioner;
+    private StructType keySchema;
+
+    public DecodedKeyPartitioner(Partitioner partitioner, StructType keySchema) {
+      this.partitioner = partitioner;
+      this.keySchema = keySchema;
+    }
+
+    @Override
+    public int numPartitions() {
+      return partitioner.numPartitions();
+    }
+
+    @Override
+    public int getPartition(Object key) {
+      return partitioner.getPartition(((EncodedKey)key).decode(keySchema));
+    }
+  }
+  
+  // Encoded keys are hash partitioned by their precomputed hash. Other partitioners partition by
+  // the key row, so they are given the decoded key of each record.
+  private Partitioner getPartitioner(JavaPairRDD<EncodedKey, Row> keyedArriving, StructType keySchema) {    
+    if (hasPartitioner()) {
+      Config partitionerConfig = config.getConfig("partitioner");
+      
+      if (!partitionerConfig.hasPath(PartitionerFactory.TYPE_CONFIG_NAME) ||
+          !partitionerConfig.getString(PartitionerFactory.TYPE_CONFIG_NAME).equals("hash"))
+      {
+        Partitioner partitioner = PartitionerFactory.create(
+            partitionerConfig, keyedArriving.mapToPair(new DecodeKeyFunction(keySchema)));
+        return new DecodedKeyPartitioner(partitioner, keySchema);
+      }
+    }
+    
+    return new HashPartitioner(keyedArriving.getNumPartitions());
+  }
+  
   @SuppressWarnings("serial")
   private static class JoinExistingForKeysFunction
-  implements PairFlatMapFunction<Iterator<Tuple2<Row, Iterable<Row>>>, Row, Tuple2<Iterable<Row>, Iterable<Row>>> {
+  implements PairFlatMapFunction<Iterator<Tuple2<EncodedKey, Iterable<Row>>>, Row, Tuple2<Iterable<Row>, Iterable<Row>>> {
     private Config outputConfig;
-    private RandomOutput output;
     private List<String> keyFieldNames;
+    private StructType keySchema;
+    private int chunkSize;
+    private int lookupsInFlight;
+    private Config cacheConfig;
+    private Set<String> existingFieldNames;
     private Accumulators accumulators;
 
-    public JoinExistingForKeysFunction(Config outputConfig, List<String> keyFieldNames, Accumulators accumulators) {
+    public JoinExistingForKeysFunction(Config outputConfig, List<String> keyFieldNames, StructType keySchema,
+        int chunkSize, int lookupsInFlight, Config cacheConfig, Set<String> existingFieldNames,
+        Accumulators accumulators)
+    {
       this.outputConfig = outputConfig;
       this.keyFieldNames = keyFieldNames;
+      this.keySchema = keySchema;
+      this.chunkSize = chunkSize;
+      this.lookupsInFlight = lookupsInFlight;
+      this.cacheConfig = cacheConfig;
+      this.existingFieldNames = existingFieldNames;
       this.accumulators = accumulators;
     }
 
-    // Add the existing records for the keys to the arriving records
+    // Add the existing records for the keys to the arriving records, a chunk of keys at a time
     @Override
     public Iterator<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>>
-    call(Iterator<Tuple2<Row, Iterable<Row>>> arrivingForKeysIterator) throws Exception
+    call(final Iterator<Tuple2<EncodedKey, Iterable<Row>>> arrivingForKeysIterator) throws Exception
     {
       // If there are no arriving keys, return an empty list
       if (!arrivingForKeysIterator.hasNext()) {
         return Lists.<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>>newArrayList().iterator();
       }
-      
-      long startTime = System.nanoTime();
-
-      // If we have not instantiated the output for this partition, instantiate it
-      if (output == null) {
-        output = (RandomOutput)OutputFactory.create(outputConfig);
-        if (output instanceof UsesAccumulators) {
-            ((UsesAccumulators)output).receiveAccumulators(accumulators);
-        }
-      }
-
-      // Convert the iterator of keys to a list
-      List<Tuple2<Row, Iterable<Row>>> arrivingForKeys = Lists.newArrayList(arrivingForKeysIterator);
-
-      // Extract the keys from the keyed arriving records
-      Set<Row> arrivingKeys = extractKeys(arrivingForKeys);
-
-      // Get the existing records for those keys from the output
-      Iterable<Row> existingWithoutKeys = output.getExistingForFilters(arrivingKeys);
-      
-      // Map the retrieved existing records to the keys they were looked up from
-      Map<Row, Iterable<Row>> existingForKeys = mapExistingToKeys(existingWithoutKeys);
-
-      // Attach the existing records by key to the arriving records by key
-      List<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> arrivingAndExistingForKeys = 
-          attachExistingToArrivingForKeys(existingForKeys, arrivingForKeys);
-      
-      long endTime = System.nanoTime();
-      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_EXISTING).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
-
-      return arrivingAndExistingForKeys.iterator();
-    }
 
-    private Set<Row> extractKeys(List<Tuple2<Row, Iterable<Row>>> arrivingForKeys) {
-      Set<Row> arrivingKeys = Sets.newHashSet();
+      RandomOutput output = createRandomOutput(outputConfig, cacheConfig, keyFieldNames, existingFieldNames, accumulators);
 
-      for (Tuple2<Row, Iterable<Row>> arrivingForKey : arrivingForKeys) {
-        arrivingKeys.add(arrivingForKey._1());
-      }
+      // The key rows are only rebuilt after the shuffle, to look up the existing records and to plan
+      Iterator<Tuple2<Row, Iterable<Row>>> decodedArrivingForKeys = new Iterator<Tuple2<Row, Iterable<Row>>>() {
+        @Override
+        public boolean hasNext() {
+          return arrivingForKeysIterator.hasNext();
+        }
 
-      return arrivingKeys;
-    }
+        @Override
+        public Tuple2<Row, Iterable<Row>> next() {
+          Tuple2<EncodedKey, Iterable<Row>> arrivingForKey = arrivingForKeysIterator.next();
+          
+          return new Tuple2<>(arrivingForKey._1().decode(keySchema), arrivingForKey._2());
+        }
 
-    private Map<Row, Iterable<Row>> mapExistingToKeys(Iterable<Row> existingWithoutKeys) throws Exception {
-      Map<Row, Iterable<Row>> existingForKeys = Maps.newHashMap();
-      ExtractKeyFunction extractKeyFunction = new ExtractKeyFunction(keyFieldNames, accumulators);
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
 
-      for (Row existing : existingWithoutKeys) {
-        Row existingKey = extractKeyFunction.call(existing);
+      final ExistingLookupIterator<Iterable<Row>> lookedUpChunks = new ExistingLookupIterator<>(
+          Iterators.partition(decodedArrivingForKeys, chunkSize), output, keyFieldNames, lookupsInFlight,
+          accumulators.getHistogramAccumulators().get(ACCUMULATOR_LATENCY_EXISTING));
 
-        if (!existingForKeys.containsKey(existingKey)) {
-          existingForKeys.put(existingKey, Lists.<Row>newArrayList());
+      return Iterators.concat(new Iterator<Iterator<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>>>() {
+        @Override
+        public boolean hasNext() {
+          return lookedUpChunks.hasNext();
         }
 
-        ((List<Row>)existingForKeys.get(existingKey)).add(existing);
-      }
+        @Override
+        public Iterator<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> next() {
+          return attachExistingToArrivingForKeys(lookedUpChunks.next()).iterator();
+        }
 
-      return existingForKeys;
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      });
     }
 
     private List<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> attachExistingToArrivingForKeys
-    (Map<Row, Iterable<Row>> existingForKeys, List<Tuple2<Row, Iterable<Row>>> arrivingForKeys)
+    (ExistingLookupIterator.Chunk<Iterable<Row>> lookedUpChunk)
     {
       List<Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>>> arrivingAndExistingForKeys = Lists.newArrayList();
-      for (Tuple2<Row, Iterable<Row>> arrivingForKey : arrivingForKeys) {
+      for (Tuple2<Row, Iterable<Row>> arrivingForKey : lookedUpChunk.getArrivingForKeys()) {
         Row key = arrivingForKey._1();
         Iterable<Row> arriving = arrivingForKey._2();
-
-        Iterable<Row> existing;
-        if (existingForKeys.containsKey(key)) {
-          existing = existingForKeys.get(key);
-        }
-        else {
-          existing = Lists.newArrayList();
-        }
+        Iterable<Row> existing = lookedUpChunk.getExistingForKey(key);
 
         // Oh my...
         Tuple2<Row, Tuple2<Iterable<Row>, Iterable<Row>>> arrivingAndExistingForKey = 
@@ -558,24 +1196,96 @@ public abstract class DataStep extends Step implements UsesAccumulators {
       Iterable<PlannedRow> plannedForKey = planner.planMutationsForKey(key, arrivingRecords, existingRecords);
       
       long endTime = System.nanoTime();
-      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_PLANNING).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
+      accumulators.getHistogramAccumulators().get(ACCUMULATOR_LATENCY_PLANNING).add(endTime - startTime);
 
       return plannedForKey.iterator();
     }
   };
 
-  private void applyMutations(JavaRDD<PlannedRow> planned, Config outputConfig) {
-    planned.foreachPartition(new ApplyMutationsForPartitionFunction(outputConfig, accumulators));
+  // Compacts the planned mutations of a partition, which are applied together in any case
+  @SuppressWarnings("serial")
+  private static class CompactMutationsFunction implements FlatMapFunction<Iterator<PlannedRow>, PlannedRow> {
+    private List<String> compactionFieldNames;
+
+    public CompactMutationsFunction(List<String> compactionFieldNames) {
+      this.compactionFieldNames = compactionFieldNames;
+    }
+
+    @Override
+    public Iterator<PlannedRow> call(Iterator<PlannedRow> planned) throws Exception {
+      MutationCompactor compactor = new MutationCompactor(compactionFieldNames);
+
+      return compactor.compact(Lists.newArrayList(planned)).iterator();
+    }
+  }
+
+  private void applyMutations(JavaRDD<PlannedRow> planned, Config outputConfig, List<String> keyFieldNames) {
+    planned.foreachPartition(new ApplyMutationsForPartitionFunction(
+        outputConfig, keyFieldNames, getRandomCacheConfig(), getExistingFieldNames(keyFieldNames), accumulators));
+  }
+  
+  private void applyMutationsInChunks(JavaRDD<PlannedRow> planned, Config outputConfig, List<String> keyFieldNames) {
+    planned.foreachPartition(new ApplyMutationsForChunksFunction(
+        outputConfig, keyFieldNames, getRandomChunkSize(), getRandomCacheConfig(),
+        getExistingFieldNames(keyFieldNames), accumulators));
+  }
+  
+  // Applies the planned mutations of a partition a chunk at a time, so that the partition does not
+  // need to be held in memory at once
+  @SuppressWarnings("serial")
+  private static class ApplyMutationsForChunksFunction implements VoidFunction<Iterator<PlannedRow>> {
+    private Config config;
+    private List<String> keyFieldNames;
+    private int chunkSize;
+    private Config cacheConfig;
+    private Set<String> existingFieldNames;
+    private Accumulators accumulators;
+
+    public ApplyMutationsForChunksFunction(Config config, List<String> keyFieldNames, int chunkSize,
+        Config cacheConfig, Set<String> existingFieldNames, Accumulators accumulators)
+    {
+      this.config = config;
+      this.keyFieldNames = keyFieldNames;
+      this.chunkSize = chunkSize;
+      this.cacheConfig = cacheConfig;
+      this.existingFieldNames = existingFieldNames;
+      this.accumulators = accumulators;
+    }
+
+    @Override
+    public void call(Iterator<PlannedRow> plannedIterator) throws Exception {
+      RandomOutput output = createRandomOutput(config, cacheConfig, keyFieldNames, existingFieldNames, accumulators);
+      
+      Iterator<List<PlannedRow>> plannedChunks = Iterators.partition(plannedIterator, chunkSize);
+      while (plannedChunks.hasNext()) {
+        List<PlannedRow> plannedChunk = plannedChunks.next();
+        
+        long startTime = System.nanoTime();
+        
+        output.applyRandomMutations(plannedChunk);
+        
+        long endTime = System.nanoTime();
+        accumulators.getHistogramAccumulators().get(ACCUMULATOR_LATENCY_APPLYING).add(endTime - startTime);
+      }
+    }
   }
 
   @SuppressWarnings("serial")
   private static class ApplyMutationsForPartitionFunction implements VoidFunction<Iterator<PlannedRow>> {
     private Config config;
+    private List<String> keyFieldNames;
+    private Config cacheConfig;
+    private Set<String> existingFieldNames;
     private RandomOutput output;
     private Accumulators accumulators;
 
-    public ApplyMutationsForPartitionFunction(Config config, Accumulators accumulators) {
+    public ApplyMutationsForPartitionFunction(Config config, List<String> keyFieldNames, Config cacheConfig,
+        Set<String> existingFieldNames, Accumulators accumulators)
+    {
       this.config = config;
+      this.keyFieldNames = keyFieldNames;
+      this.cacheConfig = cacheConfig;
+      this.existingFieldNames = existingFieldNames;
       this.accumulators = accumulators;
     }
 
@@ -584,10 +1294,7 @@ public abstract class DataStep extends Step implements UsesAccumulators {
       long startTime = System.nanoTime();
 
       if (output == null) {
-        output = (RandomOutput)OutputFactory.create(config);
-        if (output instanceof UsesAccumulators) {
-          ((UsesAccumulators)output).receiveAccumulators(accumulators);
-        }
+        output = createRandomOutput(config, cacheConfig, keyFieldNames, existingFieldNames, accumulators);
       }
       
       List<PlannedRow> planned = Lists.newArrayList(plannedIterator);
@@ -595,8 +1302,34 @@ public abstract class DataStep extends Step implements UsesAccumulators {
       output.applyRandomMutations(planned);
       
       long endTime = System.nanoTime();
-      accumulators.getDoubleAccumulators().get(ACCUMULATOR_SECONDS_APPLYING).add((endTime - startTime) / 1000.0 / 1000.0 / 1000.0);
+      accumulators.getHistogramAccumulators().get(ACCUMULATOR_LATENCY_APPLYING).add(endTime - startTime);
+    }
+  }
+  
+  // Create the random output for a task, behind the executor's cache of existing records if the
+  // step enables it, and projected to the existing fields that the planner reads if it declares them
+  private static RandomOutput createRandomOutput(Config outputConfig, Config cacheConfig,
+      List<String> keyFieldNames, Set<String> existingFieldNames, Accumulators accumulators)
+  {
+    RandomOutput output = (RandomOutput)OutputFactory.create(outputConfig);
+    
+    if (cacheConfig != null) {
+      output = new CachedRandomOutput(output, outputConfig, keyFieldNames);
+    }
+    
+    if (existingFieldNames != null && output instanceof CanProjectExisting) {
+      ((CanProjectExisting)output).projectExisting(existingFieldNames);
+    }
+    
+    if (cacheConfig != null) {
+      output.configure(cacheConfig);
     }
+    
+    if (output instanceof UsesAccumulators) {
+      ((UsesAccumulators)output).receiveAccumulators(accumulators);
+    }
+    
+    return output;
   }
 
 }
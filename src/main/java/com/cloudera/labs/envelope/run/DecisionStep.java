@@ -23,7 +23,6 @@ import org.apache.spark.sql.Row;
 import org.apache.spark.sql.types.DataTypes;
 
 import com.cloudera.labs.envelope.utils.ConfigUtils;
-import com.cloudera.labs.envelope.utils.StepUtils;
 import com.google.common.base.Optional;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
@@ -94,40 +93,38 @@ public class DecisionStep extends RefactorStep {
   // allowed to run if the decision result is false. Subsequent steps that can never be submitted
   // as a result of the pruning of immediately dependent steps are also pruned.
   @Override
-  public Set<Step> refactor(Set<Step> steps) {
-    Set<Step> decisionDependentSteps = StepUtils.getImmediateDependentSteps(this, steps);
-    Set<Step> pruneSteps = getPruneSteps(decisionDependentSteps, steps);
+  public void refactor(StepGraph graph) {
+    Set<Step> decisionDependentSteps = graph.getImmediateDependents(this);
+    Set<Step> pruneSteps = getPruneSteps(decisionDependentSteps, graph);
     
-    steps.removeAll(pruneSteps);
+    graph.removeSteps(pruneSteps);
     
     this.setSubmitted(true);
-
-    return steps;
   }
   
-  private Set<Step> getPruneSteps(Set<Step> decideSteps, Set<Step> allSteps) {
+  private Set<Step> getPruneSteps(Set<Step> decideSteps, StepGraph graph) {
     Set<Step> pruneSteps = Sets.newHashSet();
     
-    boolean decision = evaluateDecision(allSteps);
+    boolean decision = evaluateDecision(graph);
     
     for (Step decideStep : decideSteps) {
       if (decision != this.ifTrueStepNames.contains(decideStep.getName())) {
         pruneSteps.add(decideStep);
-        pruneSteps.addAll(StepUtils.getAllDependentSteps(decideStep, allSteps));
+        pruneSteps.addAll(graph.getAllDependents(decideStep));
       }
     }
     
     return pruneSteps;
   }
   
-  private boolean evaluateDecision(Set<Step> steps) {
+  private boolean evaluateDecision(StepGraph graph) {
     switch (decisionMethod) {
       case LITERAL:
         return evaluateLiteralDecision();
       case STEP_BY_KEY:
-        return evaluateStepByKeyDecision(steps);
+        return evaluateStepByKeyDecision(graph);
       case STEP_BY_VALUE:
-        return evaluateStepByValueDecision(steps);
+        return evaluateStepByValueDecision(graph);
       default:
         throw new RuntimeException("Decision step's decision method was not initialized");
     }
@@ -137,8 +134,8 @@ public class DecisionStep extends RefactorStep {
     return literalResult;
   }
   
-  private boolean evaluateStepByKeyDecision(Set<Step> steps) {
-    Optional<Step> optionalStep = StepUtils.getStepForName(stepByKeyStepName, steps);
+  private boolean evaluateStepByKeyDecision(StepGraph graph) {
+    Optional<Step> optionalStep = graph.getStep(stepByKeyStepName);
     
     if (!optionalStep.isPresent()) {
       throw new RuntimeException("Unknown decision step's key step: " + stepByValueStepName);
@@ -170,8 +167,8 @@ public class DecisionStep extends RefactorStep {
     return decision;
   }
   
-  private boolean evaluateStepByValueDecision(Set<Step> steps) {
-    Optional<Step> optionalStep = StepUtils.getStepForName(stepByValueStepName, steps);
+  private boolean evaluateStepByValueDecision(StepGraph graph) {
+    Optional<Step> optionalStep = graph.getStep(stepByValueStepName);
     
     if (!optionalStep.isPresent()) {
       throw new RuntimeException("Unknown decision step's value step: " + stepByValueStepName);
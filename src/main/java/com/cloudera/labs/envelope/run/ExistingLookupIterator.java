@@ -0,0 +1,238 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.spark.TaskContext;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.util.TaskCompletionListener;
+
+import com.cloudera.labs.envelope.output.CanStreamExisting;
+import com.cloudera.labs.envelope.output.RandomOutput;
+import com.cloudera.labs.envelope.spark.HistogramAccumulator;
+import com.cloudera.labs.envelope.utils.RowUtils;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import scala.Tuple2;
+
+/**
+ * Attaches the existing records of a random output to chunks of arriving keys. The existing
+ * records of up to a maximum number of chunks are looked up in the background ahead of the chunk
+ * that is being consumed, so that the round trips to the output overlap with the planning of the
+ * chunks that have already been looked up. At most that many chunks, plus the chunk being
+ * consumed, are held in memory at once.
+ * @param <A> The type of the arriving records for each key.
+ */
+public class ExistingLookupIterator<A> implements Iterator<ExistingLookupIterator.Chunk<A>> {
+
+  private Iterator<List<Tuple2<Row, A>>> arrivingChunks;
+  private RandomOutput output;
+  private List<String> keyFieldNames;
+  private int maxLookupsInFlight;
+  private HistogramAccumulator lookupLatencies;
+  private ExecutorService executor;
+  private Deque<Tuple2<List<Tuple2<Row, A>>, Future<Map<Row, List<Row>>>>> lookupsInFlight = new ArrayDeque<>();
+
+  /**
+   * @param arrivingChunks The chunks of keys to look up, each with the arriving records for the key.
+   * Each key must only appear once within a chunk.
+   * @param output The output to look up the existing records from. If the maximum number of
+   * lookups in flight is more than one then the output must allow concurrent lookups.
+   * @param keyFieldNames The names of the key fields of the existing records.
+   * @param maxLookupsInFlight The maximum number of chunks to look up ahead of the chunk that is
+   * being consumed.
+   * @param lookupLatencies The accumulator to record the latency of each lookup to.
+   */
+  public ExistingLookupIterator(Iterator<List<Tuple2<Row, A>>> arrivingChunks, RandomOutput output,
+      List<String> keyFieldNames, int maxLookupsInFlight, HistogramAccumulator lookupLatencies)
+  {
+    this.arrivingChunks = arrivingChunks;
+    this.output = output;
+    this.keyFieldNames = keyFieldNames;
+    this.maxLookupsInFlight = maxLookupsInFlight;
+    this.lookupLatencies = lookupLatencies;
+  }
+
+  @Override
+  public boolean hasNext() {
+    startLookups();
+
+    return !lookupsInFlight.isEmpty();
+  }
+
+  @Override
+  public Chunk<A> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    Tuple2<List<Tuple2<Row, A>>, Future<Map<Row, List<Row>>>> lookup = lookupsInFlight.poll();
+
+    Map<Row, List<Row>> existingForKeys;
+    try {
+      existingForKeys = lookup._2().get();
+    }
+    catch (ExecutionException e) {
+      close();
+      throw new RuntimeException("Could not look up the existing records from the output", e.getCause());
+    }
+    catch (InterruptedException e) {
+      close();
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while looking up the existing records from the output", e);
+    }
+
+    // Start the next lookups before the caller moves on to this chunk
+    startLookups();
+
+    if (lookupsInFlight.isEmpty()) {
+      close();
+    }
+
+    return new Chunk<>(lookup._1(), existingForKeys);
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  private void startLookups() {
+    while (lookupsInFlight.size() < maxLookupsInFlight && arrivingChunks.hasNext()) {
+      List<Tuple2<Row, A>> arrivingChunk = arrivingChunks.next();
+      Future<Map<Row, List<Row>>> existing = getExecutor().submit(new LookupExistingCallable(arrivingChunk));
+
+      lookupsInFlight.add(new Tuple2<List<Tuple2<Row, A>>, Future<Map<Row, List<Row>>>>(arrivingChunk, existing));
+    }
+  }
+
+  private ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(maxLookupsInFlight,
+          new ThreadFactoryBuilder().setNameFormat("envelope-existing-lookup-%d").setDaemon(true).build());
+
+      // Stop any outstanding lookups if the task ends before the chunks have all been consumed
+      TaskContext taskContext = TaskContext.get();
+      if (taskContext != null) {
+        taskContext.addTaskCompletionListener(new TaskCompletionListener() {
+          @Override
+          public void onTaskCompletion(TaskContext context) {
+            close();
+          }
+        });
+      }
+    }
+
+    return executor;
+  }
+
+  private synchronized void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private class LookupExistingCallable implements Callable<Map<Row, List<Row>>> {
+    private List<Tuple2<Row, A>> arrivingChunk;
+
+    public LookupExistingCallable(List<Tuple2<Row, A>> arrivingChunk) {
+      this.arrivingChunk = arrivingChunk;
+    }
+
+    @Override
+    public Map<Row, List<Row>> call() throws Exception {
+      long startTime = System.nanoTime();
+
+      List<Row> keys = Lists.newArrayListWithCapacity(arrivingChunk.size());
+      for (Tuple2<Row, A> arrivingForKey : arrivingChunk) {
+        keys.add(arrivingForKey._1());
+      }
+
+      Iterator<Row> existingIterator;
+      if (output instanceof CanStreamExisting) {
+        existingIterator = ((CanStreamExisting)output).getExistingIteratorForFilters(keys);
+      }
+      else {
+        existingIterator = output.getExistingForFilters(keys).iterator();
+      }
+
+      // Map the existing records to their keys as they are retrieved
+      Map<Row, List<Row>> existingForKeys = Maps.newHashMap();
+      StructType keySchema = null;
+      while (existingIterator.hasNext()) {
+        Row existing = existingIterator.next();
+
+        if (keySchema == null) {
+          keySchema = RowUtils.subsetSchema(existing.schema(), keyFieldNames);
+        }
+        Row existingKey = RowUtils.subsetRow(existing, keySchema);
+
+        List<Row> existingForKey = existingForKeys.get(existingKey);
+        if (existingForKey == null) {
+          existingForKey = Lists.newArrayList();
+          existingForKeys.put(existingKey, existingForKey);
+        }
+        existingForKey.add(existing);
+      }
+
+      long endTime = System.nanoTime();
+      if (lookupLatencies != null) {
+        lookupLatencies.add(endTime - startTime);
+      }
+
+      return existingForKeys;
+    }
+  }
+
+  /**
+   * A chunk of arriving keys with the existing records that were looked up for them.
+   * @param <A> The type of the arriving records for each key.
+   */
+  public static class Chunk<A> {
+    private List<Tuple2<Row, A>> arrivingForKeys;
+    private Map<Row, List<Row>> existingForKeys;
+
+    public Chunk(List<Tuple2<Row, A>> arrivingForKeys, Map<Row, List<Row>> existingForKeys) {
+      this.arrivingForKeys = arrivingForKeys;
+      this.existingForKeys = existingForKeys;
+    }
+
+    public List<Tuple2<Row, A>> getArrivingForKeys() {
+      return arrivingForKeys;
+    }
+
+    public List<Row> getExistingForKey(Row key) {
+      List<Row> existingForKey = existingForKeys.get(key);
+
+      return existingForKey != null ? existingForKey : Lists.<Row>newArrayList();
+    }
+  }
+
+}
@@ -58,9 +58,9 @@ public class LoopStep extends RefactorStep {
   // that the iterations of the loop must be known when the loop step runs, either from
   // static values in the configuration or from dynamic values provided by previous steps.
   @Override
-  public Set<Step> refactor(Set<Step> steps) {
+  public void refactor(StepGraph graph) {
     // The values that the loop iterates over
-    List<Object> values = getValues(steps);
+    List<Object> values = getValues(graph);
     
     // The mode that the loop runs as, either 'parallel' or 'serial'
     String mode = getMode();
@@ -69,14 +69,19 @@ public class LoopStep extends RefactorStep {
     // This is defined as all steps that are immediately dependent on the loop step.
     // Steps that are indirectly dependent on the loop step will not be looped over,
     // and will run when the steps of the unrolled loop has completed.
-    Set<Step> loopGraphSteps = StepUtils.getImmediateDependentSteps(this, steps);
+    Set<Step> loopGraphSteps = graph.getImmediateDependents(this);
     LOG.debug("Loop graph steps found: " + StepUtils.stepNamesAsString(loopGraphSteps));
     
+    Set<String> loopGraphStepNames = Sets.newHashSet();
+    for (Step loopGraphStep : loopGraphSteps) {
+      loopGraphStepNames.add(loopGraphStep.getName());
+    }
+    
     // Determine which steps are directly dependent on any loop graph steps, which we will
     // only allow to run when all iterations of the loop have completed.
     Set<Step> loopGraphStepDependents = Sets.newHashSet();
     for (Step loopGraphStep : loopGraphSteps) {
-      for (Step loopGraphStepDependentCandidate : StepUtils.getImmediateDependentSteps(loopGraphStep, steps)) {
+      for (Step loopGraphStepDependentCandidate : graph.getImmediateDependents(loopGraphStep)) {
         if (!loopGraphSteps.contains(loopGraphStepDependentCandidate)) {
           loopGraphStepDependents.add(loopGraphStepDependentCandidate);
         }
@@ -86,7 +91,7 @@ public class LoopStep extends RefactorStep {
     
     // Remove the loop graph steps from the full graph so that we can re-insert it
     // once per loop iteration
-    steps.removeAll(loopGraphSteps);
+    graph.removeSteps(loopGraphSteps);
     
     // Iterate through the loop, adding the loop graph steps each time.
     // Each iteration of the loop is a copy of the loop graph steps, where the names of
@@ -98,7 +103,8 @@ public class LoopStep extends RefactorStep {
       Set<Step> iterationSteps = StepUtils.copySteps(loopGraphSteps);
       
       // Go through the iteration steps and adjust the dependency names to have
-      // the iteration value suffix for dependencies within the loop graph steps
+      // the iteration value suffix for dependencies within the loop graph steps.
+      // The iteration steps are not yet in the graph so they can be changed directly.
       for (Step iterationStep : iterationSteps) {
         LOG.debug("Adjusting dependencies for iteration step: " + iterationStep.getName());
         Set<String> dependencies = iterationStep.getDependencyNames();
@@ -106,7 +112,7 @@ public class LoopStep extends RefactorStep {
         Set<String> dependenciesToRemove = Sets.newHashSet();
         
         for (String dependency : dependencies) {
-          if (StepUtils.getStepForName(dependency, loopGraphSteps).isPresent()) {
+          if (loopGraphStepNames.contains(dependency)) {
             dependenciesToAdd.add(dependency + "_" + value);
             dependenciesToRemove.add(dependency);
           }
@@ -130,7 +136,7 @@ public class LoopStep extends RefactorStep {
         for (Step loopGraphStepDependent : loopGraphStepDependents) {
           if (!(iterationStep instanceof LoopStep)) {
             LOG.debug("Adding dependency {} to {}", iterationStep.getName(), loopGraphStepDependent.getName());
-            loopGraphStepDependent.getDependencyNames().add(adjustedIterationStepName);
+            graph.addDependency(loopGraphStepDependent, adjustedIterationStepName);
           }
         }
         
@@ -159,24 +165,22 @@ public class LoopStep extends RefactorStep {
       }
       previousIterationSteps = iterationSteps;
 
-      steps.addAll(iterationSteps);
+      graph.addSteps(iterationSteps);
     }
     
     // Remove original loop graph step dependencies from loop graph step dependents
     for (Step loopGraphStepDependent : loopGraphStepDependents) {
       for (Step loopGraphStep : loopGraphSteps) {
-        loopGraphStepDependent.getDependencyNames().remove(loopGraphStep.getName());
+        graph.removeDependency(loopGraphStepDependent, loopGraphStep.getName());
       }
     }
     
-    LOG.debug("Unrolled steps: " + StepUtils.stepNamesAsString(steps));
+    LOG.debug("Unrolled steps: " + StepUtils.stepNamesAsString(graph.getSteps()));
     
     this.setSubmitted(true);
-    
-    return steps;
   }
   
-  private List<Object> getValues(Set<Step> steps) {
+  private List<Object> getValues(StepGraph graph) {
     List<Object> values;
     
     String source = config.getString(SOURCE_PROPERTY);
@@ -188,7 +192,7 @@ public class LoopStep extends RefactorStep {
         values = getValuesFromList();
         break;
       case SOURCE_STEP:
-        values = getValuesFromStep(steps);
+        values = getValuesFromStep(graph);
         break;
       default:
         throw new RuntimeException("Invalid source for loop step '" + getName() + "'");
@@ -209,9 +213,9 @@ public class LoopStep extends RefactorStep {
     return (List<Object>)config.getAnyRefList(LIST_PROPERTY);
   }
   
-  private List<Object> getValuesFromStep(Set<Step> steps) {
+  private List<Object> getValuesFromStep(StepGraph graph) {
     String stepName = config.getString(STEP_PROPERTY);
-    Optional<Step> optionalStep = StepUtils.getStepForName(stepName, steps);
+    Optional<Step> optionalStep = graph.getStep(stepName);
     
     if (!optionalStep.isPresent()) {
       throw new RuntimeException("Step source for loop step '" + getName() + "' does not exist.");
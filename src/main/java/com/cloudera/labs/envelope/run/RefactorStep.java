@@ -25,6 +25,16 @@ public abstract class RefactorStep extends Step {
     super(name, config);
   }
   
-  public abstract Set<Step> refactor(Set<Step> steps);
+  /**
+   * Refactor the steps of the pipeline. All changes to the steps must be made through the graph.
+   * @param graph The graph of steps to refactor in place.
+   */
+  public abstract void refactor(StepGraph graph);
+  
+  public Set<Step> refactor(Set<Step> steps) {
+    refactor(new StepGraph(steps));
+    
+    return steps;
+  }
 
 }
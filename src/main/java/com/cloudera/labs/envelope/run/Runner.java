@@ -15,8 +15,14 @@
  */
 package com.cloudera.labs.envelope.run;
 
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -35,12 +41,18 @@ import com.cloudera.labs.envelope.input.BatchInput;
 import com.cloudera.labs.envelope.input.Input;
 import com.cloudera.labs.envelope.input.InputFactory;
 import com.cloudera.labs.envelope.input.StreamInput;
+import com.cloudera.labs.envelope.metrics.MetricsReporter;
+import com.cloudera.labs.envelope.metrics.MetricsReporterFactory;
+import com.cloudera.labs.envelope.profile.PipelineProfiler;
 import com.cloudera.labs.envelope.spark.AccumulatorRequest;
 import com.cloudera.labs.envelope.spark.Accumulators;
 import com.cloudera.labs.envelope.spark.Contexts;
 import com.cloudera.labs.envelope.spark.Contexts.ExecutionMode;
+import com.cloudera.labs.envelope.spark.HistogramAccumulator;
+import com.cloudera.labs.envelope.spark.LatencyHistogram;
 import com.cloudera.labs.envelope.utils.StepUtils;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigList;
@@ -60,8 +72,11 @@ public class Runner {
   public static final String LOOP_TYPE = "loop";
   public static final String DECISION_TYPE = "decision";
   public static final String PIPELINE_THREADS_PROPERTY = "application.pipeline.threads";
+  public static final String METRICS_REPORTER_PROPERTY = "application.metrics.reporter";
   
   private static ExecutorService threadPool;
+  private static Accumulators accumulators;
+  private static MetricsReporter metricsReporter;
   private static Logger LOG = LoggerFactory.getLogger(Runner.class);
 
   /**
@@ -77,9 +92,13 @@ public class Runner {
     
     initializeAccumulators(steps);
     
+    initializeMetricsReporter(config);
+    
     initializeUDFs(config);
 
     initializeThreadPool(config);
+    
+    PipelineProfiler.initialize(config);
 
     if (StepUtils.hasStreamingStep(steps)) {
       LOG.debug("Streaming step(s) identified");
@@ -89,7 +108,11 @@ public class Runner {
     else {
       LOG.debug("No streaming steps identified");
 
-      runBatch(steps);
+      PipelineProfiler.get().startBatch();
+      runBatch(steps, true);
+      PipelineProfiler.get().finishBatch();
+      
+      reportMetrics();
     }
     
     shutdownThreadPool();
@@ -159,7 +182,9 @@ public class Runner {
   @SuppressWarnings("unchecked")
   private static void runStreaming(final Set<Step> steps) throws Exception {
     final Set<Step> independentNonStreamingSteps = StepUtils.getIndependentNonStreamingSteps(steps);
-    runBatch(independentNonStreamingSteps);
+    PipelineProfiler.get().startBatch();
+    runBatch(independentNonStreamingSteps, false);
+    PipelineProfiler.get().finishBatch();
 
     Set<StreamingStep> streamingSteps = StepUtils.getStreamingSteps(steps);
     for (final StreamingStep streamingStep : streamingSteps) {
@@ -174,25 +199,40 @@ public class Runner {
       stream.foreachRDD(new VoidFunction<JavaRDD<?>>() {
         @Override
         public void call(JavaRDD<?> raw) throws Exception {
+          StepGraph graph = new StepGraph(steps);
+          
+          PipelineProfiler.get().startBatch();
+          
           // Some independent steps might be repeating steps that have been flagged for reload
-          StepUtils.resetRepeatingSteps(steps);
+          StepUtils.resetRepeatingSteps(graph);
           // This will run any batch steps (and dependents) that are not submitted
-          runBatch(independentNonStreamingSteps);
+          runBatch(independentNonStreamingSteps, false);
           
           streamingStep.stageProgress(raw);
           
           JavaRDD<Row> translated = streamingStep.translate(raw);
           
           Dataset<Row> batchDF = Contexts.getSparkSession().createDataFrame(translated, streamSchema);
-          streamingStep.setData(batchDF);
+          PipelineProfiler.get().stepStarted(streamingStep);
+          try {
+            streamingStep.setData(batchDF);
+          }
+          finally {
+            PipelineProfiler.get().stepFinished(streamingStep);
+          }
           streamingStep.setSubmitted(true);
 
-          Set<Step> allDependentSteps = StepUtils.getAllDependentSteps(streamingStep, steps);
-          runBatch(allDependentSteps);
+          Set<Step> allDependentSteps = graph.getAllDependents(streamingStep);
+          runBatch(allDependentSteps, false);
+          
+          // The independent steps, the streaming step and its dependents are profiled as one batch
+          PipelineProfiler.get().finishBatch();
 
           StepUtils.resetDataSteps(allDependentSteps);
           
           streamingStep.recordProgress();
+          
+          reportMetrics();
         }
       });
 
@@ -208,72 +248,57 @@ public class Runner {
 
   /**
    * Run the steps in dependency order.
+   * Each batch step is started as soon as all of its own dependencies have been submitted, rather
+   * than waiting for every other step that was started before it to finish.
    * @param steps The steps to run, which may be the full Envelope pipeline, or a subset of it.
+   * @param isWholePipeline Whether the steps are the full Envelope pipeline. If they are then all of
+   * the readers of each step's data are known, so steps are only cached when their data will be
+   * read more than once, only the fields that will be read are cached, and each step is uncached
+   * once all of the steps that depend on it have been submitted.
    */
-  private static void runBatch(Set<Step> steps) throws Exception {
+  private static void runBatch(Set<Step> steps, boolean isWholePipeline) throws Exception {
     LOG.debug("Started batch for steps: {}", StepUtils.stepNamesAsString(steps));
     
-    Set<Future<Void>> offMainThreadSteps = Sets.newHashSet();
-    Set<Step> refactoredSteps = null;
-
-    // The essential logic is to loop through all of the steps until they have all been submitted.
-    // Steps will not be submitted until all of their dependency steps have been submitted first.
-    while (!StepUtils.allStepsSubmitted(steps)) {
-      LOG.debug("Not all steps have been submitted");
-      
-      for (final Step step : steps) {
+    StepGraph graph = new StepGraph(steps);
+    CompletionService<Void> completionService = new ExecutorCompletionService<>(threadPool);
+    Map<Future<Void>, Step> offMainThreadSteps = Maps.newHashMap();
+    BatchSchedule schedule = new BatchSchedule(graph, offMainThreadSteps.values());
+
+    // The essential logic is to submit every step that is ready, and then wait for the next step to
+    // finish so that the steps that were only waiting on it can be submitted too. This continues
+    // until there are no ready steps and no steps still running.
+    while (schedule.hasReadySteps() || !offMainThreadSteps.isEmpty()) {
+      while (schedule.hasReadySteps()) {
+        Step step = schedule.nextReadyStep();
         LOG.debug("Looking into step: " + step.getName());
 
         if (step instanceof BatchStep) {
-          LOG.debug("Step is batch");
+          LOG.debug("Step dependencies have been submitted, running step off main thread");
           BatchStep batchStep = (BatchStep)step;
-
-          if (!batchStep.hasSubmitted()) {
-            LOG.debug("Step has not been submitted");
-
-            final Set<Step> dependencies = StepUtils.getDependencies(step, steps);
-
-            if (StepUtils.allStepsSubmitted(dependencies)) {
-              LOG.debug("Step dependencies have been submitted, running step off main thread");
-              // Batch steps are run off the main thread so that if they contain outputs they will
-              // not block the parallel execution of independent steps.
-              Future<Void> offMainThreadStep = runStepOffMainThread(batchStep, dependencies, threadPool);
-              offMainThreadSteps.add(offMainThreadStep);
-            }
-            else {
-              LOG.debug("Step dependencies have not been submitted");
-            }
-          }
-          else {
-            LOG.debug("Step has been submitted");
+          Set<Step> dependencies = graph.getDependencies(step);
+          
+          if (isWholePipeline) {
+            batchStep.setDependentSteps(graph.getImmediateDependents(step), graph.getAllDependents(step));
           }
+          
+          PipelineProfiler.get().stepReady(batchStep);
+          
+          // Batch steps are run off the main thread so that if they contain outputs they will
+          // not block the parallel execution of independent steps.
+          Future<Void> offMainThreadStep = runStepOffMainThread(batchStep, dependencies, completionService);
+          offMainThreadSteps.put(offMainThreadStep, batchStep);
         }
         else if (step instanceof StreamingStep) {
           LOG.debug("Step is streaming");
         }
         else if (step instanceof RefactorStep) {
-          LOG.debug("Step is a refactor step");
-          
-          RefactorStep refactorStep = (RefactorStep)step;
+          LOG.debug("Step dependencies have submitted, refactoring steps");
           
-          if (!refactorStep.hasSubmitted()) {
-            LOG.debug("Step has not been submitted");
-          
-            final Set<Step> dependencies = StepUtils.getDependencies(step, steps);
-  
-            if (StepUtils.allStepsSubmitted(dependencies)) {
-              LOG.debug("Step dependencies have submitted, refactoring steps");
-              refactoredSteps = refactorStep.refactor(steps);
-              LOG.debug("Steps refactored");
-              break;
-            }
-            else {
-              LOG.debug("Step dependencies have not been submitted");
-            }
-          }
-          else {
-            LOG.debug("Step has been submitted");
-          }
+          // Steps that are already running are never touched by a refactor because they can not
+          // depend on the refactor step, so they can keep running while the graph is rewritten.
+          ((RefactorStep)step).refactor(graph);
+          schedule = new BatchSchedule(graph, offMainThreadSteps.values());
+          LOG.debug("Steps refactored");
         }
         else {
           throw new RuntimeException("Unknown step class type: " + step.getClass().getName());
@@ -282,16 +307,35 @@ public class Runner {
         LOG.debug("Finished looking into step: " + step.getName());
       }
 
-      awaitAllOffMainThreadsFinished(offMainThreadSteps);
-      offMainThreadSteps.clear();
+      if (!offMainThreadSteps.isEmpty()) {
+        Future<Void> finished = completionService.take();
+        Step finishedStep = offMainThreadSteps.remove(finished);
+        
+        // Surfaces any exception thrown by the step
+        finished.get();
+        LOG.debug("Step finished: " + finishedStep.getName());
+        
+        schedule.stepFinished(finishedStep);
+      }
       
-      if (refactoredSteps != null) {
-        steps = refactoredSteps;
-        refactoredSteps = null;
+      while (schedule.hasReleasableSteps()) {
+        Step releasableStep = schedule.nextReleasableStep();
+        
+        if (isWholePipeline && releasableStep instanceof DataStep) {
+          LOG.debug("All dependents of step have been submitted, uncaching step: " + releasableStep.getName());
+          ((DataStep)releasableStep).clearCache();
+        }
+      }
+    }
+    
+    for (Step step : graph.getSteps()) {
+      if (!step.hasSubmitted() && !(step instanceof StreamingStep)) {
+        throw new RuntimeException("Step '" + step.getName() + "' could not be submitted because " +
+            "not all of its dependencies could be submitted");
       }
     }
 
-    LOG.debug("Finished batch for steps: {}", StepUtils.stepNamesAsString(steps));
+    LOG.debug("Finished batch for steps: {}", StepUtils.stepNamesAsString(graph.getSteps()));
   }
 
   private static void initializeThreadPool(Config config) {
@@ -303,22 +347,24 @@ public class Runner {
     }
   }
 
-  private static Future<Void> runStepOffMainThread(final BatchStep step, final Set<Step> dependencies, final ExecutorService threadPool) {
-    return threadPool.submit(new Callable<Void>() {
+  private static Future<Void> runStepOffMainThread(final BatchStep step, final Set<Step> dependencies,
+      final CompletionService<Void> completionService)
+  {
+    return completionService.submit(new Callable<Void>() {
       @Override
       public Void call() throws Exception {
-        step.submit(dependencies);
+        PipelineProfiler.get().stepStarted(step);
+        try {
+          step.submit(dependencies);
+        }
+        finally {
+          PipelineProfiler.get().stepFinished(step);
+        }
         return null;
       }
     });
   }
 
-  private static void awaitAllOffMainThreadsFinished(Set<Future<Void>> offMainThreadSteps) throws Exception {
-    for (Future<Void> offMainThreadStep : offMainThreadSteps) {
-      offMainThreadStep.get();
-    }
-  }
-
   private static void shutdownThreadPool() {
     threadPool.shutdown();
   }
@@ -330,13 +376,31 @@ public class Runner {
       requests.addAll(dataStep.getAccumulatorRequests());
     }
     
-    Accumulators accumulators = new Accumulators(requests);
+    accumulators = new Accumulators(requests);
     
     for (DataStep dataStep : StepUtils.getDataSteps(steps)) {
       dataStep.receiveAccumulators(accumulators);
     }
   }
   
+  private static void initializeMetricsReporter(Config config) {
+    if (config.hasPath(METRICS_REPORTER_PROPERTY)) {
+      metricsReporter = MetricsReporterFactory.create(config.getConfig(METRICS_REPORTER_PROPERTY));
+    }
+  }
+  
+  // Report the latencies recorded since the last report, so that each report covers one batch
+  private static void reportMetrics() throws Exception {
+    if (metricsReporter == null) return;
+    
+    Map<String, LatencyHistogram> histograms = Maps.newTreeMap();
+    for (Map.Entry<String, HistogramAccumulator> accumulator : accumulators.getHistogramAccumulators().entrySet()) {
+      histograms.put(accumulator.getKey(), accumulator.getValue().valueAndReset());
+    }
+    
+    metricsReporter.report(histograms);
+  }
+  
   private static void initializeUDFs(Config config) {
     if (!config.hasPath("udfs")) return;
     
@@ -370,4 +434,103 @@ public class Runner {
     }
   }
 
+  /**
+   * The scheduling state of one version of the step graph. For each step it tracks how many of
+   * its dependencies have not yet been submitted, so that a step can be queued as ready the
+   * moment that its last dependency finishes. It also tracks how many steps that directly or
+   * indirectly depend on each step have not yet finished, so that a step's data can be released
+   * once nothing else will read it. A new schedule is created when a refactor step rewrites the
+   * graph.
+   */
+  private static class BatchSchedule {
+    private Map<Step, Integer> pendingDependencyCounts = Maps.newHashMap();
+    private Map<Step, Set<Step>> dependents = Maps.newHashMap();
+    private Deque<Step> readySteps = new ArrayDeque<>();
+    private Map<Step, Integer> unfinishedDependentCounts = Maps.newHashMap();
+    private Map<Step, Set<Step>> unfinishedStepDependencies = Maps.newHashMap();
+    private Deque<Step> releasableSteps = new ArrayDeque<>();
+    
+    public BatchSchedule(StepGraph graph, Collection<Step> runningSteps) {
+      Set<Step> running = Sets.newHashSet(runningSteps);
+      
+      for (Step step : graph.getSteps()) {
+        dependents.put(step, graph.getImmediateDependents(step));
+        unfinishedDependentCounts.put(step, 0);
+      }
+      
+      for (Step step : graph.getSteps()) {
+        int pendingDependencyCount = 0;
+        
+        for (Step dependency : graph.getDependencies(step)) {
+          if (running.contains(dependency) || !dependency.hasSubmitted()) {
+            pendingDependencyCount++;
+          }
+        }
+        
+        pendingDependencyCounts.put(step, pendingDependencyCount);
+        
+        if (pendingDependencyCount == 0 && !running.contains(step) && !step.hasSubmitted()) {
+          readySteps.add(step);
+        }
+        
+        if (running.contains(step) || !step.hasSubmitted()) {
+          Set<Step> allDependencies = graph.getAllDependencies(step);
+          unfinishedStepDependencies.put(step, allDependencies);
+          
+          for (Step dependency : allDependencies) {
+            unfinishedDependentCounts.put(dependency, unfinishedDependentCounts.get(dependency) + 1);
+          }
+        }
+      }
+      
+      for (Step step : graph.getSteps()) {
+        if (!running.contains(step) && step.hasSubmitted() && unfinishedDependentCounts.get(step) == 0) {
+          releasableSteps.add(step);
+        }
+      }
+    }
+    
+    public boolean hasReadySteps() {
+      return !readySteps.isEmpty();
+    }
+    
+    public Step nextReadyStep() {
+      return readySteps.poll();
+    }
+    
+    public boolean hasReleasableSteps() {
+      return !releasableSteps.isEmpty();
+    }
+    
+    public Step nextReleasableStep() {
+      return releasableSteps.poll();
+    }
+    
+    public void stepFinished(Step step) {
+      if (!dependents.containsKey(step)) return;
+      
+      for (Step dependent : dependents.get(step)) {
+        int pendingDependencyCount = pendingDependencyCounts.get(dependent) - 1;
+        pendingDependencyCounts.put(dependent, pendingDependencyCount);
+        
+        if (pendingDependencyCount == 0 && !dependent.hasSubmitted()) {
+          readySteps.add(dependent);
+        }
+      }
+      
+      if (unfinishedDependentCounts.get(step) == 0) {
+        releasableSteps.add(step);
+      }
+      
+      for (Step dependency : unfinishedStepDependencies.remove(step)) {
+        int unfinishedDependentCount = unfinishedDependentCounts.get(dependency) - 1;
+        unfinishedDependentCounts.put(dependency, unfinishedDependentCount);
+        
+        if (unfinishedDependentCount == 0) {
+          releasableSteps.add(dependency);
+        }
+      }
+    }
+  }
+
 }
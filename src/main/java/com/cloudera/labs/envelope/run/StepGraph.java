@@ -0,0 +1,201 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * A step graph indexes a set of steps by name and by dependency name, so that the dependencies
+ * and dependents of a step can be found without scanning all of the steps of the pipeline.
+ * Changes to the steps of the graph, and to the names and dependencies of those steps, must be
+ * made through the graph so that the indexes are kept up to date. These changes are applied
+ * directly to the set of steps that the graph was created from.
+ */
+public class StepGraph {
+
+  private Set<Step> steps;
+  private Map<String, Step> stepsByName = Maps.newHashMap();
+  private Map<String, Set<Step>> dependentsByDependencyName = Maps.newHashMap();
+
+  public StepGraph(Set<Step> steps) {
+    this.steps = steps;
+
+    for (Step step : steps) {
+      index(step);
+    }
+  }
+
+  public Set<Step> getSteps() {
+    return steps;
+  }
+
+  public boolean contains(Step step) {
+    return steps.contains(step);
+  }
+
+  public Optional<Step> getStep(String name) {
+    return Optional.fromNullable(stepsByName.get(name));
+  }
+
+  public Set<Step> getDependencies(Step step) {
+    Set<Step> dependencies = Sets.newHashSet();
+
+    for (String dependencyName : step.getDependencyNames()) {
+      Step dependency = stepsByName.get(dependencyName);
+
+      if (dependency != null) {
+        dependencies.add(dependency);
+      }
+    }
+
+    return dependencies;
+  }
+
+  public Set<Step> getImmediateDependents(Step step) {
+    Set<Step> dependents = dependentsByDependencyName.get(step.getName());
+
+    if (dependents == null) {
+      return Sets.newHashSet();
+    }
+
+    return Sets.newHashSet(dependents);
+  }
+
+  public Set<Step> getAllDependents(Step step) {
+    Set<Step> allDependents = Sets.newHashSet();
+    Deque<Step> unvisited = new ArrayDeque<>();
+    unvisited.add(step);
+
+    while (!unvisited.isEmpty()) {
+      Set<Step> dependents = dependentsByDependencyName.get(unvisited.poll().getName());
+
+      if (dependents != null) {
+        for (Step dependent : dependents) {
+          if (allDependents.add(dependent)) {
+            unvisited.add(dependent);
+          }
+        }
+      }
+    }
+
+    return allDependents;
+  }
+
+  public Set<Step> getAllDependencies(Step step) {
+    Set<Step> allDependencies = Sets.newHashSet();
+    Deque<Step> unvisited = new ArrayDeque<>();
+    unvisited.add(step);
+
+    while (!unvisited.isEmpty()) {
+      for (Step dependency : getDependencies(unvisited.poll())) {
+        if (allDependencies.add(dependency)) {
+          unvisited.add(dependency);
+        }
+      }
+    }
+
+    return allDependencies;
+  }
+
+  public void addStep(Step step) {
+    if (steps.add(step)) {
+      index(step);
+    }
+  }
+
+  public void addSteps(Collection<? extends Step> stepsToAdd) {
+    for (Step step : stepsToAdd) {
+      addStep(step);
+    }
+  }
+
+  public void removeStep(Step step) {
+    if (steps.remove(step)) {
+      unindex(step);
+    }
+  }
+
+  public void removeSteps(Collection<? extends Step> stepsToRemove) {
+    for (Step step : Lists.newArrayList(stepsToRemove)) {
+      removeStep(step);
+    }
+  }
+
+  public void renameStep(Step step, String name) {
+    boolean inGraph = steps.contains(step);
+
+    if (inGraph) {
+      unindex(step);
+    }
+
+    step.setName(name);
+
+    if (inGraph) {
+      index(step);
+    }
+  }
+
+  public void addDependency(Step step, String dependencyName) {
+    if (step.getDependencyNames().add(dependencyName) && steps.contains(step)) {
+      getDependentsForDependencyName(dependencyName).add(step);
+    }
+  }
+
+  public void removeDependency(Step step, String dependencyName) {
+    if (step.getDependencyNames().remove(dependencyName) && steps.contains(step)) {
+      getDependentsForDependencyName(dependencyName).remove(step);
+    }
+  }
+
+  private void index(Step step) {
+    stepsByName.put(step.getName(), step);
+
+    for (String dependencyName : step.getDependencyNames()) {
+      getDependentsForDependencyName(dependencyName).add(step);
+    }
+  }
+
+  private void unindex(Step step) {
+    if (stepsByName.get(step.getName()) == step) {
+      stepsByName.remove(step.getName());
+    }
+
+    for (String dependencyName : step.getDependencyNames()) {
+      getDependentsForDependencyName(dependencyName).remove(step);
+    }
+  }
+
+  private Set<Step> getDependentsForDependencyName(String dependencyName) {
+    Set<Step> dependents = dependentsByDependencyName.get(dependencyName);
+
+    if (dependents == null) {
+      dependents = Sets.newHashSet();
+      dependentsByDependencyName.put(dependencyName, dependents);
+    }
+
+    return dependents;
+  }
+
+}
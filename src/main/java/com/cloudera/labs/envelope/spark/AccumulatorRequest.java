@@ -21,8 +21,8 @@ public class AccumulatorRequest {
   private Class<?> clazz;
   
   public AccumulatorRequest(String name, Class<?> clazz) {
-    if (!clazz.equals(Long.class) && !clazz.equals(Double.class)) {
-      throw new IllegalArgumentException("Accumulator user must request only long or double accumulators");
+    if (!clazz.equals(Long.class) && !clazz.equals(Double.class) && !clazz.equals(LatencyHistogram.class)) {
+      throw new IllegalArgumentException("Accumulator user must request only long, double, or latency histogram accumulators");
     }
     
     this.name = name;
@@ -31,6 +31,7 @@ public class Accumulators implements Serializable {
   
   private Map<String, LongAccumulator> longAccumulators = Maps.newHashMap();
   private Map<String, DoubleAccumulator> doubleAccumulators = Maps.newHashMap();
+  private Map<String, HistogramAccumulator> histogramAccumulators = Maps.newHashMap();
   
   private static Logger LOG = LoggerFactory.getLogger(Accumulators.class);
   
@@ -49,6 +50,12 @@ public class Accumulators implements Serializable {
         doubleAccumulators.put(name, acc);
       }
       
+      if (clazz == LatencyHistogram.class) {
+        HistogramAccumulator acc = new HistogramAccumulator();
+        Contexts.getSparkSession().sparkContext().register(acc, name);
+        histogramAccumulators.put(name, acc);
+      }
+      
       LOG.info("Processed accumulator request: " + name);
     }
   }
@@ -61,4 +68,8 @@ public class Accumulators implements Serializable {
     return doubleAccumulators;
   }
   
+  public Map<String, HistogramAccumulator> getHistogramAccumulators() {
+    return histogramAccumulators;
+  }
+  
 }
@@ -50,6 +50,7 @@ public enum Contexts {
   public static final String NUM_EXECUTOR_CORES_PROPERTY = "application.executor.cores";
   public static final String EXECUTOR_MEMORY_PROPERTY = "application.executor.memory";
   public static final String SPARK_CONF_PROPERTY_PREFIX = "application.spark.conf";
+  public static final String KRYO_ENABLED_PROPERTY = "application.kryo.enabled";
 
   private Config config = ConfigFactory.empty();
   private ExecutionMode mode = ExecutionMode.UNIT_TEST;
@@ -128,6 +129,11 @@ public enum Contexts {
     }
 
     SparkSession sparkSession = SparkSession.builder().enableHiveSupport().config(sparkConf).getOrCreate();
+    
+    // Steps that checkpoint their data write it to this path
+    if (INSTANCE.config.hasPath(CHECKPOINT_PATH_PROPERTY)) {
+      sparkSession.sparkContext().setCheckpointDir(INSTANCE.config.getString(CHECKPOINT_PATH_PROPERTY));
+    }
 
     INSTANCE.ss = sparkSession;
   }
@@ -179,6 +185,13 @@ public enum Contexts {
       sparkConf.set("spark.sql.shuffle.partitions", shufflePartitions.toString());
     }
 
+    // Optionally serialize records with Kryo, using the Envelope serializers that share the schema
+    // of the rows that they read.
+    if (config.hasPath(KRYO_ENABLED_PROPERTY) && config.getBoolean(KRYO_ENABLED_PROPERTY)) {
+      sparkConf.set("spark.serializer", "org.apache.spark.serializer.KryoSerializer");
+      sparkConf.set("spark.kryo.registrator", EnvelopeKryoRegistrator.class.getName());
+    }
+
     // Allow the user to provide any Spark configuration and we will just pass it on. These can
     // also override any of the configurations above.
     if (config.hasPath(SPARK_CONF_PROPERTY_PREFIX)) {
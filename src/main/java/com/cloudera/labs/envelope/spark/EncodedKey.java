@@ -0,0 +1,253 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * A compact encoding of the values of a key, for use as the key of a shuffle in place of a row.
+ * The values are packed into a byte array with a type tag for each, and the hash of the bytes is
+ * computed once when the key is encoded. Two encoded keys are equal when the rows they were
+ * encoded from have equal values. The key row is only rebuilt by decoding, which is given the
+ * schema of the key so that the schema is not carried by each key.
+ */
+@SuppressWarnings("serial")
+public class EncodedKey implements Comparable<EncodedKey>, Serializable {
+
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+  private static final byte NULL_TAG = 0;
+  private static final byte BOOLEAN_TAG = 1;
+  private static final byte BYTE_TAG = 2;
+  private static final byte SHORT_TAG = 3;
+  private static final byte INTEGER_TAG = 4;
+  private static final byte LONG_TAG = 5;
+  private static final byte FLOAT_TAG = 6;
+  private static final byte DOUBLE_TAG = 7;
+  private static final byte STRING_TAG = 8;
+  private static final byte BINARY_TAG = 9;
+  private static final byte DECIMAL_TAG = 10;
+  private static final byte TIMESTAMP_TAG = 11;
+  private static final byte DATE_TAG = 12;
+
+  private byte[] bytes;
+  private int hash;
+
+  EncodedKey(byte[] bytes) {
+    this.bytes = bytes;
+    this.hash = HASH_FUNCTION.hashBytes(bytes).asInt();
+  }
+
+  /**
+   * Encode the key of a row.
+   * @param row The row that contains the key.
+   * @param ordinals The positions of the fields of the key in the row, in the order of the fields
+   * of the key schema.
+   * @return The encoded key.
+   */
+  public static EncodedKey encode(Row row, int[] ordinals) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput(ordinals.length * 9);
+
+    for (int ordinal : ordinals) {
+      writeValue(out, row.get(ordinal));
+    }
+
+    return new EncodedKey(out.toByteArray());
+  }
+
+  /**
+   * Encode a key row.
+   */
+  public static EncodedKey encode(Row key) {
+    int[] ordinals = new int[key.length()];
+    for (int i = 0; i < ordinals.length; i++) {
+      ordinals[i] = i;
+    }
+
+    return encode(key, ordinals);
+  }
+
+  /**
+   * Rebuild the key row.
+   * @param keySchema The schema of the key that was encoded.
+   * @return The key row, with the given schema.
+   */
+  public Row decode(StructType keySchema) {
+    ByteArrayDataInput in = ByteStreams.newDataInput(bytes);
+    Object[] values = new Object[keySchema.fields().length];
+
+    for (int i = 0; i < values.length; i++) {
+      values[i] = readValue(in);
+    }
+
+    return new RowWithSchema(keySchema, values);
+  }
+
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof EncodedKey)) {
+      return false;
+    }
+
+    EncodedKey otherKey = (EncodedKey)other;
+
+    return hash == otherKey.hash && Arrays.equals(bytes, otherKey.bytes);
+  }
+
+  // Orders by the encoded bytes, so that equal keys are adjacent after sorting
+  @Override
+  public int compareTo(EncodedKey other) {
+    return UnsignedBytes.lexicographicalComparator().compare(bytes, other.bytes);
+  }
+
+  private static void writeValue(ByteArrayDataOutput out, Object value) {
+    if (value == null) {
+      out.writeByte(NULL_TAG);
+    }
+    else if (value instanceof String) {
+      out.writeByte(STRING_TAG);
+      writeBytes(out, ((String)value).getBytes(StandardCharsets.UTF_8));
+    }
+    else if (value instanceof Long) {
+      out.writeByte(LONG_TAG);
+      out.writeLong((Long)value);
+    }
+    else if (value instanceof Integer) {
+      out.writeByte(INTEGER_TAG);
+      out.writeInt((Integer)value);
+    }
+    else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN_TAG);
+      out.writeBoolean((Boolean)value);
+    }
+    else if (value instanceof Byte) {
+      out.writeByte(BYTE_TAG);
+      out.writeByte((Byte)value);
+    }
+    else if (value instanceof Short) {
+      out.writeByte(SHORT_TAG);
+      out.writeShort((Short)value);
+    }
+    else if (value instanceof Float) {
+      out.writeByte(FLOAT_TAG);
+      out.writeFloat((Float)value);
+    }
+    else if (value instanceof Double) {
+      out.writeByte(DOUBLE_TAG);
+      out.writeDouble((Double)value);
+    }
+    else if (value instanceof byte[]) {
+      out.writeByte(BINARY_TAG);
+      writeBytes(out, (byte[])value);
+    }
+    else if (value instanceof BigDecimal) {
+      out.writeByte(DECIMAL_TAG);
+      out.writeInt(((BigDecimal)value).scale());
+      writeBytes(out, ((BigDecimal)value).unscaledValue().toByteArray());
+    }
+    else if (value instanceof Timestamp) {
+      out.writeByte(TIMESTAMP_TAG);
+      out.writeLong(((Timestamp)value).getTime());
+      out.writeInt(((Timestamp)value).getNanos());
+    }
+    else if (value instanceof Date) {
+      out.writeByte(DATE_TAG);
+      out.writeLong(((Date)value).getTime());
+    }
+    else {
+      throw new RuntimeException("Unsupported key field value type: " + value.getClass().getName());
+    }
+  }
+
+  private static Object readValue(ByteArrayDataInput in) {
+    byte tag = in.readByte();
+
+    switch (tag) {
+      case NULL_TAG:
+        return null;
+      case STRING_TAG:
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+      case LONG_TAG:
+        return in.readLong();
+      case INTEGER_TAG:
+        return in.readInt();
+      case BOOLEAN_TAG:
+        return in.readBoolean();
+      case BYTE_TAG:
+        return in.readByte();
+      case SHORT_TAG:
+        return in.readShort();
+      case FLOAT_TAG:
+        return in.readFloat();
+      case DOUBLE_TAG:
+        return in.readDouble();
+      case BINARY_TAG:
+        return readBytes(in);
+      case DECIMAL_TAG:
+        int scale = in.readInt();
+        return new BigDecimal(new BigInteger(readBytes(in)), scale);
+      case TIMESTAMP_TAG:
+        Timestamp timestamp = new Timestamp(in.readLong());
+        timestamp.setNanos(in.readInt());
+        return timestamp;
+      case DATE_TAG:
+        return new Date(in.readLong());
+      default:
+        throw new RuntimeException("Unknown encoded key field tag: " + tag);
+    }
+  }
+
+  private static void writeBytes(ByteArrayDataOutput out, byte[] value) {
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  private static byte[] readBytes(ByteArrayDataInput in) {
+    byte[] value = new byte[in.readInt()];
+    in.readFully(value);
+
+    return value;
+  }
+
+}
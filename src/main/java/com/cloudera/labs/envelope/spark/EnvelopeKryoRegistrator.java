@@ -0,0 +1,192 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.spark.serializer.KryoRegistrator;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.expressions.GenericRow;
+import org.apache.spark.sql.catalyst.expressions.GenericRowWithSchema;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.StructType;
+
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Registers the Kryo serializers for the records that Envelope moves between Spark tasks.
+ * <p>
+ * Rows are written as their values and the JSON of their schema, which is only generated once per
+ * schema object. Each record carries the whole JSON of its schema, because Spark can move the
+ * bytes of serialized records between streams, such as when it sorts them for a shuffle, and
+ * there is no registry of schemas shared by the executors that a smaller schema id could be
+ * resolved through. The serialized rows are therefore no smaller than with Java serialization.
+ * <p>
+ * Schemas that are read are interned in the JVM, so that the rows of a schema share one schema
+ * object after they have been deserialized rather than each holding its own copy. The behavior of
+ * Kryo itself, such as its reference tracking, is left as Spark configures it.
+ */
+public class EnvelopeKryoRegistrator implements KryoRegistrator {
+
+  // Bounded so that pipelines that generate many schemas, such as with looping, do not hold on to
+  // all of them
+  private static final int MAX_INTERNED_SCHEMAS = 1000;
+
+  private static final ConcurrentMap<String, StructType> INTERNED_SCHEMAS = CacheBuilder.newBuilder()
+      .maximumSize(MAX_INTERNED_SCHEMAS).<String, StructType>build().asMap();
+  private static final ConcurrentMap<StructType, String> SCHEMA_JSONS = CacheBuilder.newBuilder()
+      .weakKeys().maximumSize(MAX_INTERNED_SCHEMAS).<StructType, String>build().asMap();
+
+  @Override
+  public void registerClasses(Kryo kryo) {
+    kryo.register(StructType.class, new StructTypeSerializer());
+    kryo.register(RowWithSchema.class, new RowWithSchemaSerializer());
+    kryo.register(GenericRowWithSchema.class, new GenericRowWithSchemaSerializer());
+    kryo.register(GenericRow.class, new GenericRowSerializer());
+    kryo.register(PlannedRow.class, new PlannedRowSerializer());
+    kryo.register(MutationType.class);
+    kryo.register(EncodedKey.class, new EncodedKeySerializer());
+  }
+
+  private static StructType internSchema(String json) {
+    StructType schema = INTERNED_SCHEMAS.get(json);
+
+    if (schema == null) {
+      StructType parsed = (StructType)DataType.fromJson(json);
+      schema = INTERNED_SCHEMAS.putIfAbsent(json, parsed);
+      if (schema == null) {
+        schema = parsed;
+      }
+    }
+
+    return schema;
+  }
+
+  private static String jsonFor(StructType schema) {
+    String json = SCHEMA_JSONS.get(schema);
+
+    if (json == null) {
+      json = schema.json();
+      SCHEMA_JSONS.put(schema, json);
+    }
+
+    return json;
+  }
+
+  private static void writeValues(Kryo kryo, Output output, Row row) {
+    output.writeInt(row.length(), true);
+    for (int i = 0; i < row.length(); i++) {
+      kryo.writeClassAndObject(output, row.get(i));
+    }
+  }
+
+  private static Object[] readValues(Kryo kryo, Input input) {
+    Object[] values = new Object[input.readInt(true)];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = kryo.readClassAndObject(input);
+    }
+
+    return values;
+  }
+
+  private static class StructTypeSerializer extends Serializer<StructType> {
+    @Override
+    public void write(Kryo kryo, Output output, StructType schema) {
+      output.writeString(jsonFor(schema));
+    }
+
+    @Override
+    public StructType read(Kryo kryo, Input input, Class<StructType> type) {
+      return internSchema(input.readString());
+    }
+  }
+
+  private static class RowWithSchemaSerializer extends Serializer<RowWithSchema> {
+    @Override
+    public void write(Kryo kryo, Output output, RowWithSchema row) {
+      kryo.writeObjectOrNull(output, row.schema(), StructType.class);
+      writeValues(kryo, output, row);
+    }
+
+    @Override
+    public RowWithSchema read(Kryo kryo, Input input, Class<RowWithSchema> type) {
+      StructType schema = kryo.readObjectOrNull(input, StructType.class);
+      return new RowWithSchema(schema, readValues(kryo, input));
+    }
+  }
+
+  private static class GenericRowWithSchemaSerializer extends Serializer<GenericRowWithSchema> {
+    @Override
+    public void write(Kryo kryo, Output output, GenericRowWithSchema row) {
+      kryo.writeObjectOrNull(output, row.schema(), StructType.class);
+      writeValues(kryo, output, row);
+    }
+
+    @Override
+    public GenericRowWithSchema read(Kryo kryo, Input input, Class<GenericRowWithSchema> type) {
+      StructType schema = kryo.readObjectOrNull(input, StructType.class);
+      return new GenericRowWithSchema(readValues(kryo, input), schema);
+    }
+  }
+
+  private static class GenericRowSerializer extends Serializer<GenericRow> {
+    @Override
+    public void write(Kryo kryo, Output output, GenericRow row) {
+      writeValues(kryo, output, row);
+    }
+
+    @Override
+    public GenericRow read(Kryo kryo, Input input, Class<GenericRow> type) {
+      return new GenericRow(readValues(kryo, input));
+    }
+  }
+
+  private static class PlannedRowSerializer extends Serializer<PlannedRow> {
+    @Override
+    public void write(Kryo kryo, Output output, PlannedRow plannedRow) {
+      kryo.writeObject(output, plannedRow.getMutationType());
+      kryo.writeClassAndObject(output, plannedRow.getRow());
+    }
+
+    @Override
+    public PlannedRow read(Kryo kryo, Input input, Class<PlannedRow> type) {
+      MutationType mutationType = kryo.readObject(input, MutationType.class);
+      Row row = (Row)kryo.readClassAndObject(input);
+      return new PlannedRow(row, mutationType);
+    }
+  }
+
+  private static class EncodedKeySerializer extends Serializer<EncodedKey> {
+    @Override
+    public void write(Kryo kryo, Output output, EncodedKey key) {
+      byte[] bytes = key.getBytes();
+      output.writeInt(bytes.length, true);
+      output.writeBytes(bytes);
+    }
+
+    @Override
+    public EncodedKey read(Kryo kryo, Input input, Class<EncodedKey> type) {
+      return new EncodedKey(input.readBytes(input.readInt(true)));
+    }
+  }
+
+}
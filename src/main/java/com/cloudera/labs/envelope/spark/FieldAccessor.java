@@ -0,0 +1,110 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import java.util.List;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Accesses a field of rows by its ordinal. The ordinal of the field is resolved from its name the
+ * first time that a schema is seen, and then reused for the rows of that schema instance, rather
+ * than being resolved for every access. Accessors are not thread-safe, and so should be created
+ * by each planner instance rather than shared.
+ */
+public class FieldAccessor {
+
+  private static final int CACHED_SCHEMAS = 4;
+
+  private String fieldName;
+  private StructType[] schemas = new StructType[CACHED_SCHEMAS];
+  private int[] ordinals = new int[CACHED_SCHEMAS];
+  private int nextSlot = 0;
+
+  public FieldAccessor(String fieldName) {
+    this.fieldName = fieldName;
+  }
+
+  public static List<FieldAccessor> forFieldNames(List<String> fieldNames) {
+    List<FieldAccessor> accessors = Lists.newArrayListWithCapacity(fieldNames.size());
+
+    for (String fieldName : fieldNames) {
+      accessors.add(new FieldAccessor(fieldName));
+    }
+
+    return accessors;
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  public int ordinal(StructType schema) {
+    for (int i = 0; i < CACHED_SCHEMAS; i++) {
+      if (schemas[i] == schema) {
+        return ordinals[i];
+      }
+    }
+
+    int ordinal = schema.fieldIndex(fieldName);
+
+    schemas[nextSlot] = schema;
+    ordinals[nextSlot] = ordinal;
+    nextSlot = (nextSlot + 1) % CACHED_SCHEMAS;
+
+    return ordinal;
+  }
+
+  public int ordinal(Row row) {
+    return ordinal(row.schema());
+  }
+
+  public Object get(Row row) {
+    return row.get(ordinal(row));
+  }
+
+  public Long getLong(Row row) {
+    return (Long)get(row);
+  }
+
+  /**
+   * Compare the values of the field of two rows as longs, such as for timestamps.
+   */
+  public int compareLong(Row first, Row second) {
+    return Long.compare(getLong(first), getLong(second));
+  }
+
+  /**
+   * Whether any of the fields have different values between the two rows, where null is only
+   * the same as null.
+   */
+  public static boolean different(Row first, Row second, List<FieldAccessor> fields) {
+    for (FieldAccessor field : fields) {
+      Object firstValue = field.get(first);
+      Object secondValue = field.get(second);
+
+      if (firstValue == null ? secondValue != null : !firstValue.equals(secondValue)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import org.apache.spark.util.AccumulatorV2;
+
+/**
+ * An accumulator of latencies in nanoseconds. The latencies recorded by each task are merged
+ * into a single histogram on the driver, so that percentiles can be reported across executors.
+ */
+@SuppressWarnings("serial")
+public class HistogramAccumulator extends AccumulatorV2<Long, LatencyHistogram> {
+
+  private LatencyHistogram histogram = new LatencyHistogram();
+
+  @Override
+  public synchronized boolean isZero() {
+    return histogram.isEmpty();
+  }
+
+  @Override
+  public synchronized AccumulatorV2<Long, LatencyHistogram> copy() {
+    HistogramAccumulator copy = new HistogramAccumulator();
+    copy.histogram = histogram.copy();
+
+    return copy;
+  }
+
+  @Override
+  public synchronized void reset() {
+    histogram.reset();
+  }
+
+  @Override
+  public void add(Long nanos) {
+    add(nanos.longValue());
+  }
+
+  /**
+   * Record a latency without boxing it.
+   */
+  public synchronized void add(long nanos) {
+    histogram.record(nanos);
+  }
+
+  @Override
+  public synchronized void merge(AccumulatorV2<Long, LatencyHistogram> other) {
+    if (!(other instanceof HistogramAccumulator)) {
+      throw new UnsupportedOperationException("Cannot merge " + getClass().getName() +
+          " with " + other.getClass().getName());
+    }
+
+    histogram.merge(((HistogramAccumulator)other).histogram);
+  }
+
+  @Override
+  public synchronized LatencyHistogram value() {
+    return histogram.copy();
+  }
+
+  /**
+   * Get the latencies recorded so far and reset the accumulator, without losing any latencies
+   * that are merged in between.
+   */
+  public synchronized LatencyHistogram valueAndReset() {
+    LatencyHistogram value = histogram;
+    histogram = new LatencyHistogram();
+
+    return value;
+  }
+
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import java.io.Serializable;
+
+/**
+ * A histogram of latencies in nanoseconds. Latencies are counted in logarithmic buckets, each
+ * of which spans at most an eighth of its lower bound, so that percentiles can be estimated to
+ * within 12.5% from a fixed amount of memory regardless of how many latencies are recorded.
+ */
+@SuppressWarnings("serial")
+public class LatencyHistogram implements Serializable {
+
+  // Each power of two is split into this many buckets
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private long[] counts = new long[BUCKETS];
+  private long count = 0;
+  private long sum = 0;
+  private long min = Long.MAX_VALUE;
+  private long max = 0;
+
+  /**
+   * Record a latency.
+   * @param nanos The latency in nanoseconds. Negative latencies are recorded as zero.
+   */
+  public void record(long nanos) {
+    long latency = Math.max(0, nanos);
+
+    counts[bucketFor(latency)]++;
+    count++;
+    sum += latency;
+    min = Math.min(min, latency);
+    max = Math.max(max, latency);
+  }
+
+  /**
+   * Add the latencies of another histogram to this histogram.
+   */
+  public void merge(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  public void reset() {
+    counts = new long[BUCKETS];
+    count = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  public LatencyHistogram copy() {
+    LatencyHistogram copy = new LatencyHistogram();
+    copy.merge(this);
+
+    return copy;
+  }
+
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getSumNanos() {
+    return sum;
+  }
+
+  public long getMinNanos() {
+    return isEmpty() ? 0 : min;
+  }
+
+  public long getMaxNanos() {
+    return max;
+  }
+
+  public double getMeanNanos() {
+    return isEmpty() ? 0 : (double)sum / count;
+  }
+
+  /**
+   * Estimate a percentile of the recorded latencies.
+   * @param percentile The percentile, between 0 and 100.
+   * @return The upper bound of the bucket that contains the percentile, which is never more than
+   * the maximum recorded latency, or zero if no latencies have been recorded.
+   */
+  public long getPercentileNanos(double percentile) {
+    if (isEmpty()) return 0;
+
+    long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+    long seen = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+
+      if (seen >= rank) {
+        return Math.max(getMinNanos(), Math.min(max, upperBoundOf(i)));
+      }
+    }
+
+    return max;
+  }
+
+  private static int bucketFor(long latency) {
+    if (latency < SUB_BUCKETS) {
+      return (int)latency;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(latency);
+    int subBucket = (int)(latency >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+
+    int shift = bucket / SUB_BUCKETS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+
+    // The top bucket would overflow, but no latency is that long
+    if (shift + SUB_BUCKET_BITS + 1 >= 63) {
+      return Long.MAX_VALUE;
+    }
+
+    return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d, mean=%.3fms, p50=%.3fms, p90=%.3fms, p99=%.3fms, max=%.3fms",
+        count, getMeanNanos() / 1000000.0, getPercentileNanos(50) / 1000000.0,
+        getPercentileNanos(90) / 1000000.0, getPercentileNanos(99) / 1000000.0, max / 1000000.0);
+  }
+
+}
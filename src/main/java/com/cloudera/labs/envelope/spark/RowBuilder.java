@@ -0,0 +1,83 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+
+/**
+ * Builds a row by setting its fields in place, so that a row with several changed fields is only
+ * copied once when it is built, rather than once for every changed field.
+ */
+public class RowBuilder {
+
+  private StructType schema;
+  private Object[] values;
+
+  public RowBuilder(StructType schema) {
+    this.schema = schema;
+    this.values = new Object[schema.length()];
+  }
+
+  /**
+   * Start from the values of a row. The schema may have more fields than the row, such as when
+   * fields are appended to it, in which case the additional fields start as null.
+   */
+  public RowBuilder(StructType schema, Row from) {
+    this(schema);
+
+    for (int i = 0; i < from.length(); i++) {
+      values[i] = from.get(i);
+    }
+  }
+
+  public RowBuilder(Row from) {
+    this(from.schema(), from);
+  }
+
+  public StructType schema() {
+    return schema;
+  }
+
+  public Object get(int ordinal) {
+    return values[ordinal];
+  }
+
+  public Object get(FieldAccessor field) {
+    return values[field.ordinal(schema)];
+  }
+
+  public RowBuilder set(int ordinal, Object value) {
+    values[ordinal] = value;
+
+    return this;
+  }
+
+  public RowBuilder set(FieldAccessor field, Object value) {
+    values[field.ordinal(schema)] = value;
+
+    return this;
+  }
+
+  /**
+   * Build an immutable row from the current values. The builder can continue to be changed and
+   * built again without affecting the rows that it has already built.
+   */
+  public Row build() {
+    return new RowWithSchema(schema, values.clone());
+  }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.utils;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+public class FingerprintUtils {
+
+  /**
+   * Fingerprint an ordered list of values.
+   * @param values The values to fingerprint.
+   * @return A hexadecimal SHA-256 hash of the values.
+   */
+  public static String fingerprint(Iterable<String> values) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    
+    for (String value : values) {
+      // Separate the values so that different lists of values can not hash the same bytes
+      hasher.putInt(value.length());
+      hasher.putString(value, Charsets.UTF_8);
+    }
+    
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Fingerprint the files found at the given paths, which may be files, directories, or globs.
+   * The fingerprint changes whenever a file is added, removed, resized, or modified.
+   * @param paths The paths of the files to fingerprint.
+   * @return A hexadecimal SHA-256 hash of the paths, lengths, and modification times of the files.
+   */
+  public static String fingerprintFiles(Iterable<String> paths) throws IOException {
+    Configuration hadoopConf = Contexts.getSparkSession().sparkContext().hadoopConfiguration();
+    Set<String> fileDescriptions = Sets.newTreeSet();
+
+    for (String path : paths) {
+      Path hadoopPath = new Path(path);
+      FileSystem fs = hadoopPath.getFileSystem(hadoopConf);
+      FileStatus[] statuses = fs.globStatus(hadoopPath);
+      
+      if (statuses == null) {
+        fileDescriptions.add("missing:" + path);
+        continue;
+      }
+
+      for (FileStatus status : statuses) {
+        if (status.isDirectory()) {
+          RemoteIterator<LocatedFileStatus> files = fs.listFiles(status.getPath(), true);
+          while (files.hasNext()) {
+            fileDescriptions.add(describeFile(files.next()));
+          }
+        }
+        else {
+          fileDescriptions.add(describeFile(status));
+        }
+      }
+    }
+
+    return fingerprint(fileDescriptions);
+  }
+
+  private static String describeFile(FileStatus status) {
+    return status.getPath() + ":" + status.getLen() + ":" + status.getModificationTime();
+  }
+
+}
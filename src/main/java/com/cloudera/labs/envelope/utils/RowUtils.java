@@ -38,6 +38,7 @@ import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
 import org.joda.time.DateTime;
 
+import com.cloudera.labs.envelope.spark.RowBuilder;
 import com.cloudera.labs.envelope.spark.RowWithSchema;
 import com.google.common.collect.Lists;
 import com.google.common.collect.ObjectArrays;
@@ -662,20 +663,38 @@ public class RowUtils {
   }
 
   public static Row set(Row row, String fieldName, Object replacement) {
-    Object[] values = new Object[row.length()];
-
-    for (int i = 0; i < row.schema().fields().length; i++) {
-      if (i == row.fieldIndex(fieldName)) {
-        values[i] = replacement;
-      } else {
-        values[i] = row.get(i);
-      }
-    }
+    Object[] values = valuesFor(row);
+    values[row.fieldIndex(fieldName)] = replacement;
 
     Row replacedRow = new RowWithSchema(row.schema(), values);
 
     return replacedRow;
   }
+
+  /**
+   * Copy the values of the fields that are null in one row from the same fields of another row.
+   * @return The row with the carried forward values, or the same row if no values were carried.
+   */
+  public static Row carryForwardWhenNull(Row into, Row from) {
+    StructType intoSchema = into.schema();
+    boolean sameSchema = intoSchema == from.schema();
+    RowBuilder carried = null;
+
+    for (int i = 0; i < into.length(); i++) {
+      if (into.isNullAt(i)) {
+        Object fromValue = sameSchema ? from.get(i) : from.get(from.fieldIndex(intoSchema.fields()[i].name()));
+
+        if (fromValue != null) {
+          if (carried == null) {
+            carried = new RowBuilder(into);
+          }
+          carried.set(i, fromValue);
+        }
+      }
+    }
+
+    return carried != null ? carried.build() : into;
+  }
   
   public static Row append(Row row, Object value) {
     Object[] appendedValues = ObjectArrays.concat(valuesFor(row), value);
@@ -20,6 +20,7 @@ import java.util.Set;
 import com.cloudera.labs.envelope.repetition.Repetitions;
 import com.cloudera.labs.envelope.run.DataStep;
 import com.cloudera.labs.envelope.run.Step;
+import com.cloudera.labs.envelope.run.StepGraph;
 import com.cloudera.labs.envelope.run.StreamingStep;
 import com.google.common.base.Optional;
 import com.google.common.collect.Sets;
@@ -40,18 +41,10 @@ public class StepUtils {
     return true;
   }
 
+  // The step lookups below index the steps on every call. Callers that look up many steps
+  // of the same graph should create a StepGraph once and use it directly.
   public static Set<Step> getDependencies(Step step, Set<Step> steps) {
-    Set<Step> dependencies = Sets.newHashSet();
-
-    Set<String> dependencyNames = step.getDependencyNames();
-    for (Step candidate : steps) {
-      String candidateName = candidate.getName();
-      if (dependencyNames.contains(candidateName)) {
-        dependencies.add(candidate);
-      }
-    }
-
-    return dependencies;
+    return new StepGraph(steps).getDependencies(step);
   }
 
   public static boolean hasStreamingStep(Set<Step> steps) {
@@ -77,27 +70,11 @@ public class StepUtils {
   }
 
   public static Set<Step> getAllDependentSteps(Step rootStep, Set<Step> steps) {
-    Set<Step> dependencies = Sets.newHashSet();
-
-    Set<Step> immediateDependents = getImmediateDependentSteps(rootStep, steps);
-    for (Step immediateDependent : immediateDependents) {
-      dependencies.add(immediateDependent);
-      dependencies.addAll(getAllDependentSteps(immediateDependent, steps));
-    }
-
-    return dependencies;
+    return new StepGraph(steps).getAllDependents(rootStep);
   }
 
   public static Set<Step> getImmediateDependentSteps(Step step, Set<Step> steps) {
-    Set<Step> dependencies = Sets.newHashSet();
-
-    for (Step candidateStep : steps) {
-      if (candidateStep.getDependencyNames().contains(step.getName())) {
-        dependencies.add(candidateStep);
-      }
-    }
-
-    return dependencies;
+    return new StepGraph(steps).getImmediateDependents(step);
   }
 
   public static Set<Step> getIndependentNonStreamingSteps(Set<Step> steps) {
@@ -140,13 +117,17 @@ public class StepUtils {
   }
 
   public static void resetRepeatingSteps(Set<Step> allSteps) {
+    resetRepeatingSteps(new StepGraph(allSteps));
+  }
+
+  public static void resetRepeatingSteps(StepGraph graph) {
     // Get all DataSteps that need to be reset
     Set<Step> resetSteps = Sets.newHashSet();
     Set<DataStep> repeatingSteps = Repetitions.get().getAndClearRepeatingSteps();
     LOG.info("Resetting {} repeating steps and their dependents", repeatingSteps.size());
     for (DataStep step : repeatingSteps) {
       resetSteps.add(step);
-      resetSteps.addAll(getAllDependentSteps(step, allSteps));
+      resetSteps.addAll(graph.getAllDependents(step));
     }
     resetDataSteps(resetSteps);
   }
@@ -164,13 +145,7 @@ public class StepUtils {
   }
 
   public static Optional<Step> getStepForName(String name, Set<Step> steps) {
-    for (Step step : steps) {
-      if (step.getName().equals(name)) {
-        return Optional.of(step);
-      }
-    }
-    
-    return Optional.absent();
+    return new StepGraph(steps).getStep(name);
   }
 
   public static Set<Step> copySteps(Set<Step> steps) {
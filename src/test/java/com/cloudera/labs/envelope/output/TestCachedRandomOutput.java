@@ -0,0 +1,223 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+public class TestCachedRandomOutput {
+
+  private StructType schema = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("key", DataTypes.StringType, false),
+      DataTypes.createStructField("value", DataTypes.StringType, true)));
+  private StructType keySchema = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("key", DataTypes.StringType, false)));
+
+  private CountingRandomOutput output;
+  private CachedRandomOutput cached;
+  private Config outputConfig;
+
+  @Before
+  public void before() {
+    CachedRandomOutput.invalidateAll();
+
+    output = new CountingRandomOutput();
+    output.rows.put("a", Lists.<Row>newArrayList(new RowWithSchema(schema, "a", "hello")));
+
+    Map<String, Object> outputConfigMap = Maps.newHashMap();
+    outputConfigMap.put("type", CountingRandomOutput.class.getName());
+    outputConfig = ConfigFactory.parseMap(outputConfigMap);
+
+    cached = new CachedRandomOutput(output, outputConfig, Lists.newArrayList("key"));
+    cached.configure(ConfigFactory.empty());
+  }
+
+  @Test
+  public void testReadThrough() throws Exception {
+    List<Row> filters = Lists.<Row>newArrayList(new RowWithSchema(keySchema, "a"), new RowWithSchema(keySchema, "b"));
+
+    assertEquals(Lists.newArrayList(cached.getExistingForFilters(filters)).size(), 1);
+    assertEquals(output.lookups, 1);
+
+    assertEquals(Lists.newArrayList(cached.getExistingForFilters(filters)).size(), 1);
+    assertEquals(output.lookups, 1);
+  }
+
+  @Test
+  public void testWriteThrough() throws Exception {
+    List<Row> filters = Lists.<Row>newArrayList(new RowWithSchema(keySchema, "a"), new RowWithSchema(keySchema, "b"));
+    cached.getExistingForFilters(filters);
+
+    cached.applyRandomMutations(Lists.newArrayList(
+        new PlannedRow(new RowWithSchema(schema, "a", "world"), MutationType.UPDATE),
+        new PlannedRow(new RowWithSchema(schema, "b", "new"), MutationType.INSERT)));
+
+    Set<Row> existing = Sets.newHashSet(cached.getExistingForFilters(filters));
+    assertEquals(output.lookups, 1);
+    assertEquals(existing, Sets.<Row>newHashSet(
+        new RowWithSchema(schema, "a", "world"), new RowWithSchema(schema, "b", "new")));
+
+    cached.applyRandomMutations(Lists.newArrayList(
+        new PlannedRow(new RowWithSchema(schema, "a", "world"), MutationType.DELETE)));
+
+    existing = Sets.newHashSet(cached.getExistingForFilters(filters));
+    assertEquals(output.lookups, 1);
+    assertEquals(existing, Sets.<Row>newHashSet(new RowWithSchema(schema, "b", "new")));
+  }
+
+  @Test
+  public void testWriteThroughFromOtherInstance() throws Exception {
+    List<Row> filters = Lists.<Row>newArrayList(new RowWithSchema(keySchema, "a"), new RowWithSchema(keySchema, "b"));
+    cached.getExistingForFilters(filters);
+
+    // Mutations are applied through a separate instance, with rows in the schema of the planner
+    CachedRandomOutput applying = new CachedRandomOutput(output, outputConfig, Lists.newArrayList("key"));
+    applying.configure(ConfigFactory.empty());
+    StructType plannedSchema = schema.add(DataTypes.createStructField("extra", DataTypes.StringType, true));
+    applying.applyRandomMutations(Lists.newArrayList(
+        new PlannedRow(new RowWithSchema(plannedSchema, "b", "new", "planner"), MutationType.INSERT)));
+
+    Set<Row> existing = Sets.newHashSet(cached.getExistingForFilters(filters));
+    assertEquals(output.lookups, 1);
+    assertEquals(existing, Sets.<Row>newHashSet(
+        new RowWithSchema(schema, "a", "hello"), new RowWithSchema(schema, "b", "new")));
+  }
+
+  @Test
+  public void testInsertWithUnknownSchemaInvalidates() throws Exception {
+    List<Row> filters = Lists.<Row>newArrayList(new RowWithSchema(keySchema, "b"));
+    cached.getExistingForFilters(filters);
+
+    cached.applyRandomMutations(Lists.newArrayList(
+        new PlannedRow(new RowWithSchema(schema, "b", "new"), MutationType.INSERT)));
+
+    cached.getExistingForFilters(filters);
+    assertEquals(output.lookups, 2);
+  }
+
+  @Test
+  public void testStreamsExisting() throws Exception {
+    List<Row> filters = Lists.<Row>newArrayList(new RowWithSchema(keySchema, "a"));
+
+    assertTrue(cached instanceof CanStreamExisting);
+    assertEquals(Lists.newArrayList(cached.getExistingIteratorForFilters(filters)),
+        Lists.<Row>newArrayList(new RowWithSchema(schema, "a", "hello")));
+    assertEquals(Lists.newArrayList(cached.getExistingIteratorForFilters(filters)).size(), 1);
+    assertEquals(output.lookups, 1);
+  }
+
+  @Test
+  public void testAmbiguousUpdateInvalidates() throws Exception {
+    output.rows.put("a", Lists.<Row>newArrayList(
+        new RowWithSchema(schema, "a", "hello"), new RowWithSchema(schema, "a", "there")));
+    List<Row> filters = Lists.<Row>newArrayList(new RowWithSchema(keySchema, "a"));
+    cached.getExistingForFilters(filters);
+
+    cached.applyRandomMutations(Lists.newArrayList(
+        new PlannedRow(new RowWithSchema(schema, "a", "world"), MutationType.UPDATE)));
+
+    cached.getExistingForFilters(filters);
+    assertEquals(output.lookups, 2);
+  }
+
+  @Test
+  public void testStaleOnOtherExecutorUntilExpiry() throws Exception {
+    Config cacheConfig = ConfigFactory.parseString(CachedRandomOutput.EXPIRY_SECONDS_CONFIG_NAME + " = 1");
+    List<Row> filters = Lists.<Row>newArrayList(new RowWithSchema(keySchema, "a"));
+
+    CachedRandomOutput reading = new CachedRandomOutput(output, outputConfig, Lists.newArrayList("key"));
+    reading.configure(cacheConfig);
+    reading.getExistingForFilters(filters);
+
+    // The key is then written through the cache of another executor
+    CachedRandomOutput.forgetCaches();
+    CachedRandomOutput applying = new CachedRandomOutput(output, outputConfig, Lists.newArrayList("key"));
+    applying.configure(cacheConfig);
+    applying.applyRandomMutations(Lists.newArrayList(
+        new PlannedRow(new RowWithSchema(schema, "a", "world"), MutationType.UPDATE)));
+
+    Row existing = reading.getExistingForFilters(filters).iterator().next();
+    assertEquals(existing.getString(1), "hello");
+
+    Thread.sleep(1100);
+
+    existing = reading.getExistingForFilters(filters).iterator().next();
+    assertEquals(existing.getString(1), "world");
+    assertEquals(output.lookups, 2);
+  }
+
+  public static class CountingRandomOutput implements RandomOutput {
+    private Map<String, List<Row>> rows = Maps.newHashMap();
+    private int lookups = 0;
+
+    @Override
+    public void configure(Config config) {
+    }
+
+    @Override
+    public Set<MutationType> getSupportedRandomMutationTypes() {
+      return Sets.newHashSet(MutationType.values());
+    }
+
+    @Override
+    public void applyRandomMutations(List<PlannedRow> planned) throws Exception {
+      for (PlannedRow plannedRow : planned) {
+        Row row = plannedRow.getRow();
+
+        if (plannedRow.getMutationType() == MutationType.DELETE) {
+          rows.remove(row.getString(0));
+        }
+        else {
+          rows.put(row.getString(0), Lists.newArrayList(row));
+        }
+      }
+    }
+
+    @Override
+    public Iterable<Row> getExistingForFilters(Iterable<Row> filters) throws Exception {
+      lookups++;
+
+      List<Row> existing = Lists.newArrayList();
+      for (Row filter : filters) {
+        if (rows.containsKey(filter.getString(0))) {
+          existing.addAll(rows.get(filter.getString(0)));
+        }
+      }
+
+      return existing;
+    }
+  }
+
+}
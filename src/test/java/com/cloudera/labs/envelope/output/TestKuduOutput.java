@@ -0,0 +1,88 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+public class TestKuduOutput {
+
+  @Test
+  public void testKeyComparison() {
+    StructType schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("id", DataTypes.StringType, false),
+        DataTypes.createStructField("bytes", DataTypes.BinaryType, false)));
+    KuduOutput.KeyComparator comparator = new KuduOutput.KeyComparator(Lists.newArrayList("id", "bytes"));
+
+    Row row1 = new RowWithSchema(schema, "a", new byte[] { 1, 2 });
+    Row row2 = new RowWithSchema(schema, "a", new byte[] { (byte)0xFF });
+    Row row3 = new RowWithSchema(schema, "b", new byte[] { 0 });
+
+    assertTrue(comparator.compare(row1, row2) < 0);
+    assertTrue(comparator.compare(row2, row3) < 0);
+    assertEquals(comparator.compare(row1, new RowWithSchema(schema, "a", new byte[] { 1, 2 })), 0);
+  }
+
+  @Test
+  public void testChunkFilters() {
+    StructType schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("id", DataTypes.StringType, false)));
+    List<Row> filters = Lists.<Row>newArrayList(
+        new RowWithSchema(schema, "c"), new RowWithSchema(schema, "a"),
+        new RowWithSchema(schema, "e"), new RowWithSchema(schema, "b"),
+        new RowWithSchema(schema, "d"));
+
+    List<List<Row>> chunks = KuduOutput.chunkFilters(filters, Lists.newArrayList("id"), true, 2);
+
+    assertEquals(chunks.size(), 3);
+    assertEquals(chunks.get(0).size(), 2);
+    assertEquals(chunks.get(0).get(0).getString(0), "a");
+    assertEquals(chunks.get(0).get(1).getString(0), "b");
+    assertEquals(chunks.get(2).size(), 1);
+    assertEquals(chunks.get(2).get(0).getString(0), "e");
+  }
+
+  @Test
+  public void testChunkFiltersExactMatch() {
+    StructType schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("id", DataTypes.StringType, false),
+        DataTypes.createStructField("ts", DataTypes.LongType, false)));
+    List<Row> filters = Lists.<Row>newArrayList(
+        new RowWithSchema(schema, "b", 1L), new RowWithSchema(schema, "a", 2L),
+        new RowWithSchema(schema, "a", 1L));
+    List<String> filterFieldNames = Lists.newArrayList("id", "ts");
+
+    List<List<Row>> exactChunks = KuduOutput.chunkFilters(filters, filterFieldNames, true, 500);
+    List<List<Row>> rangeChunks = KuduOutput.chunkFilters(filters, filterFieldNames, false, 500);
+
+    assertEquals(exactChunks.size(), 3);
+    assertEquals(exactChunks.get(0).size(), 1);
+    assertEquals(rangeChunks.size(), 1);
+    assertEquals(rangeChunks.get(0).get(0), new RowWithSchema(schema, "a", 1L));
+    assertEquals(rangeChunks.get(0).get(2), new RowWithSchema(schema, "b", 1L));
+  }
+
+}
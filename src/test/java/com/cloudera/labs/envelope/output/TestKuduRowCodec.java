@@ -0,0 +1,86 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.apache.kudu.ColumnSchema;
+import org.apache.kudu.ColumnSchema.ColumnSchemaBuilder;
+import org.apache.kudu.Schema;
+import org.apache.kudu.Type;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+public class TestKuduRowCodec {
+
+  private static List<ColumnSchema> columns = Lists.newArrayList(
+      new ColumnSchemaBuilder("key", Type.STRING).key(true).build(),
+      new ColumnSchemaBuilder("tiny", Type.INT8).nullable(true).build(),
+      new ColumnSchemaBuilder("small", Type.INT16).nullable(true).build(),
+      new ColumnSchemaBuilder("micros", Type.UNIXTIME_MICROS).nullable(true).build(),
+      new ColumnSchemaBuilder("bytes", Type.BINARY).nullable(true).build(),
+      new ColumnSchemaBuilder("flag", Type.BOOL).nullable(true).build());
+  private static Schema tableSchema = new Schema(columns);
+
+  @Test
+  public void testSchema() {
+    StructType schema = KuduRowCodec.decoderFor(columns).getSchema();
+
+    assertEquals(schema.fieldNames().length, 6);
+    assertEquals(schema.fields()[1].dataType(), DataTypes.ByteType);
+    assertEquals(schema.fields()[2].dataType(), DataTypes.ShortType);
+    assertEquals(schema.fields()[3].dataType(), DataTypes.LongType);
+    assertEquals(schema.fields()[4].dataType(), DataTypes.BinaryType);
+  }
+
+  @Test
+  public void testEncode() {
+    StructType rowSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("flag", DataTypes.BooleanType, true),
+        DataTypes.createStructField("micros", DataTypes.TimestampType, true),
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("bytes", DataTypes.BinaryType, true),
+        DataTypes.createStructField("tiny", DataTypes.ByteType, true),
+        DataTypes.createStructField("small", DataTypes.ShortType, true)));
+    Row row = new RowWithSchema(rowSchema,
+        true, new Timestamp(1000L), "a", new byte[] { 1, 2 }, (byte)1, null);
+
+    KuduRowCodec.Encoder encoder = KuduRowCodec.encoderFor(tableSchema, rowSchema);
+    encoder.encode(row, tableSchema.newPartialRow());
+
+    assertTrue(encoder.encodes(rowSchema));
+    assertFalse(encoder.encodes(KuduRowCodec.decoderFor(columns).getSchema()));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void testEncodeUnknownField() {
+    StructType rowSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("other", DataTypes.StringType, true)));
+
+    KuduRowCodec.encoderFor(tableSchema, rowSchema);
+  }
+
+}
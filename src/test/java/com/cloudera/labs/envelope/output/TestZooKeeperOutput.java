@@ -39,6 +39,7 @@ import com.cloudera.labs.envelope.spark.RowWithSchema;
 import com.cloudera.labs.envelope.utils.RowUtils;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
@@ -206,6 +207,28 @@ public class TestZooKeeperOutput implements Watcher {
     assertEquals(rows.get(0), row1);
   }
   
+  @Test
+  public void getProjected() throws Exception {
+    truncate();
+    
+    ZooKeeperOutput zkOutput = new ZooKeeperOutput();
+    zkOutput.configure(config);
+    zkOutput.projectExisting(Sets.newHashSet("field1", "field2", "field3", "field5"));
+    
+    Row row1 = new RowWithSchema(schema, "hello", 100, 1000L, true, 1.0f, -1.0);
+    List<PlannedRow> upsertPlan = Lists.newArrayList(new PlannedRow(row1, MutationType.UPSERT));
+    zkOutput.applyRandomMutations(upsertPlan);
+    
+    Row filter1 = new RowWithSchema(keySchema, "hello", 100, 1000L);
+    List<Row> filters = Lists.newArrayList(filter1);
+    List<Row> rows = Lists.newArrayList(zkOutput.getExistingForFilters(filters));
+    
+    StructType projectedSchema = RowUtils.subsetSchema(schema,
+        Lists.newArrayList("field1", "field2", "field3", "field5"));
+    assertEquals(rows.size(), 1);
+    assertEquals(rows.get(0), new RowWithSchema(projectedSchema, "hello", 100, 1000L, 1.0f));
+  }
+  
   @Test
   public void getByPartialKeyAndValues() throws Exception {
     truncate();
@@ -0,0 +1,101 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.partition;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.Set;
+
+import org.apache.kudu.ColumnSchema.ColumnSchemaBuilder;
+import org.apache.kudu.Schema;
+import org.apache.kudu.Type;
+import org.apache.kudu.client.PartialRow;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.output.KuduRowCodec;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TestKuduPartitioner {
+
+  @Test
+  public void testTabletFor() {
+    byte[][] tabletStartKeys = new byte[][] {
+        new byte[] {},
+        new byte[] { 0, 0, 0, 1 },
+        new byte[] { 0, 0, 0, 2 },
+        new byte[] { (byte)0x80 } };
+
+    assertEquals(KuduPartitioner.tabletFor(new byte[] { 0, 0, 0, 0, 5 }, tabletStartKeys), 0);
+    assertEquals(KuduPartitioner.tabletFor(new byte[] { 0, 0, 0, 1 }, tabletStartKeys), 1);
+    assertEquals(KuduPartitioner.tabletFor(new byte[] { 0, 0, 0, 1, 9, 9 }, tabletStartKeys), 1);
+    assertEquals(KuduPartitioner.tabletFor(new byte[] { 0, 0, 0, 2, 0 }, tabletStartKeys), 2);
+    assertEquals(KuduPartitioner.tabletFor(new byte[] { 0x7F }, tabletStartKeys), 2);
+    assertEquals(KuduPartitioner.tabletFor(new byte[] { (byte)0xFF }, tabletStartKeys), 3);
+  }
+
+  @Test
+  public void testSingleTablet() {
+    byte[][] tabletStartKeys = new byte[][] { new byte[] {} };
+
+    assertEquals(KuduPartitioner.tabletFor(new byte[] { 1, 2, 3 }, tabletStartKeys), 0);
+  }
+
+  @Test
+  public void testKeyTypes() {
+    Schema tableSchema = new Schema(Lists.newArrayList(
+        new ColumnSchemaBuilder("tiny", Type.INT8).key(true).build(),
+        new ColumnSchemaBuilder("small", Type.INT16).key(true).build(),
+        new ColumnSchemaBuilder("bytes", Type.BINARY).key(true).build(),
+        new ColumnSchemaBuilder("micros", Type.UNIXTIME_MICROS).key(true).build(),
+        new ColumnSchemaBuilder("value", Type.STRING).nullable(true).build()));
+    StructType keySchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("tiny", DataTypes.ByteType, false),
+        DataTypes.createStructField("small", DataTypes.ShortType, false),
+        DataTypes.createStructField("bytes", DataTypes.BinaryType, false),
+        DataTypes.createStructField("micros", DataTypes.TimestampType, false)));
+    Row key = new RowWithSchema(keySchema, (byte)1, (short)2, new byte[] { 3 }, new Timestamp(4000L));
+
+    PartialRow kuduKey = tableSchema.newPartialRow();
+    KuduRowCodec.encoderFor(tableSchema, keySchema).encode(key, kuduKey);
+
+    String encodedKey = kuduKey.stringifyRowKey();
+    assertTrue(encodedKey.contains("tiny=1"));
+    assertTrue(encodedKey.contains("small=2"));
+    assertTrue(encodedKey.contains("micros=4000000"));
+  }
+
+  @Test
+  public void testCoversPartitionColumns() {
+    Set<String> partitionColumnNames = Sets.newHashSet("id", "ts");
+    StructType fullKeySchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("id", DataTypes.StringType, false),
+        DataTypes.createStructField("ts", DataTypes.LongType, false)));
+    StructType partialKeySchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("id", DataTypes.StringType, false)));
+
+    assertTrue(KuduPartitioner.coversPartitionColumns(fullKeySchema, partitionColumnNames));
+    assertFalse(KuduPartitioner.coversPartitionColumns(partialKeySchema, partitionColumnNames));
+  }
+
+}
@@ -686,6 +686,36 @@ public class TestBitemporalHistoryPlanner {
     assertEquals(RowUtils.get(planned.get(2).getRow(), "currentflag"), CURRENT_FLAG_NO);
   }
 
+  @Test
+  public void testOneArrivingLongExistingHistoryWhereArrivingBetweenTwoExisting() {
+    p = new BitemporalHistoryPlanner();
+    p.configure(config);
+
+    for (long version = 1; version <= 10000; version++) {
+      long eventEnd = version < 10000 ? version * 100 + 99 : FAR_FUTURE_MILLIS;
+      String currentFlag = version < 10000 ? CURRENT_FLAG_NO : CURRENT_FLAG_YES;
+      existing.add(new RowWithSchema(existingSchema, "a", "v" + version, version * 100, version * 100,
+          eventEnd, 1L, FAR_FUTURE_MILLIS, currentFlag));
+    }
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 500050L));
+    Row key = new RowWithSchema(keySchema, "a");
+
+    List<PlannedRow> planned = p.planMutationsForKey(key, arriving, existing);
+
+    assertEquals(planned.size(), 3);
+    assertEquals(planned.get(0).getMutationType(), MutationType.UPDATE);
+    assertEquals(planned.get(1).getMutationType(), MutationType.INSERT);
+    assertEquals(planned.get(2).getMutationType(), MutationType.INSERT);
+
+    assertEquals(RowUtils.get(planned.get(0).getRow(), "value"), "v5000");
+    assertEquals(RowUtils.get(planned.get(0).getRow(), "eventend"), 500099L);
+    assertEquals(RowUtils.get(planned.get(1).getRow(), "value"), "v5000");
+    assertEquals(RowUtils.get(planned.get(1).getRow(), "eventend"), 500049L);
+    assertEquals(RowUtils.get(planned.get(2).getRow(), "value"), "world");
+    assertEquals(RowUtils.get(planned.get(2).getRow(), "eventstart"), 500050L);
+    assertEquals(RowUtils.get(planned.get(2).getRow(), "eventend"), 500099L);
+  }
+
   @Test
   public void testOneArrivingMultipleExistingWhereArrivingBetweenTwoExistingNoCurrentFlag() {
     p = new BitemporalHistoryPlanner();
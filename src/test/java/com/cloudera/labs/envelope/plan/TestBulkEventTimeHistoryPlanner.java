@@ -0,0 +1,194 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+import scala.Tuple2;
+
+public class TestBulkEventTimeHistoryPlanner {
+
+  List<Row> arriving;
+  List<Row> existing;
+  StructType arrivingSchema;
+  StructType existingSchema;
+  Map<String, Object> configMap;
+  Config config;
+  BulkEventTimeHistoryPlanner p;
+
+  @Before
+  public void before() {
+    arriving = Lists.newArrayList();
+    existing = Lists.newArrayList();
+
+    arrivingSchema = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("key", DataTypes.StringType, false),
+      DataTypes.createStructField("value", DataTypes.StringType, true),
+      DataTypes.createStructField("timestamp", DataTypes.LongType, false)));
+    existingSchema = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("key", DataTypes.StringType, false),
+      DataTypes.createStructField("value", DataTypes.StringType, true),
+      DataTypes.createStructField("timestamp", DataTypes.LongType, false),
+      DataTypes.createStructField("startdate", DataTypes.LongType, false),
+      DataTypes.createStructField("enddate", DataTypes.LongType, false),
+      DataTypes.createStructField("currentflag", DataTypes.StringType, false)));
+
+    configMap = Maps.newHashMap();
+    configMap.put(BulkEventTimeHistoryPlanner.KEY_FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("key"));
+    configMap.put(BulkEventTimeHistoryPlanner.VALUE_FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("value"));
+    configMap.put(BulkEventTimeHistoryPlanner.TIMESTAMP_FIELD_NAME_CONFIG_NAME, "timestamp");
+    configMap.put(BulkEventTimeHistoryPlanner.EFFECTIVE_FROM_FIELD_NAME_CONFIG_NAME, "startdate");
+    configMap.put(BulkEventTimeHistoryPlanner.EFFECTIVE_TO_FIELD_NAME_CONFIG_NAME, "enddate");
+    configMap.put(BulkEventTimeHistoryPlanner.CURRENT_FLAG_FIELD_NAME_CONFIG_NAME, "currentflag");
+    configMap.put(BulkEventTimeHistoryPlanner.EXISTING_INPUT_CONFIG_NAME + ".type", "hive");
+    configMap.put(BulkEventTimeHistoryPlanner.EXISTING_INPUT_CONFIG_NAME + ".table", "history");
+    config = ConfigFactory.parseMap(configMap);
+  }
+
+  @Test
+  public void testMultipleArrivingNoneExisting() {
+    p = new BulkEventTimeHistoryPlanner();
+    p.configure(config);
+
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "hello", 100L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 200L));
+    arriving.add(new RowWithSchema(arrivingSchema, "b", "hello", 150L));
+
+    List<Tuple2<MutationType, Dataset<Row>>> planned = plan();
+
+    assertEquals(planned.size(), 2);
+    assertEquals(planned.get(0)._1(), MutationType.UPDATE);
+    assertEquals(planned.get(0)._2().count(), 0);
+    assertEquals(planned.get(1)._1(), MutationType.INSERT);
+
+    List<Row> inserts = sorted(planned.get(1)._2());
+    assertEquals(inserts.size(), 3);
+    assertEquals(inserts.get(0), new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, 199L,
+        BulkEventTimeHistoryPlanner.CURRENT_FLAG_NO));
+    assertEquals(inserts.get(1), new RowWithSchema(existingSchema, "a", "world", 200L, 200L,
+        BulkEventTimeHistoryPlanner.FAR_FUTURE_MILLIS, BulkEventTimeHistoryPlanner.CURRENT_FLAG_YES));
+    assertEquals(inserts.get(2), new RowWithSchema(existingSchema, "b", "hello", 150L, 150L,
+        BulkEventTimeHistoryPlanner.FAR_FUTURE_MILLIS, BulkEventTimeHistoryPlanner.CURRENT_FLAG_YES));
+  }
+
+  @Test
+  public void testMultipleArrivingMultipleExisting() {
+    p = new BulkEventTimeHistoryPlanner();
+    p.configure(config);
+
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, 199L, BulkEventTimeHistoryPlanner.CURRENT_FLAG_NO));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello!", 200L, 200L, 299L, BulkEventTimeHistoryPlanner.CURRENT_FLAG_NO));
+    existing.add(new RowWithSchema(existingSchema, "a", "hello?", 300L, 300L, BulkEventTimeHistoryPlanner.FAR_FUTURE_MILLIS, BulkEventTimeHistoryPlanner.CURRENT_FLAG_YES));
+    existing.add(new RowWithSchema(existingSchema, "b", "other", 100L, 100L, BulkEventTimeHistoryPlanner.FAR_FUTURE_MILLIS, BulkEventTimeHistoryPlanner.CURRENT_FLAG_YES));
+    // Before all, between two, same time with same values, and after all
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "before", 50L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "between", 250L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "hello!", 200L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "after", 400L));
+
+    List<Tuple2<MutationType, Dataset<Row>>> planned = plan();
+
+    List<Row> updates = sorted(planned.get(0)._2());
+    assertEquals(updates.size(), 2);
+    assertEquals(updates.get(0), new RowWithSchema(existingSchema, "a", "hello!", 200L, 200L, 249L,
+        BulkEventTimeHistoryPlanner.CURRENT_FLAG_NO));
+    assertEquals(updates.get(1), new RowWithSchema(existingSchema, "a", "hello?", 300L, 300L, 399L,
+        BulkEventTimeHistoryPlanner.CURRENT_FLAG_NO));
+
+    List<Row> inserts = sorted(planned.get(1)._2());
+    assertEquals(inserts.size(), 3);
+    assertEquals(inserts.get(0), new RowWithSchema(existingSchema, "a", "before", 50L, 50L, 99L,
+        BulkEventTimeHistoryPlanner.CURRENT_FLAG_NO));
+    assertEquals(inserts.get(1), new RowWithSchema(existingSchema, "a", "between", 250L, 250L, 299L,
+        BulkEventTimeHistoryPlanner.CURRENT_FLAG_NO));
+    assertEquals(inserts.get(2), new RowWithSchema(existingSchema, "a", "after", 400L, 400L,
+        BulkEventTimeHistoryPlanner.FAR_FUTURE_MILLIS, BulkEventTimeHistoryPlanner.CURRENT_FLAG_YES));
+  }
+
+  @Test
+  public void testOneArrivingOneExistingWhereArrivingSameTimeAsExistingWithDifferentValues() {
+    p = new BulkEventTimeHistoryPlanner();
+    p.configure(config);
+
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, BulkEventTimeHistoryPlanner.FAR_FUTURE_MILLIS, BulkEventTimeHistoryPlanner.CURRENT_FLAG_YES));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "world", 100L));
+
+    List<Tuple2<MutationType, Dataset<Row>>> planned = plan();
+
+    List<Row> updates = sorted(planned.get(0)._2());
+    assertEquals(updates.size(), 1);
+    assertEquals(updates.get(0), new RowWithSchema(existingSchema, "a", "world", 100L, 100L,
+        BulkEventTimeHistoryPlanner.FAR_FUTURE_MILLIS, BulkEventTimeHistoryPlanner.CURRENT_FLAG_YES));
+    assertEquals(planned.get(1)._2().count(), 0);
+  }
+
+  @Test
+  public void testCarryForwardWhenNull() {
+    p = new BulkEventTimeHistoryPlanner();
+    config = config.withValue(BulkEventTimeHistoryPlanner.CARRY_FORWARD_CONFIG_NAME, ConfigValueFactory.fromAnyRef(true));
+    p.configure(config);
+
+    existing.add(new RowWithSchema(existingSchema, "a", "hello", 100L, 100L, BulkEventTimeHistoryPlanner.FAR_FUTURE_MILLIS, BulkEventTimeHistoryPlanner.CURRENT_FLAG_YES));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", null, 200L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", null, 300L));
+
+    List<Tuple2<MutationType, Dataset<Row>>> planned = plan();
+
+    List<Row> inserts = sorted(planned.get(1)._2());
+    assertEquals(inserts.size(), 2);
+    assertEquals(inserts.get(0), new RowWithSchema(existingSchema, "a", "hello", 200L, 200L, 299L,
+        BulkEventTimeHistoryPlanner.CURRENT_FLAG_NO));
+    assertEquals(inserts.get(1), new RowWithSchema(existingSchema, "a", "hello", 300L, 300L,
+        BulkEventTimeHistoryPlanner.FAR_FUTURE_MILLIS, BulkEventTimeHistoryPlanner.CURRENT_FLAG_YES));
+  }
+
+  private List<Tuple2<MutationType, Dataset<Row>>> plan() {
+    Dataset<Row> arrivingDF = Contexts.getSparkSession().createDataFrame(arriving, arrivingSchema);
+    Dataset<Row> existingDF = Contexts.getSparkSession().createDataFrame(existing, existingSchema);
+
+    return p.planMutationsForSet(arrivingDF, existingDF);
+  }
+
+  // The planned records ordered by key and timestamp, as rows with the existing schema
+  private List<Row> sorted(Dataset<Row> planned) {
+    List<Row> rows = Lists.newArrayList();
+
+    for (Row row : planned.orderBy("key", "timestamp").collectAsList()) {
+      rows.add(new RowWithSchema(existingSchema, row.get(0), row.get(1), row.get(2), row.get(3), row.get(4), row.get(5)));
+    }
+
+    return rows;
+  }
+
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.Contexts;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+import scala.Tuple2;
+
+public class TestBulkEventTimeUpsertPlanner {
+
+  List<Row> arriving;
+  List<Row> existing;
+  StructType recordSchema;
+  Map<String, Object> configMap;
+  Config config;
+  BulkEventTimeUpsertPlanner p;
+
+  @Before
+  public void before() {
+    arriving = Lists.newArrayList();
+    existing = Lists.newArrayList();
+
+    recordSchema = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("key", DataTypes.StringType, false),
+      DataTypes.createStructField("value", DataTypes.StringType, true),
+      DataTypes.createStructField("timestamp", DataTypes.LongType, true)));
+
+    configMap = Maps.newHashMap();
+    configMap.put(BulkEventTimeUpsertPlanner.KEY_FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("key"));
+    configMap.put(BulkEventTimeUpsertPlanner.VALUE_FIELD_NAMES_CONFIG_NAME, Lists.newArrayList("value"));
+    configMap.put(BulkEventTimeUpsertPlanner.TIMESTAMP_FIELD_NAME_CONFIG_NAME, "timestamp");
+    configMap.put(BulkEventTimeUpsertPlanner.EXISTING_INPUT_CONFIG_NAME + ".type", "hive");
+    configMap.put(BulkEventTimeUpsertPlanner.EXISTING_INPUT_CONFIG_NAME + ".table", "target");
+    config = ConfigFactory.parseMap(configMap);
+  }
+
+  @Test
+  public void testPlansInsertsAndUpdates() {
+    p = new BulkEventTimeUpsertPlanner();
+    p.configure(config);
+
+    existing.add(new RowWithSchema(recordSchema, "b", "hello", 100L));
+    existing.add(new RowWithSchema(recordSchema, "c", "hello", 100L));
+    existing.add(new RowWithSchema(recordSchema, "d", "hello", 200L));
+    existing.add(new RowWithSchema(recordSchema, "e", null, 100L));
+    existing.add(new RowWithSchema(recordSchema, "z", "hello", 100L));
+    // Not existing
+    arriving.add(new RowWithSchema(recordSchema, "a", "hello", 100L));
+    // Newer with different values, where only the latest arriving record is used
+    arriving.add(new RowWithSchema(recordSchema, "b", "world", 200L));
+    arriving.add(new RowWithSchema(recordSchema, "b", "world!", 300L));
+    // Newer with the same values
+    arriving.add(new RowWithSchema(recordSchema, "c", "hello", 200L));
+    // Older with different values
+    arriving.add(new RowWithSchema(recordSchema, "d", "world", 100L));
+    // Same time with a value that was null
+    arriving.add(new RowWithSchema(recordSchema, "e", "world", 100L));
+
+    List<Tuple2<MutationType, Dataset<Row>>> planned = plan();
+
+    assertEquals(planned.size(), 2);
+    assertEquals(planned.get(0)._1(), MutationType.INSERT);
+    assertEquals(planned.get(1)._1(), MutationType.UPDATE);
+
+    List<Row> inserts = planned.get(0)._2().collectAsList();
+    assertEquals(inserts.size(), 1);
+    assertEquals(inserts.get(0).getString(0), "a");
+
+    List<Row> updates = planned.get(1)._2().orderBy("key").collectAsList();
+    assertEquals(updates.size(), 2);
+    assertEquals(updates.get(0).getString(0), "b");
+    assertEquals(updates.get(0).getString(1), "world!");
+    assertEquals(updates.get(0).getLong(2), 300L);
+    assertEquals(updates.get(1).getString(0), "e");
+    assertEquals(updates.get(1).getString(1), "world");
+  }
+
+  @Test
+  public void testLastUpdated() {
+    p = new BulkEventTimeUpsertPlanner();
+    config = config.withValue(BulkEventTimeUpsertPlanner.LAST_UPDATED_FIELD_NAME_CONFIG_NAME, ConfigValueFactory.fromAnyRef("lastupdated"));
+    p.configure(config);
+
+    arriving.add(new RowWithSchema(recordSchema, "a", "hello", 100L));
+
+    List<Tuple2<MutationType, Dataset<Row>>> planned = plan();
+
+    List<Row> inserts = planned.get(0)._2().collectAsList();
+    assertEquals(inserts.size(), 1);
+    assertEquals(inserts.get(0).length(), 4);
+    assertEquals(inserts.get(0).schema().fieldNames()[3], "lastupdated");
+  }
+
+  private List<Tuple2<MutationType, Dataset<Row>>> plan() {
+    Dataset<Row> arrivingDF = Contexts.getSparkSession().createDataFrame(arriving, recordSchema);
+    Dataset<Row> existingDF = Contexts.getSparkSession().createDataFrame(existing, recordSchema);
+
+    return p.planMutationsForSet(arrivingDF, existingDF);
+  }
+
+}
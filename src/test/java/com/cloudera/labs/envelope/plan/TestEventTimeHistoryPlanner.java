@@ -295,6 +295,46 @@ public class TestEventTimeHistoryPlanner {
     assertEquals(RowUtils.get(planned.get(0).getRow(), "currentflag"), EventTimeHistoryPlanner.CURRENT_FLAG_NO);
   }
 
+  @Test
+  public void testMultipleArrivingOutOfOrderLongExistingHistory() {
+    p = new EventTimeHistoryPlanner();
+    p.configure(config);
+
+    for (long version = 1; version <= 1000; version++) {
+      long endDate = version < 1000 ? version * 100 + 99 : EventTimeHistoryPlanner.FAR_FUTURE_MILLIS;
+      String currentFlag = version < 1000 ? EventTimeHistoryPlanner.CURRENT_FLAG_NO : EventTimeHistoryPlanner.CURRENT_FLAG_YES;
+      existing.add(new RowWithSchema(existingSchema, "a", "v" + version, version * 100, version * 100, endDate, currentFlag, ""));
+    }
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "after", 100050L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "between", 50050L));
+    arriving.add(new RowWithSchema(arrivingSchema, "a", "before", 50L));
+    Row key = new RowWithSchema(keySchema, "a");
+
+    List<PlannedRow> planned = p.planMutationsForKey(key, arriving, existing);
+
+    assertEquals(planned.size(), 5);
+    assertEquals(planned.get(0).getMutationType(), MutationType.INSERT);
+    assertEquals(RowUtils.get(planned.get(0).getRow(), "value"), "before");
+    assertEquals(RowUtils.get(planned.get(0).getRow(), "enddate"), 99L);
+    assertEquals(RowUtils.get(planned.get(0).getRow(), "currentflag"), EventTimeHistoryPlanner.CURRENT_FLAG_NO);
+    assertEquals(planned.get(1).getMutationType(), MutationType.UPDATE);
+    assertEquals(RowUtils.get(planned.get(1).getRow(), "value"), "v500");
+    assertEquals(RowUtils.get(planned.get(1).getRow(), "enddate"), 50049L);
+    assertEquals(planned.get(2).getMutationType(), MutationType.INSERT);
+    assertEquals(RowUtils.get(planned.get(2).getRow(), "value"), "between");
+    assertEquals(RowUtils.get(planned.get(2).getRow(), "startdate"), 50050L);
+    assertEquals(RowUtils.get(planned.get(2).getRow(), "enddate"), 50099L);
+    assertEquals(RowUtils.get(planned.get(2).getRow(), "currentflag"), EventTimeHistoryPlanner.CURRENT_FLAG_NO);
+    assertEquals(planned.get(3).getMutationType(), MutationType.UPDATE);
+    assertEquals(RowUtils.get(planned.get(3).getRow(), "value"), "v1000");
+    assertEquals(RowUtils.get(planned.get(3).getRow(), "enddate"), 100049L);
+    assertEquals(RowUtils.get(planned.get(3).getRow(), "currentflag"), EventTimeHistoryPlanner.CURRENT_FLAG_NO);
+    assertEquals(planned.get(4).getMutationType(), MutationType.INSERT);
+    assertEquals(RowUtils.get(planned.get(4).getRow(), "value"), "after");
+    assertEquals(RowUtils.get(planned.get(4).getRow(), "enddate"), EventTimeHistoryPlanner.FAR_FUTURE_MILLIS);
+    assertEquals(RowUtils.get(planned.get(4).getRow(), "currentflag"), EventTimeHistoryPlanner.CURRENT_FLAG_YES);
+  }
+
   @Test
   public void testMultipleArrivingOneExistingWhereAllArrivingLaterThanExisting() {
     p = new EventTimeHistoryPlanner();
@@ -30,6 +30,7 @@ import org.junit.Test;
 import com.cloudera.labs.envelope.spark.RowWithSchema;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
@@ -199,4 +200,26 @@ public class TestEventTimeUpsertPlanner {
     assertEquals(planned.get(0).getRow().length(), 3);
   }
 
+  @Test
+  public void testReduceArrivingKeepsLatest() {
+    EventTimeUpsertPlanner planner = new EventTimeUpsertPlanner();
+    planner.configure(config);
+
+    Row earlier = new RowWithSchema(recordSchema, "a", "hello", 100L);
+    Row later = new RowWithSchema(recordSchema, "a", "world", 200L);
+    Row simultaneous = new RowWithSchema(recordSchema, "a", "world!", 200L);
+
+    assertEquals(planner.reduceArriving(earlier, later), later);
+    assertEquals(planner.reduceArriving(later, earlier), later);
+    assertEquals(planner.reduceArriving(later, simultaneous), later);
+  }
+
+  @Test
+  public void testUsedExistingFields() {
+    EventTimeUpsertPlanner planner = new EventTimeUpsertPlanner();
+    planner.configure(config);
+
+    assertEquals(planner.getUsedExistingFieldNames(), Sets.newHashSet("key", "value", "timestamp"));
+  }
+
 }
@@ -0,0 +1,142 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.plan;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+
+public class TestMutationCompactor {
+
+  private StructType schema;
+  private MutationCompactor compactor;
+
+  @Before
+  public void before() {
+    List<StructField> fields = Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("ts", DataTypes.LongType, false),
+        DataTypes.createStructField("value", DataTypes.StringType, true));
+    schema = DataTypes.createStructType(fields);
+
+    compactor = new MutationCompactor(Lists.newArrayList("key", "ts"));
+  }
+
+  @Test
+  public void testInsertThenUpdate() {
+    List<PlannedRow> compacted = compactor.compact(Lists.newArrayList(
+        planned(MutationType.INSERT, "a", 1L, "hello"),
+        planned(MutationType.UPDATE, "a", 1L, "world")));
+
+    assertEquals(compacted.size(), 1);
+    assertEquals(compacted.get(0).getMutationType(), MutationType.INSERT);
+    assertEquals(compacted.get(0).getRow().getString(2), "world");
+  }
+
+  @Test
+  public void testUpdateThenUpdate() {
+    List<PlannedRow> compacted = compactor.compact(Lists.newArrayList(
+        planned(MutationType.UPDATE, "a", 1L, "hello"),
+        planned(MutationType.UPDATE, "a", 1L, "world")));
+
+    assertEquals(compacted.size(), 1);
+    assertEquals(compacted.get(0).getMutationType(), MutationType.UPDATE);
+    assertEquals(compacted.get(0).getRow().getString(2), "world");
+  }
+
+  @Test
+  public void testInsertThenDelete() {
+    List<PlannedRow> compacted = compactor.compact(Lists.newArrayList(
+        planned(MutationType.INSERT, "a", 1L, "hello"),
+        planned(MutationType.DELETE, "a", 1L, "hello")));
+
+    assertEquals(compacted.size(), 0);
+  }
+
+  @Test
+  public void testDifferentRowsNotCompacted() {
+    List<PlannedRow> compacted = compactor.compact(Lists.newArrayList(
+        planned(MutationType.UPDATE, "a", 1L, "hello"),
+        planned(MutationType.INSERT, "a", 2L, "world"),
+        planned(MutationType.UPDATE, "b", 1L, "hello"),
+        planned(MutationType.UPDATE, "a", 2L, "again")));
+
+    assertEquals(compacted.size(), 3);
+    assertEquals(compacted.get(0).getRow(), new RowWithSchema(schema, "a", 1L, "hello"));
+    assertEquals(compacted.get(1).getMutationType(), MutationType.INSERT);
+    assertEquals(compacted.get(1).getRow(), new RowWithSchema(schema, "a", 2L, "again"));
+    assertEquals(compacted.get(2).getRow(), new RowWithSchema(schema, "b", 1L, "hello"));
+  }
+
+  @Test
+  public void testDeleteThenInsertNotCompacted() {
+    List<PlannedRow> compacted = compactor.compact(Lists.newArrayList(
+        planned(MutationType.DELETE, "a", 1L, "hello"),
+        planned(MutationType.INSERT, "a", 1L, "world")));
+
+    assertEquals(compacted.size(), 2);
+    assertEquals(compacted.get(0).getMutationType(), MutationType.DELETE);
+    assertEquals(compacted.get(1).getMutationType(), MutationType.INSERT);
+  }
+
+  @Test
+  public void testUpdateWithFewerFields() {
+    StructType updateSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("ts", DataTypes.LongType, false)));
+
+    List<PlannedRow> compacted = compactor.compact(Lists.newArrayList(
+        planned(MutationType.INSERT, "a", 1L, "hello"),
+        new PlannedRow(new RowWithSchema(updateSchema, "a", 1L), MutationType.UPDATE)));
+
+    assertEquals(compacted.size(), 1);
+    assertEquals(compacted.get(0).getMutationType(), MutationType.INSERT);
+    assertEquals(compacted.get(0).getRow(), new RowWithSchema(schema, "a", 1L, "hello"));
+  }
+
+  @Test
+  public void testUpdateWithOtherFields() {
+    StructType updateSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("ts", DataTypes.LongType, false),
+        DataTypes.createStructField("extra", DataTypes.IntegerType, true),
+        DataTypes.createStructField("key", DataTypes.StringType, false)));
+
+    List<PlannedRow> compacted = compactor.compact(Lists.newArrayList(
+        planned(MutationType.INSERT, "a", 1L, "hello"),
+        new PlannedRow(new RowWithSchema(updateSchema, 1L, 5, "a"), MutationType.UPDATE)));
+
+    Row overlaid = compacted.get(0).getRow();
+    assertEquals(compacted.size(), 1);
+    assertEquals(overlaid.schema().fieldNames().length, 4);
+    assertEquals(overlaid.getString(2), "hello");
+    assertEquals(overlaid.get(overlaid.fieldIndex("extra")), 5);
+  }
+
+  private PlannedRow planned(MutationType mutationType, String key, Long ts, String value) {
+    return new PlannedRow(new RowWithSchema(schema, key, ts, value), mutationType);
+  }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cloudera.labs.envelope.run.BatchStep;
+import com.cloudera.labs.envelope.run.DummyInput;
+import com.cloudera.labs.envelope.run.Step;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+public class TestPipelineProfiler {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @After
+  public void disableProfiler() {
+    PipelineProfiler.initialize(ConfigFactory.empty());
+  }
+
+  @Test
+  public void testReportsStepMetrics() throws Exception {
+    File reportFolder = temporaryFolder.newFolder();
+
+    Map<String, Object> profilerConfigMap = Maps.newHashMap();
+    profilerConfigMap.put(PipelineProfiler.ENABLED_PROPERTY, true);
+    profilerConfigMap.put(PipelineProfiler.PATH_PROPERTY, reportFolder.getAbsolutePath());
+    profilerConfigMap.put(PipelineProfiler.FORMAT_PROPERTY, PipelineProfiler.CSV_FORMAT);
+    PipelineProfiler.initialize(ConfigFactory.parseMap(profilerConfigMap));
+
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    Config config = ConfigFactory.parseMap(configMap);
+    BatchStep batchStep = new BatchStep("profiled", config);
+
+    PipelineProfiler profiler = PipelineProfiler.get();
+    profiler.startBatch();
+    profiler.stepReady(batchStep);
+    profiler.stepStarted(batchStep);
+    batchStep.submit(Sets.<Step>newHashSet());
+    batchStep.getData().count();
+    profiler.stepFinished(batchStep);
+    profiler.finishBatch();
+
+    File[] reports = reportFolder.listFiles();
+    File report = null;
+    for (File file : reports) {
+      if (file.getName().endsWith(".csv")) {
+        report = file;
+      }
+    }
+
+    List<String> lines = Files.readLines(report, Charsets.UTF_8);
+    assertEquals(lines.size(), 2);
+
+    List<String> header = Arrays.asList(lines.get(0).split(","));
+    List<String> row = Arrays.asList(lines.get(1).split(","));
+    assertEquals(row.get(header.indexOf("step")), "profiled");
+    assertTrue(Long.parseLong(row.get(header.indexOf("jobs"))) >= 1);
+    assertTrue(Long.parseLong(row.get(header.indexOf("records_in"))) >= 50);
+    assertTrue(Long.parseLong(row.get(header.indexOf("shuffle_write_bytes"))) > 0);
+  }
+
+}
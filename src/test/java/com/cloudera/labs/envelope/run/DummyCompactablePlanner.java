@@ -0,0 +1,71 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.spark.sql.Row;
+
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.cloudera.labs.envelope.plan.RandomPlanner;
+import com.cloudera.labs.envelope.spark.RowWithSchema;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+
+// Plans an INSERT and then an UPDATE of each arriving record, and then a DELETE of the records
+// with odd values, which compaction by the value field reduces to an INSERT of the updated even
+// records
+public class DummyCompactablePlanner implements RandomPlanner {
+
+  public static final long UPDATED_MODULO_OFFSET = 100;
+
+  @Override
+  public void configure(Config config) {
+  }
+
+  @Override
+  public Set<MutationType> getEmittedMutationTypes() {
+    return Sets.newHashSet(MutationType.INSERT, MutationType.UPDATE, MutationType.DELETE);
+  }
+
+  @Override
+  public List<PlannedRow> planMutationsForKey(Row key, List<Row> arrivingForKey, List<Row> existingForKey) {
+    List<PlannedRow> planned = Lists.newArrayList();
+
+    for (Row arriving : arrivingForKey) {
+      long value = arriving.getLong(0);
+      long modulo = arriving.getLong(1);
+
+      planned.add(new PlannedRow(arriving, MutationType.INSERT));
+      planned.add(new PlannedRow(
+          new RowWithSchema(arriving.schema(), value, modulo + UPDATED_MODULO_OFFSET), MutationType.UPDATE));
+      if (value % 2 == 1) {
+        planned.add(new PlannedRow(arriving, MutationType.DELETE));
+      }
+    }
+
+    return planned;
+  }
+
+  @Override
+  public List<String> getKeyFieldNames() {
+    return Lists.newArrayList("modulo");
+  }
+
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.spark.sql.Row;
+
+import com.cloudera.labs.envelope.output.RandomOutput;
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.typesafe.config.Config;
+
+public class DummyRandomOutput implements RandomOutput {
+  
+  private static List<PlannedRow> applied = Collections.synchronizedList(Lists.<PlannedRow>newArrayList());
+  private static List<Integer> appliedBatchSizes = Collections.synchronizedList(Lists.<Integer>newArrayList());
+  private static List<Integer> lookupSizes = Collections.synchronizedList(Lists.<Integer>newArrayList());
+
+  @Override
+  public void configure(Config config) {
+  }
+
+  @Override
+  public Set<MutationType> getSupportedRandomMutationTypes() {
+    return Sets.newHashSet(MutationType.values());
+  }
+
+  @Override
+  public void applyRandomMutations(List<PlannedRow> planned) throws Exception {
+    applied.addAll(planned);
+    appliedBatchSizes.add(planned.size());
+  }
+
+  @Override
+  public Iterable<Row> getExistingForFilters(Iterable<Row> filters) throws Exception {
+    lookupSizes.add(Lists.newArrayList(filters).size());
+    
+    return Lists.newArrayList();
+  }
+  
+  public static List<PlannedRow> getApplied() {
+    return Lists.newArrayList(applied);
+  }
+  
+  public static List<Integer> getAppliedBatchSizes() {
+    return Lists.newArrayList(appliedBatchSizes);
+  }
+  
+  public static List<Integer> getLookupSizes() {
+    return Lists.newArrayList(lookupSizes);
+  }
+  
+  public static void clear() {
+    applied.clear();
+    appliedBatchSizes.clear();
+    lookupSizes.clear();
+  }
+  
+}
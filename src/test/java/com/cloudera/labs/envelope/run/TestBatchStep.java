@@ -16,24 +16,39 @@
 package com.cloudera.labs.envelope.run;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.spark.sql.AnalysisException;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.execution.LogicalRDD;
+import org.apache.spark.storage.StorageLevel;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.cloudera.labs.envelope.derive.PassthroughDeriver;
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
 import com.cloudera.labs.envelope.spark.Contexts;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
 public class TestBatchStep {
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Test
   public void testInputRepartition() throws Exception {
     Map<String, Object> configMap = Maps.newHashMap();
@@ -175,6 +190,18 @@ public class TestBatchStep {
     new BatchStep("test", config);
   }
   
+  @Test
+  (expected = RuntimeException.class)
+  public void testRandomCacheRequiresExpiry() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 1);
+    configMap.put(DataStep.RANDOM_CACHE_ENABLED_PROPERTY, true);
+    Config config = ConfigFactory.parseMap(configMap);
+    
+    new BatchStep("test", config);
+  }
+  
   @Test
   (expected = RuntimeException.class)
   public void testCantRepartitionAndCoalesceDeriverAtOnce() throws Exception {
@@ -196,4 +223,416 @@ public class TestBatchStep {
     new BatchStep("world", dependentConfig);
   }
 
+  @Test
+  public void testSingleConsumerNotCached() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    Config config = ConfigFactory.parseMap(configMap);
+    
+    BatchStep batchStep = new BatchStep("test", config);
+    batchStep.setDependentSteps(Sets.<Step>newHashSet(new BatchStep("dependent", ConfigFactory.empty())));
+    batchStep.submit(Sets.<Step>newHashSet());
+    
+    assertEquals(batchStep.getData().storageLevel(), StorageLevel.NONE());
+  }
+  
+  @Test
+  public void testMultipleConsumersCachedAtStorageLevel() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put(DataStep.STORAGE_LEVEL_PROPERTY, "MEMORY_AND_DISK");
+    Config config = ConfigFactory.parseMap(configMap);
+    
+    BatchStep batchStep = new BatchStep("test", config);
+    batchStep.setDependentSteps(Sets.<Step>newHashSet(
+        new BatchStep("dependent1", ConfigFactory.empty()), new BatchStep("dependent2", ConfigFactory.empty())));
+    batchStep.submit(Sets.<Step>newHashSet());
+    
+    assertEquals(batchStep.getData().storageLevel(), StorageLevel.MEMORY_AND_DISK());
+    
+    batchStep.clearCache();
+    
+    assertEquals(batchStep.getData().storageLevel(), StorageLevel.NONE());
+  }
+  
+  @Test
+  public void testCachesOnlyUsedFields() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    Config config = ConfigFactory.parseMap(configMap);
+    
+    Map<String, Object> dependent1ConfigMap = Maps.newHashMap();
+    dependent1ConfigMap.put("dependencies", Lists.newArrayList("test"));
+    dependent1ConfigMap.put("deriver.type", "sql");
+    dependent1ConfigMap.put("deriver.query.literal", "SELECT COUNT(*) FROM test WHERE modulo = 1");
+    Config dependent1Config = ConfigFactory.parseMap(dependent1ConfigMap);
+    
+    Map<String, Object> dependent2ConfigMap = Maps.newHashMap();
+    dependent2ConfigMap.put("dependencies", Lists.newArrayList("test"));
+    dependent2ConfigMap.put("deriver.type", "sql");
+    dependent2ConfigMap.put("deriver.query.literal", "SELECT t.modulo, MAX(t.modulo) FROM test t GROUP BY t.modulo");
+    Config dependent2Config = ConfigFactory.parseMap(dependent2ConfigMap);
+    
+    BatchStep batchStep = new BatchStep("test", config);
+    batchStep.setDependentSteps(Sets.<Step>newHashSet(
+        new BatchStep("dependent1", dependent1Config), new BatchStep("dependent2", dependent2Config)));
+    batchStep.submit(Sets.<Step>newHashSet());
+    
+    assertEquals(Lists.newArrayList(batchStep.getData().schema().fieldNames()), Lists.newArrayList("modulo"));
+    assertEquals(batchStep.getData().storageLevel(), StorageLevel.MEMORY_ONLY());
+  }
+  
+  @Test
+  public void testCachesFieldsUsedByTransitiveDependents() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    Config config = ConfigFactory.parseMap(configMap);
+    
+    Map<String, Object> dependent1ConfigMap = Maps.newHashMap();
+    dependent1ConfigMap.put("dependencies", Lists.newArrayList("test"));
+    dependent1ConfigMap.put("deriver.type", "sql");
+    dependent1ConfigMap.put("deriver.query.literal", "SELECT COUNT(1) FROM test");
+    Config dependent1Config = ConfigFactory.parseMap(dependent1ConfigMap);
+    
+    Map<String, Object> dependent2ConfigMap = Maps.newHashMap();
+    dependent2ConfigMap.put("dependencies", Lists.newArrayList("test"));
+    dependent2ConfigMap.put("deriver.type", "sql");
+    dependent2ConfigMap.put("deriver.query.literal", "SELECT COUNT(1) FROM test");
+    Config dependent2Config = ConfigFactory.parseMap(dependent2ConfigMap);
+    
+    Map<String, Object> transitiveConfigMap = Maps.newHashMap();
+    transitiveConfigMap.put("dependencies", Lists.newArrayList("dependent1"));
+    transitiveConfigMap.put("deriver.type", "sql");
+    transitiveConfigMap.put("deriver.query.literal", "SELECT modulo FROM test");
+    Config transitiveConfig = ConfigFactory.parseMap(transitiveConfigMap);
+    
+    BatchStep dependent1 = new BatchStep("dependent1", dependent1Config);
+    BatchStep dependent2 = new BatchStep("dependent2", dependent2Config);
+    BatchStep transitive = new BatchStep("transitive", transitiveConfig);
+    
+    BatchStep batchStep = new BatchStep("test", config);
+    batchStep.setDependentSteps(Sets.<Step>newHashSet(dependent1, dependent2),
+        Sets.<Step>newHashSet(dependent1, dependent2, transitive));
+    batchStep.submit(Sets.<Step>newHashSet());
+    
+    assertEquals(Lists.newArrayList(batchStep.getData().schema().fieldNames()), Lists.newArrayList("modulo"));
+  }
+  
+  @Test
+  public void testCachesAllFieldsForStar() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    Config config = ConfigFactory.parseMap(configMap);
+    
+    Map<String, Object> dependent1ConfigMap = Maps.newHashMap();
+    dependent1ConfigMap.put("dependencies", Lists.newArrayList("test"));
+    dependent1ConfigMap.put("deriver.type", "sql");
+    dependent1ConfigMap.put("deriver.query.literal", "SELECT modulo FROM test");
+    Config dependent1Config = ConfigFactory.parseMap(dependent1ConfigMap);
+    
+    Map<String, Object> dependent2ConfigMap = Maps.newHashMap();
+    dependent2ConfigMap.put("dependencies", Lists.newArrayList("test"));
+    dependent2ConfigMap.put("deriver.type", "sql");
+    dependent2ConfigMap.put("deriver.query.literal", "SELECT * FROM test WHERE modulo = 1");
+    Config dependent2Config = ConfigFactory.parseMap(dependent2ConfigMap);
+    
+    BatchStep batchStep = new BatchStep("test", config);
+    batchStep.setDependentSteps(Sets.<Step>newHashSet(
+        new BatchStep("dependent1", dependent1Config), new BatchStep("dependent2", dependent2Config)));
+    batchStep.submit(Sets.<Step>newHashSet());
+    
+    assertEquals(batchStep.getData().schema().fields().length, 2);
+  }
+  
+  @Test
+  (expected = RuntimeException.class)
+  public void testInvalidStorageLevel() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put(DataStep.STORAGE_LEVEL_PROPERTY, "MEMORY_AND_CLOUD");
+    Config config = ConfigFactory.parseMap(configMap);
+    
+    new BatchStep("test", config);
+  }
+
+  @Test
+  public void testLocalCheckpointInterval() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put(DataStep.CHECKPOINT_ENABLED_PROPERTY, true);
+    configMap.put(DataStep.CHECKPOINT_LOCAL_PROPERTY, true);
+    configMap.put(DataStep.CHECKPOINT_INTERVAL_PROPERTY, 2);
+    Config config = ConfigFactory.parseMap(configMap);
+    
+    BatchStep batchStep = new BatchStep("test", config);
+    
+    batchStep.submit(Sets.<Step>newHashSet());
+    assertFalse(batchStep.getData().queryExecution().logical() instanceof LogicalRDD);
+    
+    batchStep.submit(Sets.<Step>newHashSet());
+    assertTrue(batchStep.getData().queryExecution().logical() instanceof LogicalRDD);
+    assertEquals(batchStep.getData().count(), 50);
+    
+    batchStep.submit(Sets.<Step>newHashSet());
+    assertFalse(batchStep.getData().queryExecution().logical() instanceof LogicalRDD);
+  }
+  
+  @Test
+  public void testLocalCheckpointMaxPlanDepth() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put(DataStep.CHECKPOINT_ENABLED_PROPERTY, true);
+    configMap.put(DataStep.CHECKPOINT_LOCAL_PROPERTY, true);
+    configMap.put(DataStep.CHECKPOINT_MAX_PLAN_DEPTH_PROPERTY, 100);
+    Config config = ConfigFactory.parseMap(configMap);
+    
+    BatchStep shallowStep = new BatchStep("test", config);
+    shallowStep.submit(Sets.<Step>newHashSet());
+    assertFalse(shallowStep.getData().queryExecution().logical() instanceof LogicalRDD);
+    
+    configMap.put(DataStep.CHECKPOINT_MAX_PLAN_DEPTH_PROPERTY, 2);
+    config = ConfigFactory.parseMap(configMap);
+    
+    BatchStep deepStep = new BatchStep("test", config);
+    deepStep.submit(Sets.<Step>newHashSet());
+    assertTrue(deepStep.getData().queryExecution().logical() instanceof LogicalRDD);
+  }
+  
+  @Test (expected = RuntimeException.class)
+  public void testInvalidCheckpointInterval() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put(DataStep.CHECKPOINT_ENABLED_PROPERTY, true);
+    configMap.put(DataStep.CHECKPOINT_INTERVAL_PROPERTY, 0);
+    Config config = ConfigFactory.parseMap(configMap);
+    
+    new BatchStep("test", config);
+  }
+
+  @Test
+  public void testMaterializedUntilInputChanges() throws Exception {
+    File inputFile = temporaryFolder.newFile("input.json");
+    Files.copy(new File(getClass().getResource("/filesystem/sample-fs.json").toURI()), inputFile);
+    File materializationFolder = temporaryFolder.newFolder("materialization");
+    
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", "filesystem");
+    configMap.put("input.format", "json");
+    configMap.put("input.path", inputFile.getAbsolutePath());
+    configMap.put(BatchStep.MATERIALIZATION_PATH_PROPERTY, materializationFolder.getAbsolutePath());
+    Config config = ConfigFactory.parseMap(configMap);
+    
+    BatchStep firstRun = new BatchStep("test", config);
+    firstRun.submit(Sets.<Step>newHashSet());
+    String fingerprint = firstRun.getFingerprint().get();
+    
+    assertTrue(new File(materializationFolder, "test/" + fingerprint + "/_SUCCESS").exists());
+    
+    BatchStep secondRun = new BatchStep("test", config);
+    secondRun.submit(Sets.<Step>newHashSet());
+    
+    assertEquals(secondRun.getFingerprint().get(), fingerprint);
+    assertEquals(secondRun.getData().count(), firstRun.getData().count());
+    
+    inputFile.setLastModified(inputFile.lastModified() - 60000);
+    BatchStep thirdRun = new BatchStep("test", config);
+    thirdRun.submit(Sets.<Step>newHashSet());
+    
+    assertFalse(thirdRun.getFingerprint().get().equals(fingerprint));
+    assertFalse(new File(materializationFolder, "test/" + fingerprint).exists());
+  }
+  
+  @Test
+  public void testNotMaterializedWithoutFingerprintedDependencies() throws Exception {
+    File materializationFolder = temporaryFolder.newFolder("materialization");
+    
+    Map<String, Object> inputConfigMap = Maps.newHashMap();
+    inputConfigMap.put("input.type", DummyInput.class.getName());
+    inputConfigMap.put("input.starting.partitions", 5);
+    BatchStep inputStep = new BatchStep("input", ConfigFactory.parseMap(inputConfigMap));
+    inputStep.submit(Sets.<Step>newHashSet());
+    
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("dependencies", Lists.newArrayList("input"));
+    configMap.put(BatchStep.MATERIALIZATION_PATH_PROPERTY, materializationFolder.getAbsolutePath());
+    BatchStep batchStep = new BatchStep("test", ConfigFactory.parseMap(configMap));
+    batchStep.submit(Sets.<Step>newHashSet(inputStep));
+    
+    assertFalse(batchStep.getFingerprint().isPresent());
+    assertEquals(materializationFolder.list().length, 0);
+    assertEquals(batchStep.getData().count(), 50);
+  }
+
+  @Test
+  public void testNotMaterializedWithUndeclaredQueryRelations() throws Exception {
+    File materializationFolder = temporaryFolder.newFolder("materialization");
+    
+    Map<String, Object> inputConfigMap = Maps.newHashMap();
+    inputConfigMap.put("input.type", DummyInput.class.getName());
+    inputConfigMap.put("input.starting.partitions", 5);
+    BatchStep undeclaredStep = new BatchStep("undeclared", ConfigFactory.parseMap(inputConfigMap));
+    undeclaredStep.submit(Sets.<Step>newHashSet());
+    
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("deriver.type", "sql");
+    configMap.put("deriver.query.literal", "SELECT * FROM undeclared");
+    configMap.put(BatchStep.MATERIALIZATION_PATH_PROPERTY, materializationFolder.getAbsolutePath());
+    BatchStep batchStep = new BatchStep("test", ConfigFactory.parseMap(configMap));
+    batchStep.submit(Sets.<Step>newHashSet());
+    
+    assertFalse(batchStep.getFingerprint().isPresent());
+    assertEquals(materializationFolder.list().length, 0);
+  }
+
+  @Test
+  public void testSortGroupingPlansSameAsGroupByKey() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put("planner.type", "eventtimeupsert");
+    configMap.put("planner.fields.key", Lists.newArrayList("modulo"));
+    configMap.put("planner.field.timestamp", "value");
+    configMap.put("planner.field.values", Lists.newArrayList("value"));
+    configMap.put("output.type", DummyRandomOutput.class.getName());
+    
+    DummyRandomOutput.clear();
+    new BatchStep("grouped", ConfigFactory.parseMap(configMap)).submit(Sets.<Step>newHashSet());
+    Set<Row> groupedPlanned = getAppliedRows();
+    
+    configMap.put(DataStep.RANDOM_GROUPING_PROPERTY, DataStep.SORT_RANDOM_GROUPING);
+    configMap.put(DataStep.RANDOM_CHUNK_SIZE_PROPERTY, 2);
+    
+    DummyRandomOutput.clear();
+    new BatchStep("sorted", ConfigFactory.parseMap(configMap)).submit(Sets.<Step>newHashSet());
+    Set<Row> sortedPlanned = getAppliedRows();
+    
+    assertEquals(sortedPlanned.size(), 5);
+    assertEquals(sortedPlanned, groupedPlanned);
+    for (int batchSize : DummyRandomOutput.getAppliedBatchSizes()) {
+      assertTrue(batchSize <= 2);
+    }
+  }
+  
+  @Test
+  public void testCompactsPlannedMutations() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put("planner.type", DummyCompactablePlanner.class.getName());
+    configMap.put("output.type", DummyRandomOutput.class.getName());
+    configMap.put(DataStep.RANDOM_COMPACTION_ENABLED_PROPERTY, true);
+    configMap.put(DataStep.RANDOM_COMPACTION_FIELDS_PROPERTY, Lists.newArrayList("value"));
+    configMap.put(DataStep.RANDOM_CHUNK_SIZE_PROPERTY, 2);
+    
+    for (String grouping : Lists.newArrayList(DataStep.GROUP_RANDOM_GROUPING, DataStep.SORT_RANDOM_GROUPING)) {
+      configMap.put(DataStep.RANDOM_GROUPING_PROPERTY, grouping);
+      
+      DummyRandomOutput.clear();
+      new BatchStep(grouping, ConfigFactory.parseMap(configMap)).submit(Sets.<Step>newHashSet());
+      
+      // Each even value is inserted once with its update applied, and each odd value not at all
+      Set<Row> applied = getAppliedRows();
+      assertEquals(DummyRandomOutput.getApplied().size(), 25);
+      assertEquals(applied.size(), 25);
+      for (Row row : applied) {
+        assertEquals(row.getLong(0) % 2, 0);
+        assertEquals(row.getLong(1), row.getLong(0) % 5 + DummyCompactablePlanner.UPDATED_MODULO_OFFSET);
+      }
+    }
+  }
+  
+  @Test
+  public void testChunkedExistingLookups() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put("planner.type", "eventtimeupsert");
+    configMap.put("planner.fields.key", Lists.newArrayList("modulo"));
+    configMap.put("planner.field.timestamp", "value");
+    configMap.put("planner.field.values", Lists.newArrayList("value"));
+    configMap.put("output.type", DummyRandomOutput.class.getName());
+    configMap.put("repartition.partitions", 1);
+    configMap.put(DataStep.RANDOM_CHUNK_SIZE_PROPERTY, 2);
+    configMap.put(DataStep.RANDOM_LOOKUPS_IN_FLIGHT_PROPERTY, 2);
+    
+    for (String grouping : Lists.newArrayList(DataStep.GROUP_RANDOM_GROUPING, DataStep.SORT_RANDOM_GROUPING)) {
+      configMap.put(DataStep.RANDOM_GROUPING_PROPERTY, grouping);
+      
+      DummyRandomOutput.clear();
+      new BatchStep(grouping, ConfigFactory.parseMap(configMap)).submit(Sets.<Step>newHashSet());
+      
+      assertEquals(getAppliedRows().size(), 5);
+      int keysLookedUp = 0;
+      for (int lookupSize : DummyRandomOutput.getLookupSizes()) {
+        assertTrue(lookupSize <= 2);
+        keysLookedUp += lookupSize;
+      }
+      assertEquals(keysLookedUp, 5);
+    }
+  }
+  
+  @Test
+  public void testReducedArrivingPlansLatestForKey() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put("planner.type", "eventtimeupsert");
+    configMap.put("planner.fields.key", Lists.newArrayList("modulo"));
+    configMap.put("planner.field.timestamp", "value");
+    configMap.put("planner.field.values", Lists.newArrayList("value"));
+    configMap.put("output.type", DummyRandomOutput.class.getName());
+    
+    Set<Row> expected = Sets.newHashSet();
+    for (long value = 45; value < 50; value++) {
+      expected.add(RowFactory.create(value, value % 5));
+    }
+    
+    for (String grouping : Lists.newArrayList(DataStep.GROUP_RANDOM_GROUPING, DataStep.SORT_RANDOM_GROUPING)) {
+      configMap.put(DataStep.RANDOM_GROUPING_PROPERTY, grouping);
+      
+      DummyRandomOutput.clear();
+      new BatchStep(grouping, ConfigFactory.parseMap(configMap)).submit(Sets.<Step>newHashSet());
+      
+      assertEquals(getAppliedRows(), expected);
+    }
+  }
+  
+  @Test (expected = RuntimeException.class)
+  public void testInvalidRandomLookupsInFlight() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put(DataStep.RANDOM_LOOKUPS_IN_FLIGHT_PROPERTY, 0);
+    
+    new BatchStep("test", ConfigFactory.parseMap(configMap));
+  }
+  
+  @Test (expected = RuntimeException.class)
+  public void testInvalidRandomGrouping() throws Exception {
+    Map<String, Object> configMap = Maps.newHashMap();
+    configMap.put("input.type", DummyInput.class.getName());
+    configMap.put("input.starting.partitions", 5);
+    configMap.put(DataStep.RANDOM_GROUPING_PROPERTY, "hash");
+    
+    new BatchStep("test", ConfigFactory.parseMap(configMap));
+  }
+  
+  private Set<Row> getAppliedRows() {
+    Set<Row> rows = Sets.newHashSet();
+    
+    for (PlannedRow planned : DummyRandomOutput.getApplied()) {
+      assertEquals(planned.getMutationType(), MutationType.INSERT);
+      rows.add(RowFactory.create(planned.getRow().get(0), planned.getRow().get(1)));
+    }
+    
+    return rows;
+  }
+
 }
@@ -15,6 +15,7 @@
  */
 package com.cloudera.labs.envelope.run;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import java.util.concurrent.ExecutionException;
@@ -58,6 +59,17 @@ public class TestRunner {
     }
   }
   
+  @Test
+  public void testRefactorStepsDuringBatch() throws Exception {
+    Config config = ConfigUtils.configFromResource("/runner/runner-refactor.conf");
+    
+    Contexts.closeSparkSession(true);
+    Runner.run(config);
+    
+    assertEquals(Contexts.getSparkSession().table("iterate_2").count(), 1);
+    assertEquals(Contexts.getSparkSession().table("keep").count(), 2);
+  }
+  
   @SuppressWarnings("serial")
   public static class TestUDF1 implements UDF1<String, String> {
     @Override
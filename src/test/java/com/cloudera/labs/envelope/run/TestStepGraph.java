@@ -0,0 +1,90 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.run;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+import com.typesafe.config.ConfigFactory;
+
+public class TestStepGraph {
+
+  BatchStep step1, step2, step3, step4;
+  Set<Step> steps;
+
+  @Before
+  public void initializeSteps() {
+    step1 = new BatchStep("step1", ConfigFactory.empty());
+    step2 = new BatchStep("step2", ConfigFactory.empty());
+    step3 = new BatchStep("step3", ConfigFactory.empty());
+    step4 = new BatchStep("step4", ConfigFactory.empty());
+
+    step2.setDependencyNames(Sets.newHashSet("step1"));
+    step3.setDependencyNames(Sets.newHashSet("step1", "step2"));
+    step4.setDependencyNames(Sets.newHashSet("step3"));
+
+    steps = Sets.<Step>newHashSet(step1, step2, step3, step4);
+  }
+
+  @Test
+  public void testLookups() {
+    StepGraph graph = new StepGraph(steps);
+
+    assertEquals(graph.getStep("step2").get(), step2);
+    assertFalse(graph.getStep("step5").isPresent());
+
+    assertEquals(graph.getDependencies(step1), Sets.newHashSet());
+    assertEquals(graph.getDependencies(step3), Sets.newHashSet(step1, step2));
+
+    assertEquals(graph.getImmediateDependents(step1), Sets.newHashSet(step2, step3));
+    assertEquals(graph.getImmediateDependents(step4), Sets.newHashSet());
+
+    assertEquals(graph.getAllDependents(step1), Sets.newHashSet(step2, step3, step4));
+    assertEquals(graph.getAllDependents(step3), Sets.newHashSet(step4));
+  }
+
+  @Test
+  public void testChanges() {
+    StepGraph graph = new StepGraph(steps);
+
+    graph.removeStep(step2);
+    assertFalse(steps.contains(step2));
+    assertFalse(graph.getStep("step2").isPresent());
+    assertEquals(graph.getImmediateDependents(step1), Sets.newHashSet(step3));
+
+    graph.renameStep(step4, "step4_renamed");
+    assertEquals(graph.getStep("step4_renamed").get(), step4);
+    assertFalse(graph.getStep("step4").isPresent());
+
+    BatchStep step5 = new BatchStep("step5", ConfigFactory.empty());
+    graph.addStep(step5);
+    graph.addDependency(step5, "step4_renamed");
+    assertTrue(steps.contains(step5));
+    assertEquals(graph.getAllDependents(step3), Sets.newHashSet(step4, step5));
+
+    graph.removeDependency(step5, "step4_renamed");
+    assertEquals(step5.getDependencyNames(), Sets.newHashSet());
+    assertEquals(graph.getAllDependents(step3), Sets.newHashSet(step4));
+  }
+
+}
@@ -18,11 +18,15 @@ package com.cloudera.labs.envelope.spark;
 import static org.junit.Assert.assertEquals;
 
 import java.util.Collections;
+import java.util.List;
 
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.VoidFunction;
 import org.apache.spark.util.DoubleAccumulator;
 import org.apache.spark.util.LongAccumulator;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 public class TestAccumulators {
@@ -51,4 +55,42 @@ public class TestAccumulators {
     assertEquals(accumulator2.name().get(), "world");
   }
   
+  @Test
+  public void testHistogramMergedAcrossTasks() {
+    AccumulatorRequest request = new AccumulatorRequest("latency", LatencyHistogram.class);
+    
+    Accumulators accumulators = new Accumulators(Collections.singleton(request));
+    
+    HistogramAccumulator accumulator = accumulators.getHistogramAccumulators().get("latency");
+    assertEquals(accumulator.name().get(), "latency");
+    
+    List<Long> latencies = Lists.newArrayList();
+    for (long latency = 1; latency <= 100; latency++) {
+      latencies.add(latency);
+    }
+    
+    JavaSparkContext jsc = new JavaSparkContext(Contexts.getSparkSession().sparkContext());
+    jsc.parallelize(latencies, 4).foreach(new RecordLatencyFunction(accumulator));
+    
+    LatencyHistogram histogram = accumulator.value();
+    assertEquals(histogram.getCount(), 100);
+    assertEquals(histogram.getSumNanos(), 5050);
+    assertEquals(histogram.getMinNanos(), 1);
+    assertEquals(histogram.getMaxNanos(), 100);
+  }
+  
+  @SuppressWarnings("serial")
+  private static class RecordLatencyFunction implements VoidFunction<Long> {
+    private HistogramAccumulator accumulator;
+    
+    public RecordLatencyFunction(HistogramAccumulator accumulator) {
+      this.accumulator = accumulator;
+    }
+    
+    @Override
+    public void call(Long latency) throws Exception {
+      accumulator.add(latency.longValue());
+    }
+  }
+  
 }
@@ -121,4 +121,27 @@ public class TestContexts {
     Contexts.closeSparkSession(true);
   }
 
+  @Test
+  public void testKryoConfiguration() {
+    Contexts.closeSparkSession(true);
+    Contexts.initialize(ConfigFactory.empty(), Contexts.ExecutionMode.UNIT_TEST);
+
+    SparkConf sparkConf = Contexts.getSparkSession().sparkContext().getConf();
+
+    assertTrue(!sparkConf.contains("spark.kryo.registrator"));
+
+    Properties props = new Properties();
+    props.setProperty(Contexts.KRYO_ENABLED_PROPERTY, "true");
+
+    Contexts.closeSparkSession(true);
+    Contexts.initialize(ConfigFactory.parseProperties(props), Contexts.ExecutionMode.UNIT_TEST);
+
+    sparkConf = Contexts.getSparkSession().sparkContext().getConf();
+
+    assertEquals(sparkConf.get("spark.serializer"), "org.apache.spark.serializer.KryoSerializer");
+    assertEquals(sparkConf.get("spark.kryo.registrator"), EnvelopeKryoRegistrator.class.getName());
+
+    Contexts.closeSparkSession(true);
+  }
+
 }
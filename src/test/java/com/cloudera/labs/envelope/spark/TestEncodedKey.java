@@ -0,0 +1,107 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestEncodedKey {
+
+  private StructType keySchema = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("string", DataTypes.StringType, true),
+      DataTypes.createStructField("long", DataTypes.LongType, true),
+      DataTypes.createStructField("int", DataTypes.IntegerType, true),
+      DataTypes.createStructField("boolean", DataTypes.BooleanType, true),
+      DataTypes.createStructField("double", DataTypes.DoubleType, true),
+      DataTypes.createStructField("binary", DataTypes.BinaryType, true),
+      DataTypes.createStructField("decimal", DataTypes.createDecimalType(10, 2), true),
+      DataTypes.createStructField("timestamp", DataTypes.TimestampType, true),
+      DataTypes.createStructField("date", DataTypes.DateType, true)));
+
+  @Test
+  public void testRoundTrip() {
+    Row key = new RowWithSchema(keySchema, "a", 1L, 2, true, 3.5, new byte[] {1, 2, 3},
+        new BigDecimal("12.34"), new Timestamp(1000L), new Date(2000L));
+
+    Row decoded = EncodedKey.encode(key).decode(keySchema);
+
+    assertEquals(decoded.schema(), keySchema);
+    assertEquals(decoded.get(0), "a");
+    assertEquals(decoded.get(1), 1L);
+    assertEquals(decoded.get(2), 2);
+    assertEquals(decoded.get(3), true);
+    assertEquals(decoded.get(4), 3.5);
+    assertArrayEquals((byte[])decoded.get(5), new byte[] {1, 2, 3});
+    assertEquals(decoded.get(6), new BigDecimal("12.34"));
+    assertEquals(decoded.get(7), new Timestamp(1000L));
+    assertEquals(decoded.get(8), new Date(2000L));
+  }
+
+  @Test
+  public void testNulls() {
+    Row key = new RowWithSchema(keySchema, null, null, null, null, null, null, null, null, null);
+
+    Row decoded = EncodedKey.encode(key).decode(keySchema);
+
+    for (int i = 0; i < decoded.length(); i++) {
+      assertTrue(decoded.isNullAt(i));
+    }
+  }
+
+  @Test
+  public void testEquality() {
+    StructType recordSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("value", DataTypes.StringType, true),
+        DataTypes.createStructField("key1", DataTypes.StringType, true),
+        DataTypes.createStructField("key2", DataTypes.LongType, true)));
+    Row record = new RowWithSchema(recordSchema, "hello", "a", 1L);
+    Row sameKey = new RowWithSchema(recordSchema, "world", "a", 1L);
+    Row differentKey = new RowWithSchema(recordSchema, "hello", "a", 2L);
+    // The same values split differently across the fields must not encode equally
+    Row shiftedKey = new RowWithSchema(recordSchema, "hello", "a1", null);
+    int[] ordinals = new int[] {1, 2};
+
+    EncodedKey key = EncodedKey.encode(record, ordinals);
+
+    assertEquals(EncodedKey.encode(sameKey, ordinals), key);
+    assertEquals(EncodedKey.encode(sameKey, ordinals).hashCode(), key.hashCode());
+    assertEquals(EncodedKey.encode(sameKey, ordinals).compareTo(key), 0);
+    assertFalse(EncodedKey.encode(differentKey, ordinals).equals(key));
+    assertFalse(EncodedKey.encode(shiftedKey, ordinals).equals(key));
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void testUnsupportedType() {
+    StructType schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("list", DataTypes.createArrayType(DataTypes.StringType), true)));
+
+    EncodedKey.encode(new RowWithSchema(schema, Lists.newArrayList("a")));
+  }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.serializer.DeserializationStream;
+import org.apache.spark.serializer.KryoSerializer;
+import org.apache.spark.serializer.SerializationStream;
+import org.apache.spark.serializer.SerializerInstance;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.expressions.GenericRowWithSchema;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloudera.labs.envelope.plan.MutationType;
+import com.cloudera.labs.envelope.plan.PlannedRow;
+import com.google.common.collect.Lists;
+
+import scala.reflect.ClassTag;
+import scala.reflect.ClassTag$;
+
+public class TestEnvelopeKryoRegistrator {
+
+  private static final ClassTag<Object> OBJECT_TAG = ClassTag$.MODULE$.apply(Object.class);
+
+  private StructType schema;
+  private SerializerInstance serializer;
+
+  @Before
+  public void before() {
+    schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("value", DataTypes.LongType, true)));
+
+    SparkConf conf = new SparkConf()
+        .set("spark.kryo.registrator", EnvelopeKryoRegistrator.class.getName());
+    serializer = new KryoSerializer(conf).newInstance();
+  }
+
+  @Test
+  public void testRoundTrip() {
+    Row row = new RowWithSchema(schema, "a", 1L);
+    PlannedRow planned = new PlannedRow(new RowWithSchema(schema, "b", null), MutationType.UPDATE);
+    Row generic = new GenericRowWithSchema(new Object[] { "c", 3L }, schema);
+    EncodedKey key = EncodedKey.encode(new RowWithSchema(schema, "d", 4L));
+
+    Row rowCopy = (Row)roundTrip(row);
+    assertEquals(rowCopy, row);
+    assertEquals(rowCopy.schema(), schema);
+
+    PlannedRow plannedCopy = (PlannedRow)roundTrip(planned);
+    assertEquals(plannedCopy.getMutationType(), MutationType.UPDATE);
+    assertEquals(plannedCopy.getRow(), planned.getRow());
+
+    Row genericCopy = (Row)roundTrip(generic);
+    assertEquals(genericCopy, generic);
+    assertEquals(genericCopy.schema(), schema);
+
+    assertEquals(roundTrip(key), key);
+  }
+
+  @Test
+  public void testSchemaInternedAcrossRecords() {
+    List<Row> rows = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      rows.add(new RowWithSchema(schema, "key" + i, (long)i));
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SerializationStream out = serializer.serializeStream(bytes);
+    for (Row row : rows) {
+      out.writeObject(row, OBJECT_TAG);
+    }
+    out.close();
+
+    DeserializationStream in = serializer.deserializeStream(new ByteArrayInputStream(bytes.toByteArray()));
+    StructType readSchema = null;
+    for (Row row : rows) {
+      Row read = (Row)in.readObject(OBJECT_TAG);
+      assertEquals(read, row);
+
+      if (readSchema == null) {
+        readSchema = read.schema();
+      }
+      assertSame(read.schema(), readSchema);
+    }
+    in.close();
+  }
+
+  @Test
+  public void testSchemaWrittenWithEachRecord() {
+    Row row = new RowWithSchema(schema, "a", 1L);
+
+    int singleBytes = streamedBytes(Lists.newArrayList(row));
+    int hundredBytes = streamedBytes(Collections.nCopies(100, row));
+
+    // Each record is self-contained, so that Spark can relocate its bytes
+    assertTrue(singleBytes > schema.json().length());
+    assertEquals(hundredBytes, singleBytes * 100);
+  }
+
+  @Test
+  public void testSharedReferencesKept() {
+    Row row = new RowWithSchema(schema, "a", 1L);
+    List<Row> rows = Lists.newArrayList(row, row);
+
+    @SuppressWarnings("unchecked")
+    List<Row> rowsCopy = (List<Row>)roundTrip(rows);
+
+    assertEquals(rowsCopy.size(), 2);
+    assertSame(rowsCopy.get(0), rowsCopy.get(1));
+  }
+
+  @Test
+  public void testSchemaInterned() {
+    StructType otherSchema = DataTypes.createStructType(new StructField[] {
+        DataTypes.createStructField("key", DataTypes.StringType, false),
+        DataTypes.createStructField("value", DataTypes.LongType, true) });
+
+    Row first = (Row)roundTrip(new RowWithSchema(schema, "a", 1L));
+    Row second = (Row)roundTrip(new RowWithSchema(otherSchema, "b", 2L));
+
+    assertSame(first.schema(), second.schema());
+  }
+
+  private int streamedBytes(List<Row> rows) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SerializationStream out = serializer.serializeStream(bytes);
+    for (Row row : rows) {
+      out.writeObject(row, OBJECT_TAG);
+    }
+    out.close();
+
+    return bytes.size();
+  }
+
+  private Object roundTrip(Object value) {
+    ByteBuffer buffer = serializer.serialize(value, OBJECT_TAG);
+    return serializer.deserialize(buffer, OBJECT_TAG);
+  }
+
+}
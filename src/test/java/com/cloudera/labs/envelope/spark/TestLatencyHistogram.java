@@ -0,0 +1,83 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestLatencyHistogram {
+
+  @Test
+  public void testEmpty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    
+    assertTrue(histogram.isEmpty());
+    assertEquals(histogram.getCount(), 0);
+    assertEquals(histogram.getMinNanos(), 0);
+    assertEquals(histogram.getPercentileNanos(99), 0);
+  }
+  
+  @Test
+  public void testSmallLatenciesExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long latency = 1; latency <= 7; latency++) {
+      histogram.record(latency);
+    }
+    
+    assertEquals(histogram.getPercentileNanos(50), 4);
+    assertEquals(histogram.getPercentileNanos(100), 7);
+    assertEquals(histogram.getMeanNanos(), 4.0, 0);
+  }
+  
+  @Test
+  public void testPercentilesWithinError() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long latency = 1; latency <= 1000000; latency++) {
+      histogram.record(latency * 1000);
+    }
+    
+    assertWithinError(histogram.getPercentileNanos(50), 500000000L);
+    assertWithinError(histogram.getPercentileNanos(90), 900000000L);
+    assertWithinError(histogram.getPercentileNanos(99), 990000000L);
+    assertEquals(histogram.getPercentileNanos(100), 1000000000L);
+    assertEquals(histogram.getMinNanos(), 1000L);
+  }
+  
+  @Test
+  public void testMerge() {
+    LatencyHistogram fast = new LatencyHistogram();
+    LatencyHistogram slow = new LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      fast.record(1000);
+    }
+    slow.record(1000000000L);
+    
+    fast.merge(slow);
+    
+    assertEquals(fast.getCount(), 100);
+    assertWithinError(fast.getPercentileNanos(99), 1000);
+    assertEquals(fast.getPercentileNanos(100), 1000000000L);
+    assertEquals(fast.getMaxNanos(), 1000000000L);
+  }
+  
+  private void assertWithinError(long estimate, long actual) {
+    assertTrue(estimate + " is not within 12.5% of " + actual,
+        estimate >= actual && estimate <= actual * 1.125);
+  }
+  
+}
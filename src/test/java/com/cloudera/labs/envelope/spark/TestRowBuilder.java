@@ -0,0 +1,82 @@
+/**
+ * Copyright © 2016-2017 Cloudera, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.labs.envelope.spark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestRowBuilder {
+
+  private StructType schema = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("key", DataTypes.StringType, false),
+      DataTypes.createStructField("value", DataTypes.StringType, true),
+      DataTypes.createStructField("timestamp", DataTypes.LongType, true)));
+  private StructType reorderedSchema = DataTypes.createStructType(Lists.newArrayList(
+      DataTypes.createStructField("timestamp", DataTypes.LongType, true),
+      DataTypes.createStructField("key", DataTypes.StringType, false),
+      DataTypes.createStructField("value", DataTypes.StringType, true)));
+
+  @Test
+  public void testAccessorAcrossSchemas() {
+    FieldAccessor timestamp = new FieldAccessor("timestamp");
+
+    Row row = new RowWithSchema(schema, "a", "hello", 100L);
+    Row reordered = new RowWithSchema(reorderedSchema, 200L, "a", "hello");
+
+    assertEquals(timestamp.ordinal(row), 2);
+    assertEquals(timestamp.ordinal(reordered), 0);
+    assertEquals(timestamp.getLong(row), (Long)100L);
+    assertEquals(timestamp.getLong(reordered), (Long)200L);
+    assertEquals(timestamp.compareLong(row, reordered), -1);
+  }
+
+  @Test
+  public void testDifferent() {
+    Row row = new RowWithSchema(schema, "a", "hello", 100L);
+    Row same = new RowWithSchema(reorderedSchema, 200L, "a", "hello");
+    Row different = new RowWithSchema(reorderedSchema, 100L, "a", null);
+
+    assertFalse(FieldAccessor.different(row, same, FieldAccessor.forFieldNames(Lists.newArrayList("key", "value"))));
+    assertTrue(FieldAccessor.different(row, different, FieldAccessor.forFieldNames(Lists.newArrayList("value"))));
+  }
+
+  @Test
+  public void testBuildAppended() {
+    Row row = new RowWithSchema(schema, "a", "hello", 100L);
+    StructType appendedSchema = schema.add("effective", DataTypes.LongType);
+
+    RowBuilder builder = new RowBuilder(appendedSchema, row);
+    builder.set(new FieldAccessor("effective"), 100L).set(1, "world");
+    Row built = builder.build();
+
+    assertEquals(built, RowFactory.create("a", "world", 100L, 100L));
+    assertEquals(built.schema(), appendedSchema);
+    assertEquals(row, RowFactory.create("a", "hello", 100L));
+
+    builder.set(1, "again");
+    assertEquals(built.get(1), "world");
+  }
+
+}
@@ -16,6 +16,7 @@
 package com.cloudera.labs.envelope.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
@@ -1268,4 +1269,26 @@ public class TestRowUtils {
 
   }
 
+  @Test
+  public void testCarryForwardWhenNull() {
+    StructType schema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("field1", DataTypes.StringType, true),
+        DataTypes.createStructField("field2", DataTypes.StringType, true),
+        DataTypes.createStructField("field3", DataTypes.StringType, true)));
+    StructType reorderedSchema = DataTypes.createStructType(Lists.newArrayList(
+        DataTypes.createStructField("field3", DataTypes.StringType, true),
+        DataTypes.createStructField("field2", DataTypes.StringType, true),
+        DataTypes.createStructField("field1", DataTypes.StringType, true)));
+
+    Row into = new RowWithSchema(schema, "a", null, null);
+    Row from = new RowWithSchema(schema, "b", "c", null);
+    Row reorderedFrom = new RowWithSchema(reorderedSchema, null, "c", "b");
+
+    assertEquals(RowUtils.carryForwardWhenNull(into, from), RowFactory.create("a", "c", null));
+    assertEquals(RowUtils.carryForwardWhenNull(into, reorderedFrom), RowFactory.create("a", "c", null));
+
+    Row complete = new RowWithSchema(schema, "a", "b", "c");
+    assertSame(RowUtils.carryForwardWhenNull(complete, from), complete);
+  }
+
 }